@@ -0,0 +1,347 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.asm.controlflow;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Execution counts of basic blocks and control flow edges , grouped by method.
+ *
+ * <p>Blocks are identified by the index of their first instruction (see {@link #getBlockKey(IBlock)}) , so counts recorded 
+ * for a method can be matched against a {@link ControlFlowGraph} of the same (uninstrumented) byte-code that was created
+ * by a different process.</p>
+ * 
+ * <p>Profiles are written to / read from a simple text format , see {@link #write(PrintStream)}.</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ * @see DOTRenderer#setProfile(BlockProfile.MethodCounts)
+ */
+public final class BlockProfile
+{
+    /**
+     * Key of the {@link MethodEntry} block.
+     */
+    public static final int ENTRY = -1;
+
+    /**
+     * Key of the {@link MethodExit} block.
+     */
+    public static final int EXIT = -2;
+
+    // by method key
+    private final Map<String,MethodCounts> methods = new LinkedHashMap<>();
+
+    /**
+     * Block and edge counts of a single method.
+     *
+     * @author tobias.gierke@code-sourcery.de
+     */
+    public static final class MethodCounts
+    {
+        private final String className;
+        private final String methodName;
+        private final String descriptor;
+        private final Map<Integer,Long> blocks = new HashMap<>();
+        private final Map<Integer,Map<Integer,Long>> edges = new HashMap<>();
+
+        protected MethodCounts(String className, String methodName, String descriptor)
+        {
+            this.className = className;
+            this.methodName = methodName;
+            this.descriptor = descriptor;
+        }
+
+        /**
+         * Returns the fully-qualified name of the class declaring this method.
+         *
+         * @return
+         */
+        public String getClassName()
+        {
+            return className;
+        }
+
+        public String getMethodName()
+        {
+            return methodName;
+        }
+
+        public String getDescriptor()
+        {
+            return descriptor;
+        }
+
+        /**
+         * Adds executions of a block.
+         *
+         * @param block block key , see {@link BlockProfile#getBlockKey(IBlock)}
+         * @param count
+         */
+        public void addBlock(int block,long count)
+        {
+            final Long existing = blocks.get( block );
+            blocks.put( block , existing == null ? count : existing + count );
+        }
+
+        /**
+         * Adds traversals of an edge.
+         *
+         * @param src key of the source block , see {@link BlockProfile#getBlockKey(IBlock)}
+         * @param dst key of the destination block
+         * @param count
+         */
+        public void addEdge(int src,int dst,long count)
+        {
+            Map<Integer,Long> map = edges.get( src );
+            if ( map == null ) {
+                map = new HashMap<>();
+                edges.put( src , map );
+            }
+            final Long existing = map.get( dst );
+            map.put( dst , existing == null ? count : existing + count );
+        }
+
+        /**
+         * Returns how often a block has been executed.
+         *
+         * @param block
+         * @return count , 0 for blocks without instructions
+         */
+        public long getBlockCount(IBlock block)
+        {
+            if ( ! hasKey( block ) ) {
+                return 0;
+            }
+            final Long result = blocks.get( getBlockKey( block ) );
+            return result == null ? 0 : result;
+        }
+
+        /**
+         * Returns how often an edge has been taken.
+         *
+         * @param src
+         * @param dst
+         * @return
+         */
+        public long getEdgeCount(IBlock src,IBlock dst)
+        {
+            if ( ! hasKey( src ) || ! hasKey( dst ) ) {
+                return 0;
+            }
+            final Map<Integer,Long> map = edges.get( getBlockKey( src ) );
+            final Long result = map == null ? null : map.get( getBlockKey( dst ) );
+            return result == null ? 0 : result;
+        }
+
+        /**
+         * Returns the largest block count.
+         *
+         * @return
+         */
+        public long getMaxBlockCount()
+        {
+            return max( blocks.values() );
+        }
+
+        /**
+         * Returns the largest edge count.
+         *
+         * @return
+         */
+        public long getMaxEdgeCount()
+        {
+            long result = 0;
+            for ( Map<Integer,Long> map : edges.values() ) {
+                result = Math.max( result , max( map.values() ) );
+            }
+            return result;
+        }
+
+        private static boolean hasKey(IBlock block) {
+            return block instanceof MethodEntry || block instanceof MethodExit || ! block.getInstructionNums().isEmpty();
+        }
+
+        private static long max(Collection<Long> values) 
+        {
+            long result = 0;
+            for ( long value : values ) {
+                result = Math.max( result , value );
+            }
+            return result;
+        }
+
+        @Override
+        public String toString()
+        {
+            return className+"#"+methodName+descriptor;
+        }
+    }
+
+    public BlockProfile() {
+    }
+
+    /**
+     * Returns the key a block is identified by.
+     *
+     * @param block
+     * @return {@link #ENTRY} , {@link #EXIT} or the smallest index of all instructions in the block
+     * @throws IllegalArgumentException if the block contains no instructions at all
+     */
+    public static int getBlockKey(IBlock block) throws IllegalArgumentException
+    {
+        if ( block instanceof MethodEntry ) {
+            return ENTRY;
+        }
+        if ( block instanceof MethodExit ) {
+            return EXIT;
+        }
+        if ( block.getInstructionNums().isEmpty() ) {
+            throw new IllegalArgumentException("Block "+block+" contains no instructions");
+        }
+        return Collections.min( block.getInstructionNums() );
+    }
+
+    /**
+     * Returns the counts of a method , creating an empty entry if none exists yet.
+     *
+     * @param className fully-qualified class name
+     * @param methodName
+     * @param descriptor
+     * @return
+     */
+    public MethodCounts getOrCreate(String className,String methodName,String descriptor)
+    {
+        final String key = className+"#"+methodName+descriptor;
+        MethodCounts result = methods.get( key );
+        if ( result == null ) {
+            result = new MethodCounts( className , methodName , descriptor );
+            methods.put( key , result );
+        }
+        return result;
+    }
+
+    /**
+     * Returns the counts of a method.
+     *
+     * @param className fully-qualified class name
+     * @param methodName
+     * @param descriptor
+     * @return counts or <code>null</code>
+     */
+    public MethodCounts getMethod(String className,String methodName,String descriptor) {
+        return methods.get( className+"#"+methodName+descriptor );
+    }
+
+    /**
+     * Returns all methods.
+     *
+     * @return
+     */
+    public List<MethodCounts> getMethods() {
+        return new ArrayList<>( methods.values() );
+    }
+
+    /**
+     * Writes all non-zero counts.
+     *
+     * <p>Each method starts with a line <code>method &lt;class&gt; &lt;method name&gt; &lt;descriptor&gt;</code> , followed by lines
+     * <code>block &lt;key&gt; &lt;count&gt;</code> and <code>edge &lt;source key&gt; &lt;destination key&gt; &lt;count&gt;</code>. 
+     * Columns are separated by tab characters , lines starting with '#' are comments.</p>
+     *
+     * @param out
+     * @see #read(File)
+     */
+    public void write(PrintStream out)
+    {
+        out.println("# method\tclass\tname\tdescriptor / block\tkey\tcount / edge\tsource key\tdestination key\tcount");
+        for ( MethodCounts method : methods.values() )
+        {
+            out.println("method\t"+method.className+"\t"+method.methodName+"\t"+method.descriptor);
+            for ( Map.Entry<Integer,Long> block : method.blocks.entrySet() ) 
+            {
+                if ( block.getValue() != 0 ) {
+                    out.println("block\t"+block.getKey()+"\t"+block.getValue() );
+                }
+            }
+            for ( Map.Entry<Integer,Map<Integer,Long>> src : method.edges.entrySet() ) 
+            {
+                for ( Map.Entry<Integer,Long> dst : src.getValue().entrySet() ) 
+                {
+                    if ( dst.getValue() != 0 ) {
+                        out.println("edge\t"+src.getKey()+"\t"+dst.getKey()+"\t"+dst.getValue() );
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads a profile written by {@link #write(PrintStream)}.
+     *
+     * @param file
+     * @return
+     * @throws IOException
+     */
+    public static BlockProfile read(File file) throws IOException
+    {
+        final BlockProfile result = new BlockProfile();
+        final BufferedReader reader = new BufferedReader( new InputStreamReader( new FileInputStream( file ) , "UTF-8" ) );
+        try 
+        {
+            MethodCounts current = null;
+            String line;
+            int lineNo = 0;
+            while ( ( line = reader.readLine() ) != null ) 
+            {
+                lineNo++;
+                if ( line.trim().isEmpty() || line.startsWith("#") ) {
+                    continue;
+                }
+                final String[] parts = line.split("\t");
+                try 
+                {
+                    if ( parts[0].equals("method") && parts.length == 4 ) {
+                        current = result.getOrCreate( parts[1] , parts[2] , parts[3] );
+                    } else if ( parts[0].equals("block") && parts.length == 3 && current != null ) {
+                        current.addBlock( Integer.parseInt( parts[1] ) , Long.parseLong( parts[2] ) );
+                    } else if ( parts[0].equals("edge") && parts.length == 4 && current != null ) {
+                        current.addEdge( Integer.parseInt( parts[1] ) , Integer.parseInt( parts[2] ) , Long.parseLong( parts[3] ) );
+                    } else {
+                        throw new IOException("Malformed line "+lineNo+" in "+file.getAbsolutePath()+": "+line);
+                    }
+                } 
+                catch(NumberFormatException e) {
+                    throw new IOException("Malformed line "+lineNo+" in "+file.getAbsolutePath()+": "+line);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return result;
+    }
+}
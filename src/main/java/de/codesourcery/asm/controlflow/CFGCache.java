@@ -0,0 +1,602 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.asm.controlflow;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.analysis.AnalyzerException;
+
+/**
+ * Persistent cache of control flow graphs , keyed by a hash of each method's code and the {@link ControlFlowAnalyzer#VERSION}.
+ * 
+ * <p>Graphs are stored in a {@link CFGFile} , methods whose code did not change since the cache file was written are not 
+ * analyzed again but re-created from the file. Graphs of new or changed methods are added to the file when the cache is
+ * closed , graphs that were not looked up while the cache was open (see {@link #getGraph(String, MethodNode, ControlFlowAnalyzer)} , 
+ * {@link #isCached(MethodNode)} and {@link #isRendered(File, MethodNode, String)}) are dropped. So the file only holds the methods 
+ * of the most recent run , graphs of methods that changed or no longer exist do not pile up.</p>
+ * 
+ * <p>The cache also remembers which files have been rendered from which method code with which rendering options
+ * (in a properties file next to the cache file , named like the cache file plus '.outputs'), so that callers can skip
+ * rendering files that are still up-to-date. A file that has been modified by anyone else is never considered up-to-date.</p>
+ * 
+ * <p>Graphs may be requested from multiple threads concurrently.</p>
+ * 
+ * @author tobias.gierke@code-sourcery.de
+ * @see ControlFlowGrapher
+ */
+public class CFGCache implements Closeable
+{
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final File file;
+    private CFGFile cacheFile;
+    private final Map<String,CFGFile.MethodGraph> cachedGraphs = new HashMap<>();
+    private final Map<String,AddedGraph> addedGraphs = new LinkedHashMap<>();
+    // keys of cached graphs that were looked up , all others get dropped when the cache is closed
+    private final Set<String> usedKeys = new HashSet<>();
+
+    private final File outputsFile;
+    // absolute path of rendered file => method key , rendering options , last modification time and size of the file
+    private final Properties outputs = new Properties();
+    private boolean outputsChanged;
+
+    private int hits;
+    private int misses;
+
+    private static final class AddedGraph 
+    {
+        private final String owner;
+        private final ControlFlowGraph graph;
+
+        private AddedGraph(String owner, ControlFlowGraph graph)
+        {
+            this.owner = owner;
+            this.graph = graph;
+        }
+    }
+
+    /**
+     * Opens a cache , loading the graphs of an existing cache file.
+     * 
+     * <p>A cache file that cannot be read is ignored and overwritten when the cache is closed.</p>
+     * 
+     * @param file cache file , need not exist
+     */
+    public CFGCache(File file) 
+    {
+        this.file = file;
+        this.outputsFile = new File( file.getPath()+".outputs" );
+        loadOutputs();
+        if ( ! file.exists() ) {
+            return;
+        }
+        try {
+            cacheFile = CFGFile.open( file );
+        } 
+        catch(IOException e) 
+        {
+            System.err.println("Ignoring cache file "+file.getAbsolutePath()+" ("+e.getMessage()+")");
+            return;
+        }
+        final int count = cacheFile.getMethodCount();
+        for ( int i = 0 ; i < count ; i++ ) 
+        {
+            final CFGFile.MethodGraph graph = cacheFile.getMethod( i );
+            final String key = graph.getKey();
+            // records without a key were not written by a cache
+            if ( key != null ) {
+                cachedGraphs.put( key , graph );
+            }
+        }
+    }
+
+    /**
+     * Returns a method's control flow graph , either from the cache or by analyzing the method.
+     * 
+     * @param owner internal name of the class declaring the method
+     * @param method
+     * @param analyzer analyzer to use if the graph is not cached
+     * @return
+     * @throws AnalyzerException
+     */
+    public ControlFlowGraph getGraph(String owner,MethodNode method,ControlFlowAnalyzer analyzer) throws AnalyzerException 
+    {
+        final String key = getKey( method );
+        CFGFile.MethodGraph cached;
+        synchronized( this ) 
+        {
+            cached = cachedGraphs.get( key );
+            if ( cached != null ) {
+                hits++;
+                usedKeys.add( key );
+            } else {
+                misses++;
+            }
+        }
+        if ( cached != null ) {
+            return cached.toControlFlowGraph( method );
+        }
+
+        final ControlFlowGraph graph = analyzer.analyze( owner , method );
+        synchronized( this ) {
+            addedGraphs.put( key , new AddedGraph( owner , graph ) );
+        }
+        return graph;
+    }
+
+    /**
+     * Check whether the graph of a method is cached.
+     * 
+     * @param method
+     * @return
+     */
+    public synchronized boolean isCached(MethodNode method) 
+    {
+        final String key = getKey( method );
+        if ( cachedGraphs.containsKey( key ) ) {
+            usedKeys.add( key );
+            return true;
+        }
+        return addedGraphs.containsKey( key );
+    }
+
+    /**
+     * Check whether a file has been rendered from a method's current code with the given rendering options
+     * and was not modified since.
+     * 
+     * @param output rendered file
+     * @param method
+     * @param options rendering options , compared as-is
+     * @return
+     * @see #rendered(File, MethodNode, String)
+     */
+    public boolean isRendered(File output,MethodNode method,String options) 
+    {
+        final String expected = getOutputEntry( output , method , options );
+        synchronized( this ) 
+        {
+            if ( expected == null || ! expected.equals( outputs.getProperty( output.getAbsolutePath() ) ) ) {
+                return false;
+            }
+            // callers skip the method , keep its graph for when the file needs to be rendered again
+            final String key = getKey( method );
+            if ( cachedGraphs.containsKey( key ) ) {
+                usedKeys.add( key );
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Remembers that a file has just been rendered from a method's code with the given rendering options.
+     * 
+     * @param output rendered file
+     * @param method
+     * @param options rendering options
+     * @see #isRendered(File, MethodNode, String)
+     */
+    public void rendered(File output,MethodNode method,String options) 
+    {
+        final String entry = getOutputEntry( output , method , options );
+        synchronized( this ) 
+        {
+            if ( entry != null ) {
+                outputs.setProperty( output.getAbsolutePath() , entry );
+            } else {
+                outputs.remove( output.getAbsolutePath() );
+            }
+            outputsChanged = true;
+        }
+    }
+
+    private static String getOutputEntry(File output,MethodNode method,String options) 
+    {
+        if ( ! output.isFile() ) {
+            return null;
+        }
+        return getKey( method )+" "+output.lastModified()+" "+output.length()+" "+options;
+    }
+
+    private void loadOutputs() 
+    {
+        if ( ! outputsFile.exists() ) {
+            return;
+        }
+        try 
+        {
+            final InputStream in = new FileInputStream( outputsFile );
+            try {
+                outputs.load( in );
+            } finally {
+                in.close();
+            }
+        } 
+        catch(IOException | IllegalArgumentException e) 
+        {
+            System.err.println("Ignoring "+outputsFile.getAbsolutePath()+" ("+e.getMessage()+")");
+            outputs.clear();
+        }
+    }
+
+    private void saveOutputs() throws IOException 
+    {
+        final OutputStream out = new FileOutputStream( outputsFile );
+        try {
+            outputs.store( out , "Files rendered from cached control flow graphs" );
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Returns the number of graphs that were taken from the cache.
+     * 
+     * @return
+     */
+    public synchronized int getHits()
+    {
+        return hits;
+    }
+
+    /**
+     * Returns the number of graphs that were not cached and had to be created by the analyzer.
+     * 
+     * @return
+     */
+    public synchronized int getMisses()
+    {
+        return misses;
+    }
+
+    /**
+     * Writes all graphs that were added or looked up to the cache file and closes the cache.
+     * 
+     * <p>The file is left untouched if no graphs were added and all cached graphs were looked up.</p>
+     */
+    @Override
+    public synchronized void close() throws IOException
+    {
+        try 
+        {
+            if ( outputsChanged ) 
+            {
+                saveOutputs();
+                outputsChanged = false;
+            }
+            if ( addedGraphs.isEmpty() && usedKeys.size() == cachedGraphs.size() ) {
+                return;
+            }
+            // write to a temporary file first so that the cache file is never left half-written
+            final File tmpFile = new File( file.getAbsoluteFile().getParentFile() , file.getName()+".tmp" );
+            final CFGFileWriter writer = new CFGFileWriter( tmpFile );
+            try 
+            {
+                for ( Map.Entry<String,CFGFile.MethodGraph> entry : cachedGraphs.entrySet() ) 
+                {
+                    if ( usedKeys.contains( entry.getKey() ) && ! addedGraphs.containsKey( entry.getKey() ) ) {
+                        writer.copy( entry.getValue() );
+                    }
+                }
+                for ( Map.Entry<String,AddedGraph> entry : addedGraphs.entrySet() ) {
+                    writer.write( entry.getValue().owner , entry.getValue().graph , entry.getKey() );
+                }
+            } 
+            finally {
+                writer.close();
+            }
+            closeCacheFile();
+            if ( file.exists() && ! file.delete() ) {
+                throw new IOException("Failed to delete "+file.getAbsolutePath());
+            }
+            if ( ! tmpFile.renameTo( file ) ) {
+                throw new IOException("Failed to rename "+tmpFile.getAbsolutePath()+" to "+file.getAbsolutePath());
+            }
+        } 
+        finally {
+            closeCacheFile();
+        }
+    }
+
+    private void closeCacheFile() throws IOException 
+    {
+        cachedGraphs.clear();
+        addedGraphs.clear();
+        usedKeys.clear();
+        if ( cacheFile != null ) 
+        {
+            cacheFile.close();
+            cacheFile = null;
+        }
+    }
+
+    /**
+     * Returns the cache key of a method.
+     * 
+     * <p>The key is made up of the {@link ControlFlowAnalyzer#VERSION} and a SHA-1 hash of everything the analysis depends on: 
+     * the method's instructions (including labels , line numbers and stack map frames) and its try/catch blocks.</p>
+     * 
+     * @param method
+     * @return
+     */
+    public static String getKey(MethodNode method) 
+    {
+        final CodeHasher hasher = new CodeHasher();
+        method.accept( hasher );
+        final StringBuilder result = new StringBuilder( "v"+ControlFlowAnalyzer.VERSION+":" );
+        for ( byte b : hasher.digest.digest() ) {
+            result.append( Character.forDigit( ( b >> 4 ) & 0x0f , 16 ) ).append( Character.forDigit( b & 0x0f , 16 ) );
+        }
+        return result.toString();
+    }
+
+    // feeds all code-related visitor events into a message digest
+    private static final class CodeHasher extends MethodVisitor 
+    {
+        private final MessageDigest digest;
+
+        // labels are hashed by the order in which they are first encountered
+        private final Map<Label,Integer> labels = new HashMap<>();
+
+        public CodeHasher()
+        {
+            super( Opcodes.ASM4 );
+            try {
+                digest = MessageDigest.getInstance( "SHA-1" );
+            } 
+            catch (NoSuchAlgorithmException e) {
+                throw new RuntimeException( e );
+            }
+        }
+
+        private void update(int value) 
+        {
+            digest.update( (byte) ( value >> 24 ) );
+            digest.update( (byte) ( value >> 16 ) );
+            digest.update( (byte) ( value >> 8 ) );
+            digest.update( (byte) value );
+        }
+
+        private void update(String value) 
+        {
+            if ( value == null ) {
+                update( -1 );
+                return;
+            }
+            final byte[] data = value.getBytes( UTF8 );
+            update( data.length );
+            digest.update( data );
+        }
+
+        private void update(Label label) 
+        {
+            Integer index = labels.get( label );
+            if ( index == null ) {
+                index = labels.size();
+                labels.put( label , index );
+            }
+            update( index );
+        }
+
+        private void update(Object value) 
+        {
+            if ( value instanceof Label ) {
+                update( (Label) value );
+            } 
+            else if ( value instanceof Integer ) 
+            {
+                update( 'I' );
+                update( ((Integer) value).intValue() );
+            } 
+            else if ( value instanceof Handle ) 
+            {
+                final Handle handle = (Handle) value;
+                update( 'H' );
+                update( handle.getTag() );
+                update( handle.getOwner() );
+                update( handle.getName() );
+                update( handle.getDesc() );
+            } 
+            else if ( value instanceof Object[] ) 
+            {
+                final Object[] array = (Object[]) value;
+                update( '[' );
+                update( array.length );
+                for ( Object element : array ) {
+                    update( element );
+                }
+            }
+            else 
+            {
+                update( value == null ? "null" : value.getClass().getName() );
+                update( value == null ? null : value.toString() );
+            }
+        }
+
+        private void update(int count,Object[] values) 
+        {
+            // compressed frames may pass no array at all
+            if ( values == null ) {
+                update( -1 );
+                return;
+            }
+            update( count );
+            for ( int i = 0 ; i < count ; i++ ) {
+                update( values[i] );
+            }
+        }
+
+        @Override
+        public void visitFrame(int type, int nLocal, Object[] local, int nStack, Object[] stack)
+        {
+            update( 'F' );
+            update( type );
+            update( nLocal , local );
+            update( nStack , stack );
+        }
+
+        @Override
+        public void visitInsn(int opcode)
+        {
+            update( opcode );
+        }
+
+        @Override
+        public void visitIntInsn(int opcode, int operand)
+        {
+            update( opcode );
+            update( operand );
+        }
+
+        @Override
+        public void visitVarInsn(int opcode, int var)
+        {
+            update( opcode );
+            update( var );
+        }
+
+        @Override
+        public void visitTypeInsn(int opcode, String type)
+        {
+            update( opcode );
+            update( type );
+        }
+
+        @Override
+        public void visitFieldInsn(int opcode, String owner, String name, String desc)
+        {
+            update( opcode );
+            update( owner );
+            update( name );
+            update( desc );
+        }
+
+        @Override
+        public void visitMethodInsn(int opcode, String owner, String name, String desc)
+        {
+            update( opcode );
+            update( owner );
+            update( name );
+            update( desc );
+        }
+
+        @Override
+        public void visitInvokeDynamicInsn(String name, String desc, Handle bsm, Object... bsmArgs)
+        {
+            update( Opcodes.INVOKEDYNAMIC );
+            update( name );
+            update( desc );
+            update( bsm );
+            update( bsmArgs );
+        }
+
+        @Override
+        public void visitJumpInsn(int opcode, Label label)
+        {
+            update( opcode );
+            update( label );
+        }
+
+        @Override
+        public void visitLabel(Label label)
+        {
+            update( 'L' );
+            update( label );
+        }
+
+        @Override
+        public void visitLdcInsn(Object cst)
+        {
+            update( Opcodes.LDC );
+            update( cst );
+        }
+
+        @Override
+        public void visitIincInsn(int var, int increment)
+        {
+            update( Opcodes.IINC );
+            update( var );
+            update( increment );
+        }
+
+        @Override
+        public void visitTableSwitchInsn(int min, int max, Label dflt, Label... labels)
+        {
+            update( Opcodes.TABLESWITCH );
+            update( min );
+            update( max );
+            update( dflt );
+            update( (Object) labels );
+        }
+
+        @Override
+        public void visitLookupSwitchInsn(Label dflt, int[] keys, Label[] labels)
+        {
+            update( Opcodes.LOOKUPSWITCH );
+            update( dflt );
+            update( keys.length );
+            for ( int key : keys ) {
+                update( key );
+            }
+            update( (Object) labels );
+        }
+
+        @Override
+        public void visitMultiANewArrayInsn(String desc, int dims)
+        {
+            update( Opcodes.MULTIANEWARRAY );
+            update( desc );
+            update( dims );
+        }
+
+        @Override
+        public void visitTryCatchBlock(Label start, Label end, Label handler, String type)
+        {
+            update( 'T' );
+            update( start );
+            update( end );
+            update( handler );
+            update( type );
+        }
+
+        @Override
+        public void visitLineNumber(int line, Label start)
+        {
+            update( 'N' );
+            update( line );
+            update( start );
+        }
+    }
+}
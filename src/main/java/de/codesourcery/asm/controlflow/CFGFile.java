@@ -0,0 +1,516 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.asm.controlflow;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.objectweb.asm.tree.MethodNode;
+
+import de.codesourcery.asm.controlflow.Edge.EdgeType;
+
+/**
+ * Read-only view of a binary file with the control flow graphs of many methods.
+ *
+ * <p>The file gets memory-mapped and method graphs are decoded lazily , so opening a file is cheap no matter how many methods
+ * it contains and any method's graph can be accessed without reading the rest of the file. All accesses use absolute
+ * positions , so a file may be read by multiple threads concurrently.</p>
+ *
+ * <p>File layout (all numbers are big-endian):
+ * <pre>
+ * header:  int magic , short major version , short minor version
+ * methods: one record per method (see below)
+ * index:   long offset of each method record , sorted by owner , name and descriptor
+ * trailer: int method count , long offset of the index , int magic
+ * </pre>
+ * Method record:
+ * <pre>
+ * int     string count
+ * int[]   offset of each string within the string data (string count + 1 entries)
+ * byte[]  string data (UTF-8) , strings 0 , 1 and 2 are the owner , name and descriptor of the method , string 3 
+ *         is the record's key (empty if the record has no key , since version 1.1)
+ * int     number of instructions of the method
+ * int     block count , block 0 is the method entry and block 1 the method exit (even if it is unreachable)
+ * int[]   offset of each block's instruction ranges (block count + 1 entries)
+ * int[]   instruction ranges (first and last instruction index , inclusive)
+ * byte[]  flags of each block (see {@link #FLAG_VIRTUAL})
+ * int[]   offset of each block's outgoing edges (block count + 1 entries)
+ * int[]   destination block of each edge
+ * byte[]  type of each edge ({@link EdgeType#ordinal()})
+ * int[]   meta-data of each edge: case key for switch edges , string index or -1 for all other edges
+ * </pre>
+ * Readers reject files with an unknown major version , minor versions only add information that may be ignored.</p>
+ * 
+ * <p>Version history:
+ * <ul>
+ *   <li>1.0: initial version</li>
+ *   <li>1.1: record keys (see {@link CFGCache})</li>
+ * </ul></p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ * @see CFGFileWriter
+ */
+public final class CFGFile implements Closeable
+{
+    public static final int MAGIC = 0x43464721; // 'CFG!'
+
+    public static final short MAJOR_VERSION = 1;
+
+    public static final short MINOR_VERSION = 1;
+
+    /**
+     * Block flag: all instructions of the block are virtual (labels , line numbers , frames).
+     *
+     * @see IBlock#isVirtual(org.objectweb.asm.tree.MethodNode)
+     */
+    public static final int FLAG_VIRTUAL = 1;
+
+    /**
+     * Index of the method entry block.
+     */
+    public static final int ENTRY_BLOCK = 0;
+
+    /**
+     * Index of the method exit block.
+     */
+    public static final int EXIT_BLOCK = 1;
+
+    static final int HEADER_SIZE = 8;
+
+    static final int TRAILER_SIZE = 16;
+
+    static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final RandomAccessFile file;
+    private final ByteBuffer buffer;
+    private final short minorVersion;
+    private final int methodCount;
+    private final int indexOffset;
+
+    /**
+     * Control flow graph of a single method.
+     *
+     * <p>Blocks are identified by their index , edges by the index of their source block and their position within
+     * this block's outgoing edges.</p>
+     *
+     * @author tobias.gierke@code-sourcery.de
+     */
+    public final class MethodGraph
+    {
+        private final int offset;
+        private final int stringCount;
+        private final int stringOffsets;
+        private final int stringData;
+        private final int instructionCount;
+        private final int blockCount;
+        private final int rangeOffsets;
+        private final int ranges;
+        private final int flags;
+        private final int edgeOffsets;
+        private final int edgeDestinations;
+        private final int edgeTypes;
+        private final int edgeMetaData;
+
+        protected MethodGraph(int offset)
+        {
+            this.offset = offset;
+            int pos = offset;
+            stringCount = buffer.getInt( pos );
+            stringOffsets = pos + 4;
+            stringData = stringOffsets + 4 * ( stringCount + 1 );
+            pos = stringData + buffer.getInt( stringOffsets + 4 * stringCount );
+            instructionCount = buffer.getInt( pos );
+            blockCount = buffer.getInt( pos + 4 );
+            rangeOffsets = pos + 8;
+            ranges = rangeOffsets + 4 * ( blockCount + 1 );
+            flags = ranges + 8 * buffer.getInt( rangeOffsets + 4 * blockCount );
+            edgeOffsets = flags + blockCount;
+            final int edgeCount = buffer.getInt( edgeOffsets + 4 * blockCount );
+            edgeDestinations = edgeOffsets + 4 * ( blockCount + 1 );
+            edgeTypes = edgeDestinations + 4 * edgeCount;
+            edgeMetaData = edgeTypes + edgeCount;
+        }
+
+        public String getOwner() {
+            return getString( 0 );
+        }
+
+        public String getName() {
+            return getString( 1 );
+        }
+
+        public String getDescriptor() {
+            return getString( 2 );
+        }
+
+        /**
+         * Returns the key this record was written with.
+         * 
+         * @return key or <code>null</code>
+         * @see CFGFileWriter#write(String, ControlFlowGraph, String)
+         */
+        public String getKey() 
+        {
+            if ( minorVersion < 1 ) {
+                return null;
+            }
+            final String key = getString( 3 );
+            return key.isEmpty() ? null : key;
+        }
+
+        /**
+         * Returns a string from the method's string table.
+         *
+         * @param index
+         * @return
+         */
+        public String getString(int index)
+        {
+            if ( index < 0 || index >= stringCount ) {
+                throw new IndexOutOfBoundsException("Invalid string index "+index);
+            }
+            final int start = buffer.getInt( stringOffsets + 4 * index );
+            final int end = buffer.getInt( stringOffsets + 4 * ( index + 1 ) );
+            final byte[] data = new byte[ end - start ];
+            for ( int i = 0 ; i < data.length ; i++ ) {
+                data[i] = buffer.get( stringData + start + i );
+            }
+            return new String( data , UTF8 );
+        }
+
+        /**
+         * Returns the number of instructions of the method (including virtual ones).
+         *
+         * @return
+         */
+        public int getInstructionCount() {
+            return instructionCount;
+        }
+
+        public int getBlockCount() {
+            return blockCount;
+        }
+
+        /**
+         * Returns the number of contiguous instruction ranges a block is made of.
+         *
+         * @param block
+         * @return number of ranges , 0 for the method entry and exit
+         */
+        public int getRangeCount(int block) {
+            return buffer.getInt( rangeOffsets + 4 * ( checkBlock( block ) + 1 ) ) - buffer.getInt( rangeOffsets + 4 * block );
+        }
+
+        /**
+         * Returns the index of the first instruction of an instruction range.
+         *
+         * @param block
+         * @param range
+         * @return
+         */
+        public int getRangeStart(int block,int range) {
+            return buffer.getInt( ranges + 8 * rangeIndex( block , range ) );
+        }
+
+        /**
+         * Returns the index of the last instruction of an instruction range.
+         *
+         * @param block
+         * @param range
+         * @return
+         */
+        public int getRangeEnd(int block,int range) {
+            return buffer.getInt( ranges + 8 * rangeIndex( block , range ) + 4 );
+        }
+
+        /**
+         * Returns the block containing an instruction.
+         *
+         * @param instructionNum
+         * @return block index or -1
+         */
+        public int getBlockForInstruction(int instructionNum)
+        {
+            for ( int block = 0 ; block < blockCount ; block++ )
+            {
+                final int count = getRangeCount( block );
+                for ( int range = 0 ; range < count ; range++ )
+                {
+                    if ( getRangeStart( block , range ) <= instructionNum && instructionNum <= getRangeEnd( block , range ) ) {
+                        return block;
+                    }
+                }
+            }
+            return -1;
+        }
+
+        public boolean isVirtual(int block) {
+            return ( buffer.get( flags + checkBlock( block ) ) & FLAG_VIRTUAL ) != 0;
+        }
+
+        public int getSuccessorCount(int block) {
+            return buffer.getInt( edgeOffsets + 4 * ( checkBlock( block ) + 1 ) ) - buffer.getInt( edgeOffsets + 4 * block );
+        }
+
+        public int getSuccessor(int block,int edge) {
+            return buffer.getInt( edgeDestinations + 4 * edgeIndex( block , edge ) );
+        }
+
+        public EdgeType getEdgeType(int block,int edge) {
+            return EdgeType.values()[ buffer.get( edgeTypes + edgeIndex( block , edge ) ) ];
+        }
+
+        /**
+         * Returns an edge's meta-data , like {@link Edge#metaData}.
+         *
+         * @param block
+         * @param edge
+         * @return case key of switch edges , exception type of exception edges (<code>null</code> for catch-all handlers) ,
+         * <code>true</code> / <code>false</code> / <code>null</code> for regular edges
+         */
+        public Object getEdgeMetaData(int block,int edge)
+        {
+            final int value = buffer.getInt( edgeMetaData + 4 * edgeIndex( block , edge ) );
+            switch( getEdgeType( block , edge ) ) {
+                case LOOKUP_SWITCH:
+                case TABLE_SWITCH:
+                    return value;
+                default:
+                    return value == -1 ? null : getString( value );
+            }
+        }
+
+        private int rangeIndex(int block,int range)
+        {
+            if ( range < 0 || range >= getRangeCount( block ) ) {
+                throw new IndexOutOfBoundsException("Invalid range "+range+" of block "+block);
+            }
+            return buffer.getInt( rangeOffsets + 4 * block ) + range;
+        }
+
+        private int edgeIndex(int block,int edge)
+        {
+            if ( edge < 0 || edge >= getSuccessorCount( block ) ) {
+                throw new IndexOutOfBoundsException("Invalid edge "+edge+" of block "+block);
+            }
+            return buffer.getInt( edgeOffsets + 4 * block ) + edge;
+        }
+
+        private int checkBlock(int block)
+        {
+            if ( block < 0 || block >= blockCount ) {
+                throw new IndexOutOfBoundsException("Invalid block "+block);
+            }
+            return block;
+        }
+
+        /**
+         * Re-creates the {@link ControlFlowGraph} this record was written from.
+         * 
+         * <p>Blocks and edges are equal to the ones created by {@link ControlFlowAnalyzer#analyze(String, MethodNode)} 
+         * for the same method.</p>
+         * 
+         * @param method the method this record was written from
+         * @return
+         * @throws IllegalArgumentException if the method's number of instructions does not match
+         */
+        public ControlFlowGraph toControlFlowGraph(MethodNode method) throws IllegalArgumentException
+        {
+            if ( method.instructions.size() != instructionCount ) {
+                throw new IllegalArgumentException("Method "+method.name+method.desc+" has "+method.instructions.size()+
+                        " instructions , expected "+instructionCount);
+            }
+            final List<IBlock> blocks = new ArrayList<>();
+            for ( int block = 0 ; block < blockCount ; block++ ) 
+            {
+                final AbstractBlock result;
+                if ( block == ENTRY_BLOCK ) {
+                    result = new MethodEntry();
+                } else if ( block == EXIT_BLOCK ) {
+                    result = new MethodExit();
+                } else {
+                    result = new Block();
+                }
+                final int ranges = getRangeCount( block );
+                for ( int range = 0 ; range < ranges ; range++ ) 
+                {
+                    final int end = getRangeEnd( block , range );
+                    for ( int i = getRangeStart( block , range ) ; i <= end ; i++ ) {
+                        result.addInstructionNum( i );
+                    }
+                }
+                blocks.add( result );
+            }
+            for ( int block = 0 ; block < blockCount ; block++ ) 
+            {
+                final AbstractBlock src = (AbstractBlock) blocks.get( block );
+                final int successors = getSuccessorCount( block );
+                for ( int edge = 0 ; edge < successors ; edge++ ) 
+                {
+                    final AbstractBlock dst = (AbstractBlock) blocks.get( getSuccessor( block , edge ) );
+                    final EdgeType type = getEdgeType( block , edge );
+                    final Object metaData = getEdgeMetaData( block , edge );
+                    src.addSuccessor( dst , type , metaData );
+                    // like the analyzer , only the source block knows about exception edges and predecessor edges
+                    // of regular transitions have no meta-data
+                    if ( type != EdgeType.CAUGHT_EXCEPTION ) {
+                        dst.addPredecessor( src , type , type == EdgeType.REGULAR ? null : metaData );
+                    }
+                }
+            }
+            return new ControlFlowGraph( method , blocks );
+        }
+
+        // size of this record in bytes
+        int getRecordSize() {
+            return edgeMetaData + 4 * buffer.getInt( edgeOffsets + 4 * blockCount ) - offset;
+        }
+
+        // copies this record's raw bytes
+        void copyRecord(OutputStream out) throws IOException 
+        {
+            final byte[] data = new byte[ getRecordSize() ];
+            final ByteBuffer copy = buffer.duplicate();
+            copy.position( offset );
+            copy.get( data );
+            out.write( data );
+        }
+
+        @Override
+        public String toString()
+        {
+            return getOwner()+"#"+getName()+getDescriptor();
+        }
+    }
+
+    private CFGFile(RandomAccessFile file) throws IOException
+    {
+        this.file = file;
+        final long size = file.length();
+        if ( size > Integer.MAX_VALUE ) {
+            throw new IOException("Files larger than 2 GB are not supported");
+        }
+        if ( size < HEADER_SIZE + TRAILER_SIZE ) {
+            throw new IOException("Not a control flow graph file (too short)");
+        }
+        buffer = file.getChannel().map( FileChannel.MapMode.READ_ONLY , 0 , size );
+        if ( buffer.getInt( 0 ) != MAGIC || buffer.getInt( (int) size - 4 ) != MAGIC ) {
+            throw new IOException("Not a control flow graph file (bad magic)");
+        }
+        final short major = buffer.getShort( 4 );
+        if ( major != MAJOR_VERSION ) {
+            throw new IOException("Unsupported file version "+major+"."+buffer.getShort( 6 )+" (expected "+MAJOR_VERSION+".x)");
+        }
+        minorVersion = buffer.getShort( 6 );
+        methodCount = buffer.getInt( (int) size - TRAILER_SIZE );
+        indexOffset = (int) buffer.getLong( (int) size - TRAILER_SIZE + 4 );
+    }
+
+    /**
+     * Memory-maps a file.
+     *
+     * @param file
+     * @return
+     * @throws IOException
+     */
+    public static CFGFile open(File file) throws IOException
+    {
+        final RandomAccessFile raf = new RandomAccessFile( file , "r" );
+        try {
+            return new CFGFile( raf );
+        }
+        catch(IOException | RuntimeException e)
+        {
+            raf.close();
+            throw e;
+        }
+    }
+
+    public int getMethodCount() {
+        return methodCount;
+    }
+
+    /**
+     * Returns a method's graph.
+     *
+     * @param index method index , methods are sorted by owner , name and descriptor
+     * @return
+     */
+    public MethodGraph getMethod(int index)
+    {
+        if ( index < 0 || index >= methodCount ) {
+            throw new IndexOutOfBoundsException("Invalid method index "+index);
+        }
+        return new MethodGraph( (int) buffer.getLong( indexOffset + 8 * index ) );
+    }
+
+    /**
+     * Looks up a method using binary search.
+     *
+     * @param owner internal name of the class
+     * @param name
+     * @param descriptor
+     * @return the method's graph or <code>null</code>
+     */
+    public MethodGraph getMethod(String owner,String name,String descriptor)
+    {
+        int low = 0;
+        int high = methodCount - 1;
+        while ( low <= high )
+        {
+            final int mid = ( low + high ) >>> 1;
+            final MethodGraph graph = getMethod( mid );
+            final int result = compare( graph.getOwner() , graph.getName() , graph.getDescriptor() , owner , name , descriptor );
+            if ( result < 0 ) {
+                low = mid + 1;
+            } else if ( result > 0 ) {
+                high = mid - 1;
+            } else {
+                return graph;
+            }
+        }
+        return null;
+    }
+
+    static int compare(String owner1,String name1,String descriptor1,String owner2,String name2,String descriptor2)
+    {
+        int result = owner1.compareTo( owner2 );
+        if ( result == 0 ) {
+            result = name1.compareTo( name2 );
+        }
+        return result != 0 ? result : descriptor1.compareTo( descriptor2 );
+    }
+
+    /**
+     * Closes the underlying file.
+     *
+     * <p>The mapping itself is released once this instance is garbage-collected , graphs must not be used after
+     * closing the file.</p>
+     */
+    @Override
+    public void close() throws IOException
+    {
+        file.close();
+    }
+}
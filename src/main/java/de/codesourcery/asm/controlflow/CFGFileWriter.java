@@ -0,0 +1,384 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.asm.controlflow;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.analysis.AnalyzerException;
+
+import de.codesourcery.asm.controlflow.Edge.EdgeType;
+
+/**
+ * Writes the control flow graphs of many methods to a binary file.
+ *
+ * <p>Method records are written as soon as they are added , only the offset and name of each method is kept in memory
+ * until the file is closed.</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ * @see CFGFile
+ */
+public class CFGFileWriter implements Closeable
+{
+    private final DataOutputStream out;
+    private long position;
+    private final List<IndexEntry> index = new ArrayList<>();
+
+    private static final class IndexEntry
+    {
+        private final String owner;
+        private final String name;
+        private final String descriptor;
+        private final long offset;
+
+        private IndexEntry(String owner, String name, String descriptor, long offset)
+        {
+            this.owner = owner;
+            this.name = name;
+            this.descriptor = descriptor;
+            this.offset = offset;
+        }
+    }
+
+    /**
+     * Creates the file and writes its header.
+     *
+     * @param file
+     * @throws IOException
+     */
+    public CFGFileWriter(File file) throws IOException
+    {
+        out = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( file ) ) );
+        out.writeInt( CFGFile.MAGIC );
+        out.writeShort( CFGFile.MAJOR_VERSION );
+        out.writeShort( CFGFile.MINOR_VERSION );
+        position = CFGFile.HEADER_SIZE;
+    }
+
+    /**
+     * Writes a method's graph.
+     *
+     * @param owner internal name of the class declaring the method
+     * @param graph
+     * @throws IOException
+     */
+    public void write(String owner,ControlFlowGraph graph) throws IOException
+    {
+        write( owner , graph , null );
+    }
+
+    /**
+     * Writes a method's graph along with a key identifying the method's code.
+     *
+     * @param owner internal name of the class declaring the method
+     * @param graph
+     * @param key key to store with the graph , may be <code>null</code>
+     * @throws IOException
+     * @see CFGFile.MethodGraph#getKey()
+     */
+    public void write(String owner,ControlFlowGraph graph,String key) throws IOException
+    {
+        final MethodNode method = graph.getMethod();
+
+        // entry and exit first , all other blocks sorted by their first instruction
+        final List<IBlock> blocks = new ArrayList<>();
+        for ( IBlock block : graph.getAllNodes() )
+        {
+            if ( ! ( block instanceof MethodEntry ) && ! ( block instanceof MethodExit ) ) {
+                blocks.add( block );
+            }
+        }
+        Collections.sort( blocks , new Comparator<IBlock>() {
+
+            @Override
+            public int compare(IBlock o1, IBlock o2)
+            {
+                return Integer.compare( firstInstruction( o1 ) , firstInstruction( o2 ) );
+            }
+        });
+        blocks.add( CFGFile.ENTRY_BLOCK , graph.getStart() );
+        blocks.add( CFGFile.EXIT_BLOCK , graph.getEnd() );
+        final Map<IBlock,Integer> blockIndices = new HashMap<>();
+        for ( IBlock block : blocks ) {
+            blockIndices.put( block , blockIndices.size() );
+        }
+
+        final List<String> strings = new ArrayList<>();
+        final Map<String,Integer> stringIndices = new HashMap<>();
+        addString( owner , strings , stringIndices );
+        addString( method.name , strings , stringIndices );
+        addString( method.desc , strings , stringIndices );
+        // the key is always string 3 , even if it equals one of the other strings
+        strings.add( key == null ? "" : key );
+
+        final List<int[]> ranges = new ArrayList<>();
+        final int[] rangeOffsets = new int[ blocks.size() + 1 ];
+        final List<Edge> edges = new ArrayList<>();
+        final int[] edgeOffsets = new int[ blocks.size() + 1 ];
+        final byte[] flags = new byte[ blocks.size() ];
+        for ( int i = 0 ; i < blocks.size() ; i++ )
+        {
+            final IBlock block = blocks.get(i);
+            rangeOffsets[i] = ranges.size();
+            addRanges( block , ranges );
+            if ( ! ( block instanceof MethodEntry ) && ! ( block instanceof MethodExit ) && block.isVirtual( method ) ) {
+                flags[i] |= CFGFile.FLAG_VIRTUAL;
+            }
+            edgeOffsets[i] = edges.size();
+            final List<Edge> successors = new ArrayList<>();
+            for ( Edge edge : block.getEdges() )
+            {
+                if ( edge.isSuccessor( block ) && blockIndices.containsKey( edge.dst ) ) {
+                    successors.add( edge );
+                }
+            }
+            Collections.sort( successors , new Comparator<Edge>() {
+
+                @Override
+                public int compare(Edge o1, Edge o2)
+                {
+                    final int result = Integer.compare( blockIndices.get( o1.dst ) , blockIndices.get( o2.dst ) );
+                    return result != 0 ? result : o1.type.compareTo( o2.type );
+                }
+            });
+            edges.addAll( successors );
+        }
+        rangeOffsets[ blocks.size() ] = ranges.size();
+        edgeOffsets[ blocks.size() ] = edges.size();
+
+        final int[] metaData = new int[ edges.size() ];
+        for ( int i = 0 ; i < edges.size() ; i++ )
+        {
+            final Edge edge = edges.get(i);
+            if ( edge.hasType( EdgeType.LOOKUP_SWITCH ) || edge.hasType( EdgeType.TABLE_SWITCH ) ) {
+                metaData[i] = (Integer) edge.metaData;
+            } else {
+                metaData[i] = edge.metaData == null ? -1 : addString( edge.metaData.toString() , strings , stringIndices );
+            }
+        }
+
+        // method record
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream record = new DataOutputStream( bytes );
+        record.writeInt( strings.size() );
+        final List<byte[]> encoded = new ArrayList<>();
+        int stringOffset = 0;
+        for ( String s : strings )
+        {
+            final byte[] data = s.getBytes( CFGFile.UTF8 );
+            encoded.add( data );
+            record.writeInt( stringOffset );
+            stringOffset += data.length;
+        }
+        record.writeInt( stringOffset );
+        for ( byte[] data : encoded ) {
+            record.write( data );
+        }
+        record.writeInt( method.instructions.size() );
+        record.writeInt( blocks.size() );
+        for ( int offset : rangeOffsets ) {
+            record.writeInt( offset );
+        }
+        for ( int[] range : ranges )
+        {
+            record.writeInt( range[0] );
+            record.writeInt( range[1] );
+        }
+        record.write( flags );
+        for ( int offset : edgeOffsets ) {
+            record.writeInt( offset );
+        }
+        for ( Edge edge : edges ) {
+            record.writeInt( blockIndices.get( edge.dst ) );
+        }
+        for ( Edge edge : edges ) {
+            record.writeByte( edge.type.ordinal() );
+        }
+        for ( int value : metaData ) {
+            record.writeInt( value );
+        }
+        record.close();
+
+        index.add( new IndexEntry( owner , method.name , method.desc , position ) );
+        bytes.writeTo( out );
+        position += bytes.size();
+    }
+
+    /**
+     * Copies a method record from another file without re-encoding it.
+     *
+     * @param graph
+     * @throws IOException
+     */
+    public void copy(CFGFile.MethodGraph graph) throws IOException
+    {
+        index.add( new IndexEntry( graph.getOwner() , graph.getName() , graph.getDescriptor() , position ) );
+        graph.copyRecord( out );
+        position += graph.getRecordSize();
+    }
+
+    private static int firstInstruction(IBlock block) {
+        return block.getInstructionNums().isEmpty() ? Integer.MAX_VALUE : block.getFirstInstructionNum();
+    }
+
+    private static int addString(String s,List<String> strings,Map<String,Integer> stringIndices)
+    {
+        Integer result = stringIndices.get( s );
+        if ( result == null ) {
+            result = strings.size();
+            strings.add( s );
+            stringIndices.put( s , result );
+        }
+        return result;
+    }
+
+    // splits a block's instructions into contiguous ranges
+    private static void addRanges(IBlock block,List<int[]> ranges)
+    {
+        final List<Integer> indices = new ArrayList<>( block.getInstructionNums() );
+        Collections.sort( indices );
+        int[] current = null;
+        for ( int index : indices )
+        {
+            if ( current != null && current[1] == index - 1 ) {
+                current[1] = index;
+            } else {
+                current = new int[] { index , index };
+                ranges.add( current );
+            }
+        }
+    }
+
+    /**
+     * Writes the method index and closes the file.
+     */
+    @Override
+    public void close() throws IOException
+    {
+        Collections.sort( index , new Comparator<IndexEntry>() {
+
+            @Override
+            public int compare(IndexEntry o1, IndexEntry o2)
+            {
+                return CFGFile.compare( o1.owner , o1.name , o1.descriptor , o2.owner , o2.name , o2.descriptor );
+            }
+        });
+        for ( IndexEntry entry : index ) {
+            out.writeLong( entry.offset );
+        }
+        out.writeInt( index.size() );
+        out.writeLong( position );
+        out.writeInt( CFGFile.MAGIC );
+        out.close();
+    }
+
+    /**
+     * Writes the graphs of all methods (including constructors) of all classes in a JAR.
+     *
+     * <p>Abstract and native methods are skipped , classes and methods that cannot be analyzed are skipped
+     * with a warning.</p>
+     *
+     * @param jar
+     * @param output
+     * @return number of methods written
+     * @throws IOException
+     */
+    public static int writeJar(File jar,File output) throws IOException
+    {
+        final ControlFlowAnalyzer analyzer = new ControlFlowAnalyzer();
+        int count = 0;
+        final JarFile jarFile = new JarFile( jar );
+        try
+        {
+            final CFGFileWriter writer = new CFGFileWriter( output );
+            try
+            {
+                final Enumeration<JarEntry> entries = jarFile.entries();
+                while ( entries.hasMoreElements() )
+                {
+                    final JarEntry entry = entries.nextElement();
+                    if ( ! entry.getName().endsWith(".class") ) {
+                        continue;
+                    }
+                    final ClassNode cn = new ClassNode();
+                    final InputStream in = jarFile.getInputStream( entry );
+                    try {
+                        new ClassReader( in ).accept( cn , 0 );
+                    }
+                    catch(RuntimeException e) {
+                        System.err.println("Skipping "+entry.getName()+" ("+e+")");
+                        continue;
+                    }
+                    finally {
+                        in.close();
+                    }
+                    for ( Object m : cn.methods )
+                    {
+                        final MethodNode mn = (MethodNode) m;
+                        if ( mn.instructions.size() == 0 ) {
+                            continue;
+                        }
+                        try {
+                            writer.write( cn.name , analyzer.analyze( cn.name , mn ) );
+                            count++;
+                        }
+                        catch(AnalyzerException | RuntimeException e) {
+                            System.err.println("Skipping "+cn.name+"#"+mn.name+mn.desc+" ("+e+")");
+                        }
+                    }
+                }
+            }
+            finally {
+                writer.close();
+            }
+        }
+        finally {
+            jarFile.close();
+        }
+        return count;
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        if ( args.length != 2 )
+        {
+            System.out.println("\n\nUsage: <JAR file> <output file>\n\n"+
+                    "<JAR file> => JAR with the classes to analyze\n"+
+                    "<output file> => binary file to write the control flow graphs of all methods to\n\n");
+            return;
+        }
+        final int count = writeJar( new File( args[0] ) , new File( args[1] ) );
+        System.out.println("Wrote "+count+" methods to "+args[1]);
+    }
+}
@@ -41,6 +41,12 @@ import de.codesourcery.asm.util.ASMUtil;
 
 public class ControlFlowAnalyzer
 {
+    /**
+     * Version of the analysis , must be incremented whenever a change causes different graphs to be
+     * created for the same bytecode (invalidates all entries of a {@link CFGCache}).
+     */
+    public static final int VERSION = 2;
+
     private boolean debug = false;
 
     public void setDebug(boolean debug)
@@ -128,7 +134,7 @@ public class ControlFlowAnalyzer
 
                 case AbstractInsnNode.INSN:
 
-                    if ( instruction.getOpcode() == Opcodes.RETURN || instruction.getOpcode() == Opcodes.IRETURN ) /* method exit */
+                    if ( instruction.getOpcode() >= Opcodes.IRETURN && instruction.getOpcode() <= Opcodes.RETURN ) /* method exit */
                     {
                         currentLine.addRegularSuccessor( methodExit );
                         methodExit.addRegularPredecessor( currentLine );
@@ -15,9 +15,21 @@
  */
 package de.codesourcery.asm.controlflow;
 
+import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Pattern;
 
 import org.apache.commons.lang.StringUtils;
@@ -30,7 +42,7 @@ import de.codesourcery.asm.util.ASMUtil;
 import de.codesourcery.asm.util.ASMUtil.ILogger;
 
 /**
- * Command-line application to generate a control flow graph (in Graphviz DOT format)
+ * Command-line application to generate a control flow graph (in Graphviz DOT format or as SVG)
  * for a given class. 
  * 
  * <p>Just run this class without any arguments to see the available command-line options.</p>
@@ -45,6 +57,16 @@ public class ControlFlowGrapher
     private boolean includeConstructors = false;
     private File outputDir;
     private String classToAnalyze;
+    private BlockProfile profile;
+    private double hideThreshold;
+    private boolean simplify;
+    private int focusInstruction = -1;
+    private int focusHops = 3;
+    private boolean svg;
+    private int threads = 1;
+    private File cacheFile;
+    private CFGCache cache;
+    private final AtomicInteger unchangedMethods = new AtomicInteger();
     
     private final ControlFlowAnalyzer analyzer = new ControlFlowAnalyzer();
 
@@ -63,13 +85,21 @@ public class ControlFlowGrapher
     }
 
     private static void printUsage() {
-        System.out.println("\n\nUsage: [-debug] [-v] [-constructors] [-search <classpath entries>] [-match <regex>] -dir <directory> <CLASS NAME>\n\n"+
+        System.out.println("\n\nUsage: [-debug] [-v] [-constructors] [-search <classpath entries>] [-match <regex>] [-profile <file>] [-threshold <percent>] [-simplify] [-focus <instruction index>] [-hops <n>] [-format dot|svg] [-threads <n>] [-cache <file>] -dir <directory> <CLASS NAME>\n\n"+
                 "[-debug] => enable debug output\n"+
                 "[-v] => enable verbose output\n"+
                 "[-search <classpath entries> => Substitute for JVM -classpath option since that one does not work with self-executable JARs\n"+
                 "-dir <directory> => outputs .dot files to this directory\n"+
                 "[-constructors] => include constructors in flow analysis\n"+
                 "[-match <regex>] => only analyze methods whose name matches this regex\n"+
+                "[-profile <file>] => overlay block and edge execution counts (see 'blocks' agent option)\n"+
+                "[-threshold <percent>] => hide blocks executed less often than this percentage of the hottest block (requires -profile)\n"+
+                "[-simplify] => collapse straight-line chains of blocks , render loops as clusters and merge exception edges per handler\n"+
+                "[-focus <instruction index>] => only render blocks close to the block containing this instruction\n"+
+                "[-hops <n>] => max. number of edges between the focused block and any rendered block (default: 3)\n"+
+                "[-format dot|svg] => write Graphviz DOT files (default) or lay out graphs without Graphviz and write SVG files\n"+
+                "[-threads <n>] => number of methods to analyze and render in parallel (default: 1)\n"+
+                "[-cache <file>] => only analyze methods whose code changed and only render files whose method or rendering options changed since the last run with the same cache file\n"+
                 "<CLASS NAME> => name of class to analyze\n\n");
     }
 
@@ -108,6 +138,46 @@ public class ControlFlowGrapher
                         main.methodNamePattern = Pattern.compile( args[i+1] );
                         i++;
                         break;
+                    case "-profile":
+                        main.profile = BlockProfile.read( new File( args[i+1] ) );
+                        i++;
+                        break;
+                    case "-threshold":
+                        main.hideThreshold = Double.parseDouble( args[i+1] ) / 100.0;
+                        i++;
+                        break;
+                    case "-simplify":
+                        main.simplify = true;
+                        break;
+                    case "-focus":
+                        main.focusInstruction = Integer.parseInt( args[i+1] );
+                        i++;
+                        break;
+                    case "-hops":
+                        main.focusHops = Integer.parseInt( args[i+1] );
+                        i++;
+                        break;
+                    case "-format":
+                        switch( args[i+1] ) {
+                            case "dot":
+                                main.svg = false;
+                                break;
+                            case "svg":
+                                main.svg = true;
+                                break;
+                            default:
+                                throw new IllegalArgumentException("Unsupported output format: "+args[i+1]);
+                        }
+                        i++;
+                        break;
+                    case "-threads":
+                        main.threads = Integer.parseInt( args[i+1] );
+                        i++;
+                        break;
+                    case "-cache":
+                        main.cacheFile = new File( args[i+1] );
+                        i++;
+                        break;
                     default:
                         main.classToAnalyze = arg;
                 }
@@ -129,6 +199,10 @@ public class ControlFlowGrapher
             throw new IllegalStateException("No output directory set");
         }        
 
+        if ( svg && ( simplify || focusInstruction >= 0 ) ) {
+            throw new IllegalStateException("-simplify and -focus are only supported for DOT output");
+        }
+
         logVerbose("Output directory: "+outputDir.getAbsolutePath());
 
         final ClassReader classReader = ASMUtil.createClassReader( classToAnalyze , classPathEntries , new ILogger() {
@@ -144,22 +218,85 @@ public class ControlFlowGrapher
         
         classReader.accept( cn , 0 );
 
+        final List<MethodNode> methods = new ArrayList<>();
         for ( Object m : cn.methods ) 
         {
             final MethodNode mn= (MethodNode) m; 
             if ( isConstructor( mn ) ) 
             {
                 if ( includeConstructors ) {
-                    visitMethod( mn , classToAnalyze );
+                    methods.add( mn );
                 }
             } else {
                 if ( matches( mn ) ) {
-                    visitMethod( mn  , classToAnalyze );
+                    methods.add( mn );
                 } else {
                     logVerbose("Ignored method: "+mn.name+"_"+mn.desc);
                 }
             }
         }        
+
+        if ( cacheFile != null ) {
+            cache = new CFGCache( cacheFile );
+        }
+        try {
+            visitMethods( methods );
+        } 
+        finally 
+        {
+            if ( cache != null ) 
+            {
+                logVerbose("Cache: "+unchangedMethods+" methods unchanged , "+cache.getHits()+" graphs loaded , "+cache.getMisses()+" methods analyzed");
+                cache.close();
+                cache = null;
+            }
+        }
+    }
+
+    private void visitMethods(List<MethodNode> methods) throws Exception
+    {
+        if ( threads <= 1 ) 
+        {
+            for ( MethodNode mn : methods ) {
+                visitMethod( mn , classToAnalyze );
+            }
+            return;
+        }
+
+        // analyzer and renderers do not share any mutable state
+        final ExecutorService executor = Executors.newFixedThreadPool( threads );
+        try 
+        {
+            final List<Future<Void>> futures = new ArrayList<>();
+            for ( final MethodNode mn : methods ) 
+            {
+                futures.add( executor.submit( new Callable<Void>() {
+
+                    @Override
+                    public Void call() throws Exception
+                    {
+                        visitMethod( mn , classToAnalyze );
+                        return null;
+                    }
+                }));
+            }
+            for ( Future<Void> future : futures ) 
+            {
+                try {
+                    future.get();
+                } 
+                catch(ExecutionException e) 
+                {
+                    if ( e.getCause() instanceof Exception ) {
+                        throw (Exception) e.getCause();
+                    }
+                    throw e;
+                }
+            }
+        } 
+        finally {
+            executor.shutdownNow();
+        }
     }
     
     private boolean isConstructor(MethodNode mn) {
@@ -170,30 +307,105 @@ public class ControlFlowGrapher
         return methodNamePattern == null || methodNamePattern.matcher( mn.name ).matches();
     }
 
-    private void visitMethod(MethodNode method,String owner) throws AnalyzerException, FileNotFoundException 
+    private void visitMethod(MethodNode method,String owner) throws AnalyzerException, IOException 
     {
-        final ControlFlowGraph graph = analyzer.analyze(owner,  method );
+        // output that depends on runtime data is always re-rendered
+        final boolean trackOutput = cache != null && profile == null;
+        final File outputFile = getFile( method , svg ? ".svg" : ".dot" );
+        if ( trackOutput && cache.isRendered( outputFile , method , getRenderOptions() ) ) 
+        {
+            logVerbose("Unchanged method: "+method.name+"_"+method.desc);
+            unchangedMethods.incrementAndGet();
+            return;
+        }
 
-        final String dot = new DOTRenderer().render( graph );
+        final ControlFlowGraph graph = cache != null ? cache.getGraph( owner , method , analyzer ) : analyzer.analyze(owner,  method );
+        render( graph , owner );
+        if ( trackOutput ) {
+            cache.rendered( outputFile , method , getRenderOptions() );
+        }
+    }
 
-        final File outputFile;
-        if ( outputDir != null ) {
-            outputFile = new File( outputDir  , toFilename( method )+".dot" );
+    // all options that affect rendered files (except the profile)
+    private String getRenderOptions() 
+    {
+        return "format="+( svg ? "svg" : "dot" )+",simplify="+simplify+",focus="+focusInstruction+",hops="+focusHops+",threshold="+hideThreshold;
+    }
+
+    private void render(ControlFlowGraph graph,String owner) throws IOException
+    {
+        final MethodNode method = graph.getMethod();
+        BlockProfile.MethodCounts counts = null;
+        if ( profile != null ) 
+        {
+            counts = profile.getMethod( owner , method.name , method.desc );
+            if ( counts == null ) {
+                logVerbose("No profile data for method "+method.name+"_"+method.desc);
+            }
+        }
+
+        if ( svg ) 
+        {
+            final SVGRenderer renderer = new SVGRenderer();
+            if ( counts != null ) {
+                renderer.setProfile( counts );
+                renderer.setHideThreshold( hideThreshold );
+            }
+            final File outputFile = getOutputFile( method , ".svg" );
+            final Writer writer = new BufferedWriter( new OutputStreamWriter( new FileOutputStream( outputFile ) , "UTF-8" ) );
+            try {
+                renderer.render( graph , writer );
+            } finally {
+                writer.close();
+            }
+            return;
+        }
+
+        final DOTRenderer renderer = new DOTRenderer();
+        if ( counts != null ) {
+            renderer.setProfile( counts );
+            renderer.setHideThreshold( hideThreshold );
+        }
+        final String dot;
+        if ( simplify || focusInstruction >= 0 ) 
+        {
+            final GraphSimplifier simplifier = new GraphSimplifier();
+            simplifier.setCollapseChains( simplify );
+            simplifier.setClusterLoops( simplify );
+            simplifier.setMergeExceptionEdges( simplify );
+            simplifier.setFocus( focusInstruction , focusHops );
+            final SimplifiedGraph simplified = simplifier.simplify( graph );
+            logVerbose("Simplified "+graph.getAllNodes().size()+" blocks to "+simplified.getNodes().size()+" nodes");
+            dot = renderer.render( simplified );
         } else {
-            outputFile = new File( toFilename( method )+".dot" );
+            dot = renderer.render( graph );
         }
 
+        final PrintWriter writer = new PrintWriter( getOutputFile( method , ".dot" ) );
+        writer.write( dot );
+        writer.close();
+    }
+
+    private File getOutputFile(MethodNode method,String suffix) 
+    {
+        final File outputFile = getFile( method , suffix );
+
         logVerbose("Writing "+outputFile.getAbsolutePath());
         
         if ( ! outputFile.getParentFile().exists() ) {
         	outputFile.getParentFile().mkdirs();
         }
-        
-        final PrintWriter writer = new PrintWriter( outputFile);
-        writer.write( dot );
-        writer.close();
+        return outputFile;
     }
     
+    private File getFile(MethodNode method,String suffix) 
+    {
+        if ( outputDir != null ) {
+            return new File( outputDir  , toFilename( method )+suffix );
+        }
+        return new File( toFilename( method )+suffix );
+    }
+
     private String toFilename(MethodNode method) {
         String result = method.name+"_"+method.desc;
         result = result.replace("<", "");
@@ -15,11 +15,27 @@
  */
 package de.codesourcery.asm.controlflow;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+import org.apache.commons.lang.StringUtils;
+import org.objectweb.asm.tree.MethodNode;
+
 import de.codesourcery.asm.controlflow.Edge.EdgeType;
+import de.codesourcery.asm.util.Disassembler;
 
 /**
  * Crude DOT (graphviz) renderer to control-flow graphs.
  * 
+ * <p>If a {@link BlockProfile} is set , blocks are filled with a color that reflects how often they were executed (white for blocks
+ * that were never executed , red for the hottest block) , edge widths are scaled by how often the edge was taken and blocks and
+ * edges are labeled with their execution counts.</p>
+ * 
  * @author tobias.gierke@code-sourcery.de
  * 
  * @see ControlFlowGraph
@@ -27,10 +43,51 @@ import de.codesourcery.asm.controlflow.Edge.EdgeType;
  */
 public class DOTRenderer
 {
+    /**
+     * Max. number of instructions shown for a node of a {@link SimplifiedGraph}.
+     */
+    public static final int MAX_LABEL_LINES = 16;
+
+    // max. width of the most frequently taken edge
+    private static final double MAX_PEN_WIDTH = 8;
+
+    private BlockProfile.MethodCounts profile;
+    private double hideThreshold;
+
+    /**
+     * Sets the execution counts to overlay.
+     * 
+     * @param profile counts of the method to render or <code>null</code> to render the graph without runtime data
+     */
+    public void setProfile(BlockProfile.MethodCounts profile) 
+    {
+        this.profile = profile;
+    }
+
+    /**
+     * Hide blocks that were executed less often than a fraction of the hottest block.
+     * 
+     * <p>Edges from or to hidden blocks are hidden as well , the method entry and exit are always shown. Only
+     * used if a profile has been set.</p>
+     * 
+     * @param hideThreshold fraction (0...1) of the hottest block's execution count , 0 shows all blocks
+     * @see #setProfile(BlockProfile.MethodCounts)
+     */
+    public void setHideThreshold(double hideThreshold) 
+    {
+        if ( hideThreshold < 0 || hideThreshold > 1 ) {
+            throw new IllegalArgumentException("Threshold must be in range [0,1]");
+        }
+        this.hideThreshold = hideThreshold;
+    }
+
     public String render(ControlFlowGraph graph) 
     {
         final StringBuilder result = new StringBuilder( "digraph \""+mangleNodeName( graph.getMethod().name )+"()\" {\n" );
         
+        final long maxBlockCount = profile != null ? profile.getMaxBlockCount() : 0;
+        final long maxEdgeCount = profile != null ? profile.getMaxEdgeCount() : 0;
+
         // enumerate vertices
         for ( IBlock block : graph.getAllNodes() ) 
         {
@@ -43,20 +100,27 @@ public class DOTRenderer
             } 
             else 
             {
-                if ( block.isVirtual( graph.getMethod() ) ) {
+                if ( block.isVirtual( graph.getMethod() ) || isHidden( block , maxBlockCount ) ) {
                     continue;
                 }
                 
-                label = block.disassemble( graph.getMethod() , false , true ).replace("\n" , "\\l").replace("\"" , "\\\"");
+                label = escapeLabel( block.disassemble( graph.getMethod() , false , true ) );
                 label += "\\l";
                 shape="box";
             }
+            String style = "";
+            if ( profile != null ) 
+            {
+                final long count = profile.getBlockCount( block );
+                label = "executions: "+count+( block instanceof MethodEntry || block instanceof MethodExit ? "\\n" : "\\l" )+label;
+                style = ",style=filled,fillcolor=\""+heatColor( count , maxBlockCount )+"\"";
+            }
             shape = "shape="+shape;
             label="label=\""+label+"\"";
             if ( block.getId() == null ) {
                 throw new IllegalArgumentException("Block "+block+" has no ID?");
             }
-            result.append( "    "+mangleNodeName( block.getId() )+" ["+shape+","+label+"]\n" );
+            result.append( "    "+mangleNodeName( block.getId() )+" ["+shape+","+label+style+"]\n" );
         }
         
         // enumerate edges
@@ -64,34 +128,27 @@ public class DOTRenderer
         {
             if ( block instanceof MethodEntry || block instanceof MethodExit || ! block.isVirtual( graph.getMethod() ) ) 
             {
+                if ( isHidden( block , maxBlockCount ) ) {
+                    continue;
+                }
                 for ( Edge edge: block.getEdges() ) 
                 {
                     if ( edge.isSuccessor( block ) ) 
                     {
                         final IBlock succ = edge.dst;
-                        String style = "";
-                        if ( edge.hasType( EdgeType.CAUGHT_EXCEPTION ) ) // exception
-                        {
-                            String type =(String) edge.metaData;
-                            if ( type == null ) {
-                                type = "ANY";
-                            } else {
-                                type = type.replace("/",".");
-                                if ( type.startsWith("java.lang." ) ) {
-                                    type = type.substring("java.lang.".length() );
-                                }
-                            }
-                            style="[style=dotted,label=\"ex: "+type+"\"]";
-                        } else if ( edge.hasType( EdgeType.TABLE_SWITCH) || edge.hasType( EdgeType.LOOKUP_SWITCH ) ) { // lookup/table switch
-                            Integer key =(Integer) edge.metaData;
-                            String color="";
-                            if ( edge.hasType( EdgeType.LOOKUP_SWITCH ) ) {
-                                color ="color=red,";
-                            }
-                            style="[style=dashed,"+color+"label=\"case: "+key+"\"]";                            
-                        } else if ( edge.metaData != null ) {
-                            style="[label=\""+edge.metaData+"\"]";     
+                        if ( isHidden( succ , maxBlockCount ) ) {
+                            continue;
                         }
+                        final List<String> attributes = new ArrayList<>();
+                        String label = getEdgeLabel( edge , attributes );
+                        // exception edges are not profiled
+                        if ( profile != null && ! edge.hasType( EdgeType.CAUGHT_EXCEPTION ) ) {
+                            label = addEdgeCount( profile.getEdgeCount( block , succ ) , maxEdgeCount , label , attributes );
+                        }
+                        if ( label != null ) {
+                            attributes.add( "label=\""+label+"\"" );
+                        }
+                        final String style = attributes.isEmpty() ? "" : "["+StringUtils.join( attributes , "," )+"]";
                         result.append( "    "+mangleNodeName( block.getId() )+" -> "+mangleNodeName( succ.getId() )+" "+style+"\n" );
                     }
                 }
@@ -100,6 +157,210 @@ public class DOTRenderer
         result.append("}");
         return result.toString();
     }
+
+    /**
+     * Renders a simplified graph.
+     * 
+     * <p>Loops are rendered as (nested) cluster subgraphs , nodes made up of more than {@link #MAX_LABEL_LINES} instructions only show
+     * their first instructions.</p>
+     * 
+     * @param graph
+     * @return
+     * @see GraphSimplifier
+     */
+    public String render(SimplifiedGraph graph) 
+    {
+        final MethodNode method = graph.getGraph().getMethod();
+        final StringBuilder result = new StringBuilder( "digraph \""+mangleNodeName( method.name )+"()\" {\n" );
+        if ( graph.getHiddenBlockCount() > 0 ) {
+            result.append( "    label=\""+graph.getHiddenBlockCount()+" blocks not shown\"\n" );
+        }
+
+        final long maxBlockCount = profile != null ? profile.getMaxBlockCount() : 0;
+        final long maxEdgeCount = profile != null ? profile.getMaxEdgeCount() : 0;
+
+        final Set<SimplifiedGraph.Node> hidden = new HashSet<>();
+        for ( SimplifiedGraph.Node node : graph.getNodes() ) 
+        {
+            if ( isHidden( node.getFirstBlock() , maxBlockCount ) ) {
+                hidden.add( node );
+            }
+        }
+
+        // enumerate vertices , grouped by loop
+        appendNodes( graph , null , method , hidden , maxBlockCount , result , "    " );
+
+        // enumerate edges
+        for ( SimplifiedGraph.Edge edge : graph.getEdges() ) 
+        {
+            if ( hidden.contains( edge.getSource() ) || hidden.contains( edge.getDestination() ) ) {
+                continue;
+            }
+            final List<String> attributes = new ArrayList<>();
+            String label;
+            if ( edge.isExceptionSummary() ) 
+            {
+                final Set<String> types = new LinkedHashSet<>();
+                for ( Edge e : edge.getEdges() ) {
+                    types.add( getExceptionType( e.metaData ) );
+                }
+                attributes.add( "style=dotted" );
+                label = "ex: "+StringUtils.join( types , "," )+( edge.getEdges().size() > 1 ? "\\n("+edge.getEdges().size()+" blocks)" : "" );
+            } 
+            else 
+            {
+                final Edge e = edge.getEdges().get(0);
+                label = getEdgeLabel( e , attributes );
+                if ( profile != null && ! e.hasType( EdgeType.CAUGHT_EXCEPTION ) ) {
+                    label = addEdgeCount( profile.getEdgeCount( e.src , e.dst ) , maxEdgeCount , label , attributes );
+                }
+            }
+            if ( label != null ) {
+                attributes.add( "label=\""+label+"\"" );
+            }
+            final String style = attributes.isEmpty() ? "" : "["+StringUtils.join( attributes , "," )+"]";
+            result.append( "    "+mangleNodeName( edge.getSource().getId() )+" -> "+mangleNodeName( edge.getDestination().getId() )+" "+style+"\n" );
+        }
+        result.append("}");
+        return result.toString();
+    }
+
+    private void appendNodes(SimplifiedGraph graph,NaturalLoop loop,MethodNode method,Set<SimplifiedGraph.Node> hidden,long maxBlockCount,
+            StringBuilder result,String indent) 
+    {
+        for ( SimplifiedGraph.Node node : graph.getNodes( loop ) ) 
+        {
+            if ( hidden.contains( node ) ) {
+                continue;
+            }
+            String label;
+            String shape = "ellipse";
+            final IBlock first = node.getFirstBlock();
+            if ( first instanceof MethodEntry ) {
+                label = "method_entry";
+            } else if ( first instanceof MethodExit ) {
+                label = "method_exit";
+            } else {
+                label = getLabel( node , method );
+                shape = label.isEmpty() ? "point" : "box";
+            }
+            String style = "";
+            if ( profile != null ) 
+            {
+                final long count = profile.getBlockCount( first );
+                label = "executions: "+count+( shape.equals("box") ? "\\l" : "\\n" )+label;
+                style = ",style=filled,fillcolor=\""+heatColor( count , maxBlockCount )+"\"";
+            }
+            result.append( indent+mangleNodeName( node.getId() )+" [shape="+shape+",label=\""+label+"\""+style+"]\n" );
+        }
+        for ( NaturalLoop child : graph.getChildLoops( loop ) ) 
+        {
+            final int header = child.getHeaderInstructionNum( method );
+            result.append( indent+"subgraph cluster_"+( header >= 0 ? header : child.getHeader().getFirstInstructionNum() )+" {\n" );
+            result.append( indent+"    label=\"loop @ "+header+" (depth "+child.getDepth()+")\"\n" );
+            result.append( indent+"    style=dashed\n" );
+            appendNodes( graph , child , method , hidden , maxBlockCount , result , indent+"    " );
+            result.append( indent+"}\n" );
+        }
+    }
+
+    // escapes disassembled instructions for use in a left-justified DOT label
+    private static String escapeLabel(String disassembly) 
+    {
+        // backslashes first , so that escaped string constants do not turn into DOT escapes like \n
+        return disassembly.replace("\\" , "\\\\").replace("\n" , "\\l").replace("\"" , "\\\"");
+    }
+
+    // disassembly of a node's instructions , truncated to MAX_LABEL_LINES
+    private static String getLabel(SimplifiedGraph.Node node,MethodNode method) 
+    {
+        final List<String> lines = new ArrayList<>();
+        int omitted = 0;
+        for ( IBlock block : node.getBlocks() ) 
+        {
+            final List<Integer> indices = new ArrayList<>( block.getInstructionNums() );
+            Collections.sort( indices );
+            for ( int index : indices ) 
+            {
+                final String line = Disassembler.disassemble( method.instructions.get( index ) , method , false , true );
+                if ( line == null ) {
+                    continue;
+                }
+                if ( lines.size() < MAX_LABEL_LINES ) {
+                    lines.add( escapeLabel( line ) );
+                } else {
+                    omitted++;
+                }
+            }
+        }
+        if ( omitted > 0 ) {
+            lines.add( "... ("+omitted+" more)" );
+        }
+        if ( node.getBlocks().size() > 1 ) {
+            lines.add( 0 , node.getBlocks().size()+" blocks" );
+        }
+        return lines.isEmpty() ? "" : StringUtils.join( lines , "\\l" )+"\\l";
+    }
+
+    // adds style attributes for an edge , returns the edge's label or NULL
+    private static String getEdgeLabel(Edge edge,List<String> attributes) 
+    {
+        if ( edge.hasType( EdgeType.CAUGHT_EXCEPTION ) ) // exception
+        {
+            attributes.add( "style=dotted" );
+            return "ex: "+getExceptionType( edge.metaData );
+        } 
+        if ( edge.hasType( EdgeType.TABLE_SWITCH) || edge.hasType( EdgeType.LOOKUP_SWITCH ) ) // lookup/table switch
+        { 
+            Integer key =(Integer) edge.metaData;
+            attributes.add( "style=dashed" );
+            if ( edge.hasType( EdgeType.LOOKUP_SWITCH ) ) {
+                attributes.add( "color=red" );
+            }
+            return "case: "+key;
+        } 
+        return edge.metaData != null ? edge.metaData.toString() : null;
+    }
+
+    static String getExceptionType(Object metaData) 
+    {
+        String type =(String) metaData;
+        if ( type == null ) {
+            return "ANY";
+        }
+        type = type.replace("/",".");
+        if ( type.startsWith("java.lang." ) ) {
+            type = type.substring("java.lang.".length() );
+        }
+        return type;
+    }
+
+    // adds the pen width for an edge's execution count , returns the new label
+    private static String addEdgeCount(long count,long maxEdgeCount,String label,List<String> attributes) 
+    {
+        final double width = maxEdgeCount > 0 ? 1 + ( MAX_PEN_WIDTH - 1 ) * count / maxEdgeCount : 1;
+        attributes.add( String.format( Locale.ENGLISH , "penwidth=%.1f" , width ) );
+        return label == null ? Long.toString( count ) : label+"\\n"+count;
+    }
+
+    private boolean isHidden(IBlock block,long maxBlockCount) 
+    {
+        if ( profile == null || hideThreshold == 0 || block instanceof MethodEntry || block instanceof MethodExit ) {
+            return false;
+        }
+        return profile.getBlockCount( block ) < hideThreshold * maxBlockCount;
+    }
+
+    // white (never executed) to red (hottest) , using a logarithmic scale
+    static String heatColor(long count,long max)
+    {
+        if ( count <= 0 || max <= 0 ) {
+            return "#ffffff";
+        }
+        final double ratio = Math.log( 1 + count ) / Math.log( 1 + max );
+        final int other = (int) Math.round( 235 - 175 * Math.min( 1 , ratio ) );
+        return String.format("#ff%02x%02x" , other , other );
+    }
     
     private static final String mangleNodeName(String id) {
         return id.replace("<", "" ).replace(">", "");
@@ -0,0 +1,294 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.asm.controlflow;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import de.codesourcery.asm.controlflow.Edge.EdgeType;
+import de.codesourcery.asm.controlflow.SimplifiedGraph.Node;
+
+/**
+ * Reduces the size of a {@link ControlFlowGraph} so that Graphviz can lay out graphs of huge methods in reasonable time.
+ * 
+ * <p>The following simplifications are available:
+ * <ul>
+ *   <li>chain collapsing: a block with a single regular successor that has no other regular predecessor gets merged with
+ *   this successor , as long as both blocks are part of the same loops and have the same exception handlers</li>
+ *   <li>loop clustering: nodes are grouped by their innermost natural loop (see {@link LoopAnalyzer}) , {@link DOTRenderer} renders
+ *   each loop as a (nested) cluster subgraph</li>
+ *   <li>exception edge merging: all exception edges leading to the same handler are replaced by a single summary edge , chains
+ *   may then span blocks protected by different handlers</li>
+ *   <li>focusing: only blocks within a given number of hops (following edges in both directions) from a chosen block are kept</li>
+ * </ul>
+ * All simplifications except focusing are enabled by default.</p>
+ * 
+ * @author tobias.gierke@code-sourcery.de
+ * @see DOTRenderer#render(SimplifiedGraph)
+ */
+public class GraphSimplifier
+{
+    private boolean collapseChains = true;
+    private boolean clusterLoops = true;
+    private boolean mergeExceptionEdges = true;
+    private int focusInstruction = -1;
+    private int focusHops;
+
+    public void setCollapseChains(boolean collapseChains)
+    {
+        this.collapseChains = collapseChains;
+    }
+
+    public void setClusterLoops(boolean clusterLoops)
+    {
+        this.clusterLoops = clusterLoops;
+    }
+
+    public void setMergeExceptionEdges(boolean mergeExceptionEdges)
+    {
+        this.mergeExceptionEdges = mergeExceptionEdges;
+    }
+
+    /**
+     * Only keep blocks close to a given block.
+     * 
+     * @param instructionNum index of an instruction within the block to focus on , -1 keeps all blocks
+     * @param hops max. number of edges (in either direction) between the focused block and any kept block
+     */
+    public void setFocus(int instructionNum,int hops)
+    {
+        if ( hops < 0 ) {
+            throw new IllegalArgumentException("Number of hops must be >= 0");
+        }
+        this.focusInstruction = instructionNum;
+        this.focusHops = hops;
+    }
+
+    /**
+     * Simplifies a graph.
+     * 
+     * @param graph
+     * @return
+     * @throws IllegalArgumentException if a focus has been set but no block contains the focused instruction
+     */
+    public SimplifiedGraph simplify(ControlFlowGraph graph) throws IllegalArgumentException
+    {
+        final Set<IBlock> allBlocks = graph.getAllNodes();
+        final Set<IBlock> kept = focusInstruction >= 0 ? findNeighbourhood( graph ) : allBlocks;
+
+        // innermost loop of each block
+        final Map<IBlock,NaturalLoop> innermostLoops = new HashMap<>();
+        final Map<NaturalLoop,NaturalLoop> parentLoops = new LinkedHashMap<>();
+        if ( clusterLoops ) 
+        {
+            final List<NaturalLoop> loops = new LoopAnalyzer( graph ).getLoops();
+            // outer loops come first
+            for ( NaturalLoop loop : loops ) 
+            {
+                parentLoops.put( loop , innermostLoops.get( loop.getHeader() ) );
+                for ( IBlock block : loop.getBlocks() ) {
+                    innermostLoops.put( block , loop );
+                }
+            }
+        }
+
+        // sort blocks by instruction index so that chains and nodes are always created in the same order
+        final List<IBlock> sorted = new ArrayList<>( kept );
+        Collections.sort( sorted , new Comparator<IBlock>() {
+
+            @Override
+            public int compare(IBlock o1, IBlock o2)
+            {
+                return Integer.compare( sortKey( o1 ) , sortKey( o2 ) );
+            }
+        });
+
+        final Map<IBlock,Node> nodesByBlock = new HashMap<>();
+        final List<Node> nodes = new ArrayList<>();
+        for ( IBlock block : sorted ) 
+        {
+            if ( nodesByBlock.containsKey( block ) || ( collapseChains && isChainMember( block , kept , innermostLoops ) ) ) {
+                continue;
+            }
+            final List<IBlock> chain = new ArrayList<>();
+            chain.add( block );
+            if ( collapseChains ) 
+            {
+                IBlock current = block;
+                while ( canMerge( current , kept , innermostLoops ) ) 
+                {
+                    current = current.getRegularSuccessor();
+                    if ( chain.contains( current ) ) {
+                        break;
+                    }
+                    chain.add( current );
+                }
+            }
+            addNode( new Node( chain , innermostLoops.get( block ) ) , nodes , nodesByBlock );
+        }
+        // blocks on a cycle where every block is merged with its predecessor (unreachable code)
+        for ( IBlock block : sorted ) 
+        {
+            if ( ! nodesByBlock.containsKey( block ) ) {
+                addNode( new Node( Collections.singletonList( block ) , innermostLoops.get( block ) ) , nodes , nodesByBlock );
+            }
+        }
+
+        final List<SimplifiedGraph.Edge> edges = new ArrayList<>();
+        final Map<Node,List<Edge>> exceptionEdgesByHandler = new LinkedHashMap<>();
+        for ( Node node : nodes ) 
+        {
+            for ( Edge edge : node.getLastBlock().getEdges() ) 
+            {
+                if ( edge.isSuccessor( node.getLastBlock() ) && ! edge.hasType( EdgeType.CAUGHT_EXCEPTION ) && nodesByBlock.containsKey( edge.dst ) ) {
+                    edges.add( new SimplifiedGraph.Edge( node , nodesByBlock.get( edge.dst ) , Collections.singletonList( edge ) , false ) );
+                }
+            }
+            // blocks of a chain share their exception handlers
+            for ( IBlock block : node.getBlocks() ) 
+            {
+                for ( Edge edge : block.getEdges() ) 
+                {
+                    if ( ! edge.isSuccessor( block ) || ! edge.hasType( EdgeType.CAUGHT_EXCEPTION ) || ! nodesByBlock.containsKey( edge.dst ) ) {
+                        continue;
+                    }
+                    if ( mergeExceptionEdges ) 
+                    {
+                        final Node handler = nodesByBlock.get( edge.dst );
+                        List<Edge> list = exceptionEdgesByHandler.get( handler );
+                        if ( list == null ) {
+                            list = new ArrayList<>();
+                            exceptionEdgesByHandler.put( handler , list );
+                        }
+                        list.add( edge );
+                    } 
+                    else if ( block == node.getFirstBlock() ) {
+                        edges.add( new SimplifiedGraph.Edge( node , nodesByBlock.get( edge.dst ) , Collections.singletonList( edge ) , false ) );
+                    }
+                }
+            }
+        }
+        for ( Map.Entry<Node,List<Edge>> entry : exceptionEdgesByHandler.entrySet() ) 
+        {
+            // nodes are sorted , so the first edge's source is the node with the lowest instruction index
+            final Node src = nodesByBlock.get( entry.getValue().get(0).src );
+            edges.add( new SimplifiedGraph.Edge( src , entry.getKey() , entry.getValue() , true ) );
+        }
+        return new SimplifiedGraph( graph , nodes , edges , parentLoops , allBlocks.size() - kept.size() );
+    }
+
+    private static void addNode(Node node,List<Node> nodes,Map<IBlock,Node> nodesByBlock) 
+    {
+        nodes.add( node );
+        for ( IBlock block : node.getBlocks() ) {
+            nodesByBlock.put( block , node );
+        }
+    }
+
+    // method entry first , method exit last
+    private static int sortKey(IBlock block) 
+    {
+        if ( block instanceof MethodEntry ) {
+            return Integer.MIN_VALUE;
+        }
+        if ( block instanceof MethodExit || block.getInstructionNums().isEmpty() ) {
+            return Integer.MAX_VALUE;
+        }
+        return Collections.min( block.getInstructionNums() );
+    }
+
+    // whether a block gets merged with its only predecessor
+    private boolean isChainMember(IBlock block,Set<IBlock> kept,Map<IBlock,NaturalLoop> innermostLoops) 
+    {
+        return block.getRegularPredecessorCount() == 1 && canMerge( block.getRegularPredecessor() , kept , innermostLoops );
+    }
+
+    // whether a block gets merged with its only successor
+    private boolean canMerge(IBlock block,Set<IBlock> kept,Map<IBlock,NaturalLoop> innermostLoops) 
+    {
+        if ( block instanceof MethodEntry || block instanceof MethodExit || block.getRegularSuccessorCount() != 1 || ! kept.contains( block ) ) {
+            return false;
+        }
+        final IBlock succ = block.getRegularSuccessor();
+        if ( succ == block || succ instanceof MethodExit || succ.getRegularPredecessorCount() != 1 || ! kept.contains( succ ) ) {
+            return false;
+        }
+        if ( innermostLoops.get( block ) != innermostLoops.get( succ ) ) {
+            return false;
+        }
+        // exception handlers must be the first block of a node
+        for ( Edge edge : succ.getEdges() ) 
+        {
+            if ( edge.isPredecessor( succ ) && edge.hasType( EdgeType.CAUGHT_EXCEPTION ) ) {
+                return false;
+            }
+        }
+        // summary edges only have a single source anyway
+        return mergeExceptionEdges || getExceptionEdges( block ).equals( getExceptionEdges( succ ) );
+    }
+
+    // handler blocks and exception types
+    private static Set<List<Object>> getExceptionEdges(IBlock block) 
+    {
+        final Set<List<Object>> result = new HashSet<>();
+        for ( Edge edge : block.getEdges() ) 
+        {
+            if ( edge.isSuccessor( block ) && edge.hasType( EdgeType.CAUGHT_EXCEPTION ) ) {
+                result.add( Arrays.<Object>asList( edge.dst , edge.metaData ) );
+            }
+        }
+        return result;
+    }
+
+    // breadth-first search in both directions , starting at the focused block
+    private Set<IBlock> findNeighbourhood(ControlFlowGraph graph) 
+    {
+        final IBlock start = graph.getBlockForInstruction( focusInstruction );
+        if ( start == null ) {
+            throw new IllegalArgumentException("No block contains instruction "+focusInstruction);
+        }
+        final Map<IBlock,Integer> distances = new HashMap<>();
+        distances.put( start , 0 );
+        final LinkedList<IBlock> queue = new LinkedList<>();
+        queue.add( start );
+        while ( ! queue.isEmpty() ) 
+        {
+            final IBlock current = queue.removeFirst();
+            final int distance = distances.get( current );
+            if ( distance == focusHops ) {
+                continue;
+            }
+            for ( Edge edge : current.getEdges() ) 
+            {
+                final IBlock other = edge.src == current ? edge.dst : edge.src;
+                if ( ! distances.containsKey( other ) ) {
+                    distances.put( other , distance + 1 );
+                    queue.add( other );
+                }
+            }
+        }
+        return distances.keySet();
+    }
+}
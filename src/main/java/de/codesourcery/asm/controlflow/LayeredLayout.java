@@ -0,0 +1,750 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.asm.controlflow;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Sugiyama-style layered layout for control flow graphs.
+ *
+ * <p>The layout is computed in four phases:
+ * <ol>
+ *   <li>cycle removal: back edges found by a depth-first search starting at the first block get reversed</li>
+ *   <li>layer assignment: each block is put on the layer following the longest path from the first block ,
+ *   edges spanning more than one layer get split by dummy nodes</li>
+ *   <li>crossing reduction: the nodes of each layer are sorted by the barycenter of their neighbours (alternating
+ *   downward and upward sweeps) , the ordering with the fewest edge crossings wins</li>
+ *   <li>coordinate assignment: nodes are moved towards the average position of their neighbours without overlapping</li>
+ * </ol></p>
+ *
+ * <p>All state of a layout is kept in local variables , so a single instance may be used by multiple threads concurrently
+ * (as long as its settings do not change).</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ * @see SVGRenderer
+ */
+public class LayeredLayout
+{
+    private int layerSpacing = 40;
+    private int nodeSpacing = 20;
+    private int margin = 10;
+    private int maxSweeps = 12;
+
+    /**
+     * Provides the size of each block.
+     *
+     * @author tobias.gierke@code-sourcery.de
+     */
+    public interface INodeSizes
+    {
+        public int getWidth(IBlock block);
+
+        public int getHeight(IBlock block);
+    }
+
+    /**
+     * Position and size of a block.
+     *
+     * @author tobias.gierke@code-sourcery.de
+     */
+    public static final class Box
+    {
+        public final int x;
+        public final int y;
+        public final int width;
+        public final int height;
+
+        protected Box(int x, int y, int width, int height)
+        {
+            this.x = x;
+            this.y = y;
+            this.width = width;
+            this.height = height;
+        }
+
+        public int getCenterX() {
+            return x + width / 2;
+        }
+
+        public int getCenterY() {
+            return y + height / 2;
+        }
+    }
+
+    /**
+     * Polyline an edge is drawn along , from the edge's source to its destination.
+     *
+     * @author tobias.gierke@code-sourcery.de
+     */
+    public static final class Route
+    {
+        private final Edge edge;
+        private final int[] xs;
+        private final int[] ys;
+        private final boolean reversed;
+
+        protected Route(Edge edge, int[] xs, int[] ys, boolean reversed)
+        {
+            this.edge = edge;
+            this.xs = xs;
+            this.ys = ys;
+            this.reversed = reversed;
+        }
+
+        public Edge getEdge() {
+            return edge;
+        }
+
+        public int getPointCount() {
+            return xs.length;
+        }
+
+        public int getX(int point) {
+            return xs[point];
+        }
+
+        public int getY(int point) {
+            return ys[point];
+        }
+
+        /**
+         * Returns whether this edge has been reversed to break a cycle (it points upwards).
+         *
+         * @return
+         */
+        public boolean isReversed() {
+            return reversed;
+        }
+
+        /**
+         * Returns the X coordinate of a point suitable for placing the edge's label.
+         *
+         * @return
+         */
+        public int getLabelX() {
+            final int i = xs.length / 2;
+            return ( xs[i-1] + xs[i] ) / 2;
+        }
+
+        /**
+         * Returns the Y coordinate of a point suitable for placing the edge's label.
+         *
+         * @return
+         */
+        public int getLabelY() {
+            final int i = ys.length / 2;
+            return ( ys[i-1] + ys[i] ) / 2;
+        }
+    }
+
+    /**
+     * Result of laying out a graph.
+     *
+     * @author tobias.gierke@code-sourcery.de
+     */
+    public static final class Layout
+    {
+        private final Map<IBlock,Box> boxes;
+        private final List<Route> routes;
+        private final int width;
+        private final int height;
+        private final int layerCount;
+        private final long crossings;
+
+        protected Layout(Map<IBlock, Box> boxes, List<Route> routes, int width, int height, int layerCount, long crossings)
+        {
+            this.boxes = boxes;
+            this.routes = routes;
+            this.width = width;
+            this.height = height;
+            this.layerCount = layerCount;
+            this.crossings = crossings;
+        }
+
+        /**
+         * Returns the position of a block.
+         *
+         * @param block
+         * @return position or <code>null</code> if the block was not part of the layout
+         */
+        public Box getBox(IBlock block) {
+            return boxes.get( block );
+        }
+
+        /**
+         * Returns the routes of all edges , in the order the edges were passed to {@link LayeredLayout#layout(List, List, INodeSizes)}.
+         *
+         * @return
+         */
+        public List<Route> getRoutes() {
+            return routes;
+        }
+
+        public int getWidth() {
+            return width;
+        }
+
+        public int getHeight() {
+            return height;
+        }
+
+        public int getLayerCount() {
+            return layerCount;
+        }
+
+        /**
+         * Returns the number of edge crossings between adjacent layers (edges from or to the same block are not counted).
+         *
+         * @return
+         */
+        public long getCrossings() {
+            return crossings;
+        }
+    }
+
+    // a block or a dummy node on an edge that spans multiple layers
+    private static final class Vertex
+    {
+        private final IBlock block;
+        private final int width;
+        private final int height;
+        private int layer;
+        private int position;
+        private double sortKey;
+        private int x;
+        private final List<Vertex> up = new ArrayList<>();
+        private final List<Vertex> down = new ArrayList<>();
+
+        private Vertex(IBlock block, int width, int height)
+        {
+            this.block = block;
+            this.width = width;
+            this.height = height;
+        }
+    }
+
+    private static final Comparator<Vertex> BY_SORT_KEY = new Comparator<Vertex>() {
+
+        @Override
+        public int compare(Vertex o1, Vertex o2)
+        {
+            return Double.compare( o1.sortKey , o2.sortKey );
+        }
+    };
+
+    public void setLayerSpacing(int layerSpacing)
+    {
+        this.layerSpacing = layerSpacing;
+    }
+
+    public void setNodeSpacing(int nodeSpacing)
+    {
+        this.nodeSpacing = nodeSpacing;
+    }
+
+    public void setMargin(int margin)
+    {
+        this.margin = margin;
+    }
+
+    /**
+     * Sets the max. number of barycenter sweeps used to reduce edge crossings.
+     *
+     * @param maxSweeps
+     */
+    public void setMaxSweeps(int maxSweeps)
+    {
+        this.maxSweeps = maxSweeps;
+    }
+
+    /**
+     * Lays out a graph.
+     *
+     * @param blocks blocks to lay out , the depth-first search used to remove cycles starts at the first block (usually the {@link MethodEntry})
+     * @param edges edges to lay out , edges from or to blocks that are not part of <code>blocks</code> are ignored
+     * @param sizes
+     * @return
+     */
+    public Layout layout(List<IBlock> blocks,List<Edge> edges,INodeSizes sizes)
+    {
+        final Map<IBlock,Vertex> vertices = new HashMap<>();
+        final List<Vertex> realVertices = new ArrayList<>();
+        for ( IBlock block : blocks )
+        {
+            final Vertex v = new Vertex( block , sizes.getWidth( block ) , sizes.getHeight( block ) );
+            vertices.put( block , v );
+            realVertices.add( v );
+        }
+
+        // outgoing edges (indices into 'edges') of each block , ignoring self-loops
+        final Map<Vertex,List<Integer>> outgoing = new HashMap<>();
+        for ( int i = 0 ; i < edges.size() ; i++ )
+        {
+            final Edge edge = edges.get(i);
+            final Vertex src = vertices.get( edge.src );
+            final Vertex dst = vertices.get( edge.dst );
+            if ( src == null || dst == null || src == dst ) {
+                continue;
+            }
+            List<Integer> list = outgoing.get( src );
+            if ( list == null ) {
+                list = new ArrayList<>();
+                outgoing.put( src , list );
+            }
+            list.add( i );
+        }
+
+        // phase 1: cycle removal
+        final boolean[] reversed = new boolean[ edges.size() ];
+        final Map<Vertex,Integer> preOrder = new HashMap<>();
+        removeCycles( realVertices , outgoing , edges , vertices , reversed , preOrder );
+
+        // phase 2: layer assignment
+        final int layerCount = assignLayers( realVertices , outgoing , edges , vertices , reversed );
+        final List<List<Vertex>> layers = new ArrayList<>();
+        for ( int i = 0 ; i < layerCount ; i++ ) {
+            layers.add( new ArrayList<Vertex>() );
+        }
+        for ( Vertex v : realVertices )
+        {
+            v.sortKey = preOrder.get( v );
+            layers.get( v.layer ).add( v );
+        }
+
+        // split long edges , chains are ordered from top to bottom
+        final List<List<Vertex>> chains = new ArrayList<>();
+        for ( int i = 0 ; i < edges.size() ; i++ )
+        {
+            final Edge edge = edges.get(i);
+            Vertex top = vertices.get( reversed[i] ? edge.dst : edge.src );
+            final Vertex bottom = vertices.get( reversed[i] ? edge.src : edge.dst );
+            if ( top == null || bottom == null || top == bottom ) {
+                chains.add( null );
+                continue;
+            }
+            final List<Vertex> chain = new ArrayList<>();
+            chain.add( top );
+            for ( int layer = top.layer + 1 ; layer < bottom.layer ; layer++ )
+            {
+                final Vertex dummy = new Vertex( null , 0 , 0 );
+                dummy.layer = layer;
+                dummy.sortKey = top.sortKey + 0.5;
+                layers.get( layer ).add( dummy );
+                link( top , dummy );
+                top = dummy;
+                chain.add( dummy );
+            }
+            link( top , bottom );
+            chain.add( bottom );
+            chains.add( chain );
+        }
+
+        for ( List<Vertex> layer : layers ) {
+            sortLayer( layer );
+        }
+
+        // phase 3: crossing reduction
+        final long crossings = reduceCrossings( layers );
+
+        // phase 4: coordinate assignment
+        return assignCoordinates( layers , chains , edges , reversed , vertices , crossings );
+    }
+
+    private static void link(Vertex upper,Vertex lower)
+    {
+        upper.down.add( lower );
+        lower.up.add( upper );
+    }
+
+    private static void sortLayer(List<Vertex> layer)
+    {
+        Collections.sort( layer , BY_SORT_KEY );
+        for ( int i = 0 ; i < layer.size() ; i++ ) {
+            layer.get(i).position = i;
+        }
+    }
+
+    // iterative depth-first search , huge methods would overflow the stack otherwise
+    private static void removeCycles(List<Vertex> roots,Map<Vertex,List<Integer>> outgoing,List<Edge> edges,Map<IBlock,Vertex> vertices,
+            boolean[] reversed,Map<Vertex,Integer> preOrder)
+    {
+        final Map<Vertex,Integer> onStack = new HashMap<>(); // vertex => index of next edge to visit
+        for ( Vertex root : roots )
+        {
+            if ( preOrder.containsKey( root ) ) {
+                continue;
+            }
+            final LinkedList<Vertex> stack = new LinkedList<>();
+            stack.push( root );
+            preOrder.put( root , preOrder.size() );
+            onStack.put( root , 0 );
+            while ( ! stack.isEmpty() )
+            {
+                final Vertex current = stack.peek();
+                final List<Integer> out = outgoing.get( current );
+                final int next = onStack.get( current );
+                if ( out == null || next >= out.size() )
+                {
+                    stack.pop();
+                    onStack.remove( current );
+                    continue;
+                }
+                onStack.put( current , next + 1 );
+                final int edgeIndex = out.get( next );
+                final Vertex succ = vertices.get( edges.get( edgeIndex ).dst );
+                if ( onStack.containsKey( succ ) ) {
+                    reversed[ edgeIndex ] = true;
+                }
+                else if ( ! preOrder.containsKey( succ ) )
+                {
+                    preOrder.put( succ , preOrder.size() );
+                    onStack.put( succ , 0 );
+                    stack.push( succ );
+                }
+            }
+        }
+    }
+
+    // longest path layering , returns the number of layers
+    private static int assignLayers(List<Vertex> realVertices,Map<Vertex,List<Integer>> outgoing,List<Edge> edges,Map<IBlock,Vertex> vertices,
+            boolean[] reversed)
+    {
+        final Map<Vertex,List<Vertex>> successors = new HashMap<>();
+        final Map<Vertex,Integer> inDegree = new HashMap<>();
+        for ( Vertex v : realVertices ) {
+            successors.put( v , new ArrayList<Vertex>() );
+            inDegree.put( v , 0 );
+        }
+        for ( List<Integer> out : outgoing.values() )
+        {
+            for ( int edgeIndex : out )
+            {
+                final Edge edge = edges.get( edgeIndex );
+                final Vertex top = vertices.get( reversed[ edgeIndex ] ? edge.dst : edge.src );
+                final Vertex bottom = vertices.get( reversed[ edgeIndex ] ? edge.src : edge.dst );
+                successors.get( top ).add( bottom );
+                inDegree.put( bottom , inDegree.get( bottom ) + 1 );
+            }
+        }
+
+        final LinkedList<Vertex> queue = new LinkedList<>();
+        for ( Vertex v : realVertices )
+        {
+            v.layer = 0;
+            if ( inDegree.get( v ) == 0 ) {
+                queue.add( v );
+            }
+        }
+        int layerCount = 1;
+        while ( ! queue.isEmpty() )
+        {
+            final Vertex current = queue.removeFirst();
+            layerCount = Math.max( layerCount , current.layer + 1 );
+            for ( Vertex succ : successors.get( current ) )
+            {
+                succ.layer = Math.max( succ.layer , current.layer + 1 );
+                final int remaining = inDegree.get( succ ) - 1;
+                inDegree.put( succ , remaining );
+                if ( remaining == 0 ) {
+                    queue.add( succ );
+                }
+            }
+        }
+
+        // the method exit has no successors , always put it at the bottom
+        for ( Vertex v : realVertices )
+        {
+            if ( v.block instanceof MethodExit ) {
+                v.layer = layerCount - 1;
+            }
+        }
+        return layerCount;
+    }
+
+    private long reduceCrossings(List<List<Vertex>> layers)
+    {
+        long best = countCrossings( layers );
+        final Map<Vertex,Integer> bestPositions = savePositions( layers );
+        for ( int sweep = 0 ; sweep < maxSweeps && best > 0 ; sweep++ )
+        {
+            final boolean downwards = ( sweep % 2 ) == 0;
+            if ( downwards )
+            {
+                for ( int i = 1 ; i < layers.size() ; i++ ) {
+                    sortByBarycenter( layers.get(i) , true );
+                }
+            }
+            else
+            {
+                for ( int i = layers.size() - 2 ; i >= 0 ; i-- ) {
+                    sortByBarycenter( layers.get(i) , false );
+                }
+            }
+            final long crossings = countCrossings( layers );
+            if ( crossings < best )
+            {
+                best = crossings;
+                bestPositions.putAll( savePositions( layers ) );
+            }
+        }
+
+        for ( List<Vertex> layer : layers )
+        {
+            for ( Vertex v : layer ) {
+                v.sortKey = bestPositions.get( v );
+            }
+            sortLayer( layer );
+        }
+        return best;
+    }
+
+    private static Map<Vertex,Integer> savePositions(List<List<Vertex>> layers)
+    {
+        final Map<Vertex,Integer> result = new HashMap<>();
+        for ( List<Vertex> layer : layers )
+        {
+            for ( Vertex v : layer ) {
+                result.put( v , v.position );
+            }
+        }
+        return result;
+    }
+
+    private static void sortByBarycenter(List<Vertex> layer,boolean useUpperNeighbours)
+    {
+        for ( Vertex v : layer )
+        {
+            final List<Vertex> neighbours = useUpperNeighbours ? v.up : v.down;
+            if ( neighbours.isEmpty() ) {
+                // keep vertices without neighbours in place
+                v.sortKey = v.position;
+                continue;
+            }
+            double sum = 0;
+            for ( Vertex n : neighbours ) {
+                sum += n.position;
+            }
+            v.sortKey = sum / neighbours.size();
+        }
+        sortLayer( layer );
+    }
+
+    // counts inversions of the edges between each pair of adjacent layers
+    private static long countCrossings(List<List<Vertex>> layers)
+    {
+        long result = 0;
+        for ( int i = 0 ; i < layers.size() - 1 ; i++ )
+        {
+            final List<int[]> pairs = new ArrayList<>();
+            for ( Vertex v : layers.get(i) )
+            {
+                for ( Vertex n : v.down ) {
+                    pairs.add( new int[] { v.position , n.position } );
+                }
+            }
+            Collections.sort( pairs , new Comparator<int[]>() {
+
+                @Override
+                public int compare(int[] o1, int[] o2)
+                {
+                    final int result = Integer.compare( o1[0] , o2[0] );
+                    return result != 0 ? result : Integer.compare( o1[1] , o2[1] );
+                }
+            });
+            // Fenwick tree over the positions of the lower layer
+            final int size = layers.get(i+1).size();
+            final int[] tree = new int[ size + 1 ];
+            int inserted = 0;
+            for ( int[] pair : pairs )
+            {
+                int notGreater = 0;
+                for ( int j = pair[1] + 1 ; j > 0 ; j -= j & -j ) {
+                    notGreater += tree[j];
+                }
+                result += inserted - notGreater;
+                for ( int j = pair[1] + 1 ; j <= size ; j += j & -j ) {
+                    tree[j]++;
+                }
+                inserted++;
+            }
+        }
+        return result;
+    }
+
+    private Layout assignCoordinates(List<List<Vertex>> layers,List<List<Vertex>> chains,List<Edge> edges,boolean[] reversed,
+            Map<IBlock,Vertex> vertices,long crossings)
+    {
+        // Y coordinates
+        final int[] layerTop = new int[ layers.size() ];
+        final int[] layerHeight = new int[ layers.size() ];
+        int y = margin;
+        for ( int i = 0 ; i < layers.size() ; i++ )
+        {
+            for ( Vertex v : layers.get(i) ) {
+                layerHeight[i] = Math.max( layerHeight[i] , v.height );
+            }
+            layerTop[i] = y;
+            y += layerHeight[i] + layerSpacing;
+        }
+        final int height = y - layerSpacing + margin;
+
+        // X coordinates (of each vertex's center) , start by packing each layer to the left
+        for ( List<Vertex> layer : layers )
+        {
+            int x = 0;
+            for ( Vertex v : layer )
+            {
+                v.x = x + v.width / 2;
+                x += v.width + nodeSpacing;
+            }
+        }
+        for ( int sweep = 0 ; sweep < maxSweeps ; sweep++ )
+        {
+            final boolean downwards = ( sweep % 2 ) == 0;
+            if ( downwards )
+            {
+                for ( int i = 1 ; i < layers.size() ; i++ ) {
+                    placeLayer( layers.get(i) , true );
+                }
+            }
+            else
+            {
+                for ( int i = layers.size() - 2 ; i >= 0 ; i-- ) {
+                    placeLayer( layers.get(i) , false );
+                }
+            }
+        }
+
+        int minX = Integer.MAX_VALUE;
+        int maxX = Integer.MIN_VALUE;
+        for ( List<Vertex> layer : layers )
+        {
+            for ( Vertex v : layer )
+            {
+                minX = Math.min( minX , v.x - v.width / 2 );
+                maxX = Math.max( maxX , v.x + v.width - v.width / 2 );
+            }
+        }
+        final int offset = margin - minX;
+
+        final Map<IBlock,Box> boxes = new HashMap<>();
+        for ( List<Vertex> layer : layers )
+        {
+            for ( Vertex v : layer )
+            {
+                v.x += offset;
+                if ( v.block != null )
+                {
+                    final int top = layerTop[ v.layer ] + ( layerHeight[ v.layer ] - v.height ) / 2;
+                    boxes.put( v.block , new Box( v.x - v.width / 2 , top , v.width , v.height ) );
+                }
+            }
+        }
+        int width = maxX + offset + margin;
+
+        final List<Route> routes = new ArrayList<>();
+        for ( int i = 0 ; i < edges.size() ; i++ )
+        {
+            final List<Vertex> chain = chains.get(i);
+            if ( chain == null )
+            {
+                final Vertex v = vertices.get( edges.get(i).src );
+                if ( v == null || vertices.get( edges.get(i).dst ) == null ) {
+                    routes.add( null );
+                    continue;
+                }
+                // self-loop , drawn on the right side of the block
+                final Box box = boxes.get( v.block );
+                final int right = box.x + box.width;
+                final int loopX = right + nodeSpacing;
+                width = Math.max( width , loopX + margin );
+                routes.add( new Route( edges.get(i) , new int[] { right , loopX , loopX , right } ,
+                        new int[] { box.y + box.height / 4 , box.y + box.height / 4 , box.y + box.height * 3 / 4 , box.y + box.height * 3 / 4 } , false ) );
+                continue;
+            }
+            final List<int[]> points = new ArrayList<>();
+            final Box top = boxes.get( chain.get(0).block );
+            points.add( new int[] { top.getCenterX() , top.y + top.height } );
+            for ( Vertex dummy : chain.subList( 1 , chain.size() - 1 ) )
+            {
+                points.add( new int[] { dummy.x , layerTop[ dummy.layer ] } );
+                points.add( new int[] { dummy.x , layerTop[ dummy.layer ] + layerHeight[ dummy.layer ] } );
+            }
+            final Box bottom = boxes.get( chain.get( chain.size() - 1 ).block );
+            points.add( new int[] { bottom.getCenterX() , bottom.y } );
+            if ( reversed[i] ) {
+                Collections.reverse( points );
+            }
+            final int[] xs = new int[ points.size() ];
+            final int[] ys = new int[ points.size() ];
+            for ( int j = 0 ; j < points.size() ; j++ )
+            {
+                xs[j] = points.get(j)[0];
+                ys[j] = points.get(j)[1];
+            }
+            routes.add( new Route( edges.get(i) , xs , ys , reversed[i] ) );
+        }
+        return new Layout( boxes , Collections.unmodifiableList( routes ) , width , height , layers.size() , crossings );
+    }
+
+    // moves vertices towards the average position of their neighbours while keeping their order and min. distance
+    private void placeLayer(List<Vertex> layer,boolean useUpperNeighbours)
+    {
+        final int size = layer.size();
+        if ( size == 0 ) {
+            return;
+        }
+        final int[] desired = new int[ size ];
+        for ( int i = 0 ; i < size ; i++ )
+        {
+            final Vertex v = layer.get(i);
+            final List<Vertex> neighbours = useUpperNeighbours ? v.up : v.down;
+            if ( neighbours.isEmpty() ) {
+                desired[i] = v.x;
+                continue;
+            }
+            long sum = 0;
+            for ( Vertex n : neighbours ) {
+                sum += n.x;
+            }
+            desired[i] = (int) ( sum / neighbours.size() );
+        }
+        // the average of the leftmost and rightmost feasible placements is feasible as well
+        final int[] left = Arrays.copyOf( desired , size );
+        for ( int i = 1 ; i < size ; i++ ) {
+            left[i] = Math.max( left[i] , left[i-1] + minDistance( layer.get(i-1) , layer.get(i) ) );
+        }
+        final int[] right = Arrays.copyOf( desired , size );
+        for ( int i = size - 2 ; i >= 0 ; i-- ) {
+            right[i] = Math.min( right[i] , right[i+1] - minDistance( layer.get(i) , layer.get(i+1) ) );
+        }
+        for ( int i = 0 ; i < size ; i++ ) {
+            layer.get(i).x = (int) Math.floor( ( left[i] + (double) right[i] ) / 2 );
+        }
+    }
+
+    private int minDistance(Vertex left,Vertex right)
+    {
+        return left.width - left.width / 2 + right.width / 2 + nodeSpacing;
+    }
+}
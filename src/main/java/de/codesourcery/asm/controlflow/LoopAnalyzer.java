@@ -0,0 +1,297 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.asm.controlflow;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Stack;
+
+/**
+ * Computes dominators and natural loops of a {@link ControlFlowGraph}.
+ * 
+ * <p>All edges (including edges to exception handlers) are considered. Dominators are computed with the iterative
+ * algorithm by Cooper , Harvey and Kennedy ("A Simple, Fast Dominance Algorithm") , an edge <code>n -&gt; h</code> is a back-edge
+ * if <code>h</code> dominates <code>n</code>. Retreating edges of irreducible control flow are no back-edges and
+ * thus do not form natural loops.</p>
+ * 
+ * @author tobias.gierke@code-sourcery.de
+ */
+public class LoopAnalyzer
+{
+    private final ControlFlowGraph graph;
+    
+    // blocks in reverse post-order , only blocks reachable from the method entry
+    private final List<IBlock> reversePostOrder = new ArrayList<>();
+    private final Map<IBlock,Integer> postOrderIndex = new HashMap<>();
+    private final Map<IBlock,Set<IBlock>> predecessors = new HashMap<>();
+    private final Map<IBlock,Set<IBlock>> successors = new HashMap<>();
+    
+    private Map<IBlock,IBlock> immediateDominators;
+    private List<NaturalLoop> loops;
+    
+    public LoopAnalyzer(ControlFlowGraph graph) 
+    {
+        if ( graph == null ) {
+            throw new IllegalArgumentException("graph must not be NULL");
+        }
+        this.graph = graph;
+        
+        for ( IBlock block : graph.getAllNodes() ) 
+        {
+            getSet( successors , block );
+            getSet( predecessors , block );
+            for ( Edge e : block.getEdges() ) 
+            {
+                // exception handler edges are only stored in the source block
+                getSet( successors , e.src ).add( e.dst );
+                getSet( predecessors , e.dst ).add( e.src );
+            }
+        }
+        final List<IBlock> postOrder = new ArrayList<>();
+        visitPostOrder( graph.getStart() , new HashSet<IBlock>() , postOrder );
+        for ( int i = 0 ; i < postOrder.size() ; i++ ) {
+            postOrderIndex.put( postOrder.get( i ) , i );
+        }
+        reversePostOrder.addAll( postOrder );
+        Collections.reverse( reversePostOrder );
+    }
+    
+    private static Set<IBlock> getSet(Map<IBlock,Set<IBlock>> map,IBlock block) 
+    {
+        Set<IBlock> result = map.get( block );
+        if ( result == null ) {
+            result = new HashSet<>();
+            map.put( block , result );
+        }
+        return result;
+    }
+    
+    private void visitPostOrder(IBlock start,Set<IBlock> visited,List<IBlock> result) 
+    {
+        // iterative DFS , methods may have thousands of blocks
+        final Stack<IBlock> stack = new Stack<>();
+        final Stack<List<IBlock>> pending = new Stack<>();
+        visited.add( start );
+        stack.push( start );
+        pending.push( new ArrayList<>( successors.get( start ) ) );
+        while ( ! stack.isEmpty() ) 
+        {
+            final List<IBlock> next = pending.peek();
+            if ( next.isEmpty() ) 
+            {
+                pending.pop();
+                result.add( stack.pop() );
+                continue;
+            }
+            final IBlock succ = next.remove( next.size() - 1 );
+            if ( visited.add( succ ) ) 
+            {
+                stack.push( succ );
+                pending.push( new ArrayList<>( successors.get( succ ) ) );
+            }
+        }
+    }
+    
+    /**
+     * Returns the graph this analyzer works on.
+     * 
+     * @return
+     */
+    public ControlFlowGraph getGraph()
+    {
+        return graph;
+    }
+    
+    /**
+     * Returns the immediate dominator of each block reachable from the method entry.
+     * 
+     * @return map from block to its immediate dominator , the method entry block maps to itself
+     */
+    public Map<IBlock,IBlock> getImmediateDominators() 
+    {
+        if ( immediateDominators != null ) {
+            return immediateDominators;
+        }
+        final Map<IBlock,IBlock> idom = new HashMap<>();
+        final IBlock start = graph.getStart();
+        idom.put( start , start );
+        
+        boolean changed = true;
+        while ( changed ) 
+        {
+            changed = false;
+            for ( IBlock block : reversePostOrder ) 
+            {
+                if ( block == start ) {
+                    continue;
+                }
+                IBlock newIdom = null;
+                for ( IBlock pred : predecessors.get( block ) ) 
+                {
+                    if ( idom.containsKey( pred ) ) {
+                        newIdom = newIdom == null ? pred : intersect( pred , newIdom , idom );
+                    }
+                }
+                if ( newIdom != null && idom.get( block ) != newIdom ) {
+                    idom.put( block , newIdom );
+                    changed = true;
+                }
+            }
+        }
+        immediateDominators = idom;
+        return idom;
+    }
+    
+    private IBlock intersect(IBlock b1,IBlock b2,Map<IBlock,IBlock> idom) 
+    {
+        IBlock finger1 = b1;
+        IBlock finger2 = b2;
+        while ( finger1 != finger2 ) 
+        {
+            while ( postOrderIndex.get( finger1 ) < postOrderIndex.get( finger2 ) ) {
+                finger1 = idom.get( finger1 );
+            }
+            while ( postOrderIndex.get( finger2 ) < postOrderIndex.get( finger1 ) ) {
+                finger2 = idom.get( finger2 );
+            }
+        }
+        return finger1;
+    }
+    
+    /**
+     * Checks whether a block dominates another block.
+     * 
+     * @param dominator
+     * @param block
+     * @return <code>true</code> if every path from the method entry to <code>block</code> passes through <code>dominator</code> 
+     * (every block dominates itself) , <code>false</code> if not or if <code>block</code> is not reachable from the method entry
+     */
+    public boolean dominates(IBlock dominator,IBlock block) 
+    {
+        final Map<IBlock,IBlock> idom = getImmediateDominators();
+        if ( ! idom.containsKey( block ) ) {
+            return false;
+        }
+        IBlock current = block;
+        while ( true ) 
+        {
+            if ( current == dominator ) {
+                return true;
+            }
+            final IBlock parent = idom.get( current );
+            if ( parent == current ) {
+                return false;
+            }
+            current = parent;
+        }
+    }
+    
+    /**
+     * Returns all natural loops , outer loops before inner loops.
+     * 
+     * @return
+     */
+    public List<NaturalLoop> getLoops() 
+    {
+        if ( loops != null ) {
+            return loops;
+        }
+        
+        // collect back-edges by header , in reverse post-order of headers
+        final Map<IBlock,Set<IBlock>> backEdges = new LinkedHashMap<>();
+        for ( IBlock header : reversePostOrder ) 
+        {
+            for ( IBlock pred : predecessors.get( header ) ) 
+            {
+                if ( dominates( header , pred ) ) {
+                    getSet( backEdges , header ).add( pred );
+                }
+            }
+        }
+        
+        final List<NaturalLoop> result = new ArrayList<>();
+        for ( Map.Entry<IBlock,Set<IBlock>> entry : backEdges.entrySet() ) 
+        {
+            final IBlock header = entry.getKey();
+            final Set<IBlock> body = new HashSet<>();
+            body.add( header );
+            final Stack<IBlock> worklist = new Stack<>();
+            for ( IBlock source : entry.getValue() ) 
+            {
+                if ( body.add( source ) ) {
+                    worklist.push( source );
+                }
+            }
+            while ( ! worklist.isEmpty() ) 
+            {
+                for ( IBlock pred : predecessors.get( worklist.pop() ) ) 
+                {
+                    if ( postOrderIndex.containsKey( pred ) && body.add( pred ) ) {
+                        worklist.push( pred );
+                    }
+                }
+            }
+            result.add( new NaturalLoop( header , body , entry.getValue() ) );
+        }
+        
+        for ( NaturalLoop loop : result ) 
+        {
+            int depth = 0;
+            for ( NaturalLoop other : result ) 
+            {
+                if ( other.contains( loop.getHeader() ) ) {
+                    depth++;
+                }
+            }
+            loop.setDepth( depth );
+        }
+        Collections.sort( result , new Comparator<NaturalLoop>() {
+
+            @Override
+            public int compare(NaturalLoop o1, NaturalLoop o2)
+            {
+                return Integer.compare( o1.getDepth() , o2.getDepth() );
+            }
+        });
+        loops = Collections.unmodifiableList( result );
+        return loops;
+    }
+    
+    /**
+     * Returns all loops that contain a given block.
+     * 
+     * @param block
+     * @return loops , outer loops before inner loops
+     */
+    public List<NaturalLoop> getLoopsContaining(IBlock block) 
+    {
+        final List<NaturalLoop> result = new ArrayList<>();
+        for ( NaturalLoop loop : getLoops() ) 
+        {
+            if ( loop.contains( block ) ) {
+                result.add( loop );
+            }
+        }
+        return result;
+    }
+}
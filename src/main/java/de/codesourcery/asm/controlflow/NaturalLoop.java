@@ -0,0 +1,120 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.asm.controlflow;
+
+import java.util.Collections;
+import java.util.Set;
+
+import org.objectweb.asm.tree.MethodNode;
+
+/**
+ * A natural loop , made up of a header block that dominates all blocks of the loop and
+ * the blocks that can reach one of the loop's back-edges without passing through the header.
+ * 
+ * <p>Natural loops sharing the same header are merged into a single loop.</p>
+ * 
+ * @author tobias.gierke@code-sourcery.de
+ * @see LoopAnalyzer
+ */
+public final class NaturalLoop
+{
+    private final IBlock header;
+    private final Set<IBlock> blocks;
+    private final Set<IBlock> backEdgeSources;
+    private int depth = 1;
+    
+    protected NaturalLoop(IBlock header, Set<IBlock> blocks, Set<IBlock> backEdgeSources)
+    {
+        this.header = header;
+        this.blocks = Collections.unmodifiableSet( blocks );
+        this.backEdgeSources = Collections.unmodifiableSet( backEdgeSources );
+    }
+    
+    /**
+     * Returns the loop header.
+     * 
+     * @return
+     */
+    public IBlock getHeader()
+    {
+        return header;
+    }
+    
+    /**
+     * Returns all blocks of this loop (including the header and the blocks of nested loops).
+     * 
+     * @return
+     */
+    public Set<IBlock> getBlocks()
+    {
+        return blocks;
+    }
+    
+    /**
+     * Returns the blocks with an edge back to the header.
+     * 
+     * @return
+     */
+    public Set<IBlock> getBackEdgeSources()
+    {
+        return backEdgeSources;
+    }
+    
+    public boolean contains(IBlock block) {
+        return blocks.contains( block );
+    }
+    
+    /**
+     * Returns the nesting depth of this loop.
+     * 
+     * @return 1 for outermost loops , 2 for loops nested in an outermost loop etc.
+     */
+    public int getDepth()
+    {
+        return depth;
+    }
+    
+    protected void setDepth(int depth)
+    {
+        this.depth = depth;
+    }
+    
+    /**
+     * Returns the index of the header's first byte-code instruction.
+     * 
+     * <p>If the header is a virtual block (no byte-code instructions) , this is the first
+     * byte-code instruction following it.</p>
+     * 
+     * @param method
+     * @return instruction index or -1 if there is no byte-code instruction following the header
+     */
+    public int getHeaderInstructionNum(MethodNode method) 
+    {
+        for ( int index = header.getFirstInstructionNum() ; index < method.instructions.size() ; index++ ) 
+        {
+            if ( method.instructions.get( index ).getOpcode() >= 0 ) {
+                return index;
+            }
+        }
+        return -1;
+    }
+    
+    @Override
+    public String toString()
+    {
+        return "Loop[ header="+header.getId()+" , depth="+depth+" , blocks="+blocks.size()+" ]";
+    }
+}
@@ -0,0 +1,635 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.asm.controlflow;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.Stack;
+
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.LineNumberNode;
+
+import de.codesourcery.asm.controlflow.Edge.EdgeType;
+
+/**
+ * Numbers the acyclic paths through a {@link ControlFlowGraph} using the algorithm by Ball and Larus ("Efficient Path Profiling").
+ * 
+ * <p>Back-edges (retreating edges found by a depth-first search from the method entry) are removed from the graph , each
+ * back-edge <code>u -&gt; v</code> gets replaced by two dummy edges <code>ENTRY -&gt; v</code> and <code>u -&gt; EXIT</code>. Exception
+ * handlers are treated like loop headers (dummy edge <code>ENTRY -&gt; handler</code>) , blocks without successors (<code>ATHROW</code>)
+ * get an edge to the method exit. Each edge is then assigned a value so that summing up the values along any path from
+ * entry to exit yields a unique number in the range <code>[0 , getPathCount() )</code>.</p>
+ * 
+ * <p>Instrumentation does not need to add code to each edge with a non-zero value: Edges on a spanning tree of the graph get an
+ * increment of zero , the increments of all other edges (chords) are chosen so that the sum of increments along a path
+ * still yields the path number (see {@link #getIncrement(IBlock, IBlock)}). Path numbers are decoded using the edge values ,
+ * see {@link #decode(long)}.</p>
+ * 
+ * <p>Only regular edges are considered , paths that are left because an exception is thrown by an instruction other than <code>ATHROW</code> 
+ * can not be numbered. Exception handlers that are also reachable by regular control flow are not supported.</p>
+ * 
+ * @author tobias.gierke@code-sourcery.de
+ */
+public final class PathNumbering
+{
+    private final ControlFlowGraph graph;
+    private final IBlock entry;
+    private final IBlock exit;
+    
+    private final Map<IBlock,List<DagEdge>> outgoing = new HashMap<>();
+    private final Set<IBlock> handlers = new HashSet<>();
+    private final Map<IBlock,Set<IBlock>> backEdges = new HashMap<>();
+    private final Map<IBlock,Long> pathCounts = new HashMap<>();
+    
+    private String unsupportedReason;
+    
+    // an edge of the acyclic graph
+    private static final class DagEdge 
+    {
+        public final IBlock src;
+        public final IBlock dst;
+        public final boolean dummy;
+        public long value;
+        public long increment;
+        public boolean onSpanningTree;
+        
+        public DagEdge(IBlock src, IBlock dst, boolean dummy)
+        {
+            this.src = src;
+            this.dst = dst;
+            this.dummy = dummy;
+        }
+    }
+    
+    /**
+     * A decoded path.
+     * 
+     * @author tobias.gierke@code-sourcery.de
+     */
+    public static final class Path 
+    {
+        private final long number;
+        private final List<IBlock> blocks;
+        private final boolean startsAtLoopHeader;
+        private final boolean startsAtHandler;
+        private final boolean endsWithBackEdge;
+        
+        protected Path(long number, List<IBlock> blocks, boolean startsAtLoopHeader, boolean startsAtHandler, boolean endsWithBackEdge)
+        {
+            this.number = number;
+            this.blocks = Collections.unmodifiableList( blocks );
+            this.startsAtLoopHeader = startsAtLoopHeader;
+            this.startsAtHandler = startsAtHandler;
+            this.endsWithBackEdge = endsWithBackEdge;
+        }
+        
+        public long getNumber()
+        {
+            return number;
+        }
+        
+        /**
+         * Returns the blocks along this path (excluding method entry and exit).
+         * 
+         * @return
+         */
+        public List<IBlock> getBlocks()
+        {
+            return blocks;
+        }
+        
+        /**
+         * Returns whether this path starts at a loop header (right after taking a back-edge) instead of the method entry.
+         * 
+         * @return
+         */
+        public boolean startsAtLoopHeader()
+        {
+            return startsAtLoopHeader;
+        }
+        
+        /**
+         * Returns whether this path starts at an exception handler instead of the method entry.
+         * 
+         * @return
+         */
+        public boolean startsAtHandler()
+        {
+            return startsAtHandler;
+        }
+        
+        /**
+         * Returns whether this path ends by taking a back-edge instead of leaving the method.
+         * 
+         * @return
+         */
+        public boolean endsWithBackEdge()
+        {
+            return endsWithBackEdge;
+        }
+    }
+    
+    public PathNumbering(ControlFlowGraph graph) 
+    {
+        if ( graph == null ) {
+            throw new IllegalArgumentException("graph must not be NULL");
+        }
+        this.graph = graph;
+        this.entry = graph.getStart();
+        this.exit = graph.getEnd();
+        
+        final Map<IBlock,Set<IBlock>> successors = new HashMap<>();
+        for ( IBlock block : graph.getAllNodes() ) 
+        {
+            getSet( successors , block );
+            for ( Edge e : block.getEdges() ) 
+            {
+                if ( e.src != block ) {
+                    continue;
+                }
+                if ( e.hasType( EdgeType.CAUGHT_EXCEPTION ) ) {
+                    handlers.add( e.dst );
+                } else {
+                    getSet( successors , block ).add( e.dst );
+                }
+            }
+        }
+        for ( IBlock block : graph.getAllNodes() ) 
+        {
+            // ATHROW
+            if ( block != exit && successors.get( block ).isEmpty() ) {
+                successors.get( block ).add( exit );
+            }
+        }
+        for ( IBlock handler : handlers ) 
+        {
+            if ( handler.hasRegularPredecessor() ) {
+                unsupportedReason = "exception handler "+handler+" is also reachable by regular control flow";
+                return;
+            }
+            if ( getFirstByteCodeInstructionNum( handler ) < 0 ) {
+                unsupportedReason = "exception handler "+handler+" has no byte-code instructions";
+                return;
+            }
+        }
+        
+        final List<IBlock> postOrder = findBackEdges( successors );
+        
+        for ( IBlock block : postOrder ) 
+        {
+            final List<DagEdge> edges = new ArrayList<>();
+            for ( IBlock succ : successors.get( block ) ) 
+            {
+                if ( ! isBackEdge( block , succ ) ) {
+                    edges.add( new DagEdge( block , succ , false ) );
+                }
+            }
+            if ( block == entry ) 
+            {
+                final Set<IBlock> dummyTargets = new LinkedHashSet<>( handlers );
+                for ( Set<IBlock> targets : backEdges.values() ) {
+                    dummyTargets.addAll( targets );
+                }
+                for ( IBlock target : dummyTargets ) {
+                    edges.add( new DagEdge( entry , target , true ) );
+                }
+            }
+            if ( backEdges.containsKey( block ) ) {
+                edges.add( new DagEdge( block , exit , true ) );
+            }
+            outgoing.put( block , edges );
+        }
+        // dummy edges to the exit may come from blocks that were finished before the exit 
+        // has been visited (or the method never returns)
+        postOrder.remove( exit );
+        postOrder.add( 0 , exit );
+        outgoing.put( exit , new ArrayList<DagEdge>() );
+        
+        // assign edge values in reverse topological order
+        for ( IBlock block : postOrder ) 
+        {
+            if ( block == exit ) {
+                pathCounts.put( block , 1L );
+                continue;
+            }
+            long count = 0;
+            for ( DagEdge edge : outgoing.get( block ) ) 
+            {
+                edge.value = count;
+                count += pathCounts.get( edge.dst );
+                if ( count < 0 ) {
+                    unsupportedReason = "too many paths";
+                    return;
+                }
+            }
+            pathCounts.put( block , count );
+        }
+        assignIncrements( postOrder );
+    }
+    
+    private static Set<IBlock> getSet(Map<IBlock,Set<IBlock>> map,IBlock block) 
+    {
+        Set<IBlock> result = map.get( block );
+        if ( result == null ) {
+            result = new LinkedHashSet<>();
+            map.put( block , result );
+        }
+        return result;
+    }
+    
+    // returns blocks in post-order
+    private List<IBlock> findBackEdges(Map<IBlock,Set<IBlock>> successors) 
+    {
+        final List<IBlock> postOrder = new ArrayList<>();
+        final Set<IBlock> visited = new HashSet<>();
+        final Set<IBlock> onStack = new HashSet<>();
+        
+        // iterative DFS , methods may have thousands of blocks
+        final Stack<IBlock> stack = new Stack<>();
+        final Stack<List<IBlock>> pending = new Stack<>();
+        visited.add( entry );
+        onStack.add( entry );
+        stack.push( entry );
+        final List<IBlock> roots = new ArrayList<>( successors.get( entry ) );
+        roots.addAll( handlers );
+        Collections.reverse( roots );
+        pending.push( roots );
+        while ( ! stack.isEmpty() ) 
+        {
+            final List<IBlock> next = pending.peek();
+            if ( next.isEmpty() ) 
+            {
+                pending.pop();
+                final IBlock done = stack.pop();
+                onStack.remove( done );
+                postOrder.add( done );
+                continue;
+            }
+            final IBlock succ = next.remove( next.size() - 1 );
+            if ( onStack.contains( succ ) ) 
+            {
+                if ( stack.peek() != entry ) {
+                    getSet( backEdges , stack.peek() ).add( succ );
+                }
+            } 
+            else if ( visited.add( succ ) ) 
+            {
+                onStack.add( succ );
+                stack.push( succ );
+                final List<IBlock> succs = new ArrayList<>( successors.get( succ ) );
+                Collections.reverse( succs );
+                pending.push( succs );
+            }
+        }
+        return postOrder;
+    }
+    
+    /*
+     * Chooses a spanning tree of the graph (with an additional edge EXIT -> ENTRY) and assigns each block a 
+     * potential so that value(e) == potential(dst) - potential(src) for all tree edges. The increment of an edge 
+     * then is value(e) + potential(src) - potential(dst) , which is zero for all tree edges. Along any path from 
+     * ENTRY to EXIT , the sum of increments equals the sum of values plus potential(ENTRY) - potential(EXIT) , which
+     * is zero because the EXIT -> ENTRY edge is part of the tree.
+     */
+    private void assignIncrements(List<IBlock> postOrder) 
+    {
+        final Map<IBlock,IBlock> parents = new HashMap<>();
+        final Map<IBlock,List<DagEdge>> treeEdges = new HashMap<>();
+        for ( IBlock block : postOrder ) {
+            treeEdges.put( block , new ArrayList<DagEdge>() );
+        }
+        union( entry , exit , parents );
+        
+        // prefer regular edges , dummy edges are only taken when looping/entering a handler
+        final List<DagEdge> edges = new ArrayList<>();
+        for ( IBlock block : postOrder ) {
+            edges.addAll( outgoing.get( block ) );
+        }
+        Collections.sort( edges , new Comparator<DagEdge>() {
+
+            @Override
+            public int compare(DagEdge o1, DagEdge o2)
+            {
+                return Boolean.compare( o1.dummy , o2.dummy );
+            }
+        });
+        for ( DagEdge edge : edges ) 
+        {
+            if ( union( edge.src , edge.dst , parents ) ) 
+            {
+                edge.onSpanningTree = true;
+                treeEdges.get( edge.src ).add( edge );
+                treeEdges.get( edge.dst ).add( edge );
+            }
+        }
+        
+        final Map<IBlock,Long> potentials = new HashMap<>();
+        final Stack<IBlock> worklist = new Stack<>();
+        potentials.put( entry , 0L );
+        potentials.put( exit , 0L );
+        worklist.push( entry );
+        worklist.push( exit );
+        while ( ! worklist.isEmpty() ) 
+        {
+            final IBlock block = worklist.pop();
+            final long potential = potentials.get( block );
+            for ( DagEdge edge : treeEdges.get( block ) ) 
+            {
+                if ( edge.src == block && ! potentials.containsKey( edge.dst ) ) {
+                    potentials.put( edge.dst , potential + edge.value );
+                    worklist.push( edge.dst );
+                } 
+                else if ( edge.dst == block && ! potentials.containsKey( edge.src ) ) {
+                    potentials.put( edge.src , potential - edge.value );
+                    worklist.push( edge.src );
+                }
+            }
+        }
+        for ( DagEdge edge : edges ) {
+            edge.increment = edge.onSpanningTree ? 0 : edge.value + potentials.get( edge.src ) - potentials.get( edge.dst );
+        }
+    }
+    
+    private static IBlock find(IBlock block,Map<IBlock,IBlock> parents) 
+    {
+        IBlock current = block;
+        IBlock parent;
+        while ( ( parent = parents.get( current ) ) != null ) {
+            current = parent;
+        }
+        return current;
+    }
+    
+    private static boolean union(IBlock b1,IBlock b2,Map<IBlock,IBlock> parents) 
+    {
+        final IBlock root1 = find( b1 , parents );
+        final IBlock root2 = find( b2 , parents );
+        if ( root1 == root2 ) {
+            return false;
+        }
+        parents.put( root1 , root2 );
+        return true;
+    }
+    
+    /**
+     * Returns the graph this numbering was computed for.
+     * 
+     * @return
+     */
+    public ControlFlowGraph getGraph()
+    {
+        return graph;
+    }
+    
+    /**
+     * Returns whether paths through the graph could be numbered.
+     * 
+     * @return
+     * @see #getUnsupportedReason()
+     */
+    public boolean isSupported() {
+        return unsupportedReason == null;
+    }
+    
+    /**
+     * Returns why paths through the graph could not be numbered.
+     * 
+     * @return reason or <code>null</code> if {@link #isSupported()}
+     */
+    public String getUnsupportedReason()
+    {
+        return unsupportedReason;
+    }
+    
+    /**
+     * Returns the number of acyclic paths from the method entry to the method exit.
+     * 
+     * @return
+     * @throws IllegalStateException if not {@link #isSupported()}
+     */
+    public long getPathCount() throws IllegalStateException
+    {
+        assertSupported();
+        return pathCounts.get( entry );
+    }
+    
+    private void assertSupported() 
+    {
+        if ( ! isSupported() ) {
+            throw new IllegalStateException("Unsupported graph: "+unsupportedReason);
+        }
+    }
+    
+    /**
+     * Returns all exception handler blocks.
+     * 
+     * <p>Paths are (re-)started at the first byte-code instruction of each handler , with the 
+     * path number set to {@link #getStartIncrement(IBlock)}.</p>
+     * 
+     * @return
+     */
+    public Set<IBlock> getHandlers()
+    {
+        return Collections.unmodifiableSet( handlers );
+    }
+    
+    /**
+     * Checks whether an edge is a back-edge.
+     * 
+     * <p>Taking a back-edge <code>u -&gt; v</code> ends the current path (path number plus {@link #getEndIncrement(IBlock)} of <code>u</code>) 
+     * and starts a new path at <code>v</code> (path number set to {@link #getStartIncrement(IBlock)} of <code>v</code>).</p>
+     * 
+     * @param src
+     * @param dst
+     * @return
+     */
+    public boolean isBackEdge(IBlock src,IBlock dst) 
+    {
+        final Set<IBlock> targets = backEdges.get( src );
+        return targets != null && targets.contains( dst );
+    }
+    
+    private DagEdge getEdge(IBlock src,IBlock dst,boolean dummy) 
+    {
+        assertSupported();
+        final List<DagEdge> edges = outgoing.get( src );
+        if ( edges != null ) 
+        {
+            for ( DagEdge edge : edges ) 
+            {
+                if ( edge.dst == dst && edge.dummy == dummy ) {
+                    return edge;
+                }
+            }
+        }
+        throw new IllegalArgumentException("No edge "+src+" -> "+dst);
+    }
+    
+    /**
+     * Returns the value that needs to be added to the path number when taking a (non-back) edge.
+     * 
+     * <p>Edges to the method exit are taken when returning from the method or executing an <code>ATHROW</code> instruction ,
+     * the path is complete afterwards.</p>
+     * 
+     * @param src
+     * @param dst
+     * @return increment , zero for most edges
+     * @throws IllegalArgumentException if there is no such edge or it is a back-edge
+     */
+    public long getIncrement(IBlock src,IBlock dst) throws IllegalArgumentException {
+        return getEdge( src , dst , false ).increment;
+    }
+    
+    /**
+     * Returns the initial path number of paths starting at a given block.
+     * 
+     * @param block method entry , a loop header or an exception handler
+     * @return
+     * @throws IllegalArgumentException if no path starts at this block
+     */
+    public long getStartIncrement(IBlock block) throws IllegalArgumentException 
+    {
+        if ( block == entry ) {
+            return 0;
+        }
+        return getEdge( entry , block , true ).increment;
+    }
+    
+    /**
+     * Returns the value that needs to be added to the path number when a path ends by taking a back-edge.
+     * 
+     * @param block source of the back-edge
+     * @return
+     * @throws IllegalArgumentException if the block is not the source of a back-edge
+     */
+    public long getEndIncrement(IBlock block) throws IllegalArgumentException {
+        return getEdge( block , exit , true ).increment;
+    }
+    
+    /**
+     * Returns the number of edges with a non-zero increment.
+     * 
+     * @return
+     */
+    public int getInstrumentedEdgeCount() 
+    {
+        assertSupported();
+        int result = 0;
+        for ( List<DagEdge> edges : outgoing.values() ) 
+        {
+            for ( DagEdge edge : edges ) 
+            {
+                if ( edge.increment != 0 ) {
+                    result++;
+                }
+            }
+        }
+        return result;
+    }
+    
+    /**
+     * Decodes a path number.
+     * 
+     * @param pathNumber
+     * @return
+     * @throws IllegalArgumentException if the path number is out of range
+     */
+    public Path decode(long pathNumber) throws IllegalArgumentException
+    {
+        if ( pathNumber < 0 || pathNumber >= getPathCount() ) {
+            throw new IllegalArgumentException("Path number out of range: "+pathNumber);
+        }
+        
+        final List<IBlock> blocks = new ArrayList<>();
+        boolean startsAtLoopHeader = false;
+        boolean startsAtHandler = false;
+        boolean endsWithBackEdge = false;
+        
+        long remaining = pathNumber;
+        IBlock current = entry;
+        while ( current != exit ) 
+        {
+            // edges are sorted ascending by value , take the one with the largest value <= remaining
+            DagEdge next = null;
+            for ( DagEdge edge : outgoing.get( current ) ) 
+            {
+                if ( edge.value <= remaining && pathCounts.get( edge.dst ) > 0 ) {
+                    next = edge;
+                }
+            }
+            remaining -= next.value;
+            if ( next.dummy ) 
+            {
+                if ( current == entry ) {
+                    startsAtHandler = handlers.contains( next.dst );
+                    startsAtLoopHeader = ! startsAtHandler;
+                } else {
+                    endsWithBackEdge = true;
+                }
+            }
+            if ( next.dst != exit ) {
+                blocks.add( next.dst );
+            }
+            current = next.dst;
+        }
+        return new Path( pathNumber , blocks , startsAtLoopHeader , startsAtHandler , endsWithBackEdge );
+    }
+    
+    /**
+     * Returns the index of a block's first byte-code instruction.
+     * 
+     * @param block
+     * @return instruction index or -1 if the block contains no byte-code instructions
+     */
+    public int getFirstByteCodeInstructionNum(IBlock block) 
+    {
+        try {
+            return block.getInstructionNums().isEmpty() ? -1 : block.getFirstByteCodeInstructionNum( graph.getMethod() );
+        } 
+        catch(NoSuchElementException e) {
+            return -1;
+        }
+    }
+    
+    /**
+     * Returns the source line of a block's first byte-code instruction.
+     * 
+     * @param block
+     * @return line number or -1 if unknown
+     */
+    public int getLineNumber(IBlock block) 
+    {
+        final int index = getFirstByteCodeInstructionNum( block );
+        if ( index < 0 ) {
+            return -1;
+        }
+        for ( AbstractInsnNode insn = graph.getMethod().instructions.get( index ) ; insn != null ; insn = insn.getPrevious() ) 
+        {
+            if ( insn instanceof LineNumberNode ) {
+                return ((LineNumberNode) insn).line;
+            }
+        }
+        return -1;
+    }
+}
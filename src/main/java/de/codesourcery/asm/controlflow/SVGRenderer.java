@@ -0,0 +1,275 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.asm.controlflow;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.apache.commons.lang.StringEscapeUtils;
+import org.objectweb.asm.tree.MethodNode;
+
+import de.codesourcery.asm.util.Disassembler;
+
+import de.codesourcery.asm.controlflow.Edge.EdgeType;
+import de.codesourcery.asm.controlflow.LayeredLayout.Box;
+import de.codesourcery.asm.controlflow.LayeredLayout.Layout;
+import de.codesourcery.asm.controlflow.LayeredLayout.Route;
+
+/**
+ * Renders control flow graphs as SVG , using the built-in {@link LayeredLayout} instead of Graphviz.
+ *
+ * <p>Blocks and edges look like the ones rendered by {@link DOTRenderer} , including the execution counts of a {@link BlockProfile}.
+ * The SVG document is written to a {@link Writer} element by element , without building the whole document in memory.</p>
+ *
+ * <p>Instances do not share any state , so multiple graphs may be rendered in parallel using one renderer per thread.</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ * @see ControlFlowGrapher
+ */
+public class SVGRenderer
+{
+    private static final int FONT_SIZE = 12;
+
+    // approximate width of a character of the monospaced font
+    private static final double CHAR_WIDTH = 0.6 * FONT_SIZE;
+
+    private static final int LINE_HEIGHT = FONT_SIZE + 3;
+
+    private static final int PADDING = 6;
+
+    // max. width of the most frequently taken edge
+    private static final double MAX_STROKE_WIDTH = 8;
+
+    private final LayeredLayout layout = new LayeredLayout();
+
+    private BlockProfile.MethodCounts profile;
+    private double hideThreshold;
+
+    /**
+     * Sets the execution counts to overlay.
+     *
+     * @param profile counts of the method to render or <code>null</code> to render the graph without runtime data
+     * @see DOTRenderer#setProfile(BlockProfile.MethodCounts)
+     */
+    public void setProfile(BlockProfile.MethodCounts profile)
+    {
+        this.profile = profile;
+    }
+
+    /**
+     * Hide blocks that were executed less often than a fraction of the hottest block.
+     *
+     * @param hideThreshold fraction (0...1) of the hottest block's execution count , 0 shows all blocks
+     * @see DOTRenderer#setHideThreshold(double)
+     */
+    public void setHideThreshold(double hideThreshold)
+    {
+        if ( hideThreshold < 0 || hideThreshold > 1 ) {
+            throw new IllegalArgumentException("Threshold must be in range [0,1]");
+        }
+        this.hideThreshold = hideThreshold;
+    }
+
+    /**
+     * Returns the layout used by this renderer , to adjust spacing etc.
+     *
+     * @return
+     */
+    public LayeredLayout getLayout()
+    {
+        return layout;
+    }
+
+    /**
+     * Lays out a graph and writes it as a SVG document.
+     *
+     * @param graph
+     * @param out writer to write the document to , not closed by this method
+     * @throws IOException
+     */
+    public void render(ControlFlowGraph graph,Writer out) throws IOException
+    {
+        final MethodNode method = graph.getMethod();
+        final long maxBlockCount = profile != null ? profile.getMaxBlockCount() : 0;
+        final long maxEdgeCount = profile != null ? profile.getMaxEdgeCount() : 0;
+
+        // blocks and edges to render , the method entry goes first so that cycles are broken along the control flow
+        final List<IBlock> blocks = new ArrayList<>();
+        blocks.add( graph.getStart() );
+        for ( IBlock block : graph.getAllNodes() )
+        {
+            if ( block instanceof MethodEntry ) {
+                continue;
+            }
+            if ( block instanceof MethodExit || ( ! block.isVirtual( method ) && ! isHidden( block , maxBlockCount ) ) ) {
+                blocks.add( block );
+            }
+        }
+        final List<Edge> edges = new ArrayList<>();
+        for ( IBlock block : blocks )
+        {
+            for ( Edge edge : block.getEdges() )
+            {
+                if ( edge.isSuccessor( block ) ) {
+                    edges.add( edge );
+                }
+            }
+        }
+
+        final Map<IBlock,String[]> labels = new HashMap<>();
+        for ( IBlock block : blocks ) {
+            labels.put( block , getLabel( block , method ) );
+        }
+
+        final Layout result = layout.layout( blocks , edges , new LayeredLayout.INodeSizes() {
+
+            @Override
+            public int getWidth(IBlock block)
+            {
+                int maxLength = 0;
+                for ( String line : labels.get( block ) ) {
+                    maxLength = Math.max( maxLength , line.length() );
+                }
+                return (int) Math.ceil( maxLength * CHAR_WIDTH ) + 2 * PADDING;
+            }
+
+            @Override
+            public int getHeight(IBlock block)
+            {
+                return labels.get( block ).length * LINE_HEIGHT + 2 * PADDING;
+            }
+        });
+
+        out.write( "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" );
+        out.write( "<svg xmlns=\"http://www.w3.org/2000/svg\" width=\""+result.getWidth()+"\" height=\""+result.getHeight()+"\" "+
+                "viewBox=\"0 0 "+result.getWidth()+" "+result.getHeight()+"\" font-family=\"monospace\" font-size=\""+FONT_SIZE+"\">\n" );
+        out.write( "<title>"+escape( method.name+method.desc )+"</title>\n" );
+        out.write( "<defs><marker id=\"arrow\" viewBox=\"0 0 10 10\" refX=\"10\" refY=\"5\" markerWidth=\"8\" markerHeight=\"8\" "+
+                "markerUnits=\"userSpaceOnUse\" orient=\"auto\"><path d=\"M0,0 L10,5 L0,10 z\"/></marker></defs>\n" );
+
+        // blocks
+        for ( IBlock block : blocks )
+        {
+            final Box box = result.getBox( block );
+            final String fill = profile != null ? DOTRenderer.heatColor( profile.getBlockCount( block ) , maxBlockCount ) : "#ffffff";
+            final boolean isEntryOrExit = block instanceof MethodEntry || block instanceof MethodExit;
+            out.write( "<g id=\"block_"+escape( block.getId().replace("\"" , "" ) )+"\">" );
+            if ( isEntryOrExit ) {
+                out.write( "<ellipse cx=\""+box.getCenterX()+"\" cy=\""+box.getCenterY()+"\" rx=\""+box.width / 2+"\" ry=\""+box.height / 2+"\" " );
+            } else {
+                out.write( "<rect x=\""+box.x+"\" y=\""+box.y+"\" width=\""+box.width+"\" height=\""+box.height+"\" " );
+            }
+            out.write( "fill=\""+fill+"\" stroke=\"#000000\"/>" );
+            final String[] lines = labels.get( block );
+            for ( int i = 0 ; i < lines.length ; i++ )
+            {
+                final int y = box.y + PADDING + ( i + 1 ) * LINE_HEIGHT - 3;
+                if ( isEntryOrExit ) {
+                    out.write( "<text x=\""+box.getCenterX()+"\" y=\""+y+"\" text-anchor=\"middle\">"+escape( lines[i] )+"</text>" );
+                } else {
+                    out.write( "<text x=\""+( box.x + PADDING )+"\" y=\""+y+"\" xml:space=\"preserve\">"+escape( lines[i] )+"</text>" );
+                }
+            }
+            out.write( "</g>\n" );
+        }
+
+        // edges
+        for ( Route route : result.getRoutes() )
+        {
+            if ( route == null ) {
+                continue;
+            }
+            final Edge edge = route.getEdge();
+            String label = null;
+            String stroke = "#000000";
+            String dashes = "";
+            double width = 1;
+            if ( edge.hasType( EdgeType.CAUGHT_EXCEPTION ) )
+            {
+                dashes = " stroke-dasharray=\"2,3\"";
+                label = "ex: "+DOTRenderer.getExceptionType( edge.metaData );
+            }
+            else if ( edge.hasType( EdgeType.TABLE_SWITCH ) || edge.hasType( EdgeType.LOOKUP_SWITCH ) )
+            {
+                dashes = " stroke-dasharray=\"6,4\"";
+                if ( edge.hasType( EdgeType.LOOKUP_SWITCH ) ) {
+                    stroke = "#ff0000";
+                }
+                label = "case: "+edge.metaData;
+            }
+            else if ( edge.metaData != null ) {
+                label = edge.metaData.toString();
+            }
+            // exception edges are not profiled
+            if ( profile != null && ! edge.hasType( EdgeType.CAUGHT_EXCEPTION ) )
+            {
+                final long count = profile.getEdgeCount( edge.src , edge.dst );
+                width = maxEdgeCount > 0 ? 1 + ( MAX_STROKE_WIDTH - 1 ) * count / maxEdgeCount : 1;
+                label = label == null ? Long.toString( count ) : label+" "+count;
+            }
+
+            final StringBuilder points = new StringBuilder();
+            for ( int i = 0 ; i < route.getPointCount() ; i++ ) {
+                points.append( i > 0 ? " " : "" ).append( route.getX(i) ).append( ',' ).append( route.getY(i) );
+            }
+            out.write( "<polyline points=\""+points+"\" fill=\"none\" stroke=\""+stroke+"\""+dashes+
+                    String.format( Locale.ENGLISH , " stroke-width=\"%.1f\"" , width )+" marker-end=\"url(#arrow)\"/>\n" );
+            if ( label != null ) {
+                out.write( "<text x=\""+( route.getLabelX() + 3 )+"\" y=\""+route.getLabelY()+"\">"+escape( label )+"</text>\n" );
+            }
+        }
+        out.write( "</svg>\n" );
+    }
+
+    private String[] getLabel(IBlock block,MethodNode method)
+    {
+        final List<String> lines = new ArrayList<>();
+        if ( profile != null ) {
+            lines.add( "executions: "+profile.getBlockCount( block ) );
+        }
+        if ( block instanceof MethodEntry ) {
+            lines.add( "method_entry" );
+        } else if ( block instanceof MethodExit ) {
+            lines.add( "method_exit" );
+        }
+        else
+        {
+            for ( String line : block.disassemble( method , false , true ).split("\n") ) {
+                lines.add( line );
+            }
+        }
+        return lines.toArray( new String[ lines.size() ] );
+    }
+
+    private boolean isHidden(IBlock block,long maxBlockCount)
+    {
+        if ( profile == null || hideThreshold == 0 || block instanceof MethodEntry || block instanceof MethodExit ) {
+            return false;
+        }
+        return profile.getBlockCount( block ) < hideThreshold * maxBlockCount;
+    }
+
+    private static String escape(String s)
+    {
+        // XML 1.0 does not allow most control characters , not even as character references
+        return StringEscapeUtils.escapeXml( Disassembler.escapeControlCharacters( s ) );
+    }
+}
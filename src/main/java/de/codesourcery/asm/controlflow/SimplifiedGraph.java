@@ -0,0 +1,235 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.asm.controlflow;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A {@link ControlFlowGraph} reduced for rendering , see {@link GraphSimplifier}.
+ * 
+ * <p>Each node stands for one block or a chain of blocks , each edge for one edge of the original graph or (if exception
+ * edges have been merged) for all exception edges leading to the same handler.</p>
+ * 
+ * @author tobias.gierke@code-sourcery.de
+ * @see DOTRenderer#render(SimplifiedGraph)
+ */
+public final class SimplifiedGraph
+{
+    private final ControlFlowGraph graph;
+    private final List<Node> nodes;
+    private final List<Edge> edges;
+    private final Map<NaturalLoop,NaturalLoop> parentLoops;
+    private final int hiddenBlockCount;
+
+    /**
+     * A chain of blocks that is always executed in sequence.
+     * 
+     * @author tobias.gierke@code-sourcery.de
+     */
+    public static final class Node 
+    {
+        private final List<IBlock> blocks;
+        private final NaturalLoop loop;
+
+        protected Node(List<IBlock> blocks, NaturalLoop loop)
+        {
+            this.blocks = Collections.unmodifiableList( blocks );
+            this.loop = loop;
+        }
+
+        /**
+         * Returns the ID of this node (the ID of its first block).
+         * 
+         * @return
+         */
+        public String getId() {
+            return blocks.get(0).getId();
+        }
+
+        /**
+         * Returns the blocks of this node in execution order.
+         * 
+         * @return
+         */
+        public List<IBlock> getBlocks()
+        {
+            return blocks;
+        }
+
+        public IBlock getFirstBlock() {
+            return blocks.get(0);
+        }
+
+        public IBlock getLastBlock() {
+            return blocks.get( blocks.size() - 1 );
+        }
+
+        /**
+         * Returns the innermost loop containing this node.
+         * 
+         * @return loop or <code>null</code> if the node is not part of a loop (or loops are not clustered)
+         */
+        public NaturalLoop getLoop()
+        {
+            return loop;
+        }
+
+        @Override
+        public String toString()
+        {
+            return "Node[ "+getId()+" , blocks="+blocks.size()+" ]";
+        }
+    }
+
+    /**
+     * An edge between two nodes.
+     * 
+     * @author tobias.gierke@code-sourcery.de
+     */
+    public static final class Edge 
+    {
+        private final Node src;
+        private final Node dst;
+        private final List<de.codesourcery.asm.controlflow.Edge> edges;
+        private final boolean exceptionSummary;
+
+        protected Edge(Node src, Node dst, List<de.codesourcery.asm.controlflow.Edge> edges, boolean exceptionSummary)
+        {
+            this.src = src;
+            this.dst = dst;
+            this.edges = Collections.unmodifiableList( edges );
+            this.exceptionSummary = exceptionSummary;
+        }
+
+        public Node getSource()
+        {
+            return src;
+        }
+
+        public Node getDestination()
+        {
+            return dst;
+        }
+
+        /**
+         * Returns the edges of the original graph represented by this edge.
+         * 
+         * @return a single edge unless this is an exception summary edge
+         */
+        public List<de.codesourcery.asm.controlflow.Edge> getEdges()
+        {
+            return edges;
+        }
+
+        /**
+         * Returns whether this edge represents all exception edges leading to the same handler.
+         * 
+         * <p>The source of a summary edge is the node with the lowest instruction index among all nodes with
+         * an exception edge to the handler.</p>
+         * 
+         * @return
+         */
+        public boolean isExceptionSummary()
+        {
+            return exceptionSummary;
+        }
+    }
+
+    protected SimplifiedGraph(ControlFlowGraph graph, List<Node> nodes, List<Edge> edges, Map<NaturalLoop,NaturalLoop> parentLoops, 
+            int hiddenBlockCount)
+    {
+        this.graph = graph;
+        this.nodes = Collections.unmodifiableList( nodes );
+        this.edges = Collections.unmodifiableList( edges );
+        this.parentLoops = parentLoops;
+        this.hiddenBlockCount = hiddenBlockCount;
+    }
+
+    /**
+     * Returns the original graph.
+     * 
+     * @return
+     */
+    public ControlFlowGraph getGraph()
+    {
+        return graph;
+    }
+
+    /**
+     * Returns all nodes , sorted ascending by instruction index (method entry first , method exit last).
+     * 
+     * @return
+     */
+    public List<Node> getNodes()
+    {
+        return nodes;
+    }
+
+    /**
+     * Returns all nodes whose innermost loop is a given loop.
+     * 
+     * @param loop loop or <code>null</code> to get all nodes that are not part of a loop 
+     * @return
+     */
+    public List<Node> getNodes(NaturalLoop loop)
+    {
+        final List<Node> result = new ArrayList<>();
+        for ( Node node : nodes ) 
+        {
+            if ( node.loop == loop ) {
+                result.add( node );
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns all loops directly nested in a given loop.
+     * 
+     * @param parent loop or <code>null</code> to get all outermost loops
+     * @return
+     */
+    public List<NaturalLoop> getChildLoops(NaturalLoop parent)
+    {
+        final List<NaturalLoop> result = new ArrayList<>();
+        for ( Map.Entry<NaturalLoop,NaturalLoop> entry : parentLoops.entrySet() ) 
+        {
+            if ( entry.getValue() == parent ) {
+                result.add( entry.getKey() );
+            }
+        }
+        return result;
+    }
+
+    public List<Edge> getEdges()
+    {
+        return edges;
+    }
+
+    /**
+     * Returns the number of blocks of the original graph that are not represented by any node.
+     * 
+     * @return
+     * @see GraphSimplifier#setFocus(int, int)
+     */
+    public int getHiddenBlockCount()
+    {
+        return hiddenBlockCount;
+    }
+}
@@ -0,0 +1,360 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.asm.profiling;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A unit of work (a request , a task , ...) that instructions get charged to, independent of the threads it runs on.
+ *
+ * <p>Scopes are opened with {@link StatisticsManager#openScope(String, String)} and must be closed by the same thread , preferably
+ * using <code>try ( AccountingScope scope = StatisticsManager.openScope("GET /orders" , requestId ) ) { ... }</code>. While a scope
+ * is active on a thread , all instructions executed by that thread get charged to it. Scopes nest , closing a scope re-activates the
+ * scope that was active when it was opened.</p>
+ *
+ * <p>To make work that gets handed off to other threads count towards the current scope , wrap the tasks
+ * (see {@link #wrap(Runnable)} , {@link #wrap(Callable)}) or the executor running them (see {@link #wrap(Executor)} , which can
+ * also be passed to the <code>xxxAsync()</code> methods of <code>CompletableFuture</code>).</p>
+ *
+ * <p>Instructions are not charged one by one but whenever a thread switches between scopes , so the cost while a scope is active
+ * is zero. Work that is still running on other threads when a scope gets closed is charged to the scope and its
+ * {@link TypeStatistics type} once it completes , including the totals of closed scopes ({@link TypeStatistics#getClosedInstructions()} ,
+ * {@link TypeStatistics#getMaxInstructions()}).</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ * @see StatisticsManager#getCurrentScope()
+ * @see #getTypeStatistics()
+ */
+public final class AccountingScope implements AutoCloseable
+{
+    private static final ConcurrentMap<String,TypeStatistics> typeStatistics = new ConcurrentHashMap<>();
+
+    private final String type;
+    private final String id;
+    private final TypeStatistics statistics;
+    private final AtomicLong instructions = new AtomicLong();
+    // part of the instructions that has been added to the closed totals of the type
+    private final AtomicLong closedInstructions = new AtomicLong();
+
+    // scope that was active on the opening thread when this scope was opened
+    private final AccountingScope parent;
+    private volatile boolean closed;
+
+    /**
+     * Aggregated counters of all scopes with the same type.
+     *
+     * @author tobias.gierke@code-sourcery.de
+     */
+    public static final class TypeStatistics
+    {
+        private final String type;
+        private final AtomicLong closedScopes = new AtomicLong();
+        private final AtomicLong instructions = new AtomicLong();
+        // instructions of closed scopes only , open scopes would inflate the average
+        private final AtomicLong closedInstructions = new AtomicLong();
+        private final AtomicLong maxInstructions = new AtomicLong();
+
+        protected TypeStatistics(String type)
+        {
+            this.type = type;
+        }
+
+        protected void closed() {
+            closedScopes.incrementAndGet();
+        }
+
+        protected void chargeClosed(long count,long scopeInstructions)
+        {
+            closedInstructions.addAndGet( count );
+            long max;
+            do {
+                max = maxInstructions.get();
+            } while ( scopeInstructions > max && ! maxInstructions.compareAndSet( max , scopeInstructions ) );
+        }
+
+        public String getType()
+        {
+            return type;
+        }
+
+        /**
+         * Returns the number of closed scopes of this type.
+         *
+         * @return
+         */
+        public long getClosedScopes()
+        {
+            return closedScopes.get();
+        }
+
+        /**
+         * Returns the number of instructions charged to scopes of this type , including scopes that are still open.
+         *
+         * @return
+         */
+        public long getInstructions()
+        {
+            return instructions.get();
+        }
+
+        /**
+         * Returns the number of instructions charged to closed scopes of this type , including work that completed after a scope was closed.
+         *
+         * @return
+         */
+        public long getClosedInstructions()
+        {
+            return closedInstructions.get();
+        }
+
+        /**
+         * Returns the maximum number of instructions charged to a single closed scope of this type.
+         *
+         * @return
+         */
+        public long getMaxInstructions()
+        {
+            return maxInstructions.get();
+        }
+
+        /**
+         * Returns the average number of instructions per closed scope.
+         *
+         * @return
+         */
+        public double getAverageInstructions()
+        {
+            final long count = closedScopes.get();
+            return count == 0 ? 0 : closedInstructions.get() / (double) count;
+        }
+
+        @Override
+        public String toString()
+        {
+            return type+" ("+getClosedScopes()+" scopes , "+getInstructions()+" instructions , avg. "+
+                    Math.round( getAverageInstructions() )+" , max. "+getMaxInstructions()+")";
+        }
+    }
+
+    protected AccountingScope(String type,String id,AccountingScope parent)
+    {
+        if ( type == null ) {
+            throw new IllegalArgumentException("Scope type must not be NULL");
+        }
+        this.type = type;
+        this.id = id;
+        this.parent = parent;
+        this.statistics = getTypeStatistics( type );
+    }
+
+    private static TypeStatistics getTypeStatistics(String type)
+    {
+        TypeStatistics result = typeStatistics.get( type );
+        if ( result == null )
+        {
+            final TypeStatistics newStats = new TypeStatistics( type );
+            result = typeStatistics.putIfAbsent( type , newStats );
+            if ( result == null ) {
+                result = newStats;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the statistics of all scope types.
+     *
+     * @return
+     */
+    public static List<TypeStatistics> getTypeStatistics() {
+        return new ArrayList<>( typeStatistics.values() );
+    }
+
+    /**
+     * Discards the statistics of all scope types.
+     */
+    public static void resetTypeStatistics() {
+        typeStatistics.clear();
+    }
+
+    /**
+     * Invoked by {@link StatisticsManager} when a thread switches away from this scope.
+     *
+     * @param count
+     */
+    protected void charge(long count)
+    {
+        if ( count != 0 ) 
+        {
+            instructions.addAndGet( count );
+            statistics.instructions.addAndGet( count );
+            if ( closed ) {
+                chargeClosed();
+            }
+        }
+    }
+
+    // adds instructions that have not been added yet to the closed totals of the type , 
+    // may be invoked concurrently by close() and charge()
+    private void chargeClosed() 
+    {
+        final long total = instructions.get();
+        long previous;
+        do {
+            previous = closedInstructions.get();
+            if ( total <= previous ) {
+                return;
+            }
+        } while ( ! closedInstructions.compareAndSet( previous , total ) );
+        statistics.chargeClosed( total - previous , total );
+    }
+
+    protected AccountingScope getParent()
+    {
+        return parent;
+    }
+
+    public String getType()
+    {
+        return type;
+    }
+
+    public String getId()
+    {
+        return id;
+    }
+
+    /**
+     * Returns the number of instructions charged to this scope so far.
+     *
+     * <p>Instructions executed by threads on which this scope is currently active are not included.</p>
+     *
+     * @return
+     */
+    public long getInstructions()
+    {
+        return instructions.get();
+    }
+
+    public boolean isClosed()
+    {
+        return closed;
+    }
+
+    /**
+     * Closes this scope and re-activates its parent scope.
+     *
+     * @throws IllegalStateException if this scope is not the current thread's active scope
+     */
+    @Override
+    public void close() throws IllegalStateException
+    {
+        if ( closed ) {
+            return;
+        }
+        if ( StatisticsManager.getCurrentScope() != this ) {
+            throw new IllegalStateException("Scope "+this+" is not active on the current thread");
+        }
+        StatisticsManager.activateScope( parent );
+        closed = true;
+        statistics.closed();
+        chargeClosed();
+    }
+
+    /**
+     * Wraps a task so that it runs within the current thread's scope.
+     *
+     * @param task
+     * @return task that activates the current scope while running, or the task itself if no scope is active
+     */
+    public static Runnable wrap(final Runnable task)
+    {
+        final AccountingScope scope = StatisticsManager.getCurrentScope();
+        if ( scope == null ) {
+            return task;
+        }
+        return new Runnable() {
+
+            @Override
+            public void run()
+            {
+                final AccountingScope previous = StatisticsManager.activateScope( scope );
+                try {
+                    task.run();
+                } finally {
+                    StatisticsManager.activateScope( previous );
+                }
+            }
+        };
+    }
+
+    /**
+     * Wraps a task so that it runs within the current thread's scope.
+     *
+     * @param task
+     * @return task that activates the current scope while running, or the task itself if no scope is active
+     */
+    public static <T> Callable<T> wrap(final Callable<T> task)
+    {
+        final AccountingScope scope = StatisticsManager.getCurrentScope();
+        if ( scope == null ) {
+            return task;
+        }
+        return new Callable<T>() {
+
+            @Override
+            public T call() throws Exception
+            {
+                final AccountingScope previous = StatisticsManager.activateScope( scope );
+                try {
+                    return task.call();
+                } finally {
+                    StatisticsManager.activateScope( previous );
+                }
+            }
+        };
+    }
+
+    /**
+     * Wraps an executor so that each task runs within the scope that was active on the thread submitting it.
+     *
+     * @param executor
+     * @return
+     */
+    public static Executor wrap(final Executor executor)
+    {
+        return new Executor() {
+
+            @Override
+            public void execute(Runnable command)
+            {
+                executor.execute( wrap( command ) );
+            }
+        };
+    }
+
+    @Override
+    public String toString()
+    {
+        return type+( id != null ? "["+id+"]" : "" );
+    }
+}
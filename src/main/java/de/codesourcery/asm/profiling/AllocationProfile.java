@@ -0,0 +1,158 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.asm.profiling;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import de.codesourcery.asm.profiling.AllocationSiteRegistry.AllocationSite;
+
+/**
+ * Snapshot of the number of objects and arrays allocated per allocation site (summed over all threads).
+ *
+ * @author tobias.gierke@code-sourcery.de
+ * @see StatisticsManager#getAllocationProfile()
+ */
+public final class AllocationProfile
+{
+    private final List<Entry> entries;
+
+    /**
+     * Allocation counts of a single site.
+     *
+     * @author tobias.gierke@code-sourcery.de
+     */
+    public static final class Entry
+    {
+        private final AllocationSite site;
+        private final long count;
+        private final long[] lengthHistogram;
+        private final boolean estimated;
+
+        public Entry(AllocationSite site, long count, long[] lengthHistogram, boolean estimated)
+        {
+            this.site = site;
+            this.count = count;
+            this.lengthHistogram = lengthHistogram;
+            this.estimated = estimated;
+        }
+
+        public AllocationSite getSite()
+        {
+            return site;
+        }
+
+        /**
+         * Returns the number of allocated objects/arrays.
+         *
+         * @return
+         */
+        public long getCount()
+        {
+            return count;
+        }
+
+        /**
+         * Returns the number of allocated arrays per length bucket.
+         *
+         * @return counts indexed by {@link AllocationSiteRegistry#getLengthBucket(int)} or <code>null</code> if
+         * this site does not allocate arrays
+         */
+        public long[] getLengthHistogram()
+        {
+            return lengthHistogram == null ? null : lengthHistogram.clone();
+        }
+
+        /**
+         * Returns whether the counts have been extrapolated (site is in a sampled method).
+         *
+         * @return
+         */
+        public boolean isEstimated()
+        {
+            return estimated;
+        }
+    }
+
+    public AllocationProfile(List<Entry> entries)
+    {
+        final List<Entry> sorted = new ArrayList<>( entries );
+        Collections.sort( sorted , new Comparator<Entry>() {
+
+            @Override
+            public int compare(Entry o1, Entry o2)
+            {
+                return Long.compare( o2.count , o1.count );
+            }
+        });
+        this.entries = Collections.unmodifiableList( sorted );
+    }
+
+    /**
+     * Returns all sites that allocated at least once , sorted descending by allocation count.
+     *
+     * @return
+     */
+    public List<Entry> getEntries()
+    {
+        return entries;
+    }
+
+    /**
+     * Returns the total number of allocations.
+     *
+     * @return
+     */
+    public long getTotalCount()
+    {
+        long result = 0;
+        for ( Entry e : entries ) {
+            result += e.count;
+        }
+        return result;
+    }
+
+    /**
+     * Prints the sites with the most allocations , including array length histograms.
+     *
+     * @param out
+     * @param maxSites
+     */
+    public void print(PrintStream out,int maxSites)
+    {
+        out.println( String.format("%16s %7s  %s" , "Allocations" , "%" , "Site" ) );
+        final long total = Math.max( 1 , getTotalCount() );
+        for ( Entry e : entries.subList( 0 , Math.min( maxSites , entries.size() ) ) )
+        {
+            out.println( String.format("%16s %6.2f%%  %s" , ( e.estimated ? "~" : "" )+e.count , 100.0 * e.count / total , e.site ) );
+            if ( e.lengthHistogram != null )
+            {
+                for ( int bucket = 0 ; bucket < e.lengthHistogram.length ; bucket++ )
+                {
+                    if ( e.lengthHistogram[bucket] != 0 ) {
+                        final String range = bucket < 2 ? Integer.toString( bucket ) :
+                            AllocationSiteRegistry.getMinLength( bucket )+"-"+( AllocationSiteRegistry.getMinLength( bucket+1 )-1 );
+                        out.println( String.format("%16s %7s    length %-24s %d" , "" , "" , range , e.lengthHistogram[bucket] ) );
+                    }
+                }
+            }
+        }
+        out.println( String.format("%16d %7s  TOTAL" , getTotalCount() , "" ) );
+    }
+}
@@ -0,0 +1,274 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.asm.profiling;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.util.Printer;
+
+import de.codesourcery.asm.rewrite.ProfilingRewriter;
+
+/**
+ * Keeps track of allocation sites (<code>NEW</code> , <code>NEWARRAY</code> , <code>ANEWARRAY</code> and <code>MULTIANEWARRAY</code>
+ * instructions) in instrumented methods.
+ *
+ * <p>Sites are registered by the {@link ProfilingRewriter} while rewriting a class. Each site owns a range of
+ * counters in {@link ExecutionStatistics#allocationCounters} whose offset is baked into the generated byte-code: object allocation
+ * sites own a single counter , array allocation sites own {@link #LENGTH_BUCKETS} counters that count allocated arrays
+ * by length (see {@link #getLengthBucket(int)}). Re-registering a site (for example when its class gets re-transformed)
+ * always yields the same site.</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ * @see StatisticsManager#getAllocationProfile()
+ */
+public final class AllocationSiteRegistry
+{
+    /**
+     * Number of array length buckets , bucket 0 counts empty arrays and bucket <code>n</code> counts
+     * arrays with a length between <code>2^(n-1)</code> and <code>2^n - 1</code>.
+     */
+    public static final int LENGTH_BUCKETS = 32;
+
+    /**
+     * A registered allocation site.
+     *
+     * @author tobias.gierke@code-sourcery.de
+     */
+    public static final class AllocationSite
+    {
+        private final int id;
+        private final int methodId;
+        private final int instructionIndex;
+        private final int lineNumber;
+        private final int opcode;
+        private final String type;
+        private final int counterOffset;
+        private final boolean sampled;
+
+        protected AllocationSite(int id, int methodId, int instructionIndex, int lineNumber, int opcode, String type, int counterOffset, boolean sampled)
+        {
+            this.id = id;
+            this.methodId = methodId;
+            this.instructionIndex = instructionIndex;
+            this.lineNumber = lineNumber;
+            this.opcode = opcode;
+            this.type = type;
+            this.counterOffset = counterOffset;
+            this.sampled = sampled;
+        }
+
+        public int getId()
+        {
+            return id;
+        }
+
+        /**
+         * Returns the ID of the method containing this site.
+         *
+         * @return
+         * @see MethodRegistry
+         */
+        public int getMethodId()
+        {
+            return methodId;
+        }
+
+        /**
+         * Returns the index of the allocating instruction within the (uninstrumented) method.
+         *
+         * @return
+         */
+        public int getInstructionIndex()
+        {
+            return instructionIndex;
+        }
+
+        /**
+         * Returns the source line number.
+         *
+         * @return line number or -1 if the class has no line number information
+         */
+        public int getLineNumber()
+        {
+            return lineNumber;
+        }
+
+        public int getOpcode()
+        {
+            return opcode;
+        }
+
+        /**
+         * Returns the allocated type.
+         *
+         * @return internal class name for <code>NEW</code> and <code>ANEWARRAY</code> , array type descriptor
+         * for <code>NEWARRAY</code> and <code>MULTIANEWARRAY</code>
+         */
+        public String getType()
+        {
+            return type;
+        }
+
+        /**
+         * Returns whether this site is part of the instrumented copy of a sampled method , so its
+         * counts only cover the sampled executions.
+         *
+         * @return
+         * @see MethodRegistry.Mode#SAMPLED
+         */
+        public boolean isSampled()
+        {
+            return sampled;
+        }
+
+        /**
+         * Returns whether this site allocates arrays.
+         *
+         * @return
+         */
+        public boolean isArray()
+        {
+            return opcode != Opcodes.NEW;
+        }
+
+        /**
+         * Returns the offset of this site's first counter in {@link ExecutionStatistics#allocationCounters}.
+         *
+         * @return
+         */
+        public int getCounterOffset()
+        {
+            return counterOffset;
+        }
+
+        /**
+         * Returns the number of counters owned by this site.
+         *
+         * @return
+         */
+        public int getCounterCount()
+        {
+            return isArray() ? LENGTH_BUCKETS : 1;
+        }
+
+        @Override
+        public String toString()
+        {
+            final String location = MethodRegistry.getMethod( methodId )+( lineNumber >= 0 ? ":"+lineNumber : "" )+" @ "+instructionIndex;
+            return Printer.OPCODES[opcode]+" "+type+" in "+location;
+        }
+    }
+
+    private static final Object LOCK = new Object();
+
+    // guarded by LOCK
+    private static final Map<String,AllocationSite> sitesByKey = new HashMap<>();
+
+    // guarded by LOCK
+    private static int counterCount;
+
+    // copy-on-write , indexed by site ID
+    private static volatile AllocationSite[] sites = new AllocationSite[0];
+
+    private AllocationSiteRegistry() {
+    }
+
+    /**
+     * Registers an allocation site.
+     *
+     * @param methodId ID of the method containing the site
+     * @param instructionIndex index of the allocating instruction within the method
+     * @param lineNumber source line number or -1
+     * @param opcode <code>NEW</code> , <code>NEWARRAY</code> , <code>ANEWARRAY</code> or <code>MULTIANEWARRAY</code>
+     * @param type allocated type
+     * @param sampled whether the site is part of the instrumented copy of a sampled method
+     * @return
+     */
+    public static AllocationSite register(int methodId,int instructionIndex,int lineNumber,int opcode,String type,boolean sampled)
+    {
+        final String key = methodId+"@"+instructionIndex;
+        synchronized( LOCK )
+        {
+            AllocationSite existing = sitesByKey.get( key );
+            if ( existing == null || existing.getOpcode() != opcode || ! existing.getType().equals( type ) || existing.isSampled() != sampled )
+            {
+                final AllocationSite[] newSites = Arrays.copyOf( sites , sites.length + 1 );
+                existing = new AllocationSite( sites.length , methodId , instructionIndex , lineNumber , opcode , type , counterCount , sampled );
+                counterCount += existing.getCounterCount();
+                newSites[ existing.getId() ] = existing;
+                sitesByKey.put( key , existing );
+                sites = newSites;
+            }
+            return existing;
+        }
+    }
+
+    /**
+     * Returns a site by ID.
+     *
+     * @param id
+     * @return
+     * @throws ArrayIndexOutOfBoundsException if no site with this ID has been registered
+     */
+    public static AllocationSite getSite(int id) throws ArrayIndexOutOfBoundsException {
+        return sites[id];
+    }
+
+    /**
+     * Returns the number of registered sites.
+     *
+     * @return
+     */
+    public static int getSiteCount() {
+        return sites.length;
+    }
+
+    /**
+     * Returns the number of counters owned by all registered sites.
+     *
+     * @return
+     */
+    public static int getCounterCount()
+    {
+        synchronized( LOCK ) {
+            return counterCount;
+        }
+    }
+
+    /**
+     * Returns the length bucket of an array.
+     *
+     * @param length
+     * @return
+     * @see #LENGTH_BUCKETS
+     */
+    public static int getLengthBucket(int length) {
+        return 32 - Integer.numberOfLeadingZeros( length );
+    }
+
+    /**
+     * Returns the smallest array length counted by a length bucket.
+     *
+     * @param bucket
+     * @return
+     */
+    public static int getMinLength(int bucket) {
+        return bucket == 0 ? 0 : 1 << ( bucket - 1 );
+    }
+}
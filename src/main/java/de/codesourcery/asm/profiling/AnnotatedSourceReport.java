@@ -0,0 +1,324 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.asm.profiling;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.lang.StringEscapeUtils;
+
+import de.codesourcery.asm.profiling.LineProfile.Line;
+
+/**
+ * Renders the hottest lines of a {@link LineProfile} along with the surrounding source code.
+ *
+ * <p>Usage: <code>java -cp controlflow.jar de.codesourcery.asm.profiling.AnnotatedSourceReport &lt;line profile&gt; &lt;source path&gt; [&lt;number of lines&gt;] [text|html]</code></p>
+ * 
+ * <p>The report starts with a summary of the hottest lines followed by an excerpt of each source file containing one of these lines. Every
+ * source line in an excerpt is annotated with the number of instructions executed on it and its share of all instructions.</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ * @see StatisticsManager#getLineProfile()
+ */
+public class AnnotatedSourceReport
+{
+    /**
+     * Number of source lines shown before and after each hot line.
+     */
+    public static final int CONTEXT_LINES = 3;
+
+    private final LineProfile profile;
+    private final File[] sourcePath;
+
+    /**
+     * Create a report.
+     * 
+     * @param profile
+     * @param sourcePath directories to look for source files in
+     */
+    public AnnotatedSourceReport(LineProfile profile,File[] sourcePath)
+    {
+        this.profile = profile;
+        this.sourcePath = sourcePath.clone();
+    }
+
+    /**
+     * Renders the report as plain text.
+     * 
+     * @param out
+     * @param maxLines number of hot lines to show
+     * @throws IOException
+     */
+    public void printText(PrintStream out,int maxLines) throws IOException
+    {
+        final long total = profile.getTotalInstructions();
+        final List<Line> hottest = profile.getHottestLines( maxLines );
+
+        out.println("Total instructions: "+total);
+        out.println();
+        out.println( String.format("%20s %8s  %s" , "Instructions" , "%" , "Line" ) );
+        for ( Line line : hottest ) {
+            out.println( String.format("%20s %7.2f%%  %s" , prefix( line.getClassLines().isEstimated() )+line.getInstructions() , 
+                    percentage( line.getInstructions() , total ) , line ) );
+        }
+
+        for ( Map.Entry<String,List<Integer>> file : getHotLinesByFile( hottest ).entrySet() )
+        {
+            final String path = file.getKey();
+            final String estimated = prefix( profile.isEstimated( path ) );
+            out.println();
+            out.println("==== "+path+" ====");
+            final List<String> source = readSource( path );
+            if ( source == null ) {
+                out.println("(source not found)");
+            }
+            int previous = -1;
+            for ( int[] range : getExcerpts( file.getValue() , source ) )
+            {
+                if ( previous != -1 && range[0] > previous + 1 ) {
+                    out.println( String.format("%20s %8s  %6s" , "" , "" , "..." ) );
+                }
+                for ( int line = range[0] ; line <= range[1] ; line++ )
+                {
+                    final long count = profile.getInstructions( path , line );
+                    final String text = source != null ? source.get( line - 1 ) : "";
+                    final String marker = file.getValue().contains( line ) ? ">" : " ";
+                    if ( count != 0 ) {
+                        out.println( String.format("%20s %7.2f%% %s%6d: %s" , estimated+count , percentage( count , total ) , marker , line , text ) );
+                    } else {
+                        out.println( String.format("%20s %8s %s%6d: %s" , "" , "" , marker , line , text ) );
+                    }
+                }
+                previous = range[1];
+            }
+        }
+    }
+
+    /**
+     * Renders the report as a HTML page.
+     * 
+     * <p>Source lines are highlighted with a background color whose intensity reflects the number of instructions executed on them.</p>
+     * 
+     * @param out
+     * @param maxLines number of hot lines to show
+     * @throws IOException
+     */
+    public void printHTML(PrintStream out,int maxLines) throws IOException
+    {
+        final long total = profile.getTotalInstructions();
+        final List<Line> hottest = profile.getHottestLines( maxLines );
+        final long max = hottest.isEmpty() ? 0 : hottest.get(0).getInstructions();
+
+        out.println("<!DOCTYPE html>");
+        out.println("<html><head><meta charset=\"UTF-8\"><title>Source line profile</title>");
+        out.println("<style>");
+        out.println("body { font-family: sans-serif; }");
+        out.println("table { border-collapse: collapse; }");
+        out.println("td { padding: 0 8px; white-space: pre; }");
+        out.println("td.num { text-align: right; font-family: monospace; }");
+        out.println("td.src { font-family: monospace; }");
+        out.println("tr.hot td { font-weight: bold; }");
+        out.println("</style></head><body>");
+        out.println("<h1>Source line profile</h1>");
+        out.println("<p>Total instructions: "+total+"</p>");
+
+        out.println("<table>");
+        out.println("<tr><th>Instructions</th><th>%</th><th>Line</th></tr>");
+        for ( Line line : hottest ) 
+        {
+            final String anchor = anchor( line.getClassLines().getSourcePath() , line.getLine() );
+            out.println("<tr><td class=\"num\">"+prefix( line.getClassLines().isEstimated() )+line.getInstructions()+"</td>"+
+                    "<td class=\"num\">"+String.format("%.2f" , percentage( line.getInstructions() , total ) )+"</td>"+
+                    "<td><a href=\"#"+anchor+"\">"+escape( line.toString() )+"</a></td></tr>");
+        }
+        out.println("</table>");
+
+        for ( Map.Entry<String,List<Integer>> file : getHotLinesByFile( hottest ).entrySet() )
+        {
+            final String path = file.getKey();
+            final String estimated = prefix( profile.isEstimated( path ) );
+            out.println("<h2>"+escape( path )+"</h2>");
+            final List<String> source = readSource( path );
+            if ( source == null ) {
+                out.println("<p>(source not found)</p>");
+            }
+            out.println("<table>");
+            int previous = -1;
+            for ( int[] range : getExcerpts( file.getValue() , source ) )
+            {
+                if ( previous != -1 && range[0] > previous + 1 ) {
+                    out.println("<tr><td></td><td></td><td class=\"num\">...</td><td></td></tr>");
+                }
+                for ( int line = range[0] ; line <= range[1] ; line++ )
+                {
+                    final long count = profile.getInstructions( path , line );
+                    final String text = source != null ? source.get( line - 1 ) : "";
+                    final String style = count != 0 && max > 0 ? " style=\"background-color: "+heatColor( count , max )+"\"" : "";
+                    final String css = file.getValue().contains( line ) ? " class=\"hot\" id=\""+anchor( path , line )+"\"" : "";
+                    out.println("<tr"+css+style+">"+
+                            "<td class=\"num\">"+( count != 0 ? estimated+count : "" )+"</td>"+
+                            "<td class=\"num\">"+( count != 0 ? String.format("%.2f" , percentage( count , total ) ) : "" )+"</td>"+
+                            "<td class=\"num\">"+line+"</td>"+
+                            "<td class=\"src\">"+escape( text )+"</td></tr>");
+                }
+                previous = range[1];
+            }
+            out.println("</table>");
+        }
+        out.println("</body></html>");
+    }
+
+    // hot line numbers by source path , source files ordered by their hottest line
+    private static Map<String,List<Integer>> getHotLinesByFile(List<Line> hottest)
+    {
+        final Map<String,List<Integer>> result = new LinkedHashMap<>();
+        for ( Line line : hottest ) 
+        {
+            List<Integer> lines = result.get( line.getClassLines().getSourcePath() );
+            if ( lines == null ) {
+                lines = new ArrayList<>();
+                result.put( line.getClassLines().getSourcePath() , lines );
+            }
+            if ( ! lines.contains( line.getLine() ) ) {
+                lines.add( line.getLine() );
+            }
+        }
+        return result;
+    }
+
+    // returns sorted , non-overlapping [first,last] line ranges around each hot line
+    private static List<int[]> getExcerpts(List<Integer> hotLines,List<String> source)
+    {
+        final boolean[] show = new boolean[ source != null ? source.size() + 1 : max( hotLines ) + 1 ];
+        for ( int hotLine : hotLines ) 
+        {
+            if ( source == null ) {
+                show[ hotLine ] = true;
+                continue;
+            }
+            for ( int line = Math.max( 1 , hotLine - CONTEXT_LINES ) ; line <= Math.min( source.size() , hotLine + CONTEXT_LINES ) ; line++ ) {
+                show[ line ] = true;
+            }
+        }
+        final List<int[]> result = new ArrayList<>();
+        for ( int line = 1 ; line < show.length ; line++ ) 
+        {
+            if ( ! show[line] ) {
+                continue;
+            }
+            final int first = line;
+            while ( line + 1 < show.length && show[ line + 1 ] ) {
+                line++;
+            }
+            result.add( new int[] { first , line } );
+        }
+        return result;
+    }
+
+    private static int max(List<Integer> values) 
+    {
+        int result = 0;
+        for ( int value : values ) {
+            result = Math.max( result , value );
+        }
+        return result;
+    }
+
+    // returns the lines of a source file or NULL if the file was not found on the source path
+    private List<String> readSource(String path) throws IOException
+    {
+        for ( File dir : sourcePath ) 
+        {
+            final File file = new File( dir , path );
+            if ( ! file.isFile() ) {
+                continue;
+            }
+            final List<String> result = new ArrayList<>();
+            final BufferedReader reader = new BufferedReader( new InputStreamReader( new FileInputStream( file ) , "UTF-8" ) );
+            try {
+                String line;
+                while ( ( line = reader.readLine() ) != null ) {
+                    result.add( line.replace("\t" , "    " ) );
+                }
+            } finally {
+                reader.close();
+            }
+            return result;
+        }
+        return null;
+    }
+
+    private static String prefix(boolean estimated) {
+        return estimated ? "~" : "";
+    }
+
+    private static double percentage(long value,long total) {
+        return total == 0 ? 0 : 100.0 * value / total;
+    }
+
+    private static String escape(String s) {
+        return StringEscapeUtils.escapeHtml( s );
+    }
+
+    private static String anchor(String path,int line) {
+        return path.replaceAll("[^a-zA-Z0-9]" , "_" )+"_"+line;
+    }
+
+    // white (cold) to red (hottest) , using a logarithmic scale
+    private static String heatColor(long count,long max)
+    {
+        final double ratio = Math.log( 1 + count ) / Math.log( 1 + max );
+        final int other = (int) Math.round( 255 - 175 * Math.min( 1 , ratio ) );
+        return String.format("#ff%02x%02x" , other , other );
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        if ( args.length < 2 || args.length > 4 || ( args.length == 4 && ! args[3].matches("text|html") ) )
+        {
+            System.out.println("\n\nUsage: <line profile> <source path> [<number of lines>] [text|html]\n\n"+
+                    "<line profile> => line profile written by the agent (see 'lines' agent option)\n"+
+                    "<source path> => source directories , separated by '"+File.pathSeparator+"'\n"+
+                    "<number of lines> => number of lines with the most instructions to show (default: 20)\n"+
+                    "text|html => output format (default: text)\n\n");
+            return;
+        }
+        final LineProfile profile = LineProfile.read( new File( args[0] ) );
+        final List<File> sourcePath = new ArrayList<>();
+        for ( String dir : args[1].split( File.pathSeparator ) ) 
+        {
+            if ( ! dir.isEmpty() ) {
+                sourcePath.add( new File( dir ) );
+            }
+        }
+        final int maxLines = args.length > 2 ? Integer.parseInt( args[2] ) : 20;
+
+        final AnnotatedSourceReport report = new AnnotatedSourceReport( profile , sourcePath.toArray( new File[ sourcePath.size() ] ) );
+        if ( args.length > 3 && args[3].equals("html") ) {
+            report.printHTML( System.out , maxLines );
+        } else {
+            report.printText( System.out , maxLines );
+        }
+    }
+}
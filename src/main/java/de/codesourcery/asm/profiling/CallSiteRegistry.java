@@ -0,0 +1,212 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.asm.profiling;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.objectweb.asm.util.Printer;
+
+import de.codesourcery.asm.rewrite.ProfilingRewriter;
+
+/**
+ * Assigns dense integer IDs to profiled call sites (<code>INVOKEVIRTUAL</code> and <code>INVOKEINTERFACE</code> instructions).
+ *
+ * <p>IDs are assigned by the {@link ProfilingRewriter} while rewriting a class and are baked into the generated byte-code , they
+ * are used to index the per-thread receiver type caches in {@link ExecutionStatistics#receiverClasses}. Re-registering a site
+ * (for example when its class gets re-transformed) always yields the same ID.</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ * @see StatisticsManager#getReceiverTypeProfile()
+ */
+public final class CallSiteRegistry
+{
+    /**
+     * A registered call site.
+     *
+     * @author tobias.gierke@code-sourcery.de
+     */
+    public static final class CallSite
+    {
+        private final int id;
+        private final int methodId;
+        private final int instructionIndex;
+        private final int lineNumber;
+        private final int opcode;
+        private final String owner;
+        private final String name;
+        private final String descriptor;
+        private final boolean sampled;
+
+        protected CallSite(int id, int methodId, int instructionIndex, int lineNumber, int opcode, String owner, String name, String descriptor, 
+                boolean sampled)
+        {
+            this.id = id;
+            this.methodId = methodId;
+            this.instructionIndex = instructionIndex;
+            this.lineNumber = lineNumber;
+            this.opcode = opcode;
+            this.owner = owner;
+            this.name = name;
+            this.descriptor = descriptor;
+            this.sampled = sampled;
+        }
+
+        public int getId()
+        {
+            return id;
+        }
+
+        /**
+         * Returns the ID of the method containing this site.
+         *
+         * @return
+         * @see MethodRegistry
+         */
+        public int getMethodId()
+        {
+            return methodId;
+        }
+
+        /**
+         * Returns the index of the invoke instruction within the (uninstrumented) method.
+         *
+         * @return
+         */
+        public int getInstructionIndex()
+        {
+            return instructionIndex;
+        }
+
+        /**
+         * Returns the source line number.
+         *
+         * @return line number or -1 if the class has no line number information
+         */
+        public int getLineNumber()
+        {
+            return lineNumber;
+        }
+
+        public int getOpcode()
+        {
+            return opcode;
+        }
+
+        /**
+         * Returns the internal name of the class or interface declaring the invoked method.
+         *
+         * @return
+         */
+        public String getOwner()
+        {
+            return owner;
+        }
+
+        public String getName()
+        {
+            return name;
+        }
+
+        public String getDescriptor()
+        {
+            return descriptor;
+        }
+
+        /**
+         * Returns whether this site is part of the instrumented copy of a sampled method , so its
+         * counts only cover the sampled executions.
+         *
+         * @return
+         * @see MethodRegistry.Mode#SAMPLED
+         */
+        public boolean isSampled()
+        {
+            return sampled;
+        }
+
+        @Override
+        public String toString()
+        {
+            final String location = MethodRegistry.getMethod( methodId )+( lineNumber >= 0 ? ":"+lineNumber : "" )+" @ "+instructionIndex;
+            return Printer.OPCODES[opcode]+" "+owner+"#"+name+descriptor+" in "+location;
+        }
+    }
+
+    private static final Object LOCK = new Object();
+
+    // guarded by LOCK
+    private static final Map<String,CallSite> sitesByKey = new HashMap<>();
+
+    // copy-on-write , indexed by site ID
+    private static volatile CallSite[] sites = new CallSite[0];
+
+    private CallSiteRegistry() {
+    }
+
+    /**
+     * Registers a call site.
+     *
+     * @param methodId ID of the method containing the site
+     * @param instructionIndex index of the invoke instruction within the method
+     * @param lineNumber source line number or -1
+     * @param opcode <code>INVOKEVIRTUAL</code> or <code>INVOKEINTERFACE</code>
+     * @param owner
+     * @param name
+     * @param descriptor
+     * @param sampled whether the site is part of the instrumented copy of a sampled method
+     * @return the site's ID
+     */
+    public static int register(int methodId,int instructionIndex,int lineNumber,int opcode,String owner,String name,String descriptor,boolean sampled)
+    {
+        final String key = methodId+"@"+instructionIndex+"#"+owner+"#"+name+descriptor+( sampled ? "#sampled" : "" );
+        synchronized( LOCK )
+        {
+            CallSite existing = sitesByKey.get( key );
+            if ( existing == null )
+            {
+                final CallSite[] newSites = Arrays.copyOf( sites , sites.length + 1 );
+                existing = new CallSite( sites.length , methodId , instructionIndex , lineNumber , opcode , owner , name , descriptor , sampled );
+                newSites[ existing.getId() ] = existing;
+                sitesByKey.put( key , existing );
+                sites = newSites;
+            }
+            return existing.getId();
+        }
+    }
+
+    /**
+     * Returns a site by ID.
+     *
+     * @param id
+     * @return
+     * @throws ArrayIndexOutOfBoundsException if no site with this ID has been registered
+     */
+    public static CallSite getSite(int id) throws ArrayIndexOutOfBoundsException {
+        return sites[id];
+    }
+
+    /**
+     * Returns the number of registered sites.
+     *
+     * <p>Since IDs are dense, this is also the largest site ID plus one.</p>
+     * @return
+     */
+    public static int getSiteCount() {
+        return sites.length;
+    }
+}
@@ -0,0 +1,258 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.asm.profiling;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+
+/**
+ * A node in a calling context tree (CCT).
+ *
+ * <p>Each node represents a unique call path from the root (the thread) to a method and holds the number of
+ * invocations along this path and the number of instructions executed while this path was on top of
+ * the shadow stack (<i>self</i> instructions). Per-thread trees are built by generated byte-code that
+ * pushes and pops method IDs (see {@link StatisticsManager#pushFrame(ExecutionStatistics, int)}), the current node and the
+ * shadow stack depth live in {@link ExecutionStatistics}.</p>
+ *
+ * <p>Nodes are only ever modified by a single thread, other threads may read them concurrently and will see slightly stale
+ * counters.</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ * @see StatisticsManager#getCallTree()
+ */
+public final class CallingContext
+{
+    /**
+     * Method ID of the root node.
+     */
+    public static final int ROOT = -1;
+
+    private static final CallingContext[] NO_CHILDREN = new CallingContext[0];
+
+    private final int methodId;
+    private final CallingContext parent;
+
+    protected long invocations;
+    protected long instructions;
+
+    // grows by copying , slots >= childCount are null
+    private volatile CallingContext[] children = NO_CHILDREN;
+    private int childCount;
+
+    /**
+     * Creates a root node.
+     */
+    public CallingContext()
+    {
+        this( ROOT , null );
+    }
+
+    private CallingContext(int methodId,CallingContext parent)
+    {
+        this.methodId = methodId;
+        this.parent = parent;
+    }
+
+    /**
+     * Returns the child node for a callee , creating it if necessary.
+     *
+     * @param calleeId
+     * @return
+     */
+    protected CallingContext getChild(int calleeId)
+    {
+        final CallingContext[] current = children;
+        for ( int i = 0 ; i < childCount ; i++ )
+        {
+            if ( current[i].methodId == calleeId ) {
+                return current[i];
+            }
+        }
+        final CallingContext result = new CallingContext( calleeId , this );
+        if ( childCount == current.length ) {
+            final CallingContext[] copy = Arrays.copyOf( current , Math.max( 4 , childCount * 2 ) );
+            copy[ childCount++ ] = result;
+            children = copy;
+        } else {
+            current[ childCount++ ] = result;
+        }
+        return result;
+    }
+
+    /**
+     * Adds the counters of another tree to this one.
+     *
+     * @param other root of the other tree , must represent the same call path as this node
+     */
+    public void merge(CallingContext other)
+    {
+        invocations += other.invocations;
+        instructions += other.instructions;
+        for ( CallingContext child : other.children )
+        {
+            if ( child == null ) {
+                break;
+            }
+            getChild( child.methodId ).merge( child );
+        }
+    }
+
+    public int getMethodId()
+    {
+        return methodId;
+    }
+
+    public boolean isRoot()
+    {
+        return methodId == ROOT;
+    }
+
+    public CallingContext getParent()
+    {
+        return parent;
+    }
+
+    public long getInvocations()
+    {
+        return invocations;
+    }
+
+    /**
+     * Returns the number of instructions executed by this node's method itself (excluding callees).
+     *
+     * @return
+     */
+    public long getSelfInstructions()
+    {
+        return instructions;
+    }
+
+    /**
+     * Returns the number of instructions executed by this node's method and all its callees.
+     *
+     * @return
+     */
+    public long getTotalInstructions()
+    {
+        long result = instructions;
+        for ( CallingContext child : children )
+        {
+            if ( child == null ) {
+                break;
+            }
+            result += child.getTotalInstructions();
+        }
+        return result;
+    }
+
+    /**
+     * Computes the inclusive instruction count of each method in this tree.
+     *
+     * <p>Nodes whose method already appears on the path from the root are skipped so that
+     * recursive invocations are not counted twice.</p>
+     *
+     * @param result array indexed by method ID the inclusive counts get added to
+     */
+    public void addInclusiveInstructions(long[] result)
+    {
+        addInclusiveInstructions( result , new int[ result.length ] );
+    }
+
+    // returns total instructions of this subtree
+    private long addInclusiveInstructions(long[] result,int[] onPath)
+    {
+        final boolean counted = methodId >= 0 && methodId < result.length;
+        if ( counted ) {
+            onPath[ methodId ]++;
+        }
+        long total = instructions;
+        for ( CallingContext child : getChildren() ) {
+            total += child.addInclusiveInstructions( result , onPath );
+        }
+        if ( counted && --onPath[ methodId ] == 0 ) {
+            result[ methodId ] += total;
+        }
+        return total;
+    }
+
+    /**
+     * Returns a copy of the list of child nodes.
+     *
+     * @return
+     */
+    public CallingContext[] getChildren()
+    {
+        final CallingContext[] current = children;
+        int count = 0;
+        while ( count < current.length && current[count] != null ) {
+            count++;
+        }
+        return Arrays.copyOf( current , count );
+    }
+
+    /**
+     * Writes this tree in 'collapsed stack' format (one line per call path with the
+     * frames separated by ';' , followed by a space and the number of self instructions)
+     * as understood by most flame graph tools.
+     *
+     * <p>Instructions charged to the root node (executed while no frame was on the shadow stack)
+     * are written as frame <code>[unknown]</code>.</p>
+     *
+     * @param writer
+     * @throws IOException
+     */
+    public void writeCollapsedStacks(Writer writer) throws IOException
+    {
+        if ( isRoot() )
+        {
+            if ( instructions > 0 ) {
+                writer.write("[unknown] "+instructions+"\n");
+            }
+            for ( CallingContext child : getChildren() ) {
+                child.writeCollapsedStacks( writer , "" );
+            }
+        } else {
+            writeCollapsedStacks( writer , "" );
+        }
+    }
+
+    private void writeCollapsedStacks(Writer writer,String prefix) throws IOException
+    {
+        final String path = prefix + getFrameName();
+        if ( instructions > 0 ) {
+            writer.write( path+" "+instructions+"\n" );
+        }
+        for ( CallingContext child : getChildren() ) {
+            child.writeCollapsedStacks( writer , path+";" );
+        }
+    }
+
+    private String getFrameName()
+    {
+        if ( methodId < 0 || methodId >= MethodRegistry.getMethodCount() ) {
+            return "[unknown]";
+        }
+        final MethodRegistry.MethodInfo method = MethodRegistry.getMethod( methodId );
+        return method.getClassName()+"."+method.getMethodName();
+    }
+
+    @Override
+    public String toString()
+    {
+        return ( isRoot() ? "<root>" : getFrameName() )+" ("+invocations+" invocations , "+instructions+" self instructions)";
+    }
+}
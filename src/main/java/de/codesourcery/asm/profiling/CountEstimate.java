@@ -0,0 +1,88 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.asm.profiling;
+
+/**
+ * An (estimated) count along with its 95% confidence interval.
+ *
+ * <p>Exact counts have identical value and bounds.</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ * @see StatisticsManager#estimateInvocations(int)
+ * @see StatisticsManager#estimateInstructions(int)
+ */
+public final class CountEstimate
+{
+    private final long value;
+    private final long lowerBound;
+    private final long upperBound;
+    private final boolean exact;
+
+    public CountEstimate(long value,long lowerBound,long upperBound,boolean exact)
+    {
+        if ( lowerBound > value || upperBound < value ) {
+            throw new IllegalArgumentException("Bounds ["+lowerBound+","+upperBound+"] do not contain value "+value);
+        }
+        this.value = value;
+        this.lowerBound = lowerBound;
+        this.upperBound = upperBound;
+        this.exact = exact;
+    }
+
+    public static CountEstimate exact(long value) {
+        return new CountEstimate( value , value , value , true );
+    }
+
+    public long getValue()
+    {
+        return value;
+    }
+
+    public long getLowerBound()
+    {
+        return lowerBound;
+    }
+
+    public long getUpperBound()
+    {
+        return upperBound;
+    }
+
+    /**
+     * Returns whether this count has been measured exactly.
+     *
+     * <p>Note that extrapolated counts without known error bounds (see {@link MethodRegistry.Mode#ENTRY_ONLY})
+     * are not exact but have identical value and bounds.</p>
+     *
+     * @return
+     */
+    public boolean isExact()
+    {
+        return exact;
+    }
+
+    @Override
+    public String toString()
+    {
+        if ( exact ) {
+            return Long.toString( value );
+        }
+        if ( lowerBound == upperBound ) {
+            return "~"+value;
+        }
+        return "~"+value+" ["+lowerBound+" .. "+upperBound+"]";
+    }
+}
@@ -0,0 +1,241 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.asm.profiling;
+
+import java.util.Arrays;
+
+/**
+ * The per-thread counter arrays of {@link ExecutionStatistics} that are summed element-wise over all threads.
+ *
+ * <p>Each kind knows the array it lives in , how many counters are currently registered and how many counters
+ * one registered entity (method , site , loop , block...) owns , so growing the arrays and adding them up works
+ * the same for all kinds. Path counters and receiver type caches are not plain sums and therefore not included.</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ * @see StatisticsManager#getCounters(CounterKind)
+ * @see ThreadStatisticsRegistry.Bucket#getCounters(CounterKind)
+ */
+public enum CounterKind
+{
+    /**
+     * {@link ExecutionStatistics#methodCounters}.
+     */
+    METHODS( ExecutionStatistics.METHOD_COUNTER_SLOTS ) 
+    {
+        @Override
+        public long[] get(ExecutionStatistics stat) {
+            return stat.methodCounters;
+        }
+
+        @Override
+        protected void set(ExecutionStatistics stat,long[] counters) {
+            stat.methodCounters = counters;
+        }
+
+        @Override
+        public int getCounterCount() {
+            return MethodRegistry.getMethodCount() * ExecutionStatistics.METHOD_COUNTER_SLOTS;
+        }
+    },
+    /**
+     * {@link ExecutionStatistics#allocationCounters}.
+     */
+    ALLOCATIONS( AllocationSiteRegistry.LENGTH_BUCKETS ) 
+    {
+        @Override
+        public long[] get(ExecutionStatistics stat) {
+            return stat.allocationCounters;
+        }
+
+        @Override
+        protected void set(ExecutionStatistics stat,long[] counters) {
+            stat.allocationCounters = counters;
+        }
+
+        @Override
+        public int getCounterCount() {
+            return AllocationSiteRegistry.getCounterCount();
+        }
+    },
+    /**
+     * {@link ExecutionStatistics#monitorCounters}.
+     */
+    MONITORS( MonitorSiteRegistry.COUNTER_SLOTS ) 
+    {
+        @Override
+        public long[] get(ExecutionStatistics stat) {
+            return stat.monitorCounters;
+        }
+
+        @Override
+        protected void set(ExecutionStatistics stat,long[] counters) {
+            stat.monitorCounters = counters;
+        }
+
+        @Override
+        public int getCounterCount() {
+            return MonitorSiteRegistry.getSiteCount() * MonitorSiteRegistry.COUNTER_SLOTS;
+        }
+    },
+    /**
+     * {@link ExecutionStatistics#fieldAccessCounters}.
+     */
+    FIELD_ACCESSES( 1 ) 
+    {
+        @Override
+        public long[] get(ExecutionStatistics stat) {
+            return stat.fieldAccessCounters;
+        }
+
+        @Override
+        protected void set(ExecutionStatistics stat,long[] counters) {
+            stat.fieldAccessCounters = counters;
+        }
+
+        @Override
+        public int getCounterCount() {
+            return FieldAccessRegistry.getBlockCount();
+        }
+    },
+    /**
+     * {@link ExecutionStatistics#lineCounters}.
+     */
+    LINES( 1 ) 
+    {
+        @Override
+        public long[] get(ExecutionStatistics stat) {
+            return stat.lineCounters;
+        }
+
+        @Override
+        protected void set(ExecutionStatistics stat,long[] counters) {
+            stat.lineCounters = counters;
+        }
+
+        @Override
+        public int getCounterCount() {
+            return LineRegistry.getBlockCount();
+        }
+    },
+    /**
+     * {@link ExecutionStatistics#exceptionCounters}.
+     */
+    EXCEPTIONS( 1 ) 
+    {
+        @Override
+        public long[] get(ExecutionStatistics stat) {
+            return stat.exceptionCounters;
+        }
+
+        @Override
+        protected void set(ExecutionStatistics stat,long[] counters) {
+            stat.exceptionCounters = counters;
+        }
+
+        @Override
+        public int getCounterCount() {
+            return ExceptionSiteRegistry.getCounterCount();
+        }
+    },
+    /**
+     * {@link ExecutionStatistics#loopCounters}.
+     */
+    LOOPS( LoopRegistry.COUNTER_SLOTS ) 
+    {
+        @Override
+        public long[] get(ExecutionStatistics stat) {
+            return stat.loopCounters;
+        }
+
+        @Override
+        protected void set(ExecutionStatistics stat,long[] counters) {
+            stat.loopCounters = counters;
+        }
+
+        @Override
+        public int getCounterCount() {
+            return LoopRegistry.getLoopCount() * LoopRegistry.COUNTER_SLOTS;
+        }
+    };
+
+    // number of entities arrays get grown by in addition to the currently registered ones
+    private static final int HEADROOM = 16;
+
+    private final int slotWidth;
+
+    private CounterKind(int slotWidth) {
+        this.slotWidth = slotWidth;
+    }
+
+    /**
+     * Returns a thread's counter array of this kind.
+     * 
+     * @param stat
+     * @return
+     */
+    public abstract long[] get(ExecutionStatistics stat);
+
+    protected abstract void set(ExecutionStatistics stat,long[] counters);
+
+    /**
+     * Returns the number of counters of all entities registered so far.
+     * 
+     * @return
+     */
+    public abstract int getCounterCount();
+
+    /**
+     * Returns the (max.) number of counters owned by one registered entity.
+     * 
+     * @return
+     */
+    public int getSlotWidth() {
+        return slotWidth;
+    }
+
+    /**
+     * Make sure a thread's counter array of this kind has a given minimum size.
+     * 
+     * <p>Must only be called by the thread owning the statistics , the array gets replaced by a larger copy
+     * that also has room for the entities registered so far plus some more.</p>
+     * 
+     * @param stat
+     * @param required
+     */
+    public void ensureCapacity(ExecutionStatistics stat,int required)
+    {
+        final long[] counters = get( stat );
+        if ( counters.length < required ) 
+        {
+            final int newSize = Math.max( required , getCounterCount() + HEADROOM * slotWidth );
+            set( stat , Arrays.copyOf( counters , newSize ) );
+        }
+    }
+
+    /**
+     * Adds counters to another array , element by element.
+     * 
+     * @param result array to add to , counters beyond its length are ignored
+     * @param counters
+     */
+    public static void add(long[] result,long[] counters)
+    {
+        final int len = Math.min( counters.length , result.length );
+        for ( int i = 0 ; i < len ; i++ ) {
+            result[i] += counters[i];
+        }
+    }
+}
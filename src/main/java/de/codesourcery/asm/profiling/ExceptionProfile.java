@@ -0,0 +1,197 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.asm.profiling;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import de.codesourcery.asm.profiling.ExceptionSiteRegistry.ExceptionSite;
+
+/**
+ * Snapshot of the number of exceptions thrown (<code>ATHROW</code> instructions) and caught (exception handlers) per site
+ * and exception type (summed over all threads).
+ *
+ * <p>Only exceptions thrown by instrumented <code>ATHROW</code> instructions are counted as thrown , exceptions raised by the JVM 
+ * (<code>NullPointerException</code> , ...) or by uninstrumented code only show up when an instrumented handler catches them. Since 
+ * <code>finally</code> blocks are compiled to handlers that catch any exception and re-throw it , exceptions passing through them 
+ * are counted at these handlers (and at their <code>ATHROW</code>) as well.</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ * @see StatisticsManager#getExceptionProfile()
+ */
+public final class ExceptionProfile
+{
+    private final List<Entry> entries;
+
+    /**
+     * Number of exceptions of a given type thrown or caught at a site.
+     *
+     * @author tobias.gierke@code-sourcery.de
+     */
+    public static final class Entry
+    {
+        private final ExceptionSite site;
+        private final String exceptionType;
+        private final long count;
+        private final boolean estimated;
+
+        public Entry(ExceptionSite site, String exceptionType, long count, boolean estimated)
+        {
+            this.site = site;
+            this.exceptionType = exceptionType;
+            this.count = count;
+            this.estimated = estimated;
+        }
+
+        public ExceptionSite getSite()
+        {
+            return site;
+        }
+
+        /**
+         * Returns the name of the exception class.
+         *
+         * @return
+         */
+        public String getExceptionType()
+        {
+            return exceptionType;
+        }
+
+        public long getCount()
+        {
+            return count;
+        }
+
+        /**
+         * Returns whether the count has been extrapolated (site is in a sampled method).
+         *
+         * @return
+         */
+        public boolean isEstimated()
+        {
+            return estimated;
+        }
+    }
+
+    public ExceptionProfile(List<Entry> entries)
+    {
+        final List<Entry> sorted = new ArrayList<>( entries );
+        Collections.sort( sorted , new Comparator<Entry>() {
+
+            @Override
+            public int compare(Entry o1, Entry o2)
+            {
+                return Long.compare( o2.count , o1.count );
+            }
+        });
+        this.entries = Collections.unmodifiableList( sorted );
+    }
+
+    /**
+     * Returns the counts per site and exception type , sorted descending by count.
+     *
+     * @return
+     */
+    public List<Entry> getEntries()
+    {
+        return entries;
+    }
+
+    /**
+     * Returns the total number of exceptions thrown by instrumented <code>ATHROW</code> instructions.
+     *
+     * @return
+     */
+    public long getThrowCount()
+    {
+        long result = 0;
+        for ( Entry e : entries ) 
+        {
+            if ( ! e.site.isHandler() ) {
+                result += e.count;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the total number of exceptions caught by instrumented exception handlers.
+     *
+     * @return
+     */
+    public long getCatchCount()
+    {
+        long result = 0;
+        for ( Entry e : entries ) 
+        {
+            if ( e.site.isHandler() ) {
+                result += e.count;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Prints the sites with the most thrown/caught exceptions , along with the exception types seen at each site.
+     *
+     * @param out
+     * @param maxSites
+     */
+    public void print(PrintStream out,int maxSites)
+    {
+        // group by site , keeping the order by count
+        final Map<ExceptionSite,List<Entry>> bySite = new LinkedHashMap<>();
+        final Map<ExceptionSite,Long> totals = new LinkedHashMap<>();
+        for ( Entry e : entries ) 
+        {
+            List<Entry> list = bySite.get( e.site );
+            if ( list == null ) {
+                list = new ArrayList<>();
+                bySite.put( e.site , list );
+                totals.put( e.site , 0L );
+            }
+            list.add( e );
+            totals.put( e.site , totals.get( e.site ) + e.count );
+        }
+        final List<ExceptionSite> sites = new ArrayList<>( bySite.keySet() );
+        Collections.sort( sites , new Comparator<ExceptionSite>() {
+
+            @Override
+            public int compare(ExceptionSite o1, ExceptionSite o2)
+            {
+                return Long.compare( totals.get( o2 ) , totals.get( o1 ) );
+            }
+        });
+
+        out.println( "Thrown: "+getThrowCount()+" , caught: "+getCatchCount() );
+        out.println();
+        out.println( String.format("%16s  %s" , "Count" , "Site / exception type" ) );
+        for ( ExceptionSite site : sites.subList( 0 , Math.min( maxSites , sites.size() ) ) )
+        {
+            final String prefix = site.isSampled() ? "~" : "";
+            out.println( String.format("%16s  %s" , prefix+totals.get( site ) , site ) );
+            for ( Entry e : bySite.get( site ) ) {
+                out.println( String.format("%16s    %s" , prefix+e.count , e.exceptionType ) );
+            }
+        }
+    }
+}
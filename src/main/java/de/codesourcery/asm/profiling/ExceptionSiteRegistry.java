@@ -0,0 +1,312 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.asm.profiling;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import de.codesourcery.asm.rewrite.ProfilingRewriter;
+
+/**
+ * Keeps track of <code>ATHROW</code> instructions and exception handlers in instrumented methods along with
+ * the exception types seen at each of them.
+ *
+ * <p>Sites are registered by the {@link ProfilingRewriter} while rewriting a class , their IDs are baked into the generated byte-code.
+ * Since the exception types are only known at runtime , a counter index is assigned lazily to each (site , exception class) pair
+ * when an exception of this class is thrown/caught at the site for the first time , these indices are used to index
+ * {@link ExecutionStatistics#exceptionCounters}. Re-registering a site (for example when its class gets re-transformed) always
+ * yields the same ID.</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ * @see StatisticsManager#getExceptionProfile()
+ */
+public final class ExceptionSiteRegistry
+{
+    /**
+     * Catch type of handlers that catch any exception (<code>finally</code> blocks).
+     */
+    public static final String ANY = "any";
+
+    /**
+     * A registered <code>ATHROW</code> instruction or exception handler.
+     *
+     * @author tobias.gierke@code-sourcery.de
+     */
+    public static final class ExceptionSite
+    {
+        private final int id;
+        private final int methodId;
+        private final int instructionIndex;
+        private final int lineNumber;
+        private final String catchTypes;
+        private final boolean sampled;
+
+        // copy-on-write , guarded by LOCK
+        private volatile Class<?>[] types = new Class<?>[0];
+        private volatile int[] counterIndices = new int[0];
+
+        protected ExceptionSite(int id, int methodId, int instructionIndex, int lineNumber, String catchTypes, boolean sampled)
+        {
+            this.id = id;
+            this.methodId = methodId;
+            this.instructionIndex = instructionIndex;
+            this.lineNumber = lineNumber;
+            this.catchTypes = catchTypes;
+            this.sampled = sampled;
+        }
+
+        public int getId()
+        {
+            return id;
+        }
+
+        /**
+         * Returns the ID of the method containing this site.
+         *
+         * @return
+         * @see MethodRegistry
+         */
+        public int getMethodId()
+        {
+            return methodId;
+        }
+
+        /**
+         * Returns the index of the <code>ATHROW</code> instruction or first instruction of the handler within the (uninstrumented) method.
+         *
+         * @return
+         */
+        public int getInstructionIndex()
+        {
+            return instructionIndex;
+        }
+
+        /**
+         * Returns the source line number.
+         *
+         * @return line number or -1 if the class has no line number information
+         */
+        public int getLineNumber()
+        {
+            return lineNumber;
+        }
+
+        /**
+         * Returns whether this site is an exception handler.
+         *
+         * @return <code>true</code> for exception handlers , <code>false</code> for <code>ATHROW</code> instructions
+         */
+        public boolean isHandler()
+        {
+            return catchTypes != null;
+        }
+
+        /**
+         * Returns the exception types caught by this handler.
+         *
+         * @return internal class names separated by '|' (or {@link ExceptionSiteRegistry#ANY}) , <code>null</code> for <code>ATHROW</code> instructions
+         */
+        public String getCatchTypes()
+        {
+            return catchTypes;
+        }
+
+        /**
+         * Returns whether this site is part of the instrumented copy of a sampled method , so its
+         * counts only cover the sampled executions.
+         *
+         * @return
+         * @see MethodRegistry.Mode#SAMPLED
+         */
+        public boolean isSampled()
+        {
+            return sampled;
+        }
+
+        /**
+         * Returns the counter index for an exception class , assigning a new index if this class has not been
+         * seen at this site before.
+         *
+         * @param type
+         * @return index into {@link ExecutionStatistics#exceptionCounters}
+         */
+        public int getCounterIndex(Class<?> type)
+        {
+            final Class<?>[] known = types;
+            for ( int i = 0 ; i < known.length ; i++ ) 
+            {
+                if ( known[i] == type ) {
+                    return counterIndices[i];
+                }
+            }
+            return assignCounterIndex( this , type );
+        }
+
+        @Override
+        public String toString()
+        {
+            final String location = MethodRegistry.getMethod( methodId )+( lineNumber >= 0 ? ":"+lineNumber : "" )+" @ "+instructionIndex;
+            return ( isHandler() ? "catch ("+catchTypes.replace('/','.')+")" : "ATHROW" )+" in "+location;
+        }
+    }
+
+    private static final Object LOCK = new Object();
+
+    // guarded by LOCK
+    private static final Map<String,ExceptionSite> sitesByKey = new HashMap<>();
+
+    // copy-on-write , indexed by site ID
+    private static volatile ExceptionSite[] sites = new ExceptionSite[0];
+
+    // copy-on-write , indexed by counter index
+    private static volatile ExceptionSite[] counterSites = new ExceptionSite[0];
+    private static volatile Class<?>[] counterTypes = new Class<?>[0];
+
+    private ExceptionSiteRegistry() {
+    }
+
+    /**
+     * Registers an <code>ATHROW</code> instruction.
+     *
+     * @param methodId ID of the method containing the site
+     * @param instructionIndex index of the instruction within the method
+     * @param lineNumber source line number or -1
+     * @param sampled whether the site is part of the instrumented copy of a sampled method
+     * @return the site's ID
+     */
+    public static int registerThrow(int methodId,int instructionIndex,int lineNumber,boolean sampled)
+    {
+        return register( methodId , instructionIndex , lineNumber , null , sampled );
+    }
+
+    /**
+     * Registers an exception handler.
+     *
+     * @param methodId ID of the method containing the handler
+     * @param instructionIndex index of the handler's first instruction within the method
+     * @param lineNumber source line number or -1
+     * @param catchTypes internal names of the caught exception types separated by '|' or {@link #ANY}
+     * @param sampled whether the site is part of the instrumented copy of a sampled method
+     * @return the site's ID
+     */
+    public static int registerHandler(int methodId,int instructionIndex,int lineNumber,String catchTypes,boolean sampled)
+    {
+        if ( catchTypes == null ) {
+            throw new IllegalArgumentException("Catch types must not be NULL");
+        }
+        return register( methodId , instructionIndex , lineNumber , catchTypes , sampled );
+    }
+
+    private static int register(int methodId,int instructionIndex,int lineNumber,String catchTypes,boolean sampled)
+    {
+        final String key = methodId+"@"+instructionIndex+"#"+catchTypes+( sampled ? "#sampled" : "" );
+        synchronized( LOCK )
+        {
+            ExceptionSite existing = sitesByKey.get( key );
+            if ( existing == null )
+            {
+                final ExceptionSite[] newSites = Arrays.copyOf( sites , sites.length + 1 );
+                existing = new ExceptionSite( sites.length , methodId , instructionIndex , lineNumber , catchTypes , sampled );
+                newSites[ existing.getId() ] = existing;
+                sitesByKey.put( key , existing );
+                sites = newSites;
+            }
+            return existing.getId();
+        }
+    }
+
+    private static int assignCounterIndex(ExceptionSite site,Class<?> type)
+    {
+        synchronized( LOCK )
+        {
+            final Class<?>[] known = site.types;
+            for ( int i = 0 ; i < known.length ; i++ ) 
+            {
+                if ( known[i] == type ) {
+                    return site.counterIndices[i];
+                }
+            }
+            final int index = counterSites.length;
+            final ExceptionSite[] newCounterSites = Arrays.copyOf( counterSites , index + 1 );
+            final Class<?>[] newCounterTypes = Arrays.copyOf( counterTypes , index + 1 );
+            newCounterSites[ index ] = site;
+            newCounterTypes[ index ] = type;
+            counterTypes = newCounterTypes;
+            counterSites = newCounterSites;
+
+            final int[] newIndices = Arrays.copyOf( site.counterIndices , known.length + 1 );
+            final Class<?>[] newTypes = Arrays.copyOf( known , known.length + 1 );
+            newIndices[ known.length ] = index;
+            newTypes[ known.length ] = type;
+            site.counterIndices = newIndices;
+            site.types = newTypes; // publish last so readers never see a type without its counter index
+            return index;
+        }
+    }
+
+    /**
+     * Returns a site by ID.
+     *
+     * @param id
+     * @return
+     * @throws ArrayIndexOutOfBoundsException if no site with this ID has been registered
+     */
+    public static ExceptionSite getSite(int id) throws ArrayIndexOutOfBoundsException {
+        return sites[id];
+    }
+
+    /**
+     * Returns the number of registered sites.
+     *
+     * <p>Since IDs are dense, this is also the largest site ID plus one.</p>
+     * @return
+     */
+    public static int getSiteCount() {
+        return sites.length;
+    }
+
+    /**
+     * Returns the number of assigned counter indices.
+     *
+     * @return
+     */
+    public static int getCounterCount() {
+        return counterSites.length;
+    }
+
+    /**
+     * Returns the site a counter index belongs to.
+     *
+     * @param index
+     * @return
+     * @throws ArrayIndexOutOfBoundsException if no such counter index has been assigned
+     */
+    public static ExceptionSite getCounterSite(int index) throws ArrayIndexOutOfBoundsException {
+        return counterSites[index];
+    }
+
+    /**
+     * Returns the exception class a counter index belongs to.
+     *
+     * @param index
+     * @return
+     * @throws ArrayIndexOutOfBoundsException if no such counter index has been assigned
+     */
+    public static Class<?> getCounterType(int index) throws ArrayIndexOutOfBoundsException {
+        return counterTypes[index];
+    }
+}
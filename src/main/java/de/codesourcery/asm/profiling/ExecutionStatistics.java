@@ -15,27 +15,251 @@
  */
 package de.codesourcery.asm.profiling;
 
+import java.util.Arrays;
+
 import de.codesourcery.asm.rewrite.ProfilingRewriter;
 
 /**
  * Thread-local used to keep track of per-thread execution statistics.
- * 
- * <p>Right now this class only tracks the number of executed instructions.</p>
- * 
+ *
+ * <p>Right now this class tracks the number of executed instructions and
+ * per-method invocation/probe/instruction counts.</p>
+ *
  * @author tobias.gierke@code-sourcery.de
- * @see ProfilingRewriter 
+ * @see ProfilingRewriter
  */
 public class ExecutionStatistics
 {
+    /**
+     * Number of counters per method in {@link #methodCounters}.
+     */
+    public static final int METHOD_COUNTER_SLOTS = 3;
+
+    /**
+     * Offset of the invocation counter within a method's counters.
+     */
+    public static final int SLOT_INVOCATIONS = 0;
+
+    /**
+     * Offset of the counter for the number of executed probes within a method's counters.
+     */
+    public static final int SLOT_PROBES = 1;
+
+    /**
+     * Offset of the executed instruction counter within a method's counters.
+     */
+    public static final int SLOT_INSTRUCTIONS = 2;
+
+    /**
+     * Number of receiver classes cached per call site in {@link #receiverClasses}.
+     */
+    public static final int RECEIVER_SLOTS = 4;
+
     /**
      * Number of instructions executed on the current thread.
-     * 
+     *
      * <p>For performance reasons this value is always initialized with
      * -{@link StatisticsManager#GRANULARITY} and then incremented. Whenever
      * it reaches a positive value, a call to {@link StatisticsManager#account()}
      * is triggered.</p>
-     * 
+     *
      * @see ProfilingRewriter
      */
     public int executedInstructionCount=-StatisticsManager.GRANULARITY;
+
+    /**
+     * Total number of instructions executed by the owning thread , updated by {@link StatisticsManager#account()}.
+     */
+    protected long executedInstructions;
+
+    /**
+     * Per-method counters, indexed by <code>( {@link MethodRegistry method ID} * {@link #METHOD_COUNTER_SLOTS} ) + SLOT_xxx</code>.
+     *
+     * <p>Only ever written by the owning thread, the array gets replaced by a larger copy when methods with
+     * higher IDs get executed.</p>
+     *
+     * @see #SLOT_INVOCATIONS
+     * @see #SLOT_PROBES
+     * @see #SLOT_INSTRUCTIONS
+     */
+    public long[] methodCounters;
+
+    /**
+     * Number of executed instructions per {@link OpcodeClass} , indexed by {@link OpcodeClass#ordinal()}.
+     * 
+     * <p>Only updated by generated byte-code if the opcode histogram is enabled.</p>
+     * 
+     * @see StatisticsManager#setOpcodeHistogram(boolean)
+     */
+    public long[] opcodeHistogram;
+
+    /**
+     * Per-allocation-site counters , each site owns the range starting at {@link AllocationSiteRegistry.AllocationSite#getCounterOffset()}.
+     * 
+     * <p>Only written by the owning thread , the array gets replaced by a larger copy when sites with
+     * higher offsets allocate.</p>
+     * 
+     * @see StatisticsManager#setAllocationProfiling(boolean)
+     */
+    public long[] allocationCounters;
+
+    /**
+     * Per-call-site receiver class caches , indexed by <code>( {@link CallSiteRegistry call site ID} * {@link #RECEIVER_SLOTS} ) + slot</code>.
+     * 
+     * <p>Slots are filled in the order receiver classes are first seen , unused slots are <code>null</code>.</p>
+     * 
+     * @see StatisticsManager#setReceiverTypeProfiling(boolean)
+     */
+    public Class<?>[] receiverClasses;
+
+    /**
+     * Per-call-site call counts , indexed by <code>( {@link CallSiteRegistry call site ID} * ( {@link #RECEIVER_SLOTS} + 1 ) ) + slot</code> ,
+     * the last counter of each site counts calls whose receiver class did not fit into {@link #receiverClasses}.
+     */
+    public long[] receiverCounters;
+
+    /**
+     * Per-monitor-site counters , indexed by <code>( {@link MonitorSiteRegistry site ID} * {@link MonitorSiteRegistry#COUNTER_SLOTS} ) + SLOT_xxx</code>.
+     * 
+     * @see StatisticsManager#setMonitorProfiling(boolean)
+     */
+    public long[] monitorCounters;
+
+    /**
+     * Number of executions per field-accessing basic block , indexed by {@link FieldAccessRegistry.Block#getId() block ID}.
+     * 
+     * @see StatisticsManager#setFieldAccessProfiling(boolean)
+     */
+    public long[] fieldAccessCounters;
+
+    /**
+     * Number of executions per basic block with source line information , indexed by {@link LineRegistry.Block#getId() block ID}.
+     * 
+     * @see StatisticsManager#setLineProfiling(boolean)
+     */
+    public long[] lineCounters;
+
+    /**
+     * Number of exceptions thrown/caught per site and exception type , indexed by {@link ExceptionSiteRegistry.ExceptionSite#getCounterIndex(Class) counter index}.
+     * 
+     * @see StatisticsManager#setExceptionProfiling(boolean)
+     */
+    public long[] exceptionCounters;
+
+    /**
+     * Per-loop counters , indexed by <code>( {@link LoopRegistry loop ID} * {@link LoopRegistry#COUNTER_SLOTS} ) + SLOT_xxx</code>.
+     * 
+     * @see StatisticsManager#setLoopProfiling(boolean)
+     */
+    public long[] loopCounters;
+
+    /**
+     * Per-method path counters , each method owns the range starting at {@link PathRegistry.PathMethod#getCounterOffset()}.
+     * 
+     * @see StatisticsManager#setPathProfiling(boolean)
+     */
+    public long[] pathCounters;
+
+    /**
+     * Number of sampling checks left until the next sample burst starts.
+     * 
+     * <p>Decremented by generated byte-code of methods instrumented in {@link MethodRegistry.Mode#SAMPLED} mode
+     * at method entry and on each backward jump, {@link StatisticsManager#sample(ExecutionStatistics)} is called
+     * once this value reaches zero.</p>
+     */
+    public int sampleCountdown = 1;
+
+    /**
+     * Number of checks left in the current sample burst.
+     * 
+     * @see StatisticsManager#sample(ExecutionStatistics)
+     */
+    protected int burstRemaining;
+
+    /**
+     * Index of this thread's slot in the {@link PerfDataFile} , 
+     * {@link #NO_PERF_SLOT} if not allocated yet or {@link #PERF_SLOTS_EXHAUSTED}.
+     */
+    protected int perfSlot = NO_PERF_SLOT;
+
+    protected static final int NO_PERF_SLOT = -1;
+    protected static final int PERF_SLOTS_EXHAUSTED = -2;
+
+    /**
+     * Scope currently active on the owning thread (may be <code>null</code>).
+     * 
+     * @see StatisticsManager#activateScope(AccountingScope)
+     */
+    protected AccountingScope scope;
+
+    /**
+     * Number of instructions executed by the owning thread (including instructions not
+     * accounted yet) when {@link #scope} became active.
+     */
+    protected long scopeStart;
+
+    /**
+     * Root of the owning thread's calling context tree , <code>null</code> until the first frame gets pushed.
+     * 
+     * @see StatisticsManager#setCallStackTracking(boolean)
+     */
+    protected CallingContext callTree;
+
+    /**
+     * Calling context on top of the shadow stack , instructions get charged to this node.
+     */
+    protected CallingContext callingContext;
+
+    /**
+     * Number of frames on the shadow stack.
+     */
+    protected int callStackDepth;
+
+    // zero-length arrays are immutable and can be shared by all instances
+    private static final long[] NO_COUNTERS = new long[0];
+    private static final Class<?>[] NO_CLASSES = new Class<?>[0];
+
+    public ExecutionStatistics()
+    {
+        this.opcodeHistogram = new long[ OpcodeClass.count() ];
+        this.methodCounters = NO_COUNTERS;
+        this.allocationCounters = NO_COUNTERS;
+        this.receiverClasses = NO_CLASSES;
+        this.receiverCounters = NO_COUNTERS;
+        this.monitorCounters = NO_COUNTERS;
+        this.fieldAccessCounters = NO_COUNTERS;
+        this.lineCounters = NO_COUNTERS;
+        this.exceptionCounters = NO_COUNTERS;
+        this.loopCounters = NO_COUNTERS;
+        this.pathCounters = NO_COUNTERS;
+    }
+
+    /**
+     * Make sure {@link #receiverClasses} and {@link #receiverCounters} can hold the cache of a given call site.
+     * 
+     * @param siteId
+     */
+    protected void ensureReceiverCapacity(int siteId)
+    {
+        if ( receiverClasses.length < ( siteId + 1 ) * RECEIVER_SLOTS )
+        {
+            final int sites = Math.max( siteId + 1 , CallSiteRegistry.getSiteCount() + 16 );
+            receiverClasses = Arrays.copyOf( receiverClasses , sites * RECEIVER_SLOTS );
+            receiverCounters = Arrays.copyOf( receiverCounters , sites * ( RECEIVER_SLOTS + 1 ) );
+        }
+    }
+
+    /**
+     * Make sure {@link #pathCounters} has a given minimum size.
+     * 
+     * @param required
+     */
+    protected void ensurePathCapacity(int required)
+    {
+        if ( pathCounters.length < required )
+        {
+            final int newSize = Math.max( required , PathRegistry.getCounterCount() + 1024 );
+            pathCounters = Arrays.copyOf( pathCounters , newSize );
+        }
+    }
 }
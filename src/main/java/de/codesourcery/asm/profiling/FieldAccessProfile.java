@@ -0,0 +1,416 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.asm.profiling;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import de.codesourcery.asm.profiling.FieldAccessRegistry.Block;
+import de.codesourcery.asm.profiling.FieldAccessRegistry.Field;
+
+/**
+ * Field read/write counts and co-access counts (summed over all threads) , along with suggestions for
+ * field layout changes.
+ *
+ * <p>Two fields are considered <i>co-accessed</i> whenever a basic block that accesses both of them gets executed. Since counts
+ * are derived from block executions , accesses in blocks left early through an exception are still counted.</p>
+ * 
+ * <p>Layout suggestions are heuristics that only consider fields accessed by instrumented code , fields that were never accessed
+ * do not show up at all:
+ * <ul>
+ *   <li>hot/cold splitting: fields of a class that see less than {@link #COLD_RATIO} of the accesses of the class's hottest field</li>
+ *   <li>grouping: pairs of hot fields of the same class that are accessed together in at least {@link #GROUP_RATIO} of the block executions 
+ *   touching either of them</li>
+ *   <li>false sharing: frequently written fields that share a class with hot read-mostly fields they are rarely accessed together with 
+ *   (whether instances are actually shared between threads is not known)</li>
+ * </ul>
+ * </p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ * @see StatisticsManager#getFieldAccessProfile()
+ */
+public final class FieldAccessProfile
+{
+    /**
+     * Fields with fewer accesses than this fraction of the hottest field of the same class are considered cold.
+     */
+    public static final double COLD_RATIO = 0.01;
+
+    /**
+     * Minimum fraction of co-accesses for suggesting to keep two fields together.
+     */
+    public static final double GROUP_RATIO = 0.5;
+
+    // max. fraction of co-accesses for reporting false-sharing candidates
+    private static final double FALSE_SHARING_RATIO = 0.1;
+
+    // min. fraction of writes among all accesses to consider a field write-heavy
+    private static final double WRITE_HEAVY_RATIO = 0.1;
+
+    private final List<FieldEntry> fields;
+    private final List<Pair> pairs;
+    private final Map<Integer,FieldEntry> fieldsById = new HashMap<>();
+
+    /**
+     * Access counts of a single field.
+     *
+     * @author tobias.gierke@code-sourcery.de
+     */
+    public static final class FieldEntry
+    {
+        private final Field field;
+        private long reads;
+        private long writes;
+        private long blockExecutions;
+        private boolean estimated;
+
+        protected FieldEntry(Field field)
+        {
+            this.field = field;
+        }
+
+        public Field getField()
+        {
+            return field;
+        }
+
+        public long getReads()
+        {
+            return reads;
+        }
+
+        public long getWrites()
+        {
+            return writes;
+        }
+
+        public long getAccesses()
+        {
+            return reads + writes;
+        }
+
+        /**
+         * Returns the number of block executions that accessed this field (at least once).
+         *
+         * @return
+         */
+        public long getBlockExecutions()
+        {
+            return blockExecutions;
+        }
+
+        /**
+         * Returns whether the counts have been (partially) extrapolated from sampled methods.
+         *
+         * @return
+         */
+        public boolean isEstimated()
+        {
+            return estimated;
+        }
+    }
+
+    /**
+     * Two fields accessed by the same basic block.
+     *
+     * @author tobias.gierke@code-sourcery.de
+     */
+    public static final class Pair
+    {
+        private final FieldEntry first;
+        private final FieldEntry second;
+        private long coAccesses;
+
+        protected Pair(FieldEntry first, FieldEntry second)
+        {
+            this.first = first;
+            this.second = second;
+        }
+
+        public FieldEntry getFirst()
+        {
+            return first;
+        }
+
+        public FieldEntry getSecond()
+        {
+            return second;
+        }
+
+        /**
+         * Returns the number of block executions that accessed both fields.
+         *
+         * @return
+         */
+        public long getCoAccesses()
+        {
+            return coAccesses;
+        }
+
+        /**
+         * Returns the fraction of block executions touching either field that touched both.
+         *
+         * @return ratio between 0 and 1
+         */
+        public double getCoAccessRatio()
+        {
+            final long min = Math.min( first.blockExecutions , second.blockExecutions );
+            return min == 0 ? 0 : Math.min( 1.0 , coAccesses / (double) min );
+        }
+
+        /**
+         * Returns whether both fields belong to the same class (and are both static or both instance fields).
+         *
+         * @return
+         */
+        public boolean isSameLayout()
+        {
+            return first.field.getOwner().equals( second.field.getOwner() ) && first.field.isStatic() == second.field.isStatic();
+        }
+
+        private boolean contains(FieldEntry e1,FieldEntry e2) {
+            return ( first == e1 && second == e2 ) || ( first == e2 && second == e1 );
+        }
+    }
+
+    /**
+     * Create profile.
+     * 
+     * @param blockCounters number of executions per block , layout is identical to {@link ExecutionStatistics#fieldAccessCounters}
+     * @param samplingScale factor to scale counts of blocks in sampled methods with
+     */
+    public FieldAccessProfile(long[] blockCounters,double samplingScale)
+    {
+        final Map<Long,Pair> pairsByKey = new HashMap<>();
+        final int blockCount = Math.min( blockCounters.length , FieldAccessRegistry.getBlockCount() );
+        for ( int id = 0 ; id < blockCount ; id++ ) 
+        {
+            if ( blockCounters[id] == 0 ) {
+                continue;
+            }
+            final Block block = FieldAccessRegistry.getBlock( id );
+            final double scale = block.isSampled() ? samplingScale : 1;
+            final long executions = Math.round( blockCounters[id] * scale );
+            for ( int i = 0 ; i < block.getFieldCount() ; i++ ) 
+            {
+                final FieldEntry entry = getOrCreate( block.getFieldId( i ) );
+                entry.reads += executions * block.getReads( i );
+                entry.writes += executions * block.getWrites( i );
+                entry.blockExecutions += executions;
+                entry.estimated |= block.isSampled();
+
+                for ( int j = i + 1 ; j < block.getFieldCount() ; j++ ) 
+                {
+                    final int id1 = Math.min( block.getFieldId( i ) , block.getFieldId( j ) );
+                    final int id2 = Math.max( block.getFieldId( i ) , block.getFieldId( j ) );
+                    final Long key = ( (long) id1 << 32 ) | id2;
+                    Pair pair = pairsByKey.get( key );
+                    if ( pair == null ) {
+                        pair = new Pair( getOrCreate( id1 ) , getOrCreate( id2 ) );
+                        pairsByKey.put( key , pair );
+                    }
+                    pair.coAccesses += executions;
+                }
+            }
+        }
+
+        final List<FieldEntry> sortedFields = new ArrayList<>( fieldsById.values() );
+        Collections.sort( sortedFields , new Comparator<FieldEntry>() {
+
+            @Override
+            public int compare(FieldEntry o1, FieldEntry o2)
+            {
+                return Long.compare( o2.getAccesses() , o1.getAccesses() );
+            }
+        });
+        this.fields = Collections.unmodifiableList( sortedFields );
+
+        final List<Pair> sortedPairs = new ArrayList<>( pairsByKey.values() );
+        Collections.sort( sortedPairs , new Comparator<Pair>() {
+
+            @Override
+            public int compare(Pair o1, Pair o2)
+            {
+                return Long.compare( o2.coAccesses , o1.coAccesses );
+            }
+        });
+        this.pairs = Collections.unmodifiableList( sortedPairs );
+    }
+
+    private FieldEntry getOrCreate(int fieldId) 
+    {
+        FieldEntry result = fieldsById.get( fieldId );
+        if ( result == null ) {
+            result = new FieldEntry( FieldAccessRegistry.getField( fieldId ) );
+            fieldsById.put( fieldId , result );
+        }
+        return result;
+    }
+
+    /**
+     * Returns all accessed fields , sorted descending by number of accesses.
+     *
+     * @return
+     */
+    public List<FieldEntry> getFields()
+    {
+        return fields;
+    }
+
+    /**
+     * Returns all pairs of fields accessed by the same block , sorted descending by number of co-accesses.
+     *
+     * @return
+     */
+    public List<Pair> getPairs()
+    {
+        return pairs;
+    }
+
+    /**
+     * Returns layout suggestions for all classes whose fields have been accessed.
+     *
+     * @return human-readable suggestions
+     */
+    public List<String> getSuggestions()
+    {
+        // group fields by class (static and instance fields separately) , keeping the order by number of accesses
+        final Map<String,List<FieldEntry>> byLayout = new LinkedHashMap<>();
+        for ( FieldEntry e : fields ) 
+        {
+            final String key = e.field.getOwner()+( e.field.isStatic() ? " (static)" : "" );
+            List<FieldEntry> list = byLayout.get( key );
+            if ( list == null ) {
+                list = new ArrayList<>();
+                byLayout.put( key , list );
+            }
+            list.add( e );
+        }
+
+        final List<String> result = new ArrayList<>();
+        for ( Map.Entry<String,List<FieldEntry>> entry : byLayout.entrySet() ) 
+        {
+            final List<FieldEntry> list = entry.getValue();
+            if ( list.size() < 2 ) {
+                continue;
+            }
+            final String clazz = entry.getKey().replace('/','.');
+            final long hottest = list.get(0).getAccesses();
+
+            final List<FieldEntry> hot = new ArrayList<>();
+            final List<FieldEntry> cold = new ArrayList<>();
+            for ( FieldEntry e : list ) {
+                ( e.getAccesses() < hottest * COLD_RATIO ? cold : hot ).add( e );
+            }
+            if ( ! cold.isEmpty() ) {
+                result.add( clazz+": split cold fields "+names( cold )+" from hot fields "+names( hot ) );
+            }
+
+            for ( Pair p : pairs ) 
+            {
+                if ( p.isSameLayout() && hot.contains( p.first ) && hot.contains( p.second ) && p.getCoAccessRatio() >= GROUP_RATIO ) {
+                    result.add( clazz+": keep "+p.first.field.getName()+" and "+p.second.field.getName()+" together (accessed together in "+
+                            percent( p.getCoAccessRatio() )+" of block executions)" );
+                }
+            }
+
+            for ( FieldEntry written : hot ) 
+            {
+                if ( written.writes < written.getAccesses() * WRITE_HEAVY_RATIO ) {
+                    continue;
+                }
+                for ( FieldEntry read : hot ) 
+                {
+                    if ( read == written || read.writes >= read.getAccesses() * COLD_RATIO ) {
+                        continue;
+                    }
+                    final Pair pair = findPair( written , read );
+                    if ( pair == null || pair.getCoAccessRatio() < FALSE_SHARING_RATIO ) {
+                        result.add( clazz+": frequently written field "+written.field.getName()+" shares its object with read-mostly field "+
+                                read.field.getName()+" , false sharing candidate if instances are shared between threads" );
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    private Pair findPair(FieldEntry e1,FieldEntry e2) 
+    {
+        for ( Pair p : pairs ) 
+        {
+            if ( p.contains( e1 , e2 ) ) {
+                return p;
+            }
+        }
+        return null;
+    }
+
+    private static String names(List<FieldEntry> list) 
+    {
+        final StringBuilder result = new StringBuilder("[");
+        for ( FieldEntry e : list ) 
+        {
+            if ( result.length() > 1 ) {
+                result.append(", ");
+            }
+            result.append( e.field.getName() );
+        }
+        return result.append("]").toString();
+    }
+
+    private static String percent(double ratio) {
+        return String.format("%.1f%%" , 100 * ratio );
+    }
+
+    /**
+     * Prints the hottest fields and co-access pairs along with layout suggestions.
+     *
+     * <p>Counts extrapolated from sampled methods are prefixed with '~'.</p>
+     *
+     * @param out
+     * @param maxEntries max. number of fields and pairs to print
+     */
+    public void print(PrintStream out,int maxEntries)
+    {
+        out.println( String.format("%16s %16s %16s  %s" , "Accesses" , "Reads" , "Writes" , "Field" ) );
+        for ( FieldEntry e : fields.subList( 0 , Math.min( maxEntries , fields.size() ) ) )
+        {
+            final String prefix = e.estimated ? "~" : "";
+            out.println( String.format("%16s %16s %16s  %s" , prefix+e.getAccesses() , prefix+e.reads , prefix+e.writes , e.field ) );
+        }
+
+        out.println();
+        out.println( String.format("%16s %7s  %s" , "Co-accesses" , "Ratio" , "Fields" ) );
+        for ( Pair p : pairs.subList( 0 , Math.min( maxEntries , pairs.size() ) ) )
+        {
+            final String prefix = p.first.estimated || p.second.estimated ? "~" : "";
+            out.println( String.format("%16s %7s  %s <-> %s" , prefix+p.coAccesses , percent( p.getCoAccessRatio() ) , p.first.field , p.second.field ) );
+        }
+
+        out.println();
+        out.println("Suggestions:");
+        for ( String s : getSuggestions() ) {
+            out.println("  "+s);
+        }
+    }
+}
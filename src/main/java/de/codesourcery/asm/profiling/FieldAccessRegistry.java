@@ -0,0 +1,331 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.asm.profiling;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import de.codesourcery.asm.rewrite.ProfilingRewriter;
+
+/**
+ * Keeps track of accessed fields and of the basic blocks that access them.
+ *
+ * <p>Counting every single <code>GETFIELD</code> / <code>PUTFIELD</code> / <code>GETSTATIC</code> / <code>PUTSTATIC</code> at runtime would be 
+ * expensive , so the {@link ProfilingRewriter} registers each basic block that accesses fields along with the number of reads and writes
+ * per field that one execution of the block performs. At runtime only the number of executions per block is counted (see 
+ * {@link ExecutionStatistics#fieldAccessCounters}) , per-field counts and co-access pairs (fields accessed by the same block) are 
+ * derived from these counts and the static per-block information when a {@link FieldAccessProfile} gets created.</p>
+ * 
+ * <p>Fields are identified by the owner class referenced in the instruction , so accesses to an inherited field
+ * through a subclass reference are reported as a separate field of the subclass.</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ * @see StatisticsManager#getFieldAccessProfile()
+ */
+public final class FieldAccessRegistry
+{
+    /**
+     * A registered field.
+     *
+     * @author tobias.gierke@code-sourcery.de
+     */
+    public static final class Field
+    {
+        private final int id;
+        private final String owner;
+        private final String name;
+        private final String descriptor;
+        private final boolean isStatic;
+
+        protected Field(int id, String owner, String name, String descriptor, boolean isStatic)
+        {
+            this.id = id;
+            this.owner = owner;
+            this.name = name;
+            this.descriptor = descriptor;
+            this.isStatic = isStatic;
+        }
+
+        public int getId()
+        {
+            return id;
+        }
+
+        /**
+         * Returns the internal name of the class referenced by the field instruction.
+         *
+         * @return
+         */
+        public String getOwner()
+        {
+            return owner;
+        }
+
+        public String getName()
+        {
+            return name;
+        }
+
+        public String getDescriptor()
+        {
+            return descriptor;
+        }
+
+        public boolean isStatic()
+        {
+            return isStatic;
+        }
+
+        @Override
+        public String toString()
+        {
+            return ( isStatic ? "static " : "" )+owner.replace('/','.')+"#"+name+" ("+descriptor+")";
+        }
+    }
+
+    /**
+     * A registered basic block along with the fields it accesses.
+     *
+     * @author tobias.gierke@code-sourcery.de
+     */
+    public static final class Block
+    {
+        private final int id;
+        private final int methodId;
+        private final int firstInstruction;
+        private final int[] fieldIds;
+        private final int[] reads;
+        private final int[] writes;
+        private final boolean sampled;
+
+        protected Block(int id, int methodId, int firstInstruction, int[] fieldIds, int[] reads, int[] writes, boolean sampled)
+        {
+            this.id = id;
+            this.methodId = methodId;
+            this.firstInstruction = firstInstruction;
+            this.fieldIds = fieldIds;
+            this.reads = reads;
+            this.writes = writes;
+            this.sampled = sampled;
+        }
+
+        public int getId()
+        {
+            return id;
+        }
+
+        /**
+         * Returns the ID of the method containing this block.
+         *
+         * @return
+         * @see MethodRegistry
+         */
+        public int getMethodId()
+        {
+            return methodId;
+        }
+
+        /**
+         * Returns the index of the first instruction of this block within the (uninstrumented) method.
+         *
+         * @return
+         */
+        public int getFirstInstruction()
+        {
+            return firstInstruction;
+        }
+
+        /**
+         * Returns the number of distinct fields accessed by this block.
+         *
+         * @return
+         */
+        public int getFieldCount()
+        {
+            return fieldIds.length;
+        }
+
+        /**
+         * Returns the ID of a field accessed by this block.
+         *
+         * @param index index between 0 and {@link #getFieldCount()} (exclusive)
+         * @return
+         */
+        public int getFieldId(int index)
+        {
+            return fieldIds[index];
+        }
+
+        /**
+         * Returns how often one execution of this block reads a field.
+         *
+         * @param index index between 0 and {@link #getFieldCount()} (exclusive)
+         * @return
+         */
+        public int getReads(int index)
+        {
+            return reads[index];
+        }
+
+        /**
+         * Returns how often one execution of this block writes a field.
+         *
+         * @param index index between 0 and {@link #getFieldCount()} (exclusive)
+         * @return
+         */
+        public int getWrites(int index)
+        {
+            return writes[index];
+        }
+
+        /**
+         * Returns whether this block is part of the instrumented copy of a sampled method , so its
+         * counts only cover the sampled executions.
+         *
+         * @return
+         * @see MethodRegistry.Mode#SAMPLED
+         */
+        public boolean isSampled()
+        {
+            return sampled;
+        }
+
+        @Override
+        public String toString()
+        {
+            return "block @ "+firstInstruction+" in "+MethodRegistry.getMethod( methodId );
+        }
+    }
+
+    private static final Object LOCK = new Object();
+
+    // guarded by LOCK
+    private static final Map<String,Field> fieldsByKey = new HashMap<>();
+
+    // guarded by LOCK
+    private static final Map<String,Block> blocksByKey = new HashMap<>();
+
+    // copy-on-write , indexed by field ID
+    private static volatile Field[] fields = new Field[0];
+
+    // copy-on-write , indexed by block ID
+    private static volatile Block[] blocks = new Block[0];
+
+    private FieldAccessRegistry() {
+    }
+
+    /**
+     * Registers a field.
+     *
+     * @param owner internal name of the class referenced by the field instruction
+     * @param name
+     * @param descriptor
+     * @param isStatic
+     * @return the field's ID
+     */
+    public static int registerField(String owner,String name,String descriptor,boolean isStatic)
+    {
+        final String key = owner+"#"+name+"#"+descriptor+( isStatic ? "#static" : "" );
+        synchronized( LOCK )
+        {
+            Field existing = fieldsByKey.get( key );
+            if ( existing == null )
+            {
+                final Field[] newFields = Arrays.copyOf( fields , fields.length + 1 );
+                existing = new Field( fields.length , owner , name , descriptor , isStatic );
+                newFields[ existing.getId() ] = existing;
+                fieldsByKey.put( key , existing );
+                fields = newFields;
+            }
+            return existing.getId();
+        }
+    }
+
+    /**
+     * Registers a basic block that accesses fields.
+     *
+     * @param methodId ID of the method containing the block
+     * @param firstInstruction index of the block's first instruction within the method
+     * @param fieldIds IDs of the distinct fields accessed by the block
+     * @param reads number of reads per execution , indexed like <code>fieldIds</code>
+     * @param writes number of writes per execution , indexed like <code>fieldIds</code>
+     * @param sampled whether the block is part of the instrumented copy of a sampled method
+     * @return the block's ID
+     */
+    public static int registerBlock(int methodId,int firstInstruction,int[] fieldIds,int[] reads,int[] writes,boolean sampled)
+    {
+        if ( fieldIds.length != reads.length || fieldIds.length != writes.length ) {
+            throw new IllegalArgumentException("Array lengths differ");
+        }
+        final String key = methodId+"@"+firstInstruction+( sampled ? "#sampled" : "" );
+        synchronized( LOCK )
+        {
+            Block existing = blocksByKey.get( key );
+            if ( existing == null || ! Arrays.equals( existing.fieldIds , fieldIds ) || ! Arrays.equals( existing.reads , reads ) || 
+                    ! Arrays.equals( existing.writes , writes ) )
+            {
+                final Block[] newBlocks = Arrays.copyOf( blocks , blocks.length + 1 );
+                existing = new Block( blocks.length , methodId , firstInstruction , fieldIds.clone() , reads.clone() , writes.clone() , sampled );
+                newBlocks[ existing.getId() ] = existing;
+                blocksByKey.put( key , existing );
+                blocks = newBlocks;
+            }
+            return existing.getId();
+        }
+    }
+
+    /**
+     * Returns a field by ID.
+     *
+     * @param id
+     * @return
+     * @throws ArrayIndexOutOfBoundsException if no field with this ID has been registered
+     */
+    public static Field getField(int id) throws ArrayIndexOutOfBoundsException {
+        return fields[id];
+    }
+
+    /**
+     * Returns the number of registered fields.
+     *
+     * @return
+     */
+    public static int getFieldCount() {
+        return fields.length;
+    }
+
+    /**
+     * Returns a block by ID.
+     *
+     * @param id
+     * @return
+     * @throws ArrayIndexOutOfBoundsException if no block with this ID has been registered
+     */
+    public static Block getBlock(int id) throws ArrayIndexOutOfBoundsException {
+        return blocks[id];
+    }
+
+    /**
+     * Returns the number of registered blocks.
+     *
+     * <p>Since IDs are dense, this is also the largest block ID plus one.</p>
+     * @return
+     */
+    public static int getBlockCount() {
+        return blocks.length;
+    }
+}
@@ -0,0 +1,224 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.asm.profiling;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import de.codesourcery.asm.profiling.MethodRegistry.MethodInfo;
+
+/**
+ * Per-method invocation counts , self and inclusive instruction counts for a time interval.
+ *
+ * <p>Inclusive counts (instructions executed by a method and everything it called) are only available
+ * when call stacks are tracked (see {@link StatisticsManager#setCallStackTracking(boolean)}) , recursive
+ * invocations are only counted once.</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ * @see StatisticsManager#getFlatProfile()
+ * @see StatisticsManager#snapshotAndResetFlatProfile()
+ */
+public final class FlatProfile
+{
+    /**
+     * Returned by {@link Entry#getInclusiveInstructions()} if call stacks are not tracked.
+     */
+    public static final long UNKNOWN = -1;
+
+    private final long startTime;
+    private final long endTime;
+    private final List<Entry> entries;
+
+    public static enum SortKey
+    {
+        INVOCATIONS,
+        SELF_INSTRUCTIONS,
+        INCLUSIVE_INSTRUCTIONS;
+    }
+
+    /**
+     * A method's counters.
+     *
+     * @author tobias.gierke@code-sourcery.de
+     */
+    public static final class Entry
+    {
+        private final MethodInfo method;
+        private final long invocations;
+        private final long selfInstructions;
+        private final long inclusiveInstructions;
+        private final boolean estimated;
+
+        public Entry(MethodInfo method, long invocations, long selfInstructions, long inclusiveInstructions,boolean estimated)
+        {
+            this.method = method;
+            this.invocations = invocations;
+            this.selfInstructions = selfInstructions;
+            this.inclusiveInstructions = inclusiveInstructions;
+            this.estimated = estimated;
+        }
+
+        public MethodInfo getMethod()
+        {
+            return method;
+        }
+
+        public long getInvocations()
+        {
+            return invocations;
+        }
+
+        public long getSelfInstructions()
+        {
+            return selfInstructions;
+        }
+
+        /**
+         * Returns the number of instructions executed by this method and its callees.
+         *
+         * @return instruction count or {@link FlatProfile#UNKNOWN}
+         */
+        public long getInclusiveInstructions()
+        {
+            return inclusiveInstructions;
+        }
+
+        /**
+         * Returns whether counts are (partly) extrapolated because the method was not fully instrumented.
+         *
+         * @return
+         * @see MethodInfo#isEstimated()
+         */
+        public boolean isEstimated()
+        {
+            return estimated;
+        }
+
+        protected long get(SortKey key)
+        {
+            switch( key ) {
+                case INVOCATIONS:
+                    return invocations;
+                case SELF_INSTRUCTIONS:
+                    return selfInstructions;
+                case INCLUSIVE_INSTRUCTIONS:
+                    return inclusiveInstructions;
+                default:
+                    throw new RuntimeException("Unhandled sort key: "+key);
+            }
+        }
+
+        @Override
+        public String toString()
+        {
+            return method+" ("+invocations+" invocations , "+selfInstructions+" self , "+inclusiveInstructions+" inclusive)";
+        }
+    }
+
+    public FlatProfile(long startTime,long endTime,List<Entry> entries)
+    {
+        this.startTime = startTime;
+        this.endTime = endTime;
+        this.entries = new ArrayList<>( entries );
+    }
+
+    /**
+     * Returns the start of the interval this profile covers.
+     *
+     * @return time in milliseconds since the epoch
+     */
+    public long getStartTime()
+    {
+        return startTime;
+    }
+
+    /**
+     * Returns the end of the interval this profile covers.
+     *
+     * @return time in milliseconds since the epoch
+     */
+    public long getEndTime()
+    {
+        return endTime;
+    }
+
+    /**
+     * Returns all methods that were executed during the interval , sorted by descending self instruction count.
+     *
+     * @return
+     */
+    public List<Entry> getEntries()
+    {
+        return getEntries( SortKey.SELF_INSTRUCTIONS );
+    }
+
+    /**
+     * Returns all methods that were executed during the interval , sorted by a given counter (descending).
+     *
+     * @param key
+     * @return
+     */
+    public List<Entry> getEntries(final SortKey key)
+    {
+        final List<Entry> result = new ArrayList<>( entries );
+        Collections.sort( result , new Comparator<Entry>() {
+
+            @Override
+            public int compare(Entry o1, Entry o2)
+            {
+                return Long.compare( o2.get( key ) , o1.get( key ) );
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Returns the number of instructions executed by all methods.
+     *
+     * @return
+     */
+    public long getTotalInstructions()
+    {
+        long result = 0;
+        for ( Entry e : entries ) {
+            result += e.selfInstructions;
+        }
+        return result;
+    }
+
+    /**
+     * Prints this profile as a table.
+     *
+     * @param out
+     * @param key counter to sort by
+     * @param maxEntries maximum number of methods to print
+     */
+    public void print(PrintStream out,SortKey key,int maxEntries)
+    {
+        final long total = Math.max( 1 , getTotalInstructions() );
+        out.println( String.format("%6s %16s %16s %16s  %s" , "self%" , "self" , "inclusive" , "invocations" , "method" ) );
+        final List<Entry> sorted = getEntries( key );
+        for ( Entry e : sorted.subList( 0 , Math.min( maxEntries , sorted.size() ) ) )
+        {
+            final String inclusive = e.inclusiveInstructions == UNKNOWN ? "-" : Long.toString( e.inclusiveInstructions );
+            out.println( String.format("%6.2f %16d %16s %16d  %s%s" , 100.0 * e.selfInstructions / total , e.selfInstructions ,
+                    inclusive , e.invocations , e.method , e.estimated ? " (estimated)" : "" ) );
+        }
+    }
+}
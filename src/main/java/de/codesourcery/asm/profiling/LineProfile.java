@@ -0,0 +1,425 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.asm.profiling;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import de.codesourcery.asm.profiling.LineRegistry.Block;
+
+/**
+ * Number of (weighted) instructions executed per source line (summed over all threads).
+ *
+ * <p>Counts are kept in one table per class that is indexed by line number , classes compiled from the same source file
+ * (nested classes) have separate tables.</p>
+ * 
+ * <p>A profile can be written to and read back from a simple text format (see {@link #write(PrintStream)}) , 
+ * {@link AnnotatedSourceReport} uses this to render annotated source code.</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ * @see StatisticsManager#getLineProfile()
+ */
+public final class LineProfile
+{
+    private final Map<String,ClassLines> classes = new HashMap<>();
+
+    /**
+     * Instruction counts per source line of a single class.
+     *
+     * @author tobias.gierke@code-sourcery.de
+     */
+    public static final class ClassLines
+    {
+        private final String className;
+        private final String sourcePath;
+        private long[] instructions = new long[0]; // indexed by line number
+        private long totalInstructions;
+        private boolean estimated;
+
+        protected ClassLines(String className, String sourcePath)
+        {
+            this.className = className;
+            this.sourcePath = sourcePath;
+        }
+
+        protected void add(int line,long count) 
+        {
+            if ( instructions.length <= line ) {
+                instructions = Arrays.copyOf( instructions , Math.max( line + 1 , instructions.length * 2 ) );
+            }
+            instructions[line] += count;
+            totalInstructions += count;
+        }
+
+        /**
+         * Returns the fully-qualified class name.
+         *
+         * @return
+         */
+        public String getClassName()
+        {
+            return className;
+        }
+
+        /**
+         * Returns the path of the class's source file relative to the source root.
+         *
+         * @return
+         * @see LineRegistry#getSourcePath(String)
+         */
+        public String getSourcePath()
+        {
+            return sourcePath;
+        }
+
+        /**
+         * Returns the number of instructions executed on a source line.
+         *
+         * @param line
+         * @return
+         */
+        public long getInstructions(int line)
+        {
+            return line >= 0 && line < instructions.length ? instructions[line] : 0;
+        }
+
+        /**
+         * Returns the number of instructions executed on all lines of this class.
+         *
+         * @return
+         */
+        public long getTotalInstructions()
+        {
+            return totalInstructions;
+        }
+
+        /**
+         * Returns the largest line number that may have a non-zero count.
+         *
+         * @return
+         */
+        public int getMaxLine()
+        {
+            return instructions.length - 1;
+        }
+
+        /**
+         * Returns whether the counts have been (partially) extrapolated from sampled methods.
+         *
+         * @return
+         */
+        public boolean isEstimated()
+        {
+            return estimated;
+        }
+    }
+
+    /**
+     * A single source line.
+     *
+     * @author tobias.gierke@code-sourcery.de
+     */
+    public static final class Line
+    {
+        private final ClassLines clazz;
+        private final int line;
+
+        protected Line(ClassLines clazz, int line)
+        {
+            this.clazz = clazz;
+            this.line = line;
+        }
+
+        /**
+         * Returns the class the line's instructions belong to.
+         *
+         * @return
+         */
+        public ClassLines getClassLines()
+        {
+            return clazz;
+        }
+
+        public int getLine()
+        {
+            return line;
+        }
+
+        public long getInstructions()
+        {
+            return clazz.getInstructions( line );
+        }
+
+        @Override
+        public String toString()
+        {
+            return clazz.sourcePath+":"+line+" ("+clazz.className+")";
+        }
+    }
+
+    /**
+     * Create an empty profile.
+     */
+    public LineProfile() {
+    }
+
+    /**
+     * Create a profile from block execution counts.
+     * 
+     * @param blockCounters number of executions per block , layout is identical to {@link ExecutionStatistics#lineCounters}
+     * @param samplingScale factor to extrapolate counts of sampled blocks with
+     */
+    public LineProfile(long[] blockCounters,double samplingScale)
+    {
+        final int blockCount = Math.min( blockCounters.length , LineRegistry.getBlockCount() );
+        for ( int id = 0 ; id < blockCount ; id++ ) 
+        {
+            if ( blockCounters[id] == 0 ) {
+                continue;
+            }
+            final Block block = LineRegistry.getBlock( id );
+            final String className = MethodRegistry.getMethod( block.getMethodId() ).getClassName();
+            final double scale = block.isSampled() ? samplingScale : 1;
+            final long executions = Math.round( blockCounters[id] * scale );
+            for ( int i = 0 ; i < block.getLineCount() ; i++ ) {
+                add( className , LineRegistry.getSourcePath( className ) , block.getLine( i ) , executions * block.getCost( i ) , block.isSampled() );
+            }
+        }
+    }
+
+    /**
+     * Adds instructions executed on a source line.
+     * 
+     * @param className fully-qualified class name
+     * @param sourcePath path of the class's source file relative to the source root
+     * @param line
+     * @param instructions
+     * @param estimated whether the count has been extrapolated
+     */
+    public void add(String className,String sourcePath,int line,long instructions,boolean estimated)
+    {
+        if ( line < 0 ) {
+            throw new IllegalArgumentException("Line number must be >= 0");
+        }
+        ClassLines existing = classes.get( className );
+        if ( existing == null ) {
+            existing = new ClassLines( className , sourcePath );
+            classes.put( className , existing );
+        }
+        existing.add( line , instructions );
+        existing.estimated |= estimated;
+    }
+
+    /**
+     * Returns the line counts of a class.
+     * 
+     * @param className fully-qualified class name
+     * @return counts or <code>null</code> if no instructions of this class have been executed
+     */
+    public ClassLines getClassLines(String className) {
+        return classes.get( className );
+    }
+
+    /**
+     * Returns all classes with executed instructions , sorted descending by number of instructions.
+     * 
+     * @return
+     */
+    public List<ClassLines> getClasses()
+    {
+        final List<ClassLines> result = new ArrayList<>( classes.values() );
+        Collections.sort( result , new Comparator<ClassLines>() {
+
+            @Override
+            public int compare(ClassLines o1, ClassLines o2)
+            {
+                return Long.compare( o2.totalInstructions , o1.totalInstructions );
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Returns the number of instructions executed on a line of a source file (summed over all classes compiled from this file).
+     * 
+     * @param sourcePath path of the source file relative to the source root
+     * @param line
+     * @return
+     */
+    public long getInstructions(String sourcePath,int line)
+    {
+        long result = 0;
+        for ( ClassLines clazz : classes.values() ) 
+        {
+            if ( clazz.sourcePath.equals( sourcePath ) ) {
+                result += clazz.getInstructions( line );
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns whether counts of a source file have been (partially) extrapolated from sampled methods.
+     * 
+     * @param sourcePath
+     * @return
+     */
+    public boolean isEstimated(String sourcePath)
+    {
+        for ( ClassLines clazz : classes.values() ) 
+        {
+            if ( clazz.estimated && clazz.sourcePath.equals( sourcePath ) ) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the number of instructions executed on all source lines.
+     * 
+     * @return
+     */
+    public long getTotalInstructions()
+    {
+        long result = 0;
+        for ( ClassLines clazz : classes.values() ) {
+            result += clazz.totalInstructions;
+        }
+        return result;
+    }
+
+    /**
+     * Returns the source lines with the most executed instructions.
+     * 
+     * @param maxLines
+     * @return lines , sorted descending by number of instructions
+     */
+    public List<Line> getHottestLines(int maxLines)
+    {
+        final List<Line> result = new ArrayList<>();
+        for ( ClassLines clazz : classes.values() ) 
+        {
+            for ( int line = 0 ; line < clazz.instructions.length ; line++ ) 
+            {
+                if ( clazz.instructions[line] != 0 ) {
+                    result.add( new Line( clazz , line ) );
+                }
+            }
+        }
+        Collections.sort( result , new Comparator<Line>() {
+
+            @Override
+            public int compare(Line o1, Line o2)
+            {
+                return Long.compare( o2.getInstructions() , o1.getInstructions() );
+            }
+        });
+        return result.subList( 0 , Math.min( maxLines , result.size() ) );
+    }
+
+    /**
+     * Prints the source lines with the most executed instructions.
+     *
+     * <p>Counts of lines in sampled methods are extrapolated (prefixed with '~').</p>
+     * 
+     * @param out
+     * @param maxLines
+     */
+    public void print(PrintStream out,int maxLines)
+    {
+        final long total = getTotalInstructions();
+        out.println( String.format("%20s %8s  %s" , "Instructions" , "%" , "Line" ) );
+        for ( Line line : getHottestLines( maxLines ) ) 
+        {
+            final String prefix = line.clazz.estimated ? "~" : "";
+            out.println( String.format("%20s %7.2f%%  %s" , prefix+line.getInstructions() , 100.0 * line.getInstructions() / total , line ) );
+        }
+    }
+
+    /**
+     * Writes all non-zero counts.
+     * 
+     * <p>Each line holds the class name , the source path , the line number and the number of instructions separated by
+     * tab characters , extrapolated counts are prefixed with '~'. Lines starting with '#' are comments.</p>
+     * 
+     * @param out
+     * @see #read(File)
+     */
+    public void write(PrintStream out)
+    {
+        out.println("# class\tsource file\tline\tinstructions");
+        for ( ClassLines clazz : getClasses() ) 
+        {
+            for ( int line = 0 ; line < clazz.instructions.length ; line++ ) 
+            {
+                if ( clazz.instructions[line] != 0 ) {
+                    out.println( clazz.className+"\t"+clazz.sourcePath+"\t"+line+"\t"+( clazz.estimated ? "~" : "" )+clazz.instructions[line] );
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads a profile written by {@link #write(PrintStream)}.
+     * 
+     * @param file
+     * @return
+     * @throws IOException
+     */
+    public static LineProfile read(File file) throws IOException
+    {
+        final LineProfile result = new LineProfile();
+        final BufferedReader reader = new BufferedReader( new InputStreamReader( new FileInputStream( file ) , "UTF-8" ) );
+        try 
+        {
+            String line;
+            int lineNo = 0;
+            while ( ( line = reader.readLine() ) != null ) 
+            {
+                lineNo++;
+                if ( line.trim().isEmpty() || line.startsWith("#") ) {
+                    continue;
+                }
+                final String[] parts = line.split("\t");
+                if ( parts.length != 4 ) {
+                    throw new IOException("Malformed line "+lineNo+" in "+file.getAbsolutePath()+": "+line);
+                }
+                final boolean estimated = parts[3].startsWith("~");
+                try {
+                    result.add( parts[0] , parts[1] , Integer.parseInt( parts[2] ) , Long.parseLong( estimated ? parts[3].substring(1) : parts[3] ) , estimated );
+                } 
+                catch(IllegalArgumentException e) {
+                    throw new IOException("Malformed line "+lineNo+" in "+file.getAbsolutePath()+": "+line);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return result;
+    }
+}
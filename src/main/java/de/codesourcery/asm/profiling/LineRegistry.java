@@ -0,0 +1,245 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.asm.profiling;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import de.codesourcery.asm.rewrite.ProfilingRewriter;
+
+/**
+ * Keeps track of the source lines covered by instrumented basic blocks.
+ *
+ * <p>The {@link ProfilingRewriter} splits the (weighted) cost of each basic block by source line and registers the block
+ * along with its per-line costs. At runtime only the number of executions per block is counted (see 
+ * {@link ExecutionStatistics#lineCounters}) , per-line instruction counts are derived from these counts when a 
+ * {@link LineProfile} gets created.</p>
+ * 
+ * <p>Re-registering a block (for example when its class gets re-transformed) yields the same ID as long as its per-line costs
+ * did not change.</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ * @see StatisticsManager#getLineProfile()
+ */
+public final class LineRegistry
+{
+    /**
+     * A registered basic block along with the source lines it covers.
+     *
+     * @author tobias.gierke@code-sourcery.de
+     */
+    public static final class Block
+    {
+        private final int id;
+        private final int methodId;
+        private final int firstInstruction;
+        private final int[] lines;
+        private final int[] costs;
+        private final boolean sampled;
+
+        protected Block(int id, int methodId, int firstInstruction, int[] lines, int[] costs, boolean sampled)
+        {
+            this.id = id;
+            this.methodId = methodId;
+            this.firstInstruction = firstInstruction;
+            this.lines = lines;
+            this.costs = costs;
+            this.sampled = sampled;
+        }
+
+        public int getId()
+        {
+            return id;
+        }
+
+        /**
+         * Returns the ID of the method containing this block.
+         *
+         * @return
+         * @see MethodRegistry
+         */
+        public int getMethodId()
+        {
+            return methodId;
+        }
+
+        /**
+         * Returns the index of the first instruction of this block within the (uninstrumented) method.
+         *
+         * @return
+         */
+        public int getFirstInstruction()
+        {
+            return firstInstruction;
+        }
+
+        /**
+         * Returns the number of distinct source lines covered by this block.
+         *
+         * @return
+         */
+        public int getLineCount()
+        {
+            return lines.length;
+        }
+
+        /**
+         * Returns a source line covered by this block.
+         *
+         * @param index index between 0 and {@link #getLineCount()} (exclusive)
+         * @return
+         */
+        public int getLine(int index)
+        {
+            return lines[index];
+        }
+
+        /**
+         * Returns the (weighted) number of instructions one execution of this block spends on a source line.
+         *
+         * @param index index between 0 and {@link #getLineCount()} (exclusive)
+         * @return
+         */
+        public int getCost(int index)
+        {
+            return costs[index];
+        }
+
+        /**
+         * Returns whether this block is part of the instrumented copy of a sampled method , so its
+         * counts only cover the sampled executions.
+         *
+         * @return
+         * @see MethodRegistry.Mode#SAMPLED
+         */
+        public boolean isSampled()
+        {
+            return sampled;
+        }
+
+        @Override
+        public String toString()
+        {
+            return "block @ "+firstInstruction+" in "+MethodRegistry.getMethod( methodId );
+        }
+    }
+
+    private static final Object LOCK = new Object();
+
+    // guarded by LOCK
+    private static final Map<String,Block> blocksByKey = new HashMap<>();
+
+    // guarded by LOCK
+    private static final Map<String,String> sourceFiles = new HashMap<>();
+
+    // copy-on-write , indexed by block ID
+    private static volatile Block[] blocks = new Block[0];
+
+    private LineRegistry() {
+    }
+
+    /**
+     * Registers the name of the source file a class was compiled from.
+     *
+     * @param className fully-qualified class name
+     * @param sourceFile name of the source file as recorded in the class file (without any directories) , may be <code>null</code>
+     * @see #getSourcePath(String)
+     */
+    public static void registerSourceFile(String className,String sourceFile)
+    {
+        if ( sourceFile == null ) {
+            return;
+        }
+        final int idx = className.lastIndexOf('.');
+        final String path = idx == -1 ? sourceFile : className.substring( 0 , idx ).replace('.','/')+"/"+sourceFile;
+        synchronized( LOCK ) {
+            sourceFiles.put( className , path );
+        }
+    }
+
+    /**
+     * Returns the path of a class's source file relative to the source root.
+     *
+     * @param className fully-qualified class name
+     * @return path of the registered source file , derived from the name of the (outermost) class if no source
+     * file has been registered
+     */
+    public static String getSourcePath(String className)
+    {
+        synchronized( LOCK ) 
+        {
+            final String path = sourceFiles.get( className );
+            if ( path != null ) {
+                return path;
+            }
+        }
+        final int idx = className.indexOf('$');
+        return ( idx == -1 ? className : className.substring( 0 , idx ) ).replace('.','/')+".java";
+    }
+
+    /**
+     * Registers a basic block.
+     *
+     * @param methodId ID of the method containing the block
+     * @param firstInstruction index of the block's first instruction within the method
+     * @param lines distinct source lines covered by the block
+     * @param costs (weighted) number of instructions per execution , indexed like <code>lines</code>
+     * @param sampled whether the block is part of the instrumented copy of a sampled method
+     * @return the block's ID
+     */
+    public static int registerBlock(int methodId,int firstInstruction,int[] lines,int[] costs,boolean sampled)
+    {
+        if ( lines.length != costs.length ) {
+            throw new IllegalArgumentException("Array lengths differ");
+        }
+        final String key = methodId+"@"+firstInstruction+( sampled ? "#sampled" : "" );
+        synchronized( LOCK )
+        {
+            Block existing = blocksByKey.get( key );
+            if ( existing == null || ! Arrays.equals( existing.lines , lines ) || ! Arrays.equals( existing.costs , costs ) )
+            {
+                final Block[] newBlocks = Arrays.copyOf( blocks , blocks.length + 1 );
+                existing = new Block( blocks.length , methodId , firstInstruction , lines.clone() , costs.clone() , sampled );
+                newBlocks[ existing.getId() ] = existing;
+                blocksByKey.put( key , existing );
+                blocks = newBlocks;
+            }
+            return existing.getId();
+        }
+    }
+
+    /**
+     * Returns a block by ID.
+     *
+     * @param id
+     * @return
+     * @throws ArrayIndexOutOfBoundsException if no block with this ID has been registered
+     */
+    public static Block getBlock(int id) throws ArrayIndexOutOfBoundsException {
+        return blocks[id];
+    }
+
+    /**
+     * Returns the number of registered blocks.
+     *
+     * <p>Since IDs are dense, this is also the largest block ID plus one.</p>
+     * @return
+     */
+    public static int getBlockCount() {
+        return blocks.length;
+    }
+}
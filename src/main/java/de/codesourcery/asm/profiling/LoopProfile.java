@@ -0,0 +1,152 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.asm.profiling;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import de.codesourcery.asm.profiling.LoopRegistry.Loop;
+
+/**
+ * Snapshot of loop entry counts , back-edge counts and trip count histograms (summed over all threads).
+ *
+ * <p>The trip count of a loop entry is the number of back-edges taken before the loop was left again , so a 
+ * <code>for</code> loop running <code>n</code> times has a trip count of <code>n</code> (its header executes <code>n+1</code> times) while a 
+ * loop that is left through a <code>break</code> in the first iteration has a trip count of zero.</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ * @see StatisticsManager#getLoopProfile()
+ */
+public final class LoopProfile
+{
+    private final List<Entry> entries;
+
+    /**
+     * Counters of a single loop.
+     *
+     * @author tobias.gierke@code-sourcery.de
+     */
+    public static final class Entry
+    {
+        private final Loop loop;
+        private final long entries;
+        private final long backEdges;
+        private final long[] tripHistogram;
+
+        public Entry(Loop loop, long entries, long backEdges, long[] tripHistogram)
+        {
+            this.loop = loop;
+            this.entries = entries;
+            this.backEdges = backEdges;
+            this.tripHistogram = tripHistogram;
+        }
+
+        public Loop getLoop()
+        {
+            return loop;
+        }
+
+        /**
+         * Returns how often the loop was entered.
+         *
+         * @return
+         */
+        public long getEntries()
+        {
+            return entries;
+        }
+
+        /**
+         * Returns the total number of back-edges taken.
+         *
+         * @return
+         */
+        public long getBackEdges()
+        {
+            return backEdges;
+        }
+
+        /**
+         * Returns the average number of back-edges taken per entry.
+         *
+         * @return
+         */
+        public double getAverageTripCount()
+        {
+            return entries == 0 ? 0 : backEdges / (double) entries;
+        }
+
+        /**
+         * Returns the number of loop entries per trip count bucket.
+         *
+         * @return counts indexed by {@link AllocationSiteRegistry#getLengthBucket(int)}
+         */
+        public long[] getTripHistogram()
+        {
+            return tripHistogram.clone();
+        }
+    }
+
+    public LoopProfile(List<Entry> entries)
+    {
+        final List<Entry> sorted = new ArrayList<>( entries );
+        Collections.sort( sorted , new Comparator<Entry>() {
+
+            @Override
+            public int compare(Entry o1, Entry o2)
+            {
+                return Long.compare( o2.backEdges + o2.entries , o1.backEdges + o1.entries );
+            }
+        });
+        this.entries = Collections.unmodifiableList( sorted );
+    }
+
+    /**
+     * Returns all loops that have been entered at least once , sorted descending by number of iterations (header executions).
+     *
+     * @return
+     */
+    public List<Entry> getEntries()
+    {
+        return entries;
+    }
+
+    /**
+     * Prints the loops with the most iterations along with their trip count histograms.
+     *
+     * @param out
+     * @param maxLoops
+     */
+    public void print(PrintStream out,int maxLoops)
+    {
+        out.println( String.format("%16s %16s %12s  %s" , "Entries" , "Back-edges" , "Avg. trips" , "Loop" ) );
+        for ( Entry e : entries.subList( 0 , Math.min( maxLoops , entries.size() ) ) )
+        {
+            out.println( String.format("%16d %16d %12.1f  %s" , e.entries , e.backEdges , e.getAverageTripCount() , e.loop ) );
+            for ( int bucket = 0 ; bucket < e.tripHistogram.length ; bucket++ )
+            {
+                if ( e.tripHistogram[bucket] != 0 ) {
+                    final String range = bucket < 2 ? Integer.toString( bucket ) :
+                        AllocationSiteRegistry.getMinLength( bucket )+"-"+( AllocationSiteRegistry.getMinLength( bucket+1 )-1 );
+                    out.println( String.format("%16s %16s %12s    trips %-24s %d" , "" , "" , "" , range , e.tripHistogram[bucket] ) );
+                }
+            }
+        }
+    }
+}
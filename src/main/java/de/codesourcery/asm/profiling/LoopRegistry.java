@@ -0,0 +1,198 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.asm.profiling;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import de.codesourcery.asm.controlflow.LoopAnalyzer;
+import de.codesourcery.asm.rewrite.ProfilingRewriter;
+
+/**
+ * Assigns dense integer IDs to natural loops in instrumented methods.
+ *
+ * <p>Loops are found by the {@link LoopAnalyzer} and registered by the {@link ProfilingRewriter} , their IDs are baked into the generated 
+ * byte-code and used to index the per-thread counters in {@link ExecutionStatistics#loopCounters}. Each loop owns {@link #COUNTER_SLOTS} counters: 
+ * the number of times the loop was entered , the total number of back-edges taken and a histogram of back-edges taken per entry 
+ * (<i>trip counts</i>) with power-of-two buckets (see {@link AllocationSiteRegistry#getLengthBucket(int)}).
+ * Re-registering a loop (for example when its class gets re-transformed) always yields the same ID.</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ * @see StatisticsManager#getLoopProfile()
+ */
+public final class LoopRegistry
+{
+    /**
+     * Number of trip count buckets per loop.
+     */
+    public static final int TRIP_BUCKETS = 32;
+
+    /**
+     * Offset of the loop entry counter within a loop's counters.
+     */
+    public static final int SLOT_ENTRIES = 0;
+
+    /**
+     * Offset of the back-edge counter within a loop's counters.
+     */
+    public static final int SLOT_BACK_EDGES = 1;
+
+    /**
+     * Offset of the first trip count bucket within a loop's counters.
+     */
+    public static final int SLOT_TRIP_HISTOGRAM = 2;
+
+    /**
+     * Number of counters per loop in {@link ExecutionStatistics#loopCounters}.
+     */
+    public static final int COUNTER_SLOTS = SLOT_TRIP_HISTOGRAM + TRIP_BUCKETS;
+
+    /**
+     * A registered loop.
+     *
+     * @author tobias.gierke@code-sourcery.de
+     */
+    public static final class Loop
+    {
+        private final int id;
+        private final int methodId;
+        private final int headerInstruction;
+        private final int lineNumber;
+        private final int depth;
+
+        protected Loop(int id, int methodId, int headerInstruction, int lineNumber, int depth)
+        {
+            this.id = id;
+            this.methodId = methodId;
+            this.headerInstruction = headerInstruction;
+            this.lineNumber = lineNumber;
+            this.depth = depth;
+        }
+
+        public int getId()
+        {
+            return id;
+        }
+
+        /**
+         * Returns the ID of the method containing this loop.
+         *
+         * @return
+         * @see MethodRegistry
+         */
+        public int getMethodId()
+        {
+            return methodId;
+        }
+
+        /**
+         * Returns the index of the loop header's first instruction within the (uninstrumented) method.
+         *
+         * @return
+         */
+        public int getHeaderInstruction()
+        {
+            return headerInstruction;
+        }
+
+        /**
+         * Returns the source line number of the loop header.
+         *
+         * @return line number or -1 if the class has no line number information
+         */
+        public int getLineNumber()
+        {
+            return lineNumber;
+        }
+
+        /**
+         * Returns the nesting depth of this loop.
+         *
+         * @return 1 for outermost loops
+         */
+        public int getDepth()
+        {
+            return depth;
+        }
+
+        @Override
+        public String toString()
+        {
+            final String location = MethodRegistry.getMethod( methodId )+( lineNumber >= 0 ? ":"+lineNumber : "" )+" @ "+headerInstruction;
+            return "loop (depth "+depth+") in "+location;
+        }
+    }
+
+    private static final Object LOCK = new Object();
+
+    // guarded by LOCK
+    private static final Map<String,Loop> loopsByKey = new HashMap<>();
+
+    // copy-on-write , indexed by loop ID
+    private static volatile Loop[] loops = new Loop[0];
+
+    private LoopRegistry() {
+    }
+
+    /**
+     * Registers a loop.
+     *
+     * @param methodId ID of the method containing the loop
+     * @param headerInstruction index of the loop header's first instruction within the method
+     * @param lineNumber source line number or -1
+     * @param depth nesting depth
+     * @return the loop's ID
+     */
+    public static int register(int methodId,int headerInstruction,int lineNumber,int depth)
+    {
+        final String key = methodId+"@"+headerInstruction;
+        synchronized( LOCK )
+        {
+            Loop existing = loopsByKey.get( key );
+            if ( existing == null )
+            {
+                final Loop[] newLoops = Arrays.copyOf( loops , loops.length + 1 );
+                existing = new Loop( loops.length , methodId , headerInstruction , lineNumber , depth );
+                newLoops[ existing.getId() ] = existing;
+                loopsByKey.put( key , existing );
+                loops = newLoops;
+            }
+            return existing.getId();
+        }
+    }
+
+    /**
+     * Returns a loop by ID.
+     *
+     * @param id
+     * @return
+     * @throws ArrayIndexOutOfBoundsException if no loop with this ID has been registered
+     */
+    public static Loop getLoop(int id) throws ArrayIndexOutOfBoundsException {
+        return loops[id];
+    }
+
+    /**
+     * Returns the number of registered loops.
+     *
+     * <p>Since IDs are dense, this is also the largest loop ID plus one.</p>
+     * @return
+     */
+    public static int getLoopCount() {
+        return loops.length;
+    }
+}
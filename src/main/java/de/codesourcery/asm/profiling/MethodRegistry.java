@@ -0,0 +1,259 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.asm.profiling;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import de.codesourcery.asm.rewrite.ProfilingRewriter;
+
+/**
+ * Assigns dense integer IDs to instrumented methods.
+ *
+ * <p>IDs are assigned by the {@link ProfilingRewriter} while rewriting a class and are baked into
+ * the generated byte-code, they are used to index the per-method counters in {@link ExecutionStatistics#methodCounters}.
+ * Re-registering a method (for example when its class gets re-transformed) always yields the same ID.</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ */
+public final class MethodRegistry
+{
+    /**
+     * How a method gets instrumented.
+     *
+     * @author tobias.gierke@code-sourcery.de
+     */
+    public static enum Mode
+    {
+        /**
+         * Probes at the start of each basic block, exact counts.
+         */
+        FULL,
+        /**
+         * Only a single probe at method entry that adds an estimated
+         * number of instructions per invocation (see {@link MethodInfo#getEstimatedInstructionsPerInvocation()}).
+         */
+        ENTRY_ONLY,
+        /**
+         * Burst sampling, the method body is duplicated into a copy with probes
+         * and a copy without probes and a cheap per-thread countdown decides which copy runs
+         * (see {@link StatisticsManager#sample(ExecutionStatistics)}).
+         * 
+         * <p>Constructors and methods that use JSR/RET are always instrumented in {@link #FULL} mode.</p>
+         */
+        SAMPLED;
+    }
+
+    /**
+     * A registered method.
+     *
+     * @author tobias.gierke@code-sourcery.de
+     */
+    public static final class MethodInfo
+    {
+        private final int id;
+        private final String className;
+        private final String methodName;
+        private final String methodDescriptor;
+
+        private volatile Mode mode;
+        private volatile int estimatedInstructionsPerInvocation;
+
+        protected MethodInfo(int id, String className, String methodName, String methodDescriptor,Mode mode)
+        {
+            this.id = id;
+            this.mode = mode;
+            this.className = className;
+            this.methodName = methodName;
+            this.methodDescriptor = methodDescriptor;
+        }
+
+        public int getId()
+        {
+            return id;
+        }
+
+        /**
+         * Returns the fully-qualified name of the class declaring this method.
+         *
+         * @return
+         */
+        public String getClassName()
+        {
+            return className;
+        }
+
+        public String getMethodName()
+        {
+            return methodName;
+        }
+
+        public String getMethodDescriptor()
+        {
+            return methodDescriptor;
+        }
+
+        /**
+         * Returns the instrumentation mode to use the next time
+         * this method gets rewritten.
+         *
+         * @return
+         */
+        public Mode getMode()
+        {
+            return mode;
+        }
+
+        /**
+         * Returns the number of instructions that is accounted for each invocation
+         * if this method is instrumented in mode {@link Mode#ENTRY_ONLY}.
+         *
+         * @return
+         */
+        public int getEstimatedInstructionsPerInvocation()
+        {
+            return estimatedInstructionsPerInvocation;
+        }
+
+        /**
+         * Switch to {@link Mode#ENTRY_ONLY} counting.
+         *
+         * <p>Note that this only takes effect after the method's class has been re-transformed.</p>
+         *
+         * @param estimatedInstructionsPerInvocation number of instructions to account for each invocation
+         */
+        public void setEntryOnly(int estimatedInstructionsPerInvocation)
+        {
+            if ( estimatedInstructionsPerInvocation < 1 ) {
+                throw new IllegalArgumentException("Estimated instruction count must be >= 1");
+            }
+            this.estimatedInstructionsPerInvocation = estimatedInstructionsPerInvocation;
+            this.mode = Mode.ENTRY_ONLY;
+        }
+
+        /**
+         * Returns whether counts for this method are (partly) extrapolated instead of exact.
+         *
+         * @return
+         */
+        public boolean isEstimated() {
+            return mode != Mode.FULL;
+        }
+
+        @Override
+        public String toString()
+        {
+            return className+"#"+methodName+methodDescriptor;
+        }
+    }
+
+    private static final Object LOCK = new Object();
+
+    // guarded by LOCK
+    private static final Map<String,MethodInfo> methodsByKey = new HashMap<>();
+
+    // copy-on-write , indexed by method ID
+    private static volatile MethodInfo[] methods = new MethodInfo[0];
+
+    private static volatile Mode defaultMode = Mode.FULL;
+
+    private MethodRegistry() {
+    }
+
+    /**
+     * Registers a method.
+     *
+     * @param className fully-qualified name of class declaring the method
+     * @param methodName
+     * @param methodDescriptor
+     * @return the method's ID
+     */
+    public static int register(String className,String methodName,String methodDescriptor)
+    {
+        final String key = toKey( className , methodName , methodDescriptor );
+        synchronized( LOCK )
+        {
+            MethodInfo existing = methodsByKey.get( key );
+            if ( existing == null )
+            {
+                final MethodInfo[] newMethods = Arrays.copyOf( methods , methods.length + 1 );
+                existing = new MethodInfo( methods.length , className , methodName , methodDescriptor , defaultMode );
+                newMethods[ existing.getId() ] = existing;
+                methodsByKey.put( key , existing );
+                methods = newMethods;
+            }
+            return existing.getId();
+        }
+    }
+
+    /**
+     * Sets the instrumentation mode for methods that get registered from now on.
+     * 
+     * @param mode either {@link Mode#FULL} or {@link Mode#SAMPLED}
+     */
+    public static void setDefaultMode(Mode mode) 
+    {
+        if ( mode != Mode.FULL && mode != Mode.SAMPLED ) {
+            throw new IllegalArgumentException("Unsupported default mode: "+mode);
+        }
+        defaultMode = mode;
+    }
+
+    public static Mode getDefaultMode() {
+        return defaultMode;
+    }
+
+    /**
+     * Look up a method.
+     *
+     * @param className
+     * @param methodName
+     * @param methodDescriptor
+     * @return method or <code>null</code> if the method has not been registered
+     */
+    public static MethodInfo find(String className,String methodName,String methodDescriptor)
+    {
+        synchronized( LOCK ) {
+            return methodsByKey.get( toKey( className , methodName , methodDescriptor ) );
+        }
+    }
+
+    private static String toKey(String className,String methodName,String methodDescriptor) {
+        return className+"#"+methodName+methodDescriptor;
+    }
+
+    /**
+     * Returns a method by ID.
+     *
+     * @param id
+     * @return
+     * @throws ArrayIndexOutOfBoundsException if no method with this ID has been registered
+     */
+    public static MethodInfo getMethod(int id) throws ArrayIndexOutOfBoundsException {
+        return methods[id];
+    }
+
+    /**
+     * Returns the number of registered methods.
+     *
+     * <p>Since IDs are dense, this is also the largest method ID plus one.</p>
+     * @return
+     */
+    public static int getMethodCount() {
+        return methods.length;
+    }
+}
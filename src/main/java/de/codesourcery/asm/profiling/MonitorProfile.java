@@ -0,0 +1,152 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.asm.profiling;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import de.codesourcery.asm.profiling.MonitorSiteRegistry.MonitorSite;
+
+/**
+ * Snapshot of monitor acquisition counts and wait times per site (summed over all threads).
+ *
+ * @author tobias.gierke@code-sourcery.de
+ * @see StatisticsManager#getMonitorProfile()
+ */
+public final class MonitorProfile
+{
+    /**
+     * Value returned for counts that are not known for a site.
+     */
+    public static final long UNKNOWN = -1;
+
+    private final List<Entry> entries;
+
+    /**
+     * Counters of a single monitor acquisition site.
+     *
+     * @author tobias.gierke@code-sourcery.de
+     */
+    public static final class Entry
+    {
+        private final MonitorSite site;
+        private final long acquisitions;
+        private final long contendedAcquisitions;
+        private final long waitNanos;
+        private final boolean estimated;
+
+        public Entry(MonitorSite site, long acquisitions, long contendedAcquisitions, long waitNanos, boolean estimated)
+        {
+            this.site = site;
+            this.acquisitions = acquisitions;
+            this.contendedAcquisitions = contendedAcquisitions;
+            this.waitNanos = waitNanos;
+            this.estimated = estimated;
+        }
+
+        public MonitorSite getSite()
+        {
+            return site;
+        }
+
+        public long getAcquisitions()
+        {
+            return acquisitions;
+        }
+
+        /**
+         * Returns the number of acquisitions that took longer than the contention threshold.
+         *
+         * @return count or {@link MonitorProfile#UNKNOWN} for sites that are not timed
+         * @see StatisticsManager#setContentionThreshold(long)
+         */
+        public long getContendedAcquisitions()
+        {
+            return contendedAcquisitions;
+        }
+
+        /**
+         * Returns the total time spent acquiring the monitor.
+         *
+         * @return nanoseconds or {@link MonitorProfile#UNKNOWN} for sites that are not timed
+         */
+        public long getWaitNanos()
+        {
+            return waitNanos;
+        }
+
+        /**
+         * Returns whether the counts have been extrapolated (site is in a sampled method).
+         *
+         * @return
+         */
+        public boolean isEstimated()
+        {
+            return estimated;
+        }
+    }
+
+    public MonitorProfile(List<Entry> entries)
+    {
+        final List<Entry> sorted = new ArrayList<>( entries );
+        Collections.sort( sorted , new Comparator<Entry>() {
+
+            @Override
+            public int compare(Entry o1, Entry o2)
+            {
+                final int result = Long.compare( o2.waitNanos , o1.waitNanos );
+                return result != 0 ? result : Long.compare( o2.acquisitions , o1.acquisitions );
+            }
+        });
+        this.entries = Collections.unmodifiableList( sorted );
+    }
+
+    /**
+     * Returns all sites that have been acquired at least once , sorted descending by wait time (sites
+     * without wait time last , sorted by number of acquisitions).
+     *
+     * @return
+     */
+    public List<Entry> getEntries()
+    {
+        return entries;
+    }
+
+    /**
+     * Prints the sites with the highest wait times.
+     *
+     * @param out
+     * @param maxSites
+     */
+    public void print(PrintStream out,int maxSites)
+    {
+        out.println( String.format("%16s %16s %14s %12s  %s" , "Acquisitions" , "Contended" , "Wait (ms)" , "Avg (ns)" , "Site" ) );
+        for ( Entry e : entries.subList( 0 , Math.min( maxSites , entries.size() ) ) )
+        {
+            final String prefix = e.estimated ? "~" : "";
+            if ( e.waitNanos == UNKNOWN ) {
+                out.println( String.format("%16s %16s %14s %12s  %s" , prefix+e.acquisitions , "?" , "?" , "?" , e.site ) );
+            } else {
+                final long avg = e.acquisitions > 0 ? e.waitNanos / e.acquisitions : 0;
+                out.println( String.format("%16s %16s %14.3f %12d  %s" , prefix+e.acquisitions , prefix+e.contendedAcquisitions ,
+                        e.waitNanos / 1000000.0 , avg , e.site ) );
+            }
+        }
+    }
+}
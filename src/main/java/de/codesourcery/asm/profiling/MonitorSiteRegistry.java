@@ -0,0 +1,258 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.asm.profiling;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import de.codesourcery.asm.rewrite.ProfilingRewriter;
+
+/**
+ * Assigns dense integer IDs to monitor acquisition sites (<code>MONITORENTER</code> instructions and synchronized methods).
+ *
+ * <p>IDs are assigned by the {@link ProfilingRewriter} while rewriting a class and are baked into the generated byte-code , they
+ * are used to index the per-thread counters in {@link ExecutionStatistics#monitorCounters}. Re-registering a site
+ * (for example when its class gets re-transformed) always yields the same ID.</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ * @see StatisticsManager#getMonitorProfile()
+ */
+public final class MonitorSiteRegistry
+{
+    /**
+     * Number of counters per site in {@link ExecutionStatistics#monitorCounters}.
+     */
+    public static final int COUNTER_SLOTS = 3;
+
+    /**
+     * Offset of the acquisition counter within a site's counters.
+     */
+    public static final int SLOT_ACQUISITIONS = 0;
+
+    /**
+     * Offset of the counter for acquisitions that took longer than {@link StatisticsManager#getContentionThreshold()}.
+     */
+    public static final int SLOT_CONTENDED = 1;
+
+    /**
+     * Offset of the total time (in nanoseconds) spent acquiring the monitor within a site's counters.
+     */
+    public static final int SLOT_WAIT_NANOS = 2;
+
+    /**
+     * Instruction index of sites that represent synchronized methods.
+     */
+    public static final int SYNCHRONIZED_METHOD = -1;
+
+    /**
+     * A registered monitor acquisition site.
+     *
+     * @author tobias.gierke@code-sourcery.de
+     */
+    public static final class MonitorSite
+    {
+        private final int id;
+        private final int methodId;
+        private final int instructionIndex;
+        private final int lineNumber;
+        private final boolean sampled;
+        private final boolean timed;
+
+        protected MonitorSite(int id, int methodId, int instructionIndex, int lineNumber, boolean sampled, boolean timed)
+        {
+            this.id = id;
+            this.methodId = methodId;
+            this.instructionIndex = instructionIndex;
+            this.lineNumber = lineNumber;
+            this.sampled = sampled;
+            this.timed = timed;
+        }
+
+        public int getId()
+        {
+            return id;
+        }
+
+        /**
+         * Returns the ID of the method containing this site.
+         *
+         * @return
+         * @see MethodRegistry
+         */
+        public int getMethodId()
+        {
+            return methodId;
+        }
+
+        /**
+         * Returns the index of the <code>MONITORENTER</code> instruction within the (uninstrumented) method.
+         *
+         * @return index or {@link #SYNCHRONIZED_METHOD}
+         */
+        public int getInstructionIndex()
+        {
+            return instructionIndex;
+        }
+
+        /**
+         * Returns the source line number.
+         *
+         * @return line number or -1 if unknown
+         */
+        public int getLineNumber()
+        {
+            return lineNumber;
+        }
+
+        /**
+         * Returns whether this site represents a synchronized method.
+         *
+         * @return
+         * @see #isTimed()
+         */
+        public boolean isSynchronizedMethod()
+        {
+            return instructionIndex == SYNCHRONIZED_METHOD;
+        }
+
+        /**
+         * Returns whether acquisitions of this site are counted and timed.
+         *
+         * <p>Synchronized methods are rewritten to acquire their monitor with an explicit <code>MONITORENTER</code> , which
+         * is timed like any other site. Methods whose class was loaded before the profiler could rewrite it keep
+         * the <code>ACC_SYNCHRONIZED</code> flag , their monitor is acquired before any instrumented code runs and only the 
+         * number of acquisitions (method invocations) is known for these sites.</p>
+         *
+         * @return
+         */
+        public boolean isTimed()
+        {
+            return timed;
+        }
+
+        /**
+         * Returns whether this site is part of the instrumented copy of a sampled method , so its
+         * counts only cover the sampled executions.
+         *
+         * @return
+         * @see MethodRegistry.Mode#SAMPLED
+         */
+        public boolean isSampled()
+        {
+            return sampled;
+        }
+
+        @Override
+        public String toString()
+        {
+            if ( isSynchronizedMethod() ) {
+                return "synchronized method "+MethodRegistry.getMethod( methodId );
+            }
+            return "MONITORENTER in "+MethodRegistry.getMethod( methodId )+( lineNumber >= 0 ? ":"+lineNumber : "" )+" @ "+instructionIndex;
+        }
+    }
+
+    private static final Object LOCK = new Object();
+
+    // guarded by LOCK
+    private static final Map<String,MonitorSite> sitesByKey = new HashMap<>();
+
+    // copy-on-write , indexed by site ID
+    private static volatile MonitorSite[] sites = new MonitorSite[0];
+
+    private MonitorSiteRegistry() {
+    }
+
+    /**
+     * Registers a <code>MONITORENTER</code> instruction.
+     *
+     * @param methodId ID of the method containing the site
+     * @param instructionIndex index of the instruction within the method
+     * @param lineNumber source line number or -1
+     * @param sampled whether the site is part of the instrumented copy of a sampled method
+     * @return the site's ID
+     */
+    public static int register(int methodId,int instructionIndex,int lineNumber,boolean sampled)
+    {
+        return register( methodId+"@"+instructionIndex+( sampled ? "#sampled" : "" ) , methodId , instructionIndex , lineNumber , sampled , true );
+    }
+
+    /**
+     * Registers a synchronized method that still has the <code>ACC_SYNCHRONIZED</code> flag , 
+     * only its invocations are known.
+     *
+     * @param methodId
+     * @return the site's ID
+     * @see MonitorSite#isTimed()
+     */
+    public static int registerSynchronizedMethod(int methodId)
+    {
+        return register( methodId+"@synchronized" , methodId , SYNCHRONIZED_METHOD , -1 , false , false );
+    }
+
+    /**
+     * Registers the explicit <code>MONITORENTER</code> of a synchronized method that got rewritten
+     * to acquire its monitor in instrumented code.
+     *
+     * @param methodId
+     * @param sampled whether the site is part of the instrumented copy of a sampled method
+     * @return the site's ID
+     * @see MonitorSite#isTimed()
+     */
+    public static int registerTimedSynchronizedMethod(int methodId,boolean sampled)
+    {
+        return register( methodId+"@synchronized/timed"+( sampled ? "#sampled" : "" ) , methodId , SYNCHRONIZED_METHOD , -1 , sampled , true );
+    }
+
+    private static int register(String key,int methodId,int instructionIndex,int lineNumber,boolean sampled,boolean timed)
+    {
+        synchronized( LOCK )
+        {
+            MonitorSite existing = sitesByKey.get( key );
+            if ( existing == null )
+            {
+                final MonitorSite[] newSites = Arrays.copyOf( sites , sites.length + 1 );
+                existing = new MonitorSite( sites.length , methodId , instructionIndex , lineNumber , sampled , timed );
+                newSites[ existing.getId() ] = existing;
+                sitesByKey.put( key , existing );
+                sites = newSites;
+            }
+            return existing.getId();
+        }
+    }
+
+    /**
+     * Returns a site by ID.
+     *
+     * @param id
+     * @return
+     * @throws ArrayIndexOutOfBoundsException if no site with this ID has been registered
+     */
+    public static MonitorSite getSite(int id) throws ArrayIndexOutOfBoundsException {
+        return sites[id];
+    }
+
+    /**
+     * Returns the number of registered sites.
+     *
+     * <p>Since IDs are dense, this is also the largest site ID plus one.</p>
+     * @return
+     */
+    public static int getSiteCount() {
+        return sites.length;
+    }
+}
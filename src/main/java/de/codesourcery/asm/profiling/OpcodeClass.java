@@ -0,0 +1,156 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.asm.profiling;
+
+import org.objectweb.asm.Opcodes;
+
+/**
+ * Classes of byte-code instructions tracked by the opcode histogram.
+ *
+ * @author tobias.gierke@code-sourcery.de
+ * @see StatisticsManager#getOpcodeHistogram()
+ */
+public enum OpcodeClass
+{
+    /**
+     * Constants , local variable loads/stores , stack manipulation.
+     */
+    LOCAL,
+    ARITHMETIC,
+    CONVERSION,
+    /**
+     * Comparisons , jumps and switches.
+     */
+    BRANCH,
+    FIELD_READ,
+    FIELD_WRITE,
+    ARRAY_READ,
+    ARRAY_WRITE,
+    /**
+     * <code>INVOKESTATIC</code> , <code>INVOKESPECIAL</code> and <code>INVOKEVIRTUAL</code>.
+     */
+    INVOKE,
+    /**
+     * <code>INVOKEINTERFACE</code> and <code>INVOKEDYNAMIC</code>.
+     */
+    INVOKE_INTERFACE,
+    RETURN,
+    /**
+     * <code>NEW</code> and all array allocations.
+     */
+    ALLOCATION,
+    MONITOR,
+    /**
+     * <code>CHECKCAST</code> and <code>INSTANCEOF</code>.
+     */
+    TYPE_CHECK,
+    /**
+     * <code>ATHROW</code>.
+     */
+    THROW,
+    OTHER;
+
+    private static final OpcodeClass[] VALUES = values();
+
+    /**
+     * Returns the class of an opcode.
+     *
+     * @param opcode
+     * @return
+     */
+    public static OpcodeClass classify(int opcode)
+    {
+        if ( opcode >= Opcodes.NOP && opcode <= Opcodes.ALOAD ) { // NOP , constants , LDC , xLOAD
+            return LOCAL;
+        }
+        if ( opcode >= Opcodes.IALOAD && opcode <= Opcodes.SALOAD ) {
+            return ARRAY_READ;
+        }
+        if ( opcode >= Opcodes.ISTORE && opcode <= Opcodes.ASTORE ) {
+            return LOCAL;
+        }
+        if ( opcode >= Opcodes.IASTORE && opcode <= Opcodes.SASTORE ) {
+            return ARRAY_WRITE;
+        }
+        if ( opcode >= Opcodes.POP && opcode <= Opcodes.SWAP ) {
+            return LOCAL;
+        }
+        if ( opcode >= Opcodes.IADD && opcode <= Opcodes.LXOR || opcode == Opcodes.IINC ) {
+            return ARITHMETIC;
+        }
+        if ( opcode >= Opcodes.I2L && opcode <= Opcodes.I2S ) {
+            return CONVERSION;
+        }
+        if ( opcode >= Opcodes.LCMP && opcode <= Opcodes.LOOKUPSWITCH || opcode == Opcodes.IFNULL || opcode == Opcodes.IFNONNULL ) {
+            return BRANCH;
+        }
+        if ( opcode >= Opcodes.IRETURN && opcode <= Opcodes.RETURN ) {
+            return RETURN;
+        }
+        switch( opcode )
+        {
+            case Opcodes.GETSTATIC:
+            case Opcodes.GETFIELD:
+                return FIELD_READ;
+            case Opcodes.PUTSTATIC:
+            case Opcodes.PUTFIELD:
+                return FIELD_WRITE;
+            case Opcodes.INVOKEVIRTUAL:
+            case Opcodes.INVOKESPECIAL:
+            case Opcodes.INVOKESTATIC:
+                return INVOKE;
+            case Opcodes.INVOKEINTERFACE:
+            case Opcodes.INVOKEDYNAMIC:
+                return INVOKE_INTERFACE;
+            case Opcodes.NEW:
+            case Opcodes.NEWARRAY:
+            case Opcodes.ANEWARRAY:
+            case Opcodes.MULTIANEWARRAY:
+                return ALLOCATION;
+            case Opcodes.ARRAYLENGTH:
+                return ARRAY_READ;
+            case Opcodes.ATHROW:
+                return THROW;
+            case Opcodes.CHECKCAST:
+            case Opcodes.INSTANCEOF:
+                return TYPE_CHECK;
+            case Opcodes.MONITORENTER:
+            case Opcodes.MONITOREXIT:
+                return MONITOR;
+            default:
+                return OTHER;
+        }
+    }
+
+    /**
+     * Look up a class by its ordinal.
+     *
+     * @param ordinal
+     * @return
+     */
+    public static OpcodeClass fromOrdinal(int ordinal) {
+        return VALUES[ ordinal ];
+    }
+
+    /**
+     * Returns the number of opcode classes.
+     *
+     * @return
+     */
+    public static int count() {
+        return VALUES.length;
+    }
+}
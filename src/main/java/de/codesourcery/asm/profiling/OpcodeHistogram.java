@@ -0,0 +1,262 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.asm.profiling;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Snapshot of the number of executed instructions per {@link OpcodeClass} , per thread.
+ *
+ * <p>Threads are identified by name , terminated threads are aggregated by name pattern (see {@link ThreadStatisticsRegistry})
+ * and all virtual threads share a single row.</p>
+ *
+ * <p>Snapshots can be written to a tab-separated text file and printed with <code>java -cp controlflow.jar de.codesourcery.asm.profiling.OpcodeHistogram &lt;file&gt;</code>.</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ * @see StatisticsManager#getOpcodeHistogram()
+ */
+public final class OpcodeHistogram
+{
+    /**
+     * Row name used for all virtual threads.
+     */
+    public static final String VIRTUAL_THREADS = "<virtual threads>";
+
+    private final Map<String,long[]> rows = new LinkedHashMap<>();
+
+    public OpcodeHistogram() {
+    }
+
+    /**
+     * Adds counts to a row.
+     *
+     * @param threadName
+     * @param counts counts indexed by {@link OpcodeClass#ordinal()} , may be shorter than the number of classes
+     */
+    public void add(String threadName,long[] counts)
+    {
+        long[] row = rows.get( threadName );
+        if ( row == null ) {
+            row = new long[ OpcodeClass.count() ];
+            rows.put( threadName , row );
+        }
+        final int len = Math.min( row.length , counts.length );
+        for ( int i = 0 ; i < len ; i++ ) {
+            row[i] += counts[i];
+        }
+    }
+
+    /**
+     * Returns the names of all threads in this histogram.
+     *
+     * @return
+     */
+    public List<String> getThreadNames() {
+        return new ArrayList<>( rows.keySet() );
+    }
+
+    /**
+     * Returns the counts of a thread.
+     *
+     * @param threadName
+     * @return counts indexed by {@link OpcodeClass#ordinal()} , all zero for unknown threads
+     */
+    public long[] getCounts(String threadName)
+    {
+        final long[] row = rows.get( threadName );
+        return row != null ? row.clone() : new long[ OpcodeClass.count() ];
+    }
+
+    /**
+     * Returns the counts summed over all threads.
+     *
+     * @return counts indexed by {@link OpcodeClass#ordinal()}
+     */
+    public long[] getTotals()
+    {
+        final long[] result = new long[ OpcodeClass.count() ];
+        for ( long[] row : rows.values() )
+        {
+            for ( int i = 0 ; i < result.length ; i++ ) {
+                result[i] += row[i];
+            }
+        }
+        return result;
+    }
+
+    public long getTotal(OpcodeClass clazz) {
+        return getTotals()[ clazz.ordinal() ];
+    }
+
+    /**
+     * Writes this histogram as tab-separated text (one line per thread , header line with class names).
+     *
+     * @param file
+     * @throws IOException
+     */
+    public void write(File file) throws IOException
+    {
+        final Writer writer = new OutputStreamWriter( new FileOutputStream( file ) , "UTF-8" );
+        try
+        {
+            writer.write("thread");
+            for ( int i = 0 ; i < OpcodeClass.count() ; i++ ) {
+                writer.write( "\t"+OpcodeClass.fromOrdinal( i ).name() );
+            }
+            writer.write("\n");
+            for ( Map.Entry<String,long[]> entry : rows.entrySet() )
+            {
+                writer.write( entry.getKey().replace('\t',' ').replace('\n',' ') );
+                for ( long count : entry.getValue() ) {
+                    writer.write( "\t"+count );
+                }
+                writer.write("\n");
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Reads a histogram written by {@link #write(File)}.
+     *
+     * <p>Columns are matched by class name , unknown columns are ignored.</p>
+     *
+     * @param file
+     * @return
+     * @throws IOException
+     */
+    public static OpcodeHistogram read(File file) throws IOException
+    {
+        final BufferedReader reader = new BufferedReader( new InputStreamReader( new FileInputStream( file ) , "UTF-8" ) );
+        try
+        {
+            final String header = reader.readLine();
+            if ( header == null || ! header.startsWith("thread\t") ) {
+                throw new IOException("Not an opcode histogram: "+file.getAbsolutePath());
+            }
+            final String[] columns = header.split("\t");
+            final int[] mapping = new int[ columns.length ];
+            for ( int i = 1 ; i < columns.length ; i++ )
+            {
+                mapping[i] = -1;
+                for ( OpcodeClass c : OpcodeClass.values() ) {
+                    if ( c.name().equals( columns[i] ) ) {
+                        mapping[i] = c.ordinal();
+                    }
+                }
+            }
+
+            final OpcodeHistogram result = new OpcodeHistogram();
+            String line;
+            while ( ( line = reader.readLine() ) != null )
+            {
+                final String[] parts = line.split("\t");
+                final long[] counts = new long[ OpcodeClass.count() ];
+                for ( int i = 1 ; i < parts.length && i < mapping.length ; i++ )
+                {
+                    if ( mapping[i] >= 0 ) {
+                        try {
+                            counts[ mapping[i] ] = Long.parseLong( parts[i] );
+                        } catch(NumberFormatException e) {
+                            throw new IOException("Invalid count '"+parts[i]+"' in "+file.getAbsolutePath());
+                        }
+                    }
+                }
+                result.add( parts[0] , counts );
+            }
+            return result;
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Prints the opcode mix of all threads combined followed by the mix of the threads
+     * with the most instructions.
+     *
+     * @param out
+     * @param maxThreads
+     */
+    public void print(PrintStream out,int maxThreads)
+    {
+        out.println("==== All threads ====");
+        printRow( out , getTotals() );
+
+        final List<String> threads = getThreadNames();
+        Collections.sort( threads , new Comparator<String>() {
+
+            @Override
+            public int compare(String o1, String o2)
+            {
+                return Long.compare( sum( rows.get( o2 ) ) , sum( rows.get( o1 ) ) );
+            }
+        });
+        for ( String thread : threads.subList( 0 , Math.min( maxThreads , threads.size() ) ) )
+        {
+            out.println("==== "+thread+" ====");
+            printRow( out , rows.get( thread ) );
+        }
+    }
+
+    private static long sum(long[] row)
+    {
+        long result = 0;
+        for ( long count : row ) {
+            result += count;
+        }
+        return result;
+    }
+
+    private static void printRow(PrintStream out,long[] row)
+    {
+        final long total = Math.max( 1 , sum( row ) );
+        for ( int i = 0 ; i < row.length ; i++ )
+        {
+            if ( row[i] != 0 ) {
+                out.println( String.format("  %-18s %16d %6.2f%%" , OpcodeClass.fromOrdinal( i ) , row[i] , 100.0 * row[i] / total ) );
+            }
+        }
+        out.println( String.format("  %-18s %16d" , "TOTAL" , sum( row ) ) );
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        if ( args.length < 1 || args.length > 2 )
+        {
+            System.out.println("\n\nUsage: <file> [<number of threads to show>]\n\n"+
+                    "<file> => histogram written by the agent (see 'opcodeHistogram' agent option)\n"+
+                    "<number of threads to show> => number of threads with the most instructions to show (default: 10)\n\n");
+            return;
+        }
+        final int maxThreads = args.length > 1 ? Integer.parseInt( args[1] ) : 10;
+        read( new File( args[0] ) ).print( System.out , maxThreads );
+    }
+}
@@ -0,0 +1,413 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.asm.profiling;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import de.codesourcery.asm.controlflow.BlockProfile;
+import de.codesourcery.asm.controlflow.IBlock;
+import de.codesourcery.asm.controlflow.PathNumbering;
+import de.codesourcery.asm.profiling.MethodRegistry.MethodInfo;
+import de.codesourcery.asm.profiling.PathRegistry.PathMethod;
+
+/**
+ * Execution counts of acyclic paths (summed over all threads).
+ *
+ * <p>A path either starts at the method entry , at a loop header (right after a back-edge has been taken) or at an 
+ * exception handler and ends when the method returns , throws an exception or takes a back-edge. Paths that were
+ * interrupted by an exception thrown by an instruction other than <code>ATHROW</code> are not counted.</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ * @see StatisticsManager#getPathProfile()
+ */
+public final class PathProfile
+{
+    // indexed by method ID
+    private final Map<Integer,Entry> entries = new HashMap<>();
+
+    /**
+     * Path counts of a single method.
+     *
+     * @author tobias.gierke@code-sourcery.de
+     */
+    public static final class Entry
+    {
+        private final PathMethod method;
+        private final Map<Long,Long> counts = new HashMap<>();
+        private long overflow;
+
+        protected Entry(PathMethod method)
+        {
+            this.method = method;
+        }
+
+        protected void add(long pathNumber,long count)
+        {
+            final Long existing = counts.get( pathNumber );
+            counts.put( pathNumber , existing == null ? count : existing + count );
+        }
+
+        public PathMethod getMethod()
+        {
+            return method;
+        }
+
+        /**
+         * Returns the number of executions per path.
+         *
+         * @return map from path number to number of executions , paths that were never taken are not included
+         * @see PathNumbering#decode(long)
+         */
+        public Map<Long,Long> getCounts()
+        {
+            return Collections.unmodifiableMap( counts );
+        }
+
+        /**
+         * Returns the number of path executions that could not be recorded because a thread's hash table was full.
+         *
+         * @return
+         * @see PathRegistry#HASH_SLOTS
+         */
+        public long getOverflow()
+        {
+            return overflow;
+        }
+
+        /**
+         * Returns the total number of path executions.
+         *
+         * @return
+         */
+        public long getTotal()
+        {
+            long result = overflow;
+            for ( long count : counts.values() ) {
+                result += count;
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Execution count of a single path.
+     *
+     * @author tobias.gierke@code-sourcery.de
+     */
+    public static final class PathCount
+    {
+        private final Entry entry;
+        private final long pathNumber;
+        private final long count;
+
+        protected PathCount(Entry entry, long pathNumber, long count)
+        {
+            this.entry = entry;
+            this.pathNumber = pathNumber;
+            this.count = count;
+        }
+
+        public PathMethod getMethod()
+        {
+            return entry.method;
+        }
+
+        public long getPathNumber()
+        {
+            return pathNumber;
+        }
+
+        public long getCount()
+        {
+            return count;
+        }
+
+        /**
+         * Returns the share of this path among all path executions of its method.
+         *
+         * @return percentage
+         */
+        public double getPercentage()
+        {
+            final long total = entry.getTotal();
+            return total > 0 ? 100.0 * count / total : 0;
+        }
+
+        /**
+         * Decodes this path.
+         *
+         * @return
+         */
+        public PathNumbering.Path decode()
+        {
+            return entry.method.getNumbering().decode( pathNumber );
+        }
+    }
+
+    public PathProfile() {
+    }
+
+    private Entry getEntry(PathMethod method)
+    {
+        Entry result = entries.get( method.getId() );
+        if ( result == null ) {
+            result = new Entry( method );
+            entries.put( method.getId() , result );
+        }
+        return result;
+    }
+
+    /**
+     * Adds the path counters of a thread.
+     *
+     * @param counters layout is identical to {@link ExecutionStatistics#pathCounters}
+     */
+    public void add(long[] counters)
+    {
+        final int methodCount = PathRegistry.getMethodCount();
+        for ( int id = 0 ; id < methodCount ; id++ )
+        {
+            final PathMethod method = PathRegistry.getMethod( id );
+            final int offset = method.getCounterOffset();
+            if ( offset + method.getCounterCount() > counters.length ) {
+                continue;
+            }
+            if ( method.isHashed() )
+            {
+                Entry entry = null;
+                if ( counters[ offset ] != 0 ) {
+                    entry = getEntry( method );
+                    entry.overflow += counters[ offset ];
+                }
+                for ( int slot = offset + 1 ; slot < offset + method.getCounterCount() ; slot += 2 )
+                {
+                    if ( counters[ slot ] != 0 && counters[ slot + 1 ] != 0 )
+                    {
+                        if ( entry == null ) {
+                            entry = getEntry( method );
+                        }
+                        entry.add( counters[ slot ] - 1 , counters[ slot + 1 ] );
+                    }
+                }
+                continue;
+            }
+            Entry entry = null;
+            for ( int path = 0 ; path < method.getCounterCount() ; path++ )
+            {
+                if ( counters[ offset + path ] != 0 )
+                {
+                    if ( entry == null ) {
+                        entry = getEntry( method );
+                    }
+                    entry.add( path , counters[ offset + path ] );
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds all counts of another profile.
+     *
+     * @param other
+     */
+    public void add(PathProfile other)
+    {
+        for ( Entry e : other.entries.values() )
+        {
+            final Entry entry = getEntry( e.method );
+            for ( Map.Entry<Long,Long> count : e.counts.entrySet() ) {
+                entry.add( count.getKey() , count.getValue() );
+            }
+            entry.overflow += e.overflow;
+        }
+    }
+
+    /**
+     * Returns all methods with at least one path execution , sorted descending by number of path executions.
+     *
+     * @return
+     */
+    public List<Entry> getEntries()
+    {
+        final List<Entry> result = new ArrayList<>( entries.values() );
+        Collections.sort( result , new Comparator<Entry>() {
+
+            @Override
+            public int compare(Entry o1, Entry o2)
+            {
+                return Long.compare( o2.getTotal() , o1.getTotal() );
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Returns the most frequently executed paths of all methods.
+     *
+     * @param maxPaths
+     * @return paths sorted descending by execution count
+     */
+    public List<PathCount> getHottestPaths(int maxPaths)
+    {
+        final List<PathCount> result = new ArrayList<>();
+        for ( Entry e : entries.values() )
+        {
+            for ( Map.Entry<Long,Long> count : e.counts.entrySet() ) {
+                result.add( new PathCount( e , count.getKey() , count.getValue() ) );
+            }
+        }
+        Collections.sort( result , new Comparator<PathCount>() {
+
+            @Override
+            public int compare(PathCount o1, PathCount o2)
+            {
+                return Long.compare( o2.count , o1.count );
+            }
+        });
+        return result.subList( 0 , Math.min( maxPaths , result.size() ) );
+    }
+
+    /**
+     * Derives block and edge execution counts from the path counts.
+     *
+     * <p>Edges along a path are counted once per path execution , a back-edge ending a path is only counted if the path's last block has 
+     * a single back-edge. Edges into exception handlers are never counted and path executions that did not fit into a thread's 
+     * hash table (see {@link Entry#getOverflow()}) are missing.</p>
+     *
+     * @return
+     * @see BlockProfile#write(PrintStream)
+     */
+    public BlockProfile getBlockProfile()
+    {
+        final BlockProfile result = new BlockProfile();
+        for ( Entry e : getEntries() )
+        {
+            final PathNumbering numbering = e.method.getNumbering();
+            final IBlock entry = numbering.getGraph().getStart();
+            final IBlock exit = numbering.getGraph().getEnd();
+            final MethodInfo info = MethodRegistry.getMethod( e.method.getMethodId() );
+            final BlockProfile.MethodCounts counts = result.getOrCreate( info.getClassName() , info.getMethodName() , info.getMethodDescriptor() );
+            for ( Map.Entry<Long,Long> count : e.counts.entrySet() )
+            {
+                final PathNumbering.Path path = numbering.decode( count.getKey() );
+                final long executions = count.getValue();
+                final List<IBlock> blocks = new ArrayList<>();
+                for ( IBlock block : path.getBlocks() ) 
+                {
+                    // blocks without instructions can not be matched against another graph
+                    if ( ! block.getInstructionNums().isEmpty() ) {
+                        blocks.add( block );
+                    }
+                }
+                if ( ! path.startsAtLoopHeader() && ! path.startsAtHandler() ) 
+                {
+                    counts.addBlock( BlockProfile.ENTRY , executions );
+                    counts.addEdge( BlockProfile.ENTRY , key( blocks.isEmpty() ? exit : blocks.get(0) ) , executions );
+                }
+                for ( int i = 0 ; i < blocks.size() ; i++ ) 
+                {
+                    counts.addBlock( key( blocks.get(i) ) , executions );
+                    if ( i > 0 ) {
+                        counts.addEdge( key( blocks.get(i-1) ) , key( blocks.get(i) ) , executions );
+                    }
+                }
+                if ( blocks.isEmpty() ) {
+                    counts.addBlock( BlockProfile.EXIT , executions );
+                    continue;
+                }
+                final IBlock last = blocks.get( blocks.size() - 1 );
+                if ( path.endsWithBackEdge() ) 
+                {
+                    IBlock target = null;
+                    int backEdges = 0;
+                    for ( IBlock succ : last.getRegularSuccessors() ) 
+                    {
+                        if ( numbering.isBackEdge( last , succ ) ) {
+                            target = succ;
+                            backEdges++;
+                        }
+                    }
+                    if ( backEdges == 1 ) {
+                        counts.addEdge( key( last ) , key( target ) , executions );
+                    }
+                } 
+                else if ( last.getRegularSuccessors().contains( exit ) ) 
+                {
+                    counts.addBlock( BlockProfile.EXIT , executions );
+                    counts.addEdge( key( last ) , BlockProfile.EXIT , executions );
+                }
+            }
+        }
+        return result;
+    }
+
+    private static int key(IBlock block) {
+        return BlockProfile.getBlockKey( block );
+    }
+
+    /**
+     * Prints the most frequently executed paths.
+     *
+     * <p>Blocks along a path are printed as <code>&lt;index of first instruction&gt;:&lt;source line&gt;</code>.</p>
+     *
+     * @param out
+     * @param maxPaths
+     */
+    public void print(PrintStream out,int maxPaths)
+    {
+        out.println( String.format("%16s %7s  %s" , "Executions" , "Method%" , "Path" ) );
+        for ( PathCount p : getHottestPaths( maxPaths ) )
+        {
+            final PathNumbering numbering = p.getMethod().getNumbering();
+            final PathNumbering.Path path = p.decode();
+            final StringBuilder blocks = new StringBuilder();
+            if ( path.startsAtLoopHeader() ) {
+                blocks.append( "(loop) " );
+            } else if ( path.startsAtHandler() ) {
+                blocks.append( "(handler) " );
+            }
+            for ( IBlock block : path.getBlocks() )
+            {
+                final int index = numbering.getFirstByteCodeInstructionNum( block );
+                if ( index < 0 ) {
+                    continue;
+                }
+                if ( blocks.length() > 0 && ! blocks.toString().endsWith(" ") ) {
+                    blocks.append( " -> " );
+                }
+                final int line = numbering.getLineNumber( block );
+                blocks.append( index ).append( ':' ).append( line >= 0 ? Integer.toString( line ) : "?" );
+            }
+            if ( path.endsWithBackEdge() ) {
+                blocks.append( " (back-edge)" );
+            }
+            out.println( String.format("%16d %6.2f%%  %s path #%d of %d: %s" , p.count , p.getPercentage() , p.getMethod() , 
+                    p.pathNumber , p.getMethod().getPathCount() , blocks ) );
+        }
+        for ( Entry e : getEntries() )
+        {
+            if ( e.overflow > 0 ) {
+                out.println( "WARNING: "+e.overflow+" executions of paths in "+e.method+" did not fit into the hash table" );
+            }
+        }
+    }
+}
@@ -0,0 +1,232 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.asm.profiling;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import de.codesourcery.asm.controlflow.PathNumbering;
+import de.codesourcery.asm.rewrite.ProfilingRewriter;
+
+/**
+ * Keeps track of methods whose acyclic paths are profiled.
+ *
+ * <p>Methods are registered by the {@link ProfilingRewriter} along with their {@link PathNumbering}. Each method owns a range of
+ * counters in {@link ExecutionStatistics#pathCounters} whose offset is baked into the generated byte-code: methods with at
+ * most {@link #MAX_ARRAY_PATHS} paths own one counter per path (indexed by path number) , methods with more paths own a
+ * hash table with {@link #HASH_SLOTS} slots (see {@link #getHashSlotCounterOffset(long, int)}) and an overflow counter for paths
+ * that did not fit into the table. Re-registering a method (for example when its class gets re-transformed) always
+ * yields the same counters.</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ * @see StatisticsManager#getPathProfile()
+ */
+public final class PathRegistry
+{
+    /**
+     * Largest number of paths for which a method gets a plain array of counters.
+     */
+    public static final int MAX_ARRAY_PATHS = 4096;
+
+    /**
+     * Number of slots of the hash tables used by methods with more than {@link #MAX_ARRAY_PATHS} paths.
+     */
+    public static final int HASH_SLOTS = 1024;
+
+    /**
+     * A registered method.
+     *
+     * @author tobias.gierke@code-sourcery.de
+     */
+    public static final class PathMethod
+    {
+        private final int id;
+        private final int methodId;
+        private final PathNumbering numbering;
+        private final long pathCount;
+        private final int counterOffset;
+
+        protected PathMethod(int id, int methodId, PathNumbering numbering, int counterOffset)
+        {
+            this.id = id;
+            this.methodId = methodId;
+            this.numbering = numbering;
+            this.pathCount = numbering.getPathCount();
+            this.counterOffset = counterOffset;
+        }
+
+        public int getId()
+        {
+            return id;
+        }
+
+        /**
+         * Returns the ID of the method.
+         *
+         * @return
+         * @see MethodRegistry
+         */
+        public int getMethodId()
+        {
+            return methodId;
+        }
+
+        /**
+         * Returns the path numbering used by the instrumented code , use this to decode path numbers.
+         *
+         * @return
+         */
+        public PathNumbering getNumbering()
+        {
+            return numbering;
+        }
+
+        public long getPathCount()
+        {
+            return pathCount;
+        }
+
+        /**
+         * Returns whether path counts are stored in a hash table instead of an array.
+         *
+         * @return
+         */
+        public boolean isHashed()
+        {
+            return pathCount > MAX_ARRAY_PATHS;
+        }
+
+        /**
+         * Returns the offset of this method's first counter in {@link ExecutionStatistics#pathCounters}.
+         *
+         * <p>If {@link #isHashed()} , the first counter is the overflow counter followed by the hash table slots.</p>
+         *
+         * @return
+         */
+        public int getCounterOffset()
+        {
+            return counterOffset;
+        }
+
+        /**
+         * Returns the number of counters owned by this method.
+         *
+         * @return
+         */
+        public int getCounterCount()
+        {
+            return isHashed() ? 1 + 2 * HASH_SLOTS : (int) pathCount;
+        }
+
+        @Override
+        public String toString()
+        {
+            return MethodRegistry.getMethod( methodId ).toString();
+        }
+    }
+
+    private static final Object LOCK = new Object();
+
+    // guarded by LOCK
+    private static final Map<Integer,PathMethod> methodsByMethodId = new HashMap<>();
+
+    // guarded by LOCK
+    private static int counterCount;
+
+    // copy-on-write , indexed by ID
+    private static volatile PathMethod[] methods = new PathMethod[0];
+
+    private PathRegistry() {
+    }
+
+    /**
+     * Registers a method.
+     *
+     * @param methodId
+     * @param numbering
+     * @return
+     * @throws IllegalArgumentException if the numbering is not {@link PathNumbering#isSupported() supported}
+     */
+    public static PathMethod register(int methodId,PathNumbering numbering) throws IllegalArgumentException
+    {
+        if ( ! numbering.isSupported() ) {
+            throw new IllegalArgumentException("Unsupported path numbering: "+numbering.getUnsupportedReason());
+        }
+        synchronized( LOCK )
+        {
+            PathMethod existing = methodsByMethodId.get( methodId );
+            if ( existing == null || existing.getPathCount() != numbering.getPathCount() )
+            {
+                final PathMethod[] newMethods = Arrays.copyOf( methods , methods.length + 1 );
+                existing = new PathMethod( methods.length , methodId , numbering , counterCount );
+                counterCount += existing.getCounterCount();
+                newMethods[ existing.getId() ] = existing;
+                methodsByMethodId.put( methodId , existing );
+                methods = newMethods;
+            }
+            return existing;
+        }
+    }
+
+    /**
+     * Returns a method by ID.
+     *
+     * @param id
+     * @return
+     * @throws ArrayIndexOutOfBoundsException if no method with this ID has been registered
+     */
+    public static PathMethod getMethod(int id) throws ArrayIndexOutOfBoundsException {
+        return methods[id];
+    }
+
+    /**
+     * Returns the number of registered methods.
+     *
+     * @return
+     */
+    public static int getMethodCount() {
+        return methods.length;
+    }
+
+    /**
+     * Returns the number of counters owned by all registered methods.
+     *
+     * @return
+     */
+    public static int getCounterCount()
+    {
+        synchronized( LOCK ) {
+            return counterCount;
+        }
+    }
+
+    /**
+     * Returns the offset of the first hash table slot to probe for a path.
+     *
+     * <p>Each slot consists of two counters , the path number plus one (zero marks an empty slot) and the
+     * number of times the path was taken. Slots are probed linearly.</p>
+     *
+     * @param pathNumber
+     * @param counterOffset offset of the method's first counter
+     * @return
+     */
+    public static int getHashSlotCounterOffset(long pathNumber,int counterOffset)
+    {
+        final int hash = (int) ( pathNumber ^ ( pathNumber >>> 32 ) ) * 0x9E3779B9;
+        return counterOffset + 1 + 2 * ( ( hash >>> 1 ) % HASH_SLOTS );
+    }
+}
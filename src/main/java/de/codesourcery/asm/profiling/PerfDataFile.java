@@ -0,0 +1,344 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.asm.profiling;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Exports counters through a memory-mapped file (similar to <code>hsperfdata</code>) so that external
+ * processes can poll them without any cooperation from the profiled JVM.
+ *
+ * <p>File layout (all values big-endian):</p>
+ * <pre>
+ * HEADER (64 bytes)
+ *   0  int   magic ({@link #MAGIC})
+ *   4  int   layout version ({@link #VERSION})
+ *   8  int   number of thread slots
+ *  12  int   number of method slots
+ *  16  int   size of a thread slot in bytes
+ *  20  int   size of a method slot in bytes
+ *  24  long  time of last update of method slots (milliseconds since epoch)
+ *  32  int   number of used thread slots
+ *  36  int   number of used method slots
+ *  40  long  time the file was created (milliseconds since epoch)
+ *
+ * THREAD SLOT (128 bytes)
+ *   0  long  sequence number (odd while the slot's name is being written)
+ *   8  long  number of executed instructions
+ *  16  long  thread ID
+ *  24  int   state ({@link #STATE_FREE} , {@link #STATE_LIVE} or {@link #STATE_TERMINATED})
+ *  28  int   length of thread name in bytes
+ *  32  byte[96] thread name (UTF-8 , truncated)
+ *
+ * METHOD SLOT (256 bytes)
+ *   0  long  sequence number (odd while the slot is being written)
+ *   8  long  invocations
+ *  16  long  probes
+ *  24  long  instructions
+ *  32  int   instrumentation mode ({@link MethodRegistry.Mode#ordinal()})
+ *  36  int   length of method name in bytes
+ *  40  byte[216] method name (UTF-8 , truncated)
+ * </pre>
+ *
+ * <p>Thread slots are written by their owning thread (see {@link StatisticsManager#account()}). Once a thread has
+ * terminated , its final count is written and the slot is marked {@link #STATE_TERMINATED} when the {@link ThreadStatisticsRegistry}
+ * retires the thread , which happens up to {@link ThreadStatisticsRegistry#REAPER_INTERVAL_MILLIS} later. Terminated 
+ * slots get re-used for new threads. Method
+ * slots are periodically refreshed by a daemon thread and once more at JVM shutdown. All counters are single aligned 8-byte writes, slots holding
+ * names are guarded by the sequence number so readers can detect and retry torn reads. Note that the
+ * Java 7 buffer API only offers plain writes, so readers may observe counter updates slightly out of order.</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ * @see PerfDataReader
+ */
+public final class PerfDataFile
+{
+    public static final int MAGIC = 0x50524F46; // 'PROF'
+    public static final int VERSION = 1;
+
+    public static final int HEADER_SIZE = 64;
+
+    public static final int HEADER_MAGIC = 0;
+    public static final int HEADER_VERSION = 4;
+    public static final int HEADER_THREAD_SLOTS = 8;
+    public static final int HEADER_METHOD_SLOTS = 12;
+    public static final int HEADER_THREAD_SLOT_SIZE = 16;
+    public static final int HEADER_METHOD_SLOT_SIZE = 20;
+    public static final int HEADER_LAST_UPDATE = 24;
+    public static final int HEADER_USED_THREAD_SLOTS = 32;
+    public static final int HEADER_USED_METHOD_SLOTS = 36;
+    public static final int HEADER_CREATED = 40;
+
+    public static final int THREAD_SLOT_SIZE = 128;
+
+    public static final int THREAD_SEQUENCE = 0;
+    public static final int THREAD_INSTRUCTIONS = 8;
+    public static final int THREAD_ID = 16;
+    public static final int THREAD_STATE = 24;
+    public static final int THREAD_NAME_LENGTH = 28;
+    public static final int THREAD_NAME = 32;
+
+    public static final int METHOD_SLOT_SIZE = 256;
+
+    public static final int METHOD_SEQUENCE = 0;
+    public static final int METHOD_INVOCATIONS = 8;
+    public static final int METHOD_PROBES = 16;
+    public static final int METHOD_INSTRUCTIONS = 24;
+    public static final int METHOD_MODE = 32;
+    public static final int METHOD_NAME_LENGTH = 36;
+    public static final int METHOD_NAME = 40;
+
+    public static final int STATE_FREE = 0;
+    public static final int STATE_LIVE = 1;
+    public static final int STATE_TERMINATED = 2;
+
+    public static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final File file;
+    private final MappedByteBuffer buffer;
+    private final int threadSlots;
+    private final int methodSlots;
+    private final AtomicInteger usedThreadSlots = new AtomicInteger(0);
+    private final ConcurrentLinkedQueue<Integer> releasedThreadSlots = new ConcurrentLinkedQueue<>();
+
+    // number of method slots whose name has already been written, only accessed by publishing thread
+    private int publishedMethods;
+
+    /**
+     * Create (or truncate) a counter file.
+     *
+     * @param file
+     * @param threadSlots maximum number of threads to export counters for
+     * @param methodSlots maximum number of methods to export counters for
+     * @throws IOException
+     */
+    public PerfDataFile(File file,int threadSlots,int methodSlots) throws IOException
+    {
+        if ( threadSlots < 1 || methodSlots < 1 ) {
+            throw new IllegalArgumentException("Slot counts must be >= 1");
+        }
+        this.file = file;
+        this.threadSlots = threadSlots;
+        this.methodSlots = methodSlots;
+
+        final long size = HEADER_SIZE + threadSlots * (long) THREAD_SLOT_SIZE + methodSlots * (long) METHOD_SLOT_SIZE;
+        final RandomAccessFile raf = new RandomAccessFile( file , "rw" );
+        try {
+            raf.setLength( 0 );
+            raf.setLength( size );
+            buffer = raf.getChannel().map( FileChannel.MapMode.READ_WRITE , 0 , size );
+        } finally {
+            raf.close(); // mapping stays valid
+        }
+
+        buffer.putInt( HEADER_VERSION , VERSION );
+        buffer.putInt( HEADER_THREAD_SLOTS , threadSlots );
+        buffer.putInt( HEADER_METHOD_SLOTS , methodSlots );
+        buffer.putInt( HEADER_THREAD_SLOT_SIZE , THREAD_SLOT_SIZE );
+        buffer.putInt( HEADER_METHOD_SLOT_SIZE , METHOD_SLOT_SIZE );
+        buffer.putLong( HEADER_CREATED , System.currentTimeMillis() );
+        // magic goes last so readers never see a partially initialized header
+        buffer.putInt( HEADER_MAGIC , MAGIC );
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Allocates a slot for a thread.
+     *
+     * @param thread
+     * @return slot index or -1 if all slots are in use
+     */
+    public int allocateThreadSlot(Thread thread)
+    {
+        final Integer released = releasedThreadSlots.poll();
+        final int slot = released != null ? released.intValue() : usedThreadSlots.getAndIncrement();
+        if ( slot >= threadSlots ) {
+            usedThreadSlots.set( threadSlots );
+            return -1;
+        }
+        final int offset = threadSlotOffset( slot );
+        final long seq = buffer.getLong( offset + THREAD_SEQUENCE );
+        buffer.putLong( offset + THREAD_SEQUENCE , seq+1 );
+        buffer.putLong( offset + THREAD_INSTRUCTIONS , 0 );
+        buffer.putLong( offset + THREAD_ID , thread.getId() );
+        buffer.putInt( offset + THREAD_STATE , STATE_LIVE );
+        putString( offset + THREAD_NAME_LENGTH , offset + THREAD_NAME , THREAD_SLOT_SIZE - THREAD_NAME , thread.getName() );
+        buffer.putLong( offset + THREAD_SEQUENCE , seq+2 );
+
+        // publish slot count after the slot has been initialized
+        synchronized( buffer ) {
+            buffer.putInt( HEADER_USED_THREAD_SLOTS , Math.max( buffer.getInt( HEADER_USED_THREAD_SLOTS ) , slot+1 ) );
+        }
+        return slot;
+    }
+
+    /**
+     * Updates a thread's instruction count.
+     *
+     * @param slot
+     * @param instructions
+     */
+    public void updateThread(int slot,long instructions)
+    {
+        buffer.putLong( threadSlotOffset( slot ) + THREAD_INSTRUCTIONS , instructions );
+    }
+
+    /**
+     * Marks a thread slot as {@link #STATE_TERMINATED terminated} and makes it 
+     * available for re-use.
+     * 
+     * <p>Invoked when the final counters of a terminated thread get merged into its bucket.</p>
+     * 
+     * @param slot
+     * @see ThreadStatisticsRegistry
+     */
+    public void releaseThreadSlot(int slot)
+    {
+        setThreadState( slot , STATE_TERMINATED );
+        releasedThreadSlots.add( Integer.valueOf( slot ) );
+    }
+
+    /**
+     * Sets the state of a thread slot.
+     *
+     * @param slot
+     * @param state
+     */
+    public void setThreadState(int slot,int state)
+    {
+        buffer.putInt( threadSlotOffset( slot ) + THREAD_STATE , state );
+    }
+
+    /**
+     * Copies the per-method counters of all threads into the method slots.
+     *
+     * <p>Calls are serialized , the {@link Publisher} and a final update at JVM shutdown may overlap.</p>
+     *
+     * @see StatisticsManager#getMethodCounters()
+     */
+    public synchronized void publishMethods()
+    {
+        final long[] counters = StatisticsManager.getMethodCounters();
+        final int count = Math.min( methodSlots , counters.length / ExecutionStatistics.METHOD_COUNTER_SLOTS );
+        for ( int id = 0 ; id < count ; id++ )
+        {
+            final int offset = methodSlotOffset( id );
+            final int base = id * ExecutionStatistics.METHOD_COUNTER_SLOTS;
+            final MethodRegistry.MethodInfo method = MethodRegistry.getMethod( id );
+
+            final long seq = buffer.getLong( offset + METHOD_SEQUENCE );
+            buffer.putLong( offset + METHOD_SEQUENCE , seq+1 );
+            buffer.putLong( offset + METHOD_INVOCATIONS , counters[ base + ExecutionStatistics.SLOT_INVOCATIONS ] );
+            buffer.putLong( offset + METHOD_PROBES , counters[ base + ExecutionStatistics.SLOT_PROBES ] );
+            buffer.putLong( offset + METHOD_INSTRUCTIONS , counters[ base + ExecutionStatistics.SLOT_INSTRUCTIONS ] );
+            buffer.putInt( offset + METHOD_MODE , method.getMode().ordinal() );
+            if ( id >= publishedMethods ) {
+                putString( offset + METHOD_NAME_LENGTH , offset + METHOD_NAME , METHOD_SLOT_SIZE - METHOD_NAME , method.toString() );
+            }
+            buffer.putLong( offset + METHOD_SEQUENCE , seq+2 );
+        }
+        publishedMethods = Math.max( publishedMethods , count );
+        buffer.putInt( HEADER_USED_METHOD_SLOTS , publishedMethods );
+        buffer.putLong( HEADER_LAST_UPDATE , System.currentTimeMillis() );
+    }
+
+    private void putString(int lengthOffset,int dataOffset,int maxLength,String s)
+    {
+        final byte[] data = s.getBytes( UTF8 );
+        final int len = Math.min( data.length , maxLength );
+        for ( int i = 0 ; i < len ; i++ ) {
+            buffer.put( dataOffset+i , data[i] );
+        }
+        buffer.putInt( lengthOffset , len );
+    }
+
+    private int threadSlotOffset(int slot) {
+        return HEADER_SIZE + slot * THREAD_SLOT_SIZE;
+    }
+
+    private int methodSlotOffset(int slot) {
+        return HEADER_SIZE + threadSlots * THREAD_SLOT_SIZE + slot * METHOD_SLOT_SIZE;
+    }
+
+    /**
+     * Daemon thread that periodically publishes method counters.
+     *
+     * <p>Daemon threads are not stopped gracefully when the JVM exits , so the thread also registers a shutdown hook
+     * that publishes the counters one last time. Otherwise readers would only see counters up to one interval old
+     * and miss methods registered during the last interval.</p>
+     *
+     * @author tobias.gierke@code-sourcery.de
+     */
+    public static final class Publisher extends Thread
+    {
+        private final PerfDataFile file;
+        private final long intervalMillis;
+
+        public Publisher(PerfDataFile file,long intervalMillis)
+        {
+            super("profiling-perfdata-publisher");
+            if ( intervalMillis <= 0 ) {
+                throw new IllegalArgumentException("interval must be > 0");
+            }
+            this.file = file;
+            this.intervalMillis = intervalMillis;
+            setDaemon( true );
+        }
+
+        @Override
+        public synchronized void start()
+        {
+            Runtime.getRuntime().addShutdownHook( new Thread("profiling-perfdata-final-publish")
+            {
+                @Override
+                public void run()
+                {
+                    file.publishMethods();
+                }
+            });
+            super.start();
+        }
+
+        @Override
+        public void run()
+        {
+            try
+            {
+                while ( ! isInterrupted() )
+                {
+                    file.publishMethods();
+                    Thread.sleep( intervalMillis );
+                }
+            }
+            catch (InterruptedException e) {
+                // stopped
+            }
+            finally {
+                file.publishMethods();
+            }
+        }
+    }
+}
@@ -0,0 +1,235 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.asm.profiling;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Reads counters exported through a {@link PerfDataFile} from another process.
+ *
+ * <p>Usage: <code>java -cp controlflow.jar de.codesourcery.asm.profiling.PerfDataReader &lt;file&gt; [&lt;interval in ms&gt;] [&lt;number of methods to show&gt;]</code></p>
+ *
+ * <p>The file is mapped read-only and polled, the profiled JVM is never interrupted.</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ */
+public class PerfDataReader
+{
+    // how often to retry reading a slot that is concurrently being written
+    private static final int MAX_RETRIES = 100;
+
+    private final MappedByteBuffer buffer;
+
+    private final int threadSlots;
+    private final int methodSlots;
+    private final int threadSlotSize;
+    private final int methodSlotSize;
+
+    /**
+     * A thread's counters.
+     *
+     * @author tobias.gierke@code-sourcery.de
+     */
+    public static final class ThreadCounters
+    {
+        public final long threadId;
+        public final String name;
+        public final int state;
+        public final long instructions;
+
+        public ThreadCounters(long threadId, String name, int state, long instructions)
+        {
+            this.threadId = threadId;
+            this.name = name;
+            this.state = state;
+            this.instructions = instructions;
+        }
+    }
+
+    /**
+     * A method's counters.
+     *
+     * @author tobias.gierke@code-sourcery.de
+     */
+    public static final class MethodCounters
+    {
+        public final int id;
+        public final String name;
+        public final MethodRegistry.Mode mode;
+        public final long invocations;
+        public final long probes;
+        public final long instructions;
+
+        public MethodCounters(int id,String name, MethodRegistry.Mode mode, long invocations, long probes, long instructions)
+        {
+            this.id = id;
+            this.name = name;
+            this.mode = mode;
+            this.invocations = invocations;
+            this.probes = probes;
+            this.instructions = instructions;
+        }
+    }
+
+    public PerfDataReader(File file) throws IOException
+    {
+        final RandomAccessFile raf = new RandomAccessFile( file , "r" );
+        try {
+            buffer = raf.getChannel().map( FileChannel.MapMode.READ_ONLY , 0 , raf.length() );
+        } finally {
+            raf.close();
+        }
+
+        if ( buffer.capacity() < PerfDataFile.HEADER_SIZE || buffer.getInt( PerfDataFile.HEADER_MAGIC ) != PerfDataFile.MAGIC ) {
+            throw new IOException("Not a counter file (or not fully initialized yet): "+file.getAbsolutePath());
+        }
+        if ( buffer.getInt( PerfDataFile.HEADER_VERSION ) != PerfDataFile.VERSION ) {
+            throw new IOException("Unsupported counter file version "+buffer.getInt( PerfDataFile.HEADER_VERSION )+" , expected "+PerfDataFile.VERSION);
+        }
+        threadSlots = buffer.getInt( PerfDataFile.HEADER_THREAD_SLOTS );
+        methodSlots = buffer.getInt( PerfDataFile.HEADER_METHOD_SLOTS );
+        threadSlotSize = buffer.getInt( PerfDataFile.HEADER_THREAD_SLOT_SIZE );
+        methodSlotSize = buffer.getInt( PerfDataFile.HEADER_METHOD_SLOT_SIZE );
+    }
+
+    public long getCreationTime() {
+        return buffer.getLong( PerfDataFile.HEADER_CREATED );
+    }
+
+    public long getLastUpdateTime() {
+        return buffer.getLong( PerfDataFile.HEADER_LAST_UPDATE );
+    }
+
+    public List<ThreadCounters> readThreads()
+    {
+        final int used = Math.min( threadSlots , buffer.getInt( PerfDataFile.HEADER_USED_THREAD_SLOTS ) );
+        final List<ThreadCounters> result = new ArrayList<>( used );
+        for ( int slot = 0 ; slot < used ; slot++ )
+        {
+            final int offset = PerfDataFile.HEADER_SIZE + slot * threadSlotSize;
+            for ( int retry = 0 ; retry < MAX_RETRIES ; retry++ )
+            {
+                final long seq = buffer.getLong( offset + PerfDataFile.THREAD_SEQUENCE );
+                if ( ( seq & 1 ) != 0 ) {
+                    continue;
+                }
+                final long id = buffer.getLong( offset + PerfDataFile.THREAD_ID );
+                final int state = buffer.getInt( offset + PerfDataFile.THREAD_STATE );
+                final String name = getString( offset + PerfDataFile.THREAD_NAME_LENGTH , offset + PerfDataFile.THREAD_NAME , threadSlotSize - PerfDataFile.THREAD_NAME );
+                final long instructions = buffer.getLong( offset + PerfDataFile.THREAD_INSTRUCTIONS );
+                if ( seq == buffer.getLong( offset + PerfDataFile.THREAD_SEQUENCE ) ) {
+                    if ( state != PerfDataFile.STATE_FREE ) {
+                        result.add( new ThreadCounters( id , name , state , instructions ) );
+                    }
+                    break;
+                }
+            }
+        }
+        return result;
+    }
+
+    public List<MethodCounters> readMethods()
+    {
+        final int used = Math.min( methodSlots , buffer.getInt( PerfDataFile.HEADER_USED_METHOD_SLOTS ) );
+        final List<MethodCounters> result = new ArrayList<>( used );
+        final MethodRegistry.Mode[] modes = MethodRegistry.Mode.values();
+        for ( int slot = 0 ; slot < used ; slot++ )
+        {
+            final int offset = PerfDataFile.HEADER_SIZE + threadSlots * threadSlotSize + slot * methodSlotSize;
+            for ( int retry = 0 ; retry < MAX_RETRIES ; retry++ )
+            {
+                final long seq = buffer.getLong( offset + PerfDataFile.METHOD_SEQUENCE );
+                if ( ( seq & 1 ) != 0 ) {
+                    continue;
+                }
+                final long invocations = buffer.getLong( offset + PerfDataFile.METHOD_INVOCATIONS );
+                final long probes = buffer.getLong( offset + PerfDataFile.METHOD_PROBES );
+                final long instructions = buffer.getLong( offset + PerfDataFile.METHOD_INSTRUCTIONS );
+                final int mode = buffer.getInt( offset + PerfDataFile.METHOD_MODE );
+                final String name = getString( offset + PerfDataFile.METHOD_NAME_LENGTH , offset + PerfDataFile.METHOD_NAME , methodSlotSize - PerfDataFile.METHOD_NAME );
+                if ( seq == buffer.getLong( offset + PerfDataFile.METHOD_SEQUENCE ) )
+                {
+                    final MethodRegistry.Mode m = mode >= 0 && mode < modes.length ? modes[mode] : null;
+                    result.add( new MethodCounters( slot , name , m , invocations , probes , instructions ) );
+                    break;
+                }
+            }
+        }
+        return result;
+    }
+
+    private String getString(int lengthOffset,int dataOffset,int maxLength)
+    {
+        final int len = Math.max( 0 , Math.min( maxLength , buffer.getInt( lengthOffset ) ) );
+        final byte[] data = new byte[ len ];
+        for ( int i = 0 ; i < len ; i++ ) {
+            data[i] = buffer.get( dataOffset + i );
+        }
+        return new String( data , PerfDataFile.UTF8 );
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        if ( args.length < 1 || args.length > 3 )
+        {
+            System.out.println("\n\nUsage: <file> [<interval in ms>] [<number of methods to show>]\n\n"+
+                    "<file> => counter file written by the agent (see 'perfFile' agent option)\n"+
+                    "<interval in ms> => how often to poll the file (default: 1000)\n"+
+                    "<number of methods to show> => number of methods with the most instructions to show (default: 20)\n\n");
+            return;
+        }
+        final long interval = args.length > 1 ? Long.parseLong( args[1] ) : 1000;
+        final int topMethods = args.length > 2 ? Integer.parseInt( args[2] ) : 20;
+
+        final PerfDataReader reader = new PerfDataReader( new File( args[0] ) );
+        final SimpleDateFormat format = new SimpleDateFormat("HH:mm:ss.SSS");
+        final PrintStream out = System.out;
+        while ( true )
+        {
+            out.println("==== "+format.format( new Date() )+" (methods updated: "+format.format( new Date( reader.getLastUpdateTime() ) )+") ====");
+            for ( ThreadCounters thread : reader.readThreads() )
+            {
+                final String state = thread.state == PerfDataFile.STATE_TERMINATED ? " (terminated)" : "";
+                out.println( String.format("Thread %-40s %20d%s" , "'"+thread.name+"' (#"+thread.threadId+")" , thread.instructions , state ) );
+            }
+
+            final List<MethodCounters> methods = reader.readMethods();
+            Collections.sort( methods , new Comparator<MethodCounters>() {
+
+                @Override
+                public int compare(MethodCounters o1, MethodCounters o2)
+                {
+                    return Long.compare( o2.instructions , o1.instructions );
+                }
+            });
+            for ( MethodCounters method : methods.subList( 0 , Math.min( topMethods , methods.size() ) ) ) {
+                out.println( String.format("%20d %12d  %-10s %s" , method.instructions , method.invocations , method.mode , method.name ) );
+            }
+            Thread.sleep( interval );
+        }
+    }
+}
@@ -0,0 +1,96 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.asm.profiling;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.MutableCallSite;
+
+import de.codesourcery.asm.rewrite.ProfilingRewriter;
+
+/**
+ * Global on/off switch for all probes inserted by the {@link ProfilingRewriter}.
+ *
+ * <p>Instrumented code guards each probe with an <code>INVOKEDYNAMIC</code> instruction
+ * that is linked (through {@link #bootstrap(MethodHandles.Lookup, String, MethodType)}) against a single, shared
+ * {@link MutableCallSite} whose target is a constant method handle. The JIT treats the call site's
+ * target as a constant and thus folds the guard away completely, toggling the switch
+ * invalidates all dependent compiled code.</p>
+ *
+ * <p>Classes with a class-file version below 51 (Java 7) cannot use <code>INVOKEDYNAMIC</code>, generated code
+ * for those classes calls {@link #isEnabled()} instead.</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ * @see StatisticsManager#setEnabled(boolean)
+ */
+public final class ProfilingSwitch
+{
+    private static final MethodType GUARD_TYPE = MethodType.methodType( boolean.class );
+
+    private static final MutableCallSite CALLSITE = new MutableCallSite( MethodHandles.constant( boolean.class , Boolean.TRUE ) );
+
+    private static volatile boolean enabled = true;
+
+    private ProfilingSwitch() {
+    }
+
+    /**
+     * Bootstrap method invoked by the JVM when linking the <code>INVOKEDYNAMIC</code> guards
+     * inserted by the {@link ProfilingRewriter}.
+     *
+     * <p>All guards share the same call site.</p>
+     *
+     * @param lookup
+     * @param name
+     * @param type
+     * @return
+     */
+    public static CallSite bootstrap(MethodHandles.Lookup lookup,String name,MethodType type)
+    {
+        if ( ! GUARD_TYPE.equals( type ) ) {
+            throw new IllegalArgumentException("Unsupported call site type "+type+" , expected "+GUARD_TYPE);
+        }
+        return CALLSITE;
+    }
+
+    /**
+     * Check whether probes are currently enabled.
+     *
+     * @return
+     */
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Enable or disable all probes.
+     *
+     * <p>Note that re-linking the call site deoptimizes all compiled methods that
+     * contain guards, so this method should not be invoked in a tight loop.</p>
+     *
+     * @param newState
+     */
+    public static synchronized void setEnabled(boolean newState)
+    {
+        if ( enabled == newState ) {
+            return;
+        }
+        enabled = newState;
+        CALLSITE.setTarget( MethodHandles.constant( boolean.class , Boolean.valueOf( newState ) ) );
+        MutableCallSite.syncAll( new MutableCallSite[] { CALLSITE } );
+    }
+}
@@ -0,0 +1,257 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.asm.profiling;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import de.codesourcery.asm.profiling.CallSiteRegistry.CallSite;
+
+/**
+ * Receiver types observed at <code>INVOKEVIRTUAL</code> / <code>INVOKEINTERFACE</code> call sites.
+ *
+ * <p>Each thread keeps a small cache of {@link ExecutionStatistics#RECEIVER_SLOTS} receiver classes per call site (similar to
+ * the type profiles the JVM itself gathers for the JIT), calls with receivers that did not fit into the cache only increment
+ * a per-site <i>megamorphic</i> counter. A profile merges these per-thread caches by class name , so the number of distinct
+ * receivers reported for a site may exceed the number of cache slots while calls counted as megamorphic could not be
+ * attributed to a receiver class at all.</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ * @see StatisticsManager#getReceiverTypeProfile()
+ */
+public final class ReceiverTypeProfile
+{
+    // indexed by call site ID
+    private final Map<Integer,Entry> entries = new HashMap<>();
+
+    /**
+     * Receiver counts of a single call site.
+     *
+     * @author tobias.gierke@code-sourcery.de
+     */
+    public static final class Entry
+    {
+        private final CallSite site;
+        private final Map<String,Long> receivers = new HashMap<>();
+        private long megamorphicCalls;
+
+        protected Entry(CallSite site)
+        {
+            this.site = site;
+        }
+
+        protected void add(String receiver,long count)
+        {
+            final Long existing = receivers.get( receiver );
+            receivers.put( receiver , existing == null ? count : existing + count );
+        }
+
+        public CallSite getSite()
+        {
+            return site;
+        }
+
+        /**
+         * Returns the number of calls per receiver class , sorted descending by number of calls.
+         *
+         * @return map from class name to number of calls
+         */
+        public Map<String,Long> getReceivers()
+        {
+            final List<Map.Entry<String,Long>> list = new ArrayList<>( receivers.entrySet() );
+            Collections.sort( list , new Comparator<Map.Entry<String,Long>>() {
+
+                @Override
+                public int compare(Map.Entry<String,Long> o1, Map.Entry<String,Long> o2)
+                {
+                    return Long.compare( o2.getValue() , o1.getValue() );
+                }
+            });
+            final Map<String,Long> result = new LinkedHashMap<>();
+            for ( Map.Entry<String,Long> e : list ) {
+                result.put( e.getKey() , e.getValue() );
+            }
+            return result;
+        }
+
+        /**
+         * Returns the number of calls whose receiver class did not fit into the per-thread cache.
+         *
+         * @return
+         */
+        public long getMegamorphicCalls()
+        {
+            return megamorphicCalls;
+        }
+
+        /**
+         * Returns the total number of calls.
+         *
+         * @return
+         */
+        public long getCalls()
+        {
+            long result = megamorphicCalls;
+            for ( long count : receivers.values() ) {
+                result += count;
+            }
+            return result;
+        }
+
+        /**
+         * Returns the number of distinct receiver classes seen at this site.
+         *
+         * @return number of classes , a lower bound if {@link #isMegamorphic()}
+         */
+        public int getPolymorphismDegree()
+        {
+            return receivers.size();
+        }
+
+        /**
+         * Returns whether more receiver classes than fit into the per-thread cache have been seen.
+         *
+         * @return
+         */
+        public boolean isMegamorphic()
+        {
+            return megamorphicCalls > 0;
+        }
+    }
+
+    public ReceiverTypeProfile() {
+    }
+
+    private Entry getEntry(int siteId)
+    {
+        Entry result = entries.get( siteId );
+        if ( result == null ) {
+            result = new Entry( CallSiteRegistry.getSite( siteId ) );
+            entries.put( siteId , result );
+        }
+        return result;
+    }
+
+    /**
+     * Adds the receiver type caches of a thread.
+     *
+     * @param classes receiver classes , layout is identical to {@link ExecutionStatistics#receiverClasses}
+     * @param counters call counts , layout is identical to {@link ExecutionStatistics#receiverCounters}
+     */
+    public void add(Class<?>[] classes,long[] counters)
+    {
+        final int stride = ExecutionStatistics.RECEIVER_SLOTS + 1;
+        final int sites = Math.min( Math.min( classes.length / ExecutionStatistics.RECEIVER_SLOTS , counters.length / stride ) ,
+                CallSiteRegistry.getSiteCount() );
+        for ( int siteId = 0 ; siteId < sites ; siteId++ )
+        {
+            final int counterBase = siteId * stride;
+            final long megamorphic = counters[ counterBase + ExecutionStatistics.RECEIVER_SLOTS ];
+            if ( classes[ siteId * ExecutionStatistics.RECEIVER_SLOTS ] == null && megamorphic == 0 ) {
+                continue;
+            }
+            final Entry entry = getEntry( siteId );
+            for ( int slot = 0 ; slot < ExecutionStatistics.RECEIVER_SLOTS ; slot++ )
+            {
+                final Class<?> clazz = classes[ siteId * ExecutionStatistics.RECEIVER_SLOTS + slot ];
+                if ( clazz == null ) {
+                    break;
+                }
+                entry.add( clazz.getName() , counters[ counterBase + slot ] );
+            }
+            entry.megamorphicCalls += megamorphic;
+        }
+    }
+
+    /**
+     * Adds all counts of another profile.
+     *
+     * @param other
+     */
+    public void add(ReceiverTypeProfile other)
+    {
+        for ( Map.Entry<Integer,Entry> e : other.entries.entrySet() )
+        {
+            final Entry entry = getEntry( e.getKey() );
+            for ( Map.Entry<String,Long> receiver : e.getValue().receivers.entrySet() ) {
+                entry.add( receiver.getKey() , receiver.getValue() );
+            }
+            entry.megamorphicCalls += e.getValue().megamorphicCalls;
+        }
+    }
+
+    /**
+     * Returns all call sites that have been executed at least once , sorted descending by number of calls.
+     *
+     * @return
+     */
+    public List<Entry> getEntries()
+    {
+        final List<Entry> result = new ArrayList<>( entries.values() );
+        Collections.sort( result , new Comparator<Entry>() {
+
+            @Override
+            public int compare(Entry o1, Entry o2)
+            {
+                return Long.compare( o2.getCalls() , o1.getCalls() );
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Prints the call sites with the most calls along with their dominant receivers.
+     *
+     * <p>Counts of sites in sampled methods are extrapolated (prefixed with '~').</p>
+     *
+     * @param out
+     * @param maxSites
+     * @param minDegree only print sites with at least this many distinct receiver classes (megamorphic sites are always printed)
+     */
+    public void print(PrintStream out,int maxSites,int minDegree)
+    {
+        final double samplingScale = StatisticsManager.getSamplingScale();
+        int printed = 0;
+        for ( Entry e : getEntries() )
+        {
+            if ( printed >= maxSites ) {
+                break;
+            }
+            if ( e.getPolymorphismDegree() < minDegree && ! e.isMegamorphic() ) {
+                continue;
+            }
+            printed++;
+
+            final double scale = e.site.isSampled() ? samplingScale : 1;
+            final String prefix = e.site.isSampled() ? "~" : "";
+            final long calls = e.getCalls();
+            final String degree = e.isMegamorphic() ? "megamorphic , >= "+e.getPolymorphismDegree()+" receivers" : e.getPolymorphismDegree()+" receiver(s)";
+            out.println( prefix+Math.round( calls * scale )+" calls ("+degree+") at "+e.site );
+            for ( Map.Entry<String,Long> receiver : e.getReceivers().entrySet() ) {
+                out.println( String.format("    %16s %6.2f%%  %s" , prefix+Math.round( receiver.getValue() * scale ) , 100.0 * receiver.getValue() / calls , receiver.getKey() ) );
+            }
+            if ( e.isMegamorphic() ) {
+                out.println( String.format("    %16s %6.2f%%  %s" , prefix+Math.round( e.megamorphicCalls * scale ) , 100.0 * e.megamorphicCalls / calls , "<other>" ) );
+            }
+        }
+    }
+}
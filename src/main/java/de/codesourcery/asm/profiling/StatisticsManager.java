@@ -15,12 +15,27 @@
  */
 package de.codesourcery.asm.profiling;
 
-import java.util.concurrent.ConcurrentHashMap;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import de.codesourcery.asm.profiling.MethodRegistry.MethodInfo;
 
 import de.codesourcery.asm.rewrite.ProfilingRewriter;
 
 /**
- * Gathers per-thread execution statistics (currently only the number of executed instructions).
+ * Gathers per-thread execution statistics (number of executed instructions and per-method counters).
+ * 
+ * <p>Settings that select which probes get generated (the <code>setXXXProfiling()</code> methods , {@link #setOpcodeHistogram(boolean)} ,
+ * {@link #setCallStackTracking(boolean)} and {@link #setSampling(int, int)}) are baked into instrumented code when a class gets
+ * rewritten , so they must be made before any class gets instrumented.</p>
  * 
  * @author tobias.gierke@code-sourcery.de
  * @see ProfilingRewriter
@@ -32,15 +47,79 @@ public class StatisticsManager
      * Defines how many instructions to execute before calling {@link #account()}.
      */
     public static final int GRANULARITY = 1; 
+
+    /**
+     * Default number of consecutive sampling checks that run instrumented code.
+     * 
+     * @see #setSampling(int, int)
+     */
+    public static final int DEFAULT_BURST_LENGTH = 10;
+
+    /**
+     * Default number of sampling checks between two bursts.
+     * 
+     * @see #setSampling(int, int)
+     */
+    public static final int DEFAULT_SAMPLE_INTERVAL = 990;
+
+    /**
+     * Default minimum time (in nanoseconds) a monitor acquisition needs to take to be counted as contended.
+     * 
+     * @see #setContentionThreshold(long)
+     */
+    public static final long DEFAULT_CONTENTION_THRESHOLD = 1000;
+
+    /**
+     * Timestamp passed to {@link #monitorAcquired(ExecutionStatistics, long, int)} if profiling was 
+     * switched off when the monitor acquisition started.
+     */
+    public static final long NO_TIMESTAMP = Long.MIN_VALUE;
+
+    // z-value for 95% confidence intervals
+    private static final double Z_95 = 1.96;
+
+    private static volatile PerfDataFile perfDataFile;
+
+    private static volatile boolean virtualThreadMode = true;
+
+    private static volatile boolean callStackTracking;
+
+    private static volatile boolean opcodeHistogram;
+
+    private static volatile boolean allocationProfiling;
+
+    private static volatile boolean receiverTypeProfiling;
+
+    private static volatile boolean monitorProfiling;
+
+    private static volatile boolean fieldAccessProfiling;
+    private static volatile boolean lineProfiling;
+
+    private static volatile boolean exceptionProfiling;
+
+    private static volatile boolean loopProfiling;
+    private static volatile boolean pathProfiling;
+
+    private static volatile long contentionThreshold = DEFAULT_CONTENTION_THRESHOLD;
+
+    // counters at the time of the last flat profile reset
+    private static final Object FLAT_PROFILE_LOCK = new Object();
+    private static long[] baselineCounters = new long[0]; // guarded by FLAT_PROFILE_LOCK
+    private static long[] baselineInclusive = new long[0]; // guarded by FLAT_PROFILE_LOCK
+    private static long baselineTime = System.currentTimeMillis(); // guarded by FLAT_PROFILE_LOCK
+
+    private static volatile int burstLength = DEFAULT_BURST_LENGTH;
+    private static volatile int sampleInterval = DEFAULT_SAMPLE_INTERVAL;
     
     private static final StatisticsManager INSTANCE = new StatisticsManager();
     
-    private static final ConcurrentHashMap<Thread,Long> executionCounts = new ConcurrentHashMap<Thread,Long>();
-    
     private static final ThreadLocal<ExecutionStatistics> statistics = new ThreadLocal<ExecutionStatistics>()  {
         
-        protected ExecutionStatistics initialValue() {
-            return new ExecutionStatistics() ;
+        protected ExecutionStatistics initialValue() 
+        {
+            final ExecutionStatistics result = new ExecutionStatistics();
+            ThreadStatisticsRegistry.register( Thread.currentThread() , result );
+            return result;
         }
     };
     
@@ -48,15 +127,1229 @@ public class StatisticsManager
         return INSTANCE;
     }
     
+    /**
+     * Returns the number of instructions executed by the current thread.
+     * 
+     * @return
+     */
     public static long getExecutedInstructionsCount() {
-        final Thread current = Thread.currentThread();
-        Long existing = executionCounts.get( current );        
-        return existing == null ? 0 : existing.longValue(); 
+        return getStatistics().executedInstructions;
+    }
+
+    /**
+     * Returns the number of instructions executed by all threads (including terminated ones).
+     * 
+     * @return
+     * @see ThreadStatisticsRegistry
+     * @see VirtualThreadStatistics
+     */
+    public static long getTotalExecutedInstructionsCount() 
+    {
+        final long[] result = { 0 };
+        visitAll( new ThreadStatisticsRegistry.IVisitor() {
+
+            @Override
+            public void visitLiveThread(long threadId, String threadName, ExecutionStatistics stat)
+            {
+                result[0] += stat.executedInstructions;
+            }
+
+            @Override
+            public void visitRetiredThreads(ThreadStatisticsRegistry.Bucket bucket)
+            {
+                result[0] += bucket.getExecutedInstructions();
+            }
+        });
+        return result[0];
+    }
+
+    // visits the statistics of platform threads and virtual threads
+    private static void visitAll(ThreadStatisticsRegistry.IVisitor visitor) 
+    {
+        ThreadStatisticsRegistry.visit( visitor );
+        VirtualThreadStatistics.visit( visitor );
     }
-    public static ExecutionStatistics getStatistics() {
+
+    public static ExecutionStatistics getStatistics() 
+    {
+        // virtual threads are looked up in VirtualThreadStatistics so they never get a thread-local
+        if ( virtualThreadMode ) 
+        {
+            final Thread current = Thread.currentThread();
+            if ( VirtualThreadStatistics.isVirtual( current ) ) {
+                return VirtualThreadStatistics.getStatistics( current );
+            }
+        }
         return statistics.get();
     }
-    
+
+    /**
+     * Returns the current thread's statistics, making sure they have room for the counters of a given method.
+     * 
+     * <p>Invoked by generated byte-code.</p>
+     * 
+     * @param methodId
+     * @return
+     * @see MethodRegistry
+     */
+    public static ExecutionStatistics getStatistics(int methodId) 
+    {
+        final ExecutionStatistics stat = getStatistics();
+        CounterKind.METHODS.ensureCapacity( stat , ( methodId + 1 ) * ExecutionStatistics.METHOD_COUNTER_SLOTS );
+        return stat;
+    }
+
+    /**
+     * Invoked by generated byte-code at the start of each method 
+     * instrumented in mode {@link MethodRegistry.Mode#FULL}.
+     * 
+     * @param methodId
+     * @return the current thread's statistics
+     */
+    public static ExecutionStatistics enterMethod(int methodId) 
+    {
+        final ExecutionStatistics stat = getStatistics( methodId );
+        stat.methodCounters[ methodId * ExecutionStatistics.METHOD_COUNTER_SLOTS + ExecutionStatistics.SLOT_INVOCATIONS ]++;
+        return stat;
+    }
+
+    /**
+     * Invoked by generated byte-code at the start of each method 
+     * instrumented in mode {@link MethodRegistry.Mode#ENTRY_ONLY}.
+     * 
+     * @param methodId
+     * @param estimatedInstructions number of instructions to account for this invocation
+     * @see MethodInfo#getEstimatedInstructionsPerInvocation()
+     */
+    public static void enterEstimatedMethod(int methodId,int estimatedInstructions) 
+    {
+        final ExecutionStatistics stat = getStatistics( methodId );
+        final int base = methodId * ExecutionStatistics.METHOD_COUNTER_SLOTS;
+        stat.methodCounters[ base + ExecutionStatistics.SLOT_INVOCATIONS ]++;
+        stat.methodCounters[ base + ExecutionStatistics.SLOT_PROBES ]++;
+        stat.methodCounters[ base + ExecutionStatistics.SLOT_INSTRUCTIONS ] += estimatedInstructions;
+
+        final CallingContext caller = stat.callingContext;
+        if ( caller != null ) 
+        {
+            // methods counted at entry only never push a frame , charge the estimate to a leaf node instead
+            flushPendingInstructions( stat );
+            final CallingContext callee = caller.getChild( methodId );
+            callee.invocations++;
+            stat.callingContext = callee;
+            stat.executedInstructionCount += estimatedInstructions;
+            account();
+            stat.callingContext = caller;
+            return;
+        }
+
+        stat.executedInstructionCount += estimatedInstructions;
+        if ( stat.executedInstructionCount >= 0 ) {
+            account();
+        }
+    }
+
+    /**
+     * Invoked by generated byte-code at the start of each method when call stack
+     * tracking is enabled , pushes a method onto the current thread's shadow stack.
+     * 
+     * @param stat the current thread's statistics
+     * @param methodId
+     * @return depth of the shadow stack before the method was pushed , needs to be passed to {@link #popFrames(ExecutionStatistics, int)} 
+     * when the method returns
+     * @see #setCallStackTracking(boolean)
+     */
+    public static int pushFrame(ExecutionStatistics stat,int methodId) 
+    {
+        flushPendingInstructions( stat );
+        CallingContext current = stat.callingContext;
+        if ( current == null ) {
+            current = stat.callTree = new CallingContext();
+        }
+        final CallingContext callee = current.getChild( methodId );
+        callee.invocations++;
+        stat.callingContext = callee;
+        return stat.callStackDepth++;
+    }
+
+    /**
+     * Invoked by generated byte-code whenever a method that pushed a frame returns or 
+     * completes abruptly , pops all frames above a given depth off the shadow stack.
+     * 
+     * @param stat the current thread's statistics
+     * @param depth depth returned by {@link #pushFrame(ExecutionStatistics, int)}
+     */
+    public static void popFrames(ExecutionStatistics stat,int depth) 
+    {
+        flushPendingInstructions( stat );
+        CallingContext current = stat.callingContext;
+        while ( stat.callStackDepth > depth && current != null ) 
+        {
+            current = current.getParent();
+            stat.callStackDepth--;
+        }
+        stat.callingContext = current;
+    }
+
+    /**
+     * Invoked by generated byte-code before each <code>NEW</code> instruction when allocation 
+     * profiling is enabled.
+     * 
+     * @param stat the current thread's statistics (may be <code>null</code> if profiling was switched off at method entry)
+     * @param counterOffset the site's {@link AllocationSiteRegistry.AllocationSite#getCounterOffset() counter offset}
+     * @see #setAllocationProfiling(boolean)
+     */
+    public static void allocated(ExecutionStatistics stat,int counterOffset) 
+    {
+        if ( stat != null ) 
+        {
+            CounterKind.ALLOCATIONS.ensureCapacity( stat , counterOffset + 1 );
+            stat.allocationCounters[ counterOffset ]++;
+        }
+    }
+
+    /**
+     * Invoked by generated byte-code after each array allocation when allocation 
+     * profiling is enabled.
+     * 
+     * @param length length of the allocated array (outermost dimension for multi-dimensional arrays)
+     * @param stat the current thread's statistics (may be <code>null</code> if profiling was switched off at method entry)
+     * @param counterOffset the site's {@link AllocationSiteRegistry.AllocationSite#getCounterOffset() counter offset}
+     * @see #setAllocationProfiling(boolean)
+     */
+    public static void arrayAllocated(int length,ExecutionStatistics stat,int counterOffset) 
+    {
+        if ( stat != null ) 
+        {
+            CounterKind.ALLOCATIONS.ensureCapacity( stat , counterOffset + AllocationSiteRegistry.LENGTH_BUCKETS );
+            stat.allocationCounters[ counterOffset + AllocationSiteRegistry.getLengthBucket( length ) ]++;
+        }
+    }
+
+    /**
+     * Invoked by generated byte-code before each <code>INVOKEVIRTUAL</code> / <code>INVOKEINTERFACE</code> instruction
+     * when receiver type profiling is enabled , records the receiver's class in the call site's cache.
+     * 
+     * @param receiver receiver of the call (a <code>NullPointerException</code> will be thrown right afterwards if <code>null</code>)
+     * @param stat the current thread's statistics (may be <code>null</code> if profiling was switched off at method entry)
+     * @param siteId
+     * @see #setReceiverTypeProfiling(boolean)
+     */
+    public static void receiver(Object receiver,ExecutionStatistics stat,int siteId) 
+    {
+        if ( stat == null || receiver == null ) {
+            return;
+        }
+        stat.ensureReceiverCapacity( siteId );
+        final Class<?> clazz = receiver.getClass();
+        final Class<?>[] classes = stat.receiverClasses;
+        final int base = siteId * ExecutionStatistics.RECEIVER_SLOTS;
+        final int counterBase = siteId * ( ExecutionStatistics.RECEIVER_SLOTS + 1 );
+        for ( int slot = 0 ; slot < ExecutionStatistics.RECEIVER_SLOTS ; slot++ ) 
+        {
+            final Class<?> cached = classes[ base + slot ];
+            if ( cached == clazz ) {
+                stat.receiverCounters[ counterBase + slot ]++;
+                return;
+            }
+            if ( cached == null ) {
+                classes[ base + slot ] = clazz;
+                stat.receiverCounters[ counterBase + slot ]++;
+                return;
+            }
+        }
+        stat.receiverCounters[ counterBase + ExecutionStatistics.RECEIVER_SLOTS ]++;
+    }
+
+    /**
+     * Invoked by generated byte-code after each <code>MONITORENTER</code> instruction when monitor profiling is enabled.
+     * 
+     * @param stat the current thread's statistics (may be <code>null</code> if profiling was switched off at method entry)
+     * @param startNanos value of {@link System#nanoTime()} right before the <code>MONITORENTER</code> instruction or {@link #NO_TIMESTAMP}
+     * @param siteId
+     * @see #setMonitorProfiling(boolean)
+     */
+    public static void monitorAcquired(ExecutionStatistics stat,long startNanos,int siteId) 
+    {
+        if ( stat == null || startNanos == NO_TIMESTAMP ) {
+            return;
+        }
+        final long elapsed = System.nanoTime() - startNanos;
+        CounterKind.MONITORS.ensureCapacity( stat , ( siteId + 1 ) * MonitorSiteRegistry.COUNTER_SLOTS );
+        final int base = siteId * MonitorSiteRegistry.COUNTER_SLOTS;
+        stat.monitorCounters[ base + MonitorSiteRegistry.SLOT_ACQUISITIONS ]++;
+        stat.monitorCounters[ base + MonitorSiteRegistry.SLOT_WAIT_NANOS ] += elapsed;
+        if ( elapsed >= contentionThreshold ) {
+            stat.monitorCounters[ base + MonitorSiteRegistry.SLOT_CONTENDED ]++;
+        }
+    }
+
+    /**
+     * Invoked by generated byte-code at the start of each basic block that accesses fields when field access
+     * profiling is enabled.
+     * 
+     * @param stat the current thread's statistics (may be <code>null</code> if profiling was switched off at method entry)
+     * @param blockId
+     * @see #setFieldAccessProfiling(boolean)
+     */
+    public static void fieldsAccessed(ExecutionStatistics stat,int blockId) 
+    {
+        if ( stat != null ) 
+        {
+            CounterKind.FIELD_ACCESSES.ensureCapacity( stat , blockId + 1 );
+            stat.fieldAccessCounters[ blockId ]++;
+        }
+    }
+
+    /**
+     * Invoked by generated byte-code at the start of each basic block with source line information when line
+     * profiling is enabled.
+     * 
+     * @param stat the current thread's statistics (may be <code>null</code> if profiling was switched off at method entry)
+     * @param blockId
+     * @see #setLineProfiling(boolean)
+     */
+    public static void linesExecuted(ExecutionStatistics stat,int blockId) 
+    {
+        if ( stat != null ) 
+        {
+            CounterKind.LINES.ensureCapacity( stat , blockId + 1 );
+            stat.lineCounters[ blockId ]++;
+        }
+    }
+
+    /**
+     * Invoked by generated byte-code before each <code>ATHROW</code> instruction when exception profiling is enabled.
+     * 
+     * @param exception the exception about to be thrown (may be <code>null</code>)
+     * @param stat the current thread's statistics (may be <code>null</code> if profiling was switched off at method entry)
+     * @param siteId
+     * @see #setExceptionProfiling(boolean)
+     */
+    public static void thrown(Object exception,ExecutionStatistics stat,int siteId) {
+        countException( exception , stat , siteId );
+    }
+
+    /**
+     * Invoked by generated byte-code at the start of each exception handler when exception profiling is enabled.
+     * 
+     * @param exception the caught exception
+     * @param stat the current thread's statistics (may be <code>null</code> if profiling was switched off at method entry)
+     * @param siteId
+     * @see #setExceptionProfiling(boolean)
+     */
+    public static void caught(Object exception,ExecutionStatistics stat,int siteId) {
+        countException( exception , stat , siteId );
+    }
+
+    private static void countException(Object exception,ExecutionStatistics stat,int siteId) 
+    {
+        if ( stat == null || exception == null ) {
+            return;
+        }
+        final int index = ExceptionSiteRegistry.getSite( siteId ).getCounterIndex( exception.getClass() );
+        CounterKind.EXCEPTIONS.ensureCapacity( stat , index + 1 );
+        stat.exceptionCounters[ index ]++;
+    }
+
+    /**
+     * Invoked by generated byte-code whenever a loop is left when loop profiling is enabled.
+     * 
+     * @param stat the current thread's statistics (may be <code>null</code> if profiling was switched off at method entry)
+     * @param loopId
+     * @param headerExecutions number of times the loop header was executed since the loop was entered , the
+     * call is ignored if this is zero (loop has not been entered)
+     * @see #setLoopProfiling(boolean)
+     */
+    public static void loopExited(ExecutionStatistics stat,int loopId,int headerExecutions) 
+    {
+        if ( stat == null || headerExecutions <= 0 ) {
+            return;
+        }
+        CounterKind.LOOPS.ensureCapacity( stat , ( loopId + 1 ) * LoopRegistry.COUNTER_SLOTS );
+        final int trips = headerExecutions - 1;
+        final int base = loopId * LoopRegistry.COUNTER_SLOTS;
+        stat.loopCounters[ base + LoopRegistry.SLOT_ENTRIES ]++;
+        stat.loopCounters[ base + LoopRegistry.SLOT_BACK_EDGES ] += trips;
+        stat.loopCounters[ base + LoopRegistry.SLOT_TRIP_HISTOGRAM + AllocationSiteRegistry.getLengthBucket( trips ) ]++;
+    }
+
+    /**
+     * Invoked by generated byte-code whenever an acyclic path through a method with at most {@link PathRegistry#MAX_ARRAY_PATHS} 
+     * paths has been completed when path profiling is enabled.
+     * 
+     * @param stat the current thread's statistics (may be <code>null</code> if profiling was switched off at method entry)
+     * @param counterOffset {@link PathRegistry.PathMethod#getCounterOffset() offset} of the method's counters
+     * @param pathNumber
+     * @see #setPathProfiling(boolean)
+     */
+    public static void pathCompleted(ExecutionStatistics stat,int counterOffset,int pathNumber) 
+    {
+        if ( stat == null ) {
+            return;
+        }
+        stat.ensurePathCapacity( counterOffset + pathNumber + 1 );
+        stat.pathCounters[ counterOffset + pathNumber ]++;
+    }
+
+    /**
+     * Invoked by generated byte-code whenever an acyclic path through a method with more than {@link PathRegistry#MAX_ARRAY_PATHS} 
+     * paths has been completed when path profiling is enabled.
+     * 
+     * @param stat the current thread's statistics (may be <code>null</code> if profiling was switched off at method entry)
+     * @param counterOffset {@link PathRegistry.PathMethod#getCounterOffset() offset} of the method's hash table
+     * @param pathNumber
+     * @see #setPathProfiling(boolean)
+     */
+    public static void hashedPathCompleted(ExecutionStatistics stat,int counterOffset,int pathNumber) 
+    {
+        if ( stat == null ) {
+            return;
+        }
+        final int tableEnd = counterOffset + 1 + 2 * PathRegistry.HASH_SLOTS;
+        stat.ensurePathCapacity( tableEnd );
+        final long[] counters = stat.pathCounters;
+        final long key = pathNumber + 1L;
+        int slot = PathRegistry.getHashSlotCounterOffset( pathNumber , counterOffset );
+        for ( int probes = 0 ; probes < PathRegistry.HASH_SLOTS ; probes++ ) 
+        {
+            if ( counters[ slot ] == key ) {
+                counters[ slot + 1 ]++;
+                return;
+            }
+            if ( counters[ slot ] == 0 ) {
+                counters[ slot ] = key;
+                counters[ slot + 1 ] = 1;
+                return;
+            }
+            slot += 2;
+            if ( slot >= tableEnd ) {
+                slot = counterOffset + 1;
+            }
+        }
+        counters[ counterOffset ]++;
+    }
+
+    // make sure instructions counted by the generated byte-code but not accounted yet 
+    // get charged to the current calling context
+    private static void flushPendingInstructions(ExecutionStatistics stat) 
+    {
+        if ( stat.executedInstructionCount > -GRANULARITY ) {
+            account();
+        }
+    }
+
+    /**
+     * Invoked by generated byte-code of methods instrumented in {@link MethodRegistry.Mode#SAMPLED} mode
+     * whenever {@link ExecutionStatistics#sampleCountdown} reached zero, execution always continues in
+     * the instrumented copy of the method afterwards.
+     * 
+     * <p>Starts a new burst if necessary and re-arms the countdown so that the next 
+     * check either continues the burst or the following {@link #getSampleInterval()} checks run uninstrumented code.</p>
+     * 
+     * @param stat the current thread's statistics
+     */
+    public static void sample(ExecutionStatistics stat) 
+    {
+        if ( stat.burstRemaining <= 0 ) {
+            stat.burstRemaining = burstLength;
+        }
+        stat.burstRemaining--;
+        stat.sampleCountdown = stat.burstRemaining > 0 ? 1 : sampleInterval+1;
+    }
+
+    /**
+     * Configure burst sampling.
+     * 
+     * @param burstLength number of consecutive checks (method entries or backward jumps) that run instrumented code
+     * @param sampleInterval number of checks that run uninstrumented code between two bursts
+     * @see MethodRegistry.Mode#SAMPLED
+     */
+    public static void setSampling(int burstLength,int sampleInterval) 
+    {
+        if ( burstLength < 1 ) {
+            throw new IllegalArgumentException("Burst length must be >= 1");
+        }
+        if ( sampleInterval < 0 ) {
+            throw new IllegalArgumentException("Sample interval must be >= 0");
+        }
+        StatisticsManager.burstLength = burstLength;
+        StatisticsManager.sampleInterval = sampleInterval;
+    }
+
+    public static int getBurstLength() {
+        return burstLength;
+    }
+
+    public static int getSampleInterval() {
+        return sampleInterval;
+    }
+
+    /**
+     * Returns the factor counts collected by sampled methods need to be multiplied with
+     * in order to estimate the actual counts.
+     * 
+     * @return
+     */
+    public static double getSamplingScale() {
+        return ( sampleInterval + burstLength ) / (double) burstLength;
+    }
+
+    /**
+     * Estimates the number of invocations of a method.
+     * 
+     * @param methodId
+     * @return
+     * @see #estimateInstructions(int)
+     */
+    public static CountEstimate estimateInvocations(int methodId) 
+    {
+        final MethodInfo method = MethodRegistry.getMethod( methodId );
+        final long[] counters = getMethodCounters();
+        final long invocations = counters[ methodId * ExecutionStatistics.METHOD_COUNTER_SLOTS + ExecutionStatistics.SLOT_INVOCATIONS ];
+        if ( method.getMode() != MethodRegistry.Mode.SAMPLED ) {
+            return CountEstimate.exact( invocations );
+        }
+        final double scale = getSamplingScale();
+        if ( invocations == 0 ) {
+            // "rule of three": 95% upper bound for a Poisson variable with zero observed events
+            return new CountEstimate( 0 , 0 , Math.round( 3 * scale ) , false );
+        }
+        return scaledEstimate( invocations , invocations , scale );
+    }
+
+    /**
+     * Estimates the number of instructions executed by a method.
+     * 
+     * <p>Methods instrumented in {@link MethodRegistry.Mode#SAMPLED} mode get scaled by {@link #getSamplingScale()}, the
+     * confidence interval is approximated by treating the number of sampled probes as a Poisson variable (this
+     * underestimates the error if samples within a burst are strongly correlated). Methods instrumented in
+     * {@link MethodRegistry.Mode#ENTRY_ONLY} mode yield an extrapolated count without error bounds.</p>
+     * 
+     * @param methodId
+     * @return
+     */
+    public static CountEstimate estimateInstructions(int methodId) 
+    {
+        final MethodInfo method = MethodRegistry.getMethod( methodId );
+        final long[] counters = getMethodCounters();
+        final int base = methodId * ExecutionStatistics.METHOD_COUNTER_SLOTS;
+        final long instructions = counters[ base + ExecutionStatistics.SLOT_INSTRUCTIONS ];
+        switch( method.getMode() ) 
+        {
+            case FULL:
+                return CountEstimate.exact( instructions );
+            case ENTRY_ONLY:
+                return new CountEstimate( instructions , instructions , instructions , false );
+            case SAMPLED:
+                final long probes = counters[ base + ExecutionStatistics.SLOT_PROBES ];
+                if ( probes == 0 ) {
+                    return new CountEstimate( 0 , 0 , 0 , false );
+                }
+                return scaledEstimate( instructions , probes , getSamplingScale() );
+            default:
+                throw new RuntimeException("Unhandled mode: "+method.getMode());
+        }
+    }
+
+    private static CountEstimate scaledEstimate(long sampledValue,long sampleCount,double scale) 
+    {
+        final long value = Math.round( sampledValue * scale );
+        final double relativeError = Z_95 / Math.sqrt( sampleCount );
+        final long delta = Math.round( value * relativeError );
+        return new CountEstimate( value , Math.max( 0 , value - delta ) , value + delta , false );
+    }
+
+    /**
+     * Returns the sum of all threads' counters of a given kind (including terminated threads).
+     * 
+     * <p>Counters are read without synchronization so the result is only approximately consistent
+     * while instrumented code is running.</p>
+     * 
+     * @param kind
+     * @return counters , layout is identical to the {@link CounterKind#get(ExecutionStatistics) array} of that kind 
+     */
+    public static long[] getCounters(final CounterKind kind) 
+    {
+        final long[] result = new long[ kind.getCounterCount() ];
+        visitAll( new ThreadStatisticsRegistry.IVisitor() {
+
+            @Override
+            public void visitLiveThread(long threadId, String threadName, ExecutionStatistics stat)
+            {
+                CounterKind.add( result , kind.get( stat ) );
+            }
+
+            @Override
+            public void visitRetiredThreads(ThreadStatisticsRegistry.Bucket bucket)
+            {
+                CounterKind.add( result , bucket.getCounters( kind ) );
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Returns the sum of all threads' per-method counters (including terminated threads).
+     * 
+     * @return per-method counters, layout is identical to {@link ExecutionStatistics#methodCounters}
+     * @see #getCounters(CounterKind)
+     */
+    public static long[] getMethodCounters() {
+        return getCounters( CounterKind.METHODS );
+    }
+
+    /**
+     * Returns the number of allocations per allocation site.
+     * 
+     * <p>Counts of sites in methods instrumented in mode {@link MethodRegistry.Mode#SAMPLED} are scaled by 
+     * {@link #getSamplingScale()} , methods instrumented in mode {@link MethodRegistry.Mode#ENTRY_ONLY} are not included.</p>
+     * 
+     * @return profile , empty unless allocation profiling is enabled
+     * @see #setAllocationProfiling(boolean)
+     */
+    public static AllocationProfile getAllocationProfile() 
+    {
+        final long[] counters = getCounters( CounterKind.ALLOCATIONS );
+        final double samplingScale = getSamplingScale();
+        final List<AllocationProfile.Entry> entries = new ArrayList<>();
+        final int siteCount = AllocationSiteRegistry.getSiteCount();
+        for ( int id = 0 ; id < siteCount ; id++ ) 
+        {
+            final AllocationSiteRegistry.AllocationSite site = AllocationSiteRegistry.getSite( id );
+            final boolean sampled = site.isSampled();
+            final int offset = site.getCounterOffset();
+            if ( offset + site.getCounterCount() > counters.length ) {
+                continue; // registered concurrently
+            }
+            final long[] histogram = site.isArray() ? new long[ AllocationSiteRegistry.LENGTH_BUCKETS ] : null;
+            long count = 0;
+            for ( int i = 0 ; i < site.getCounterCount() ; i++ ) 
+            {
+                final long value = sampled ? Math.round( counters[ offset + i ] * samplingScale ) : counters[ offset + i ];
+                if ( histogram != null ) {
+                    histogram[i] = value;
+                }
+                count += value;
+            }
+            if ( count > 0 ) {
+                entries.add( new AllocationProfile.Entry( site , count , histogram , sampled ) );
+            }
+        }
+        return new AllocationProfile( entries );
+    }
+
+    /**
+     * Returns entry counts , back-edge counts and trip count histograms per loop.
+     * 
+     * <p>Loops that are still running (or were left through an exception that was not caught by the same method) are not included.</p>
+     * 
+     * @return profile , empty unless loop profiling is enabled
+     * @see #setLoopProfiling(boolean)
+     */
+    public static LoopProfile getLoopProfile() 
+    {
+        final long[] counters = getCounters( CounterKind.LOOPS );
+        final List<LoopProfile.Entry> entries = new ArrayList<>();
+        final int loopCount = counters.length / LoopRegistry.COUNTER_SLOTS;
+        for ( int id = 0 ; id < loopCount ; id++ ) 
+        {
+            final int base = id * LoopRegistry.COUNTER_SLOTS;
+            if ( counters[ base + LoopRegistry.SLOT_ENTRIES ] > 0 ) 
+            {
+                final long[] histogram = Arrays.copyOfRange( counters , base + LoopRegistry.SLOT_TRIP_HISTOGRAM , base + LoopRegistry.COUNTER_SLOTS );
+                entries.add( new LoopProfile.Entry( LoopRegistry.getLoop( id ) , counters[ base + LoopRegistry.SLOT_ENTRIES ] , 
+                        counters[ base + LoopRegistry.SLOT_BACK_EDGES ] , histogram ) );
+            }
+        }
+        return new LoopProfile( entries );
+    }
+
+    /**
+     * Returns the number of exceptions thrown and caught per site and exception type.
+     * 
+     * <p>Counts of sites in sampled methods are extrapolated , counts of exception classes with the same name 
+     * (loaded by different class loaders) are merged.</p>
+     * 
+     * @return profile , empty unless exception profiling is enabled
+     * @see #setExceptionProfiling(boolean)
+     */
+    public static ExceptionProfile getExceptionProfile() 
+    {
+        final long[] counters = getCounters( CounterKind.EXCEPTIONS );
+        final double samplingScale = getSamplingScale();
+        final Map<String,ExceptionProfile.Entry> entries = new HashMap<>();
+        for ( int index = 0 ; index < counters.length ; index++ ) 
+        {
+            if ( counters[ index ] == 0 ) {
+                continue;
+            }
+            final ExceptionSiteRegistry.ExceptionSite site = ExceptionSiteRegistry.getCounterSite( index );
+            final String type = ExceptionSiteRegistry.getCounterType( index ).getName();
+            final long count = site.isSampled() ? Math.round( counters[ index ] * samplingScale ) : counters[ index ];
+
+            final String key = site.getId()+"#"+type;
+            final ExceptionProfile.Entry existing = entries.get( key );
+            entries.put( key , new ExceptionProfile.Entry( site , type , count + ( existing != null ? existing.getCount() : 0 ) , site.isSampled() ) );
+        }
+        return new ExceptionProfile( new ArrayList<>( entries.values() ) );
+    }
+
+    /**
+     * Returns read/write counts per field and co-access counts per pair of fields.
+     * 
+     * @return profile , empty unless field access profiling is enabled
+     * @see #setFieldAccessProfiling(boolean)
+     */
+    public static FieldAccessProfile getFieldAccessProfile() {
+        return new FieldAccessProfile( getCounters( CounterKind.FIELD_ACCESSES ) , getSamplingScale() );
+    }
+
+    /**
+     * Returns the number of instructions executed per source line.
+     * 
+     * @return profile , empty unless line profiling is enabled
+     * @see #setLineProfiling(boolean)
+     */
+    public static LineProfile getLineProfile() {
+        return new LineProfile( getCounters( CounterKind.LINES ) , getSamplingScale() );
+    }
+
+    /**
+     * Returns acquisition counts and wait times per monitor site.
+     * 
+     * <p>Synchronized methods that could not be rewritten to acquire their monitor in instrumented code (see 
+     * {@link MonitorSiteRegistry.MonitorSite#isTimed()}) only report the number of acquisitions , taken from the 
+     * method's invocation count. Counts of sites in sampled methods are extrapolated.</p>
+     * 
+     * @return profile , empty unless monitor profiling is enabled
+     * @see #setMonitorProfiling(boolean)
+     */
+    public static MonitorProfile getMonitorProfile() 
+    {
+        final long[] counters = getCounters( CounterKind.MONITORS );
+        final int siteCount = counters.length / MonitorSiteRegistry.COUNTER_SLOTS;
+        final long[] methodCounters = getMethodCounters();
+        final double samplingScale = getSamplingScale();
+
+        final List<MonitorProfile.Entry> entries = new ArrayList<>();
+        for ( int id = 0 ; id < siteCount ; id++ ) 
+        {
+            final MonitorSiteRegistry.MonitorSite site = MonitorSiteRegistry.getSite( id );
+            if ( ! site.isTimed() ) 
+            {
+                final int index = site.getMethodId() * ExecutionStatistics.METHOD_COUNTER_SLOTS + ExecutionStatistics.SLOT_INVOCATIONS;
+                if ( index < methodCounters.length && methodCounters[ index ] > 0 ) 
+                {
+                    final boolean sampled = MethodRegistry.getMethod( site.getMethodId() ).getMode() == MethodRegistry.Mode.SAMPLED;
+                    final long invocations = Math.round( methodCounters[ index ] * ( sampled ? samplingScale : 1 ) );
+                    entries.add( new MonitorProfile.Entry( site , invocations , MonitorProfile.UNKNOWN , MonitorProfile.UNKNOWN , sampled ) );
+                }
+                continue;
+            }
+            final int base = id * MonitorSiteRegistry.COUNTER_SLOTS;
+            final double scale = site.isSampled() ? samplingScale : 1;
+            final long acquisitions = Math.round( counters[ base + MonitorSiteRegistry.SLOT_ACQUISITIONS ] * scale );
+            if ( acquisitions > 0 ) 
+            {
+                entries.add( new MonitorProfile.Entry( site , acquisitions , 
+                        Math.round( counters[ base + MonitorSiteRegistry.SLOT_CONTENDED ] * scale ) ,
+                        Math.round( counters[ base + MonitorSiteRegistry.SLOT_WAIT_NANOS ] * scale ) , site.isSampled() ) );
+            }
+        }
+        return new MonitorProfile( entries );
+    }
+
+    /**
+     * Returns the execution counts of acyclic paths (including terminated threads).
+     * 
+     * @return profile , empty unless path profiling is enabled
+     * @see #setPathProfiling(boolean)
+     */
+    public static PathProfile getPathProfile() 
+    {
+        final PathProfile result = new PathProfile();
+        visitAll( new ThreadStatisticsRegistry.IVisitor() {
+
+            @Override
+            public void visitLiveThread(long threadId, String threadName, ExecutionStatistics stat)
+            {
+                result.add( stat.pathCounters );
+            }
+
+            @Override
+            public void visitRetiredThreads(ThreadStatisticsRegistry.Bucket bucket)
+            {
+                result.add( bucket.getPaths() );
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Returns the receiver classes observed at each profiled call site (including terminated threads).
+     * 
+     * @return profile , empty unless receiver type profiling is enabled
+     * @see #setReceiverTypeProfiling(boolean)
+     */
+    public static ReceiverTypeProfile getReceiverTypeProfile() 
+    {
+        final ReceiverTypeProfile result = new ReceiverTypeProfile();
+        visitAll( new ThreadStatisticsRegistry.IVisitor() {
+
+            @Override
+            public void visitLiveThread(long threadId, String threadName, ExecutionStatistics stat)
+            {
+                // read counters first , the arrays may get replaced by larger copies concurrently 
+                final long[] counters = stat.receiverCounters;
+                result.add( stat.receiverClasses , counters );
+            }
+
+            @Override
+            public void visitRetiredThreads(ThreadStatisticsRegistry.Bucket bucket)
+            {
+                result.add( bucket.getReceiverTypes() );
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Returns the flat profile since the last reset (or since the start of the JVM).
+     * 
+     * @return
+     * @see #snapshotAndResetFlatProfile()
+     */
+    public static FlatProfile getFlatProfile() 
+    {
+        synchronized( FLAT_PROFILE_LOCK ) {
+            return createFlatProfile( false );
+        }
+    }
+
+    /**
+     * Returns the flat profile since the last reset and starts a new interval.
+     * 
+     * <p>Counters are not actually cleared but the values used to create the profile become 
+     * the baseline for the next one , so no counts get lost or counted twice between two intervals.</p>
+     * 
+     * @return
+     */
+    public static FlatProfile snapshotAndResetFlatProfile() 
+    {
+        synchronized( FLAT_PROFILE_LOCK ) {
+            return createFlatProfile( true );
+        }
+    }
+
+    // must be called while holding FLAT_PROFILE_LOCK
+    private static FlatProfile createFlatProfile(boolean reset) 
+    {
+        final long now = System.currentTimeMillis();
+        final long[] counters = getMethodCounters();
+        final int methodCount = counters.length / ExecutionStatistics.METHOD_COUNTER_SLOTS;
+        final long[] inclusive = new long[ methodCount ];
+        if ( callStackTracking ) {
+            getCallTree().addInclusiveInstructions( inclusive );
+        }
+
+        final double samplingScale = getSamplingScale();
+        final List<FlatProfile.Entry> entries = new ArrayList<>();
+        for ( int id = 0 ; id < methodCount ; id++ ) 
+        {
+            final int base = id * ExecutionStatistics.METHOD_COUNTER_SLOTS;
+            long invocations = delta( counters , baselineCounters , base + ExecutionStatistics.SLOT_INVOCATIONS );
+            long self = delta( counters , baselineCounters , base + ExecutionStatistics.SLOT_INSTRUCTIONS );
+            if ( invocations == 0 && self == 0 ) {
+                continue;
+            }
+            final MethodInfo method = MethodRegistry.getMethod( id );
+            if ( method.getMode() == MethodRegistry.Mode.SAMPLED ) {
+                // only invocations that started a burst got counted , just like the instructions
+                invocations = Math.round( invocations * samplingScale );
+                self = Math.round( self * samplingScale );
+            }
+            final long incl = callStackTracking ? delta( inclusive , baselineInclusive , id ) : FlatProfile.UNKNOWN;
+            entries.add( new FlatProfile.Entry( method , invocations , self , incl , method.isEstimated() ) );
+        }
+
+        final FlatProfile result = new FlatProfile( baselineTime , now , entries );
+        if ( reset ) 
+        {
+            baselineCounters = counters;
+            baselineInclusive = inclusive;
+            baselineTime = now;
+        }
+        return result;
+    }
+
+    private static long delta(long[] current,long[] baseline,int index) {
+        return current[index] - ( index < baseline.length ? baseline[index] : 0 );
+    }
+
+    /**
+     * Returns the merged calling context trees of all threads (including terminated ones).
+     * 
+     * <p>Trees are read without synchronization so the result is only approximately consistent
+     * while instrumented code is running.</p>
+     * 
+     * @return root of the merged tree , empty unless call stack tracking is enabled
+     * @see #setCallStackTracking(boolean)
+     */
+    public static CallingContext getCallTree() 
+    {
+        final CallingContext result = new CallingContext();
+        visitAll( new ThreadStatisticsRegistry.IVisitor() {
+
+            @Override
+            public void visitLiveThread(long threadId, String threadName, ExecutionStatistics stat)
+            {
+                final CallingContext tree = stat.callTree;
+                if ( tree != null ) {
+                    result.merge( tree );
+                }
+            }
+
+            @Override
+            public void visitRetiredThreads(ThreadStatisticsRegistry.Bucket bucket)
+            {
+                result.merge( bucket.getCallTree() );
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Writes the merged calling context trees of all threads in 'collapsed stack' format.
+     * 
+     * @param file
+     * @throws IOException
+     * @see CallingContext#writeCollapsedStacks(Writer)
+     */
+    public static void writeCollapsedStacks(File file) throws IOException 
+    {
+        final Writer writer = new OutputStreamWriter( new FileOutputStream( file ) , "UTF-8" );
+        try {
+            getCallTree().writeCollapsedStacks( writer );
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Returns the number of executed instructions per opcode class and thread (including terminated ones).
+     * 
+     * @return histogram , empty unless the opcode histogram is enabled
+     * @see #setOpcodeHistogram(boolean)
+     */
+    public static OpcodeHistogram getOpcodeHistogram() 
+    {
+        final OpcodeHistogram result = new OpcodeHistogram();
+        visitAll( new ThreadStatisticsRegistry.IVisitor() {
+
+            @Override
+            public void visitLiveThread(long threadId, String threadName, ExecutionStatistics stat)
+            {
+                result.add( threadName , stat.opcodeHistogram );
+            }
+
+            @Override
+            public void visitRetiredThreads(ThreadStatisticsRegistry.Bucket bucket)
+            {
+                result.add( bucket.getNamePattern() , bucket.getOpcodeHistogram() );
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Enable or disable the opcode histogram.
+     * 
+     * <p>When enabled , each probe adds the number of instructions per {@link OpcodeClass} in its basic block to
+     * {@link ExecutionStatistics#opcodeHistogram}. Methods instrumented in mode {@link MethodRegistry.Mode#ENTRY_ONLY} are not included
+     * and counts of sampled methods are scaled.</p>
+     * 
+     * @param enabled
+     * @see #getOpcodeHistogram()
+     */
+    public static void setOpcodeHistogram(boolean enabled) {
+        opcodeHistogram = enabled;
+    }
+
+    public static boolean isOpcodeHistogram() {
+        return opcodeHistogram;
+    }
+
+    /**
+     * Enable or disable allocation profiling.
+     * 
+     * <p>When enabled , instrumented code counts the objects and arrays allocated by each <code>NEW</code> , <code>NEWARRAY</code> , 
+     * <code>ANEWARRAY</code> and <code>MULTIANEWARRAY</code> instruction (see {@link AllocationSiteRegistry}).</p>
+     * 
+     * @param enabled
+     * @see #getAllocationProfile()
+     */
+    public static void setAllocationProfiling(boolean enabled) {
+        allocationProfiling = enabled;
+    }
+
+    public static boolean isAllocationProfiling() {
+        return allocationProfiling;
+    }
+
+    /**
+     * Enable or disable receiver type profiling.
+     * 
+     * <p>When enabled , instrumented code records the receiver class of each <code>INVOKEVIRTUAL</code> and <code>INVOKEINTERFACE</code>
+     * instruction in a small per-thread and per-site cache (see {@link ReceiverTypeProfile}).</p>
+     * 
+     * @param enabled
+     * @see #getReceiverTypeProfile()
+     */
+    public static void setReceiverTypeProfiling(boolean enabled) {
+        receiverTypeProfiling = enabled;
+    }
+
+    public static boolean isReceiverTypeProfiling() {
+        return receiverTypeProfiling;
+    }
+
+    /**
+     * Enable or disable loop profiling.
+     * 
+     * <p>When enabled , the natural loops of fully instrumented methods (see {@link de.codesourcery.asm.controlflow.LoopAnalyzer}) count
+     * their header executions in a local variable that gets reported to {@link #loopExited(ExecutionStatistics, int, int)} whenever
+     * the loop is left , see {@link #getLoopProfile()}. Loops in sampled methods are not profiled.</p>
+     * 
+     * @param enabled
+     * @see LoopRegistry
+     */
+    public static void setLoopProfiling(boolean enabled) {
+        loopProfiling = enabled;
+    }
+
+    public static boolean isLoopProfiling() {
+        return loopProfiling;
+    }
+
+    /**
+     * Enable or disable path profiling.
+     * 
+     * <p>When enabled , the acyclic paths through each fully instrumented method are numbered (see {@link de.codesourcery.asm.controlflow.PathNumbering}) ,
+     * instrumented code computes the current path number in a local variable and reports it to {@link #pathCompleted(ExecutionStatistics, int, int)}
+     * (or {@link #hashedPathCompleted(ExecutionStatistics, int, int)} for methods with many paths) when a path ends , see {@link #getPathProfile()}. 
+     * Sampled methods and methods with more than <code>Integer.MAX_VALUE</code> paths are not profiled.</p>
+     * 
+     * @param enabled
+     * @see PathRegistry
+     */
+    public static void setPathProfiling(boolean enabled) {
+        pathProfiling = enabled;
+    }
+
+    public static boolean isPathProfiling() {
+        return pathProfiling;
+    }
+
+    /**
+     * Enable or disable exception profiling.
+     * 
+     * <p>When enabled , each <code>ATHROW</code> instruction and each exception handler counts the exceptions
+     * passing through it by exception class , see {@link #getExceptionProfile()}.</p>
+     * 
+     * @param enabled
+     * @see ExceptionSiteRegistry
+     */
+    public static void setExceptionProfiling(boolean enabled) {
+        exceptionProfiling = enabled;
+    }
+
+    public static boolean isExceptionProfiling() {
+        return exceptionProfiling;
+    }
+
+    /**
+     * Enable or disable field access profiling.
+     * 
+     * <p>When enabled , each basic block that contains <code>GETFIELD</code> / <code>PUTFIELD</code> / <code>GETSTATIC</code> / <code>PUTSTATIC</code>
+     * instructions counts its executions , see {@link FieldAccessRegistry} and {@link #getFieldAccessProfile()}.</p>
+     * 
+     * @param enabled
+     */
+    public static void setFieldAccessProfiling(boolean enabled) {
+        fieldAccessProfiling = enabled;
+    }
+
+    public static boolean isFieldAccessProfiling() {
+        return fieldAccessProfiling;
+    }
+
+    /**
+     * Enable or disable source line profiling.
+     * 
+     * <p>When enabled , each basic block with line number information counts its executions and the block's instructions
+     * are attributed to the source lines they were compiled from , see {@link LineRegistry} and {@link #getLineProfile()}.</p>
+     * 
+     * @param enabled
+     */
+    public static void setLineProfiling(boolean enabled) {
+        lineProfiling = enabled;
+    }
+
+    public static boolean isLineProfiling() {
+        return lineProfiling;
+    }
+
+    /**
+     * Enable or disable monitor profiling.
+     * 
+     * <p>When enabled , instrumented code measures the time each <code>MONITORENTER</code> instruction takes using {@link System#nanoTime()}
+     * and synchronized methods are registered as monitor sites (see {@link #getMonitorProfile()}).</p>
+     * 
+     * @param enabled
+     * @see MonitorSiteRegistry
+     */
+    public static void setMonitorProfiling(boolean enabled) {
+        monitorProfiling = enabled;
+    }
+
+    public static boolean isMonitorProfiling() {
+        return monitorProfiling;
+    }
+
+    /**
+     * Sets the minimum time a monitor acquisition needs to take to be counted as contended.
+     * 
+     * <p>An uncontended acquisition (including the overhead of the two {@link System#nanoTime()} calls) usually
+     * takes well below a microsecond.</p>
+     * 
+     * @param nanos
+     * @see #DEFAULT_CONTENTION_THRESHOLD
+     */
+    public static void setContentionThreshold(long nanos) 
+    {
+        if ( nanos < 0 ) {
+            throw new IllegalArgumentException("Threshold must be >= 0");
+        }
+        contentionThreshold = nanos;
+    }
+
+    public static long getContentionThreshold() {
+        return contentionThreshold;
+    }
+
+    /**
+     * Enable or disable call stack tracking.
+     * 
+     * <p>When enabled , methods instrumented in mode {@link MethodRegistry.Mode#FULL} maintain a per-thread shadow stack and
+     * instructions get charged to their full calling context (see {@link #getCallTree()}).</p>
+     * 
+     * @param enabled
+     */
+    public static void setCallStackTracking(boolean enabled) {
+        callStackTracking = enabled;
+    }
+
+    public static boolean isCallStackTracking() {
+        return callStackTracking;
+    }
+
+    /**
+     * Enable or disable accounting in all instrumented classes.
+     *
+     * <p>While disabled, generated byte-code skips all probes (including the
+     * thread-local lookup at method entry), counts are frozen at their current values.</p>
+     *
+     * @param enabled
+     * @see ProfilingSwitch
+     */
+    public static void setEnabled(boolean enabled) {
+        ProfilingSwitch.setEnabled( enabled );
+    }
+
+    /**
+     * Check whether accounting is currently enabled.
+     *
+     * @return
+     * @see #setEnabled(boolean)
+     */
+    public static boolean isEnabled() {
+        return ProfilingSwitch.isEnabled();
+    }
+
+    /**
+     * Opens a new scope and makes it the current thread's active scope.
+     * 
+     * @param type type of work (used to aggregate statistics , see {@link AccountingScope#getTypeStatistics()})
+     * @param id identifies the unit of work (may be <code>null</code>)
+     * @return scope , must be closed by the current thread
+     */
+    public static AccountingScope openScope(String type,String id) 
+    {
+        final AccountingScope scope = new AccountingScope( type , id , getCurrentScope() );
+        activateScope( scope );
+        return scope;
+    }
+
+    /**
+     * Returns the current thread's active scope.
+     * 
+     * @return scope or <code>null</code>
+     */
+    public static AccountingScope getCurrentScope() {
+        return getStatistics().scope;
+    }
+
+    /**
+     * Makes a scope the current thread's active scope , charging all instructions executed
+     * since the previous scope became active to the previous scope.
+     * 
+     * @param scope scope to activate , may be <code>null</code>
+     * @return previously active scope
+     */
+    protected static AccountingScope activateScope(AccountingScope scope) 
+    {
+        final ExecutionStatistics stat = getStatistics();
+        // include instructions the generated byte-code has counted but not passed to account() yet
+        final long now = stat.executedInstructions + stat.executedInstructionCount + GRANULARITY;
+        final AccountingScope previous = stat.scope;
+        if ( previous != null ) {
+            previous.charge( now - stat.scopeStart );
+        }
+        stat.scope = scope;
+        stat.scopeStart = now;
+        return previous;
+    }
+
+    /**
+     * Enable or disable lightweight accounting for virtual threads (enabled by default).
+     * 
+     * <p>Virtual threads switch to the other kind of statistics immediately , counts collected so far are kept.</p>
+     * 
+     * @param enabled
+     * @see VirtualThreadStatistics
+     */
+    public static void setVirtualThreadMode(boolean enabled) {
+        virtualThreadMode = enabled;
+    }
+
+    public static boolean isVirtualThreadMode() {
+        return virtualThreadMode;
+    }
+
+    /**
+     * Sets the file counters get exported to.
+     * 
+     * @param file file or <code>null</code> to stop exporting counters
+     */
+    public static void setPerfDataFile(PerfDataFile file) {
+        perfDataFile = file;
+    }
+
+    public static PerfDataFile getPerfDataFile() {
+        return perfDataFile;
+    }
+
     /**
      * Invoked periodically by generated byte-code whenever the {@link ExecutionStatistics#executedInstructionCount}
      * reaches zero or a positive value.
@@ -65,14 +1358,25 @@ public class StatisticsManager
     public static void account() 
     {
         final ExecutionStatistics stat = getStatistics();
-        final Thread current = Thread.currentThread();
-        Long existing = executionCounts.get( current );
-        if ( existing == null ) {
-            existing = Long.valueOf( stat.executedInstructionCount+GRANULARITY );
-        } else {
-            existing = Long.valueOf( existing.longValue() + stat.executedInstructionCount+GRANULARITY );
-        }
-        executionCounts.put( current , existing );
+        final int instructions = stat.executedInstructionCount+GRANULARITY;
+        stat.executedInstructions += instructions;
+
+        final CallingContext context = stat.callingContext;
+        if ( context != null ) {
+            context.instructions += instructions;
+        }
+
+        final PerfDataFile perfData = perfDataFile;
+        if ( perfData != null && stat.perfSlot != ExecutionStatistics.PERF_SLOTS_EXHAUSTED ) 
+        {
+            if ( stat.perfSlot == ExecutionStatistics.NO_PERF_SLOT ) {
+                final int slot = perfData.allocateThreadSlot( Thread.currentThread() );
+                stat.perfSlot = slot < 0 ? ExecutionStatistics.PERF_SLOTS_EXHAUSTED : slot;
+            }
+            if ( stat.perfSlot >= 0 ) {
+                perfData.updateThread( stat.perfSlot , stat.executedInstructions );
+            }
+        }
         
         // generated bytecode increments executedInstructionCount by the number of 
         // instructions in the current block and invokes account() whenever the
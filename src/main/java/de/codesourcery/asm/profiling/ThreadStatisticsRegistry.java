@@ -0,0 +1,425 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.asm.profiling;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+/**
+ * Keeps track of the {@link ExecutionStatistics} of running threads and retires the statistics
+ * of terminated threads into aggregate buckets.
+ *
+ * <p>The registry only holds weak references to threads so it never keeps terminated threads alive. A daemon
+ * thread periodically looks for threads that have terminated (or have been garbage-collected) and adds their counters
+ * to a bucket shared by all threads with the same <i>name pattern</i> (the thread name with all numbers , hex strings and UUIDs 
+ * replaced by '#', so <code>pool-3-thread-17</code> ends up in bucket <code>pool-#-thread-#</code>). Once {@link #MAX_BUCKETS} buckets 
+ * exist , threads with new name patterns go to the {@link #OTHER_BUCKET}. Memory usage thus only depends on the number of
+ * running threads , not on the total number of threads ever created or how they are named.</p>
+ *
+ * <p>Threads are only retired when the daemon thread runs , so the counters of a terminated thread keep showing up as a
+ * live thread (and its {@link PerfDataFile} slot stays {@link PerfDataFile#STATE_LIVE live}) for up to {@link #REAPER_INTERVAL_MILLIS}.</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ * @see StatisticsManager
+ */
+public final class ThreadStatisticsRegistry
+{
+    /**
+     * How often the reaper thread looks for terminated threads.
+     */
+    public static final long REAPER_INTERVAL_MILLIS = 1000;
+
+    /**
+     * Max. number of name pattern buckets (including the {@link #OTHER_BUCKET}).
+     */
+    public static final int MAX_BUCKETS = 256;
+
+    /**
+     * Name of the bucket that collects threads once {@link #MAX_BUCKETS} is reached.
+     */
+    public static final String OTHER_BUCKET = "<other>";
+
+    private static final Pattern DIGITS = Pattern.compile("[0-9]+");
+
+    // UUIDs and alphanumeric tokens made up of hex digits that contain a digit or are at least 8 characters long
+    private static final Pattern HEX = Pattern.compile("(?<![0-9A-Za-z])(?:"+
+            "[0-9a-fA-F]{8}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{12}|"+
+            "0x[0-9a-fA-F]+|[0-9a-fA-F]*[0-9][0-9a-fA-F]*|"+
+            "[0-9a-fA-F]{8,})(?![0-9A-Za-z])");
+
+    // lock held while retiring threads and while taking snapshots, makes sure counters are
+    // never counted twice (or not at all) while moving from a live thread to a bucket
+    private static final Object LOCK = new Object();
+
+    private static final Set<ThreadEntry> liveThreads = Collections.newSetFromMap( new ConcurrentHashMap<ThreadEntry,Boolean>() );
+
+    // guarded by LOCK
+    private static final Map<String,Bucket> buckets = new HashMap<>();
+
+    private static Thread reaper; // guarded by ThreadStatisticsRegistry.class
+
+    /**
+     * Aggregated counters of all terminated threads with the same name pattern.
+     *
+     * @author tobias.gierke@code-sourcery.de
+     */
+    public static final class Bucket
+    {
+        private final String namePattern;
+        private long threadCount;
+        private long executedInstructions;
+        private final long[][] counters = new long[ CounterKind.values().length ][];
+        private final CallingContext callTree = new CallingContext();
+        private final long[] opcodeHistogram = new long[ OpcodeClass.count() ];
+        private final ReceiverTypeProfile receiverTypes = new ReceiverTypeProfile();
+        private final PathProfile paths = new PathProfile();
+
+        protected Bucket(String namePattern)
+        {
+            this.namePattern = namePattern;
+            Arrays.fill( counters , new long[0] );
+        }
+
+        protected Bucket(Bucket other)
+        {
+            this.namePattern = other.namePattern;
+            this.threadCount = other.threadCount;
+            this.executedInstructions = other.executedInstructions;
+            for ( int i = 0 ; i < counters.length ; i++ ) {
+                counters[i] = other.counters[i].clone();
+            }
+            this.callTree.merge( other.callTree );
+            System.arraycopy( other.opcodeHistogram , 0 , this.opcodeHistogram , 0 , opcodeHistogram.length );
+            this.receiverTypes.add( other.receiverTypes );
+            this.paths.add( other.paths );
+        }
+
+        protected void add(ExecutionStatistics stat)
+        {
+            threadCount++;
+            executedInstructions += stat.executedInstructions;
+            for ( CounterKind kind : CounterKind.values() ) 
+            {
+                final long[] source = kind.get( stat );
+                if ( counters[ kind.ordinal() ].length < source.length ) {
+                    counters[ kind.ordinal() ] = Arrays.copyOf( counters[ kind.ordinal() ] , source.length );
+                }
+                CounterKind.add( counters[ kind.ordinal() ] , source );
+            }
+            if ( stat.callTree != null ) {
+                callTree.merge( stat.callTree );
+            }
+            CounterKind.add( opcodeHistogram , stat.opcodeHistogram );
+            receiverTypes.add( stat.receiverClasses , stat.receiverCounters );
+            paths.add( stat.pathCounters );
+        }
+
+        /**
+         * Counts a terminated thread whose counters (other than its instruction count) stay where they are.
+         * 
+         * @param executedInstructions number of instructions executed by the thread
+         * @see VirtualThreadStatistics
+         */
+        protected void addTerminatedThread(long executedInstructions)
+        {
+            threadCount++;
+            this.executedInstructions += executedInstructions;
+        }
+
+        /**
+         * Returns the thread name pattern this bucket aggregates.
+         *
+         * @return
+         */
+        public String getNamePattern()
+        {
+            return namePattern;
+        }
+
+        /**
+         * Returns the number of terminated threads whose counters have been added to this bucket.
+         *
+         * @return
+         */
+        public long getThreadCount()
+        {
+            return threadCount;
+        }
+
+        public long getExecutedInstructions()
+        {
+            return executedInstructions;
+        }
+
+        /**
+         * Returns the summed counters of all retired threads.
+         *
+         * @param kind
+         * @return counters , layout is identical to the {@link CounterKind#get(ExecutionStatistics) array} of that kind
+         */
+        public long[] getCounters(CounterKind kind)
+        {
+            return counters[ kind.ordinal() ];
+        }
+
+        /**
+         * Returns the summed opcode histograms of all retired threads.
+         *
+         * @return counts indexed by {@link OpcodeClass#ordinal()}
+         */
+        public long[] getOpcodeHistogram()
+        {
+            return opcodeHistogram;
+        }
+
+        /**
+         * Returns the merged path counters of all retired threads.
+         *
+         * @return
+         */
+        public PathProfile getPaths()
+        {
+            return paths;
+        }
+
+        /**
+         * Returns the merged receiver type caches of all retired threads.
+         *
+         * @return
+         */
+        public ReceiverTypeProfile getReceiverTypes()
+        {
+            return receiverTypes;
+        }
+
+        /**
+         * Returns the merged calling context trees of all retired threads.
+         *
+         * @return
+         * @see StatisticsManager#setCallStackTracking(boolean)
+         */
+        public CallingContext getCallTree()
+        {
+            return callTree;
+        }
+
+        @Override
+        public String toString()
+        {
+            return namePattern+" ("+threadCount+" threads , "+executedInstructions+" instructions)";
+        }
+    }
+
+    /**
+     * A live thread's statistics.
+     *
+     * @author tobias.gierke@code-sourcery.de
+     */
+    protected static final class ThreadEntry extends WeakReference<Thread>
+    {
+        public final ExecutionStatistics statistics;
+        public final long threadId;
+        private final String nameAtRegistration;
+
+        protected ThreadEntry(Thread thread,ExecutionStatistics statistics)
+        {
+            super(thread);
+            this.statistics = statistics;
+            this.threadId = thread.getId();
+            this.nameAtRegistration = thread.getName();
+        }
+
+        public boolean isTerminated()
+        {
+            final Thread thread = get();
+            // Thread#isAlive() returning false makes all writes of the terminated thread visible , Thread#getState() does not
+            return thread == null || ! thread.isAlive();
+        }
+
+        public String getThreadName()
+        {
+            final Thread thread = get();
+            return thread != null ? thread.getName() : nameAtRegistration;
+        }
+    }
+
+    private ThreadStatisticsRegistry() {
+    }
+
+    /**
+     * Registers the statistics of a thread.
+     *
+     * @param thread
+     * @param statistics
+     */
+    public static void register(Thread thread,ExecutionStatistics statistics)
+    {
+        liveThreads.add( new ThreadEntry( thread , statistics ) );
+        startReaper();
+    }
+
+    private static synchronized void startReaper()
+    {
+        if ( reaper == null )
+        {
+            reaper = new Thread("profiling-thread-reaper")
+            {
+                @Override
+                public void run()
+                {
+                    while ( ! isInterrupted() )
+                    {
+                        try {
+                            Thread.sleep( REAPER_INTERVAL_MILLIS );
+                        }
+                        catch (InterruptedException e) {
+                            return;
+                        }
+                        retireTerminatedThreads();
+                    }
+                }
+            };
+            reaper.setDaemon( true );
+            reaper.start();
+        }
+    }
+
+    /**
+     * Moves the statistics of all terminated threads into their buckets.
+     *
+     * <p>Invoked periodically by a daemon thread.</p>
+     *
+     * @return number of retired threads
+     */
+    public static int retireTerminatedThreads()
+    {
+        int count = 0;
+        synchronized( LOCK )
+        {
+            for ( ThreadEntry entry : liveThreads )
+            {
+                if ( entry.isTerminated() )
+                {
+                    String pattern = toNamePattern( entry.getThreadName() );
+                    if ( ! buckets.containsKey( pattern ) && buckets.size() >= MAX_BUCKETS - 1 ) {
+                        pattern = OTHER_BUCKET;
+                    }
+                    Bucket bucket = buckets.get( pattern );
+                    if ( bucket == null ) {
+                        bucket = new Bucket( pattern );
+                        buckets.put( pattern , bucket );
+                    }
+                    bucket.add( entry.statistics );
+                    liveThreads.remove( entry );
+                    threadRetired( entry.statistics );
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    private static void threadRetired(ExecutionStatistics stat)
+    {
+        final PerfDataFile perfData = StatisticsManager.getPerfDataFile();
+        if ( perfData != null && stat.perfSlot >= 0 ) 
+        {
+            // the thread only updated its slot when invoking StatisticsManager#account()
+            perfData.updateThread( stat.perfSlot , stat.executedInstructions );
+            perfData.releaseThreadSlot( stat.perfSlot );
+        }
+    }
+
+    /**
+     * Returns the name pattern used to group threads.
+     *
+     * @param threadName
+     * @return thread name with all UUIDs , hex strings and digit sequences replaced by '#'
+     */
+    public static String toNamePattern(String threadName)
+    {
+        final String result = HEX.matcher( threadName ).replaceAll("#");
+        return DIGITS.matcher( result ).replaceAll("#");
+    }
+
+    /**
+     * Returns the number of threads currently held by the registry.
+     *
+     * @return
+     */
+    public static int getLiveThreadCount() {
+        return liveThreads.size();
+    }
+
+    /**
+     * Returns a copy of all buckets.
+     *
+     * @return
+     */
+    public static List<Bucket> getRetiredThreads()
+    {
+        synchronized( LOCK )
+        {
+            final List<Bucket> result = new ArrayList<>( buckets.size() );
+            for ( Bucket b : buckets.values() ) {
+                result.add( new Bucket( b ) );
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Callback used to visit the statistics of live and retired threads.
+     *
+     * @author tobias.gierke@code-sourcery.de
+     * @see ThreadStatisticsRegistry#visit(IVisitor)
+     */
+    public interface IVisitor
+    {
+        public void visitLiveThread(long threadId,String threadName,ExecutionStatistics statistics);
+
+        public void visitRetiredThreads(Bucket bucket);
+    }
+
+    /**
+     * Visits the statistics of all live threads and all buckets.
+     *
+     * <p>Threads are not retired while this method is running, so each thread's counters are visited exactly once. The visitor
+     * must not block since live threads keep updating their counters concurrently.</p>
+     *
+     * @param visitor
+     */
+    public static void visit(IVisitor visitor)
+    {
+        synchronized( LOCK )
+        {
+            for ( ThreadEntry entry : liveThreads ) {
+                visitor.visitLiveThread( entry.threadId , entry.getThreadName() , entry.statistics );
+            }
+            for ( Bucket bucket : buckets.values() ) {
+                visitor.visitRetiredThreads( bucket );
+            }
+        }
+    }
+}
@@ -0,0 +1,326 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.asm.profiling;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lightweight accounting for virtual threads.
+ *
+ * <p>Registering each virtual thread with the {@link ThreadStatisticsRegistry} and giving each one a fresh
+ * {@link ExecutionStatistics} instance does not scale to millions of virtual threads. In virtual-thread mode, virtual threads
+ * do not get a thread-local. Each of a fixed number of <i>stripes</i> instead keeps a small table of statistics keyed by thread.
+ * An entry whose thread has terminated is handed to the next virtual thread that needs one , so the number of instances
+ * is bounded by the number of virtual threads that are alive at the same time , not by the number of tasks.</p>
+ *
+ * <p>Each entry has counter arrays of its own that are only ever written by the thread currently owning the entry , just like the
+ * statistics of a platform thread. Counts are therefore exact: a virtual thread may move to another carrier thread at any time
+ * (even between reading and writing a counter) , so counters shared by all virtual threads running on a carrier (or a stripe) would 
+ * lose updates unless the generated byte-code used atomic increments , which would slow down platform threads as well. 
+ * The price is that memory usage grows with the number of virtual threads alive at the same time (times the number of counters they touch).</p>
+ *
+ * <p>Counters of an entry that gets handed to another thread are kept (except for the thread's own instruction count , see 
+ * {@link StatisticsManager#getExecutedInstructionsCount()}) , entries dropped from a table get added to the stripe's
+ * {@link ThreadStatisticsRegistry.Bucket bucket}. All counts show up as {@link OpcodeHistogram#VIRTUAL_THREADS}.</p>
+ *
+ * <p>Virtual threads are detected via reflection (<code>Thread#isVirtual()</code>) so this class works (and does nothing)
+ * on JVMs without virtual threads.</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ * @see StatisticsManager#setVirtualThreadMode(boolean)
+ */
+public final class VirtualThreadStatistics
+{
+    private static final MethodHandle IS_VIRTUAL = lookupIsVirtual();
+
+    private static final int STRIPE_COUNT = stripeCount();
+
+    // thread ID bits used to select a stripe
+    private static final int STRIPE_BITS = Integer.numberOfTrailingZeros( STRIPE_COUNT );
+
+    private static final int MIN_TABLE_SIZE = 16;
+
+    private static final Stripe[] stripes = new Stripe[ STRIPE_COUNT ];
+
+    private static final AtomicLong threadCount = new AtomicLong();
+
+    static {
+        for ( int i = 0 ; i < STRIPE_COUNT ; i++ ) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    protected static final class Stripe
+    {
+        // open addressing by thread ID , slots are only written while holding the stripe's lock and never cleared 
+        // (entries of terminated threads get reused or dropped when the table is rebuilt) so lookups need no lock
+        public volatile LightweightStatistics[] threads = new LightweightStatistics[ MIN_TABLE_SIZE ];
+        private int usedSlots; // guarded by this
+        // counters of entries dropped from the table and instructions of threads that terminated , guarded by this
+        private final ThreadStatisticsRegistry.Bucket retired = new ThreadStatisticsRegistry.Bucket( OpcodeHistogram.VIRTUAL_THREADS );
+
+        public LightweightStatistics lookup(Thread thread)
+        {
+            final LightweightStatistics[] table = threads;
+            final int mask = table.length - 1;
+            for ( int i = slot( thread , mask ) ; ; i = ( i + 1 ) & mask ) 
+            {
+                final LightweightStatistics stat = table[i];
+                if ( stat == null ) {
+                    return attach( thread );
+                }
+                if ( stat.owner == thread ) {
+                    return stat;
+                }
+            }
+        }
+
+        private synchronized LightweightStatistics attach(Thread thread)
+        {
+            threadCount.incrementAndGet();
+            if ( ( usedSlots + 1 ) * 4 > threads.length * 3 ) {
+                rebuild();
+            }
+            final LightweightStatistics[] table = threads;
+            final int mask = table.length - 1;
+            for ( int i = slot( thread , mask ) ; ; i = ( i + 1 ) & mask ) 
+            {
+                final LightweightStatistics stat = table[i];
+                if ( stat == null ) 
+                {
+                    table[i] = new LightweightStatistics( thread );
+                    usedSlots++;
+                    return table[i];
+                }
+                // Thread#isAlive() returning false makes all writes of the terminated thread visible
+                if ( ! stat.owner.isAlive() ) 
+                {
+                    retired.addTerminatedThread( stat.executedInstructions );
+                    stat.attach( thread );
+                    return stat;
+                }
+            }
+        }
+
+        // drops the entries of terminated threads , the new table is at most half full
+        private void rebuild()
+        {
+            final LightweightStatistics[] old = threads;
+            int live = 0;
+            for ( LightweightStatistics stat : old ) 
+            {
+                if ( stat != null ) 
+                {
+                    if ( stat.owner.isAlive() ) {
+                        live++;
+                    } else {
+                        retired.add( stat );
+                    }
+                }
+            }
+            int size = MIN_TABLE_SIZE;
+            while ( ( live + 1 ) * 2 > size ) {
+                size <<= 1;
+            }
+            final LightweightStatistics[] table = new LightweightStatistics[ size ];
+            final int mask = size - 1;
+            for ( LightweightStatistics stat : old ) 
+            {
+                if ( stat != null && stat.owner.isAlive() ) 
+                {
+                    int i = slot( stat.owner , mask );
+                    while ( table[i] != null ) {
+                        i = ( i + 1 ) & mask;
+                    }
+                    table[i] = stat;
+                }
+            }
+            usedSlots = live;
+            threads = table;
+        }
+
+        /**
+         * Visits all entries of this stripe and its bucket.
+         * 
+         * <p>Holds the stripe's lock so no entry gets dropped or handed to another thread while visiting.</p>
+         * 
+         * @param visitor
+         */
+        public synchronized void visit(ThreadStatisticsRegistry.IVisitor visitor)
+        {
+            for ( LightweightStatistics stat : threads ) 
+            {
+                if ( stat != null ) {
+                    visitor.visitLiveThread( stat.owner.getId() , OpcodeHistogram.VIRTUAL_THREADS , stat );
+                }
+            }
+            if ( retired.getThreadCount() > 0 ) {
+                visitor.visitRetiredThreads( retired );
+            }
+        }
+
+        public int getStatisticsCount()
+        {
+            int result = 0;
+            for ( LightweightStatistics stat : threads ) 
+            {
+                if ( stat != null ) {
+                    result++;
+                }
+            }
+            return result;
+        }
+    }
+
+    private static int slot(Thread thread,int mask) {
+        return (int) ( thread.getId() >>> STRIPE_BITS ) & mask;
+    }
+
+    /**
+     * Statistics of a virtual thread , handed to another virtual thread once the owning thread has terminated.
+     *
+     * @author tobias.gierke@code-sourcery.de
+     */
+    protected static final class LightweightStatistics extends ExecutionStatistics
+    {
+        protected volatile Thread owner;
+
+        protected LightweightStatistics(Thread owner)
+        {
+            this.owner = owner;
+            this.perfSlot = PERF_SLOTS_EXHAUSTED;
+        }
+
+        // invoked while holding the stripe's lock after the owner has terminated ,
+        // counters are kept but the new owner's instruction count starts at zero
+        protected void attach(Thread thread)
+        {
+            executedInstructionCount = -StatisticsManager.GRANULARITY;
+            executedInstructions = 0;
+            sampleCountdown = 1;
+            burstRemaining = 0;
+            scope = null;
+            scopeStart = 0;
+            callingContext = null;
+            callStackDepth = 0;
+            owner = thread;
+        }
+    }
+
+    private VirtualThreadStatistics() {
+    }
+
+    private static MethodHandle lookupIsVirtual()
+    {
+        try {
+            return MethodHandles.publicLookup().findVirtual( Thread.class , "isVirtual" , MethodType.methodType( boolean.class ) );
+        }
+        catch (NoSuchMethodException | IllegalAccessException e) {
+            return null; // JVM does not support virtual threads
+        }
+    }
+
+    private static int stripeCount()
+    {
+        int result = 1;
+        while ( result < 4 * Runtime.getRuntime().availableProcessors() ) {
+            result <<= 1;
+        }
+        return result;
+    }
+
+    /**
+     * Returns whether the JVM supports virtual threads.
+     *
+     * @return
+     */
+    public static boolean isSupported() {
+        return IS_VIRTUAL != null;
+    }
+
+    /**
+     * Check whether a thread is a virtual thread.
+     *
+     * @param thread
+     * @return <code>false</code> if the thread is a platform thread or the JVM does not support virtual threads
+     */
+    public static boolean isVirtual(Thread thread)
+    {
+        if ( IS_VIRTUAL == null ) {
+            return false;
+        }
+        try {
+            return (boolean) IS_VIRTUAL.invokeExact( thread );
+        }
+        catch (Throwable e) {
+            return false;
+        }
+    }
+
+    /**
+     * Returns the statistics of a virtual thread.
+     *
+     * @param thread the current thread
+     * @return
+     */
+    protected static ExecutionStatistics getStatistics(Thread thread)
+    {
+        return stripes[ (int) ( thread.getId() & ( STRIPE_COUNT - 1 ) ) ].lookup( thread );
+    }
+
+    /**
+     * Returns the number of virtual threads that executed instrumented code so far.
+     *
+     * @return
+     */
+    public static long getThreadCount() {
+        return threadCount.get();
+    }
+
+    /**
+     * Returns the number of statistics instances currently held for virtual threads.
+     *
+     * @return
+     */
+    public static int getStatisticsCount()
+    {
+        int result = 0;
+        for ( Stripe s : stripes ) {
+            result += s.getStatisticsCount();
+        }
+        return result;
+    }
+
+    /**
+     * Visits the statistics of all virtual threads.
+     *
+     * <p>All entries are reported as live threads named {@link OpcodeHistogram#VIRTUAL_THREADS} (an entry's counters may include
+     * those of terminated threads that used the entry before) , the counters of dropped entries as one bucket per stripe. The
+     * visitor must not block.</p>
+     *
+     * @param visitor
+     * @see ThreadStatisticsRegistry#visit(ThreadStatisticsRegistry.IVisitor)
+     */
+    public static void visit(ThreadStatisticsRegistry.IVisitor visitor)
+    {
+        for ( Stripe s : stripes ) {
+            s.visit( visitor );
+        }
+    }
+}
@@ -0,0 +1,211 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.asm.rewrite;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import de.codesourcery.asm.profiling.ExecutionStatistics;
+import de.codesourcery.asm.profiling.MethodRegistry;
+import de.codesourcery.asm.profiling.MethodRegistry.MethodInfo;
+import de.codesourcery.asm.profiling.StatisticsManager;
+
+/**
+ * Daemon thread that keeps the profiling overhead below a target percentage by
+ * switching hot methods to cheaper instrumentation.
+ *
+ * <p>Every interval the controller computes the per-method probe rates (probes executed per second) from
+ * {@link StatisticsManager#getMethodCounters()} and estimates the CPU time spent in probes by multiplying
+ * the rates with a (configurable) cost per probe. Methods whose estimated overhead exceeds the per-method budget
+ * are demoted first, after that the hottest remaining methods are demoted until the total estimated overhead
+ * drops below the target.</p>
+ *
+ * <p>Demoted methods are switched to {@link MethodRegistry.Mode#ENTRY_ONLY} counting, using the average
+ * number of instructions per invocation measured so far as estimate, and their classes are re-transformed. Methods
+ * are only demoted after they have been invoked a minimum number of times so that the estimate has a chance to converge.</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ * @see ProfilingClassTransformer
+ */
+public final class AdaptiveController extends Thread
+{
+    private final double overheadTargetPercent;
+    private final double methodBudgetPercent;
+    private final double probeCostNanos;
+    private final long minInvocations;
+    private final long intervalMillis;
+    private final boolean debug;
+
+    private final int cpuCount = Runtime.getRuntime().availableProcessors();
+
+    private long[] previousCounters = new long[0];
+    private long previousTimestamp;
+
+    /**
+     * Create instance.
+     *
+     * @param overheadTargetPercent total overhead (percentage of available CPU time) the controller tries to stay below
+     * @param methodBudgetPercent overhead (percentage of available CPU time) a single method may cause before it gets demoted
+     * @param probeCostNanos estimated cost of executing a single probe
+     * @param minInvocations minimum number of invocations before a method may be demoted
+     * @param intervalMillis how often to check probe rates
+     * @param debug
+     */
+    public AdaptiveController(double overheadTargetPercent,double methodBudgetPercent,double probeCostNanos,long minInvocations,long intervalMillis,boolean debug)
+    {
+        super("profiling-adaptive-controller");
+        if ( overheadTargetPercent <= 0 ) {
+            throw new IllegalArgumentException("overhead target must be > 0");
+        }
+        if ( methodBudgetPercent <= 0 ) {
+            throw new IllegalArgumentException("method budget must be > 0");
+        }
+        if ( probeCostNanos <= 0 ) {
+            throw new IllegalArgumentException("probe cost must be > 0");
+        }
+        if ( intervalMillis <= 0 ) {
+            throw new IllegalArgumentException("interval must be > 0");
+        }
+        this.overheadTargetPercent = overheadTargetPercent;
+        this.methodBudgetPercent = methodBudgetPercent;
+        this.probeCostNanos = probeCostNanos;
+        this.minInvocations = minInvocations;
+        this.intervalMillis = intervalMillis;
+        this.debug = debug;
+        setDaemon( true );
+    }
+
+    @Override
+    public void run()
+    {
+        previousTimestamp = System.nanoTime();
+        while ( ! isInterrupted() )
+        {
+            try {
+                Thread.sleep( intervalMillis );
+            }
+            catch (InterruptedException e) {
+                return;
+            }
+
+            try {
+                adjust();
+            }
+            catch(Exception e) {
+                System.err.println("Adaptive controller failed: "+e.getMessage());
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void adjust()
+    {
+        final long now = System.nanoTime();
+        final long[] counters = StatisticsManager.getMethodCounters();
+        final double elapsedSeconds = ( now - previousTimestamp ) / 1000000000d;
+
+        final List<MethodOverhead> candidates = new ArrayList<>();
+        double totalOverhead = 0;
+
+        final int methodCount = counters.length / ExecutionStatistics.METHOD_COUNTER_SLOTS;
+        for ( int id = 0 ; id < methodCount ; id++ )
+        {
+            final int base = id * ExecutionStatistics.METHOD_COUNTER_SLOTS;
+            final long probes = counters[ base + ExecutionStatistics.SLOT_PROBES ];
+            final long previousProbes = base < previousCounters.length ? previousCounters[ base + ExecutionStatistics.SLOT_PROBES ] : 0;
+
+            final double overhead = overheadPercent( ( probes - previousProbes ) / elapsedSeconds );
+            totalOverhead += overhead;
+
+            final MethodInfo method = MethodRegistry.getMethod( id );
+            final long invocations = counters[ base + ExecutionStatistics.SLOT_INVOCATIONS ];
+            if ( method.getMode() == MethodRegistry.Mode.FULL && invocations >= minInvocations && invocations > 0 ) 
+            {
+                final long previousInvocations = base < previousCounters.length ? previousCounters[ base + ExecutionStatistics.SLOT_INVOCATIONS ] : 0;
+                // an entry-only probe is executed once per invocation instead of once per basic block
+                final double overheadWhenDemoted = overheadPercent( ( invocations - previousInvocations ) / elapsedSeconds );
+                candidates.add( new MethodOverhead( method , overhead , overheadWhenDemoted , invocations , counters[ base + ExecutionStatistics.SLOT_INSTRUCTIONS ] ) );
+            }
+        }
+
+        previousCounters = counters;
+        previousTimestamp = now;
+
+        if ( debug ) {
+            System.out.println("Adaptive controller: estimated overhead "+String.format("%.2f",totalOverhead)+" %");
+        }
+
+        // hottest methods first
+        Collections.sort( candidates , new Comparator<MethodOverhead>() {
+
+            @Override
+            public int compare(MethodOverhead o1, MethodOverhead o2)
+            {
+                return Double.compare( o2.overheadPercent , o1.overheadPercent );
+            }
+        });
+
+        final Set<String> classesToRetransform = new HashSet<>();
+        for ( MethodOverhead candidate : candidates )
+        {
+            if ( candidate.overheadPercent <= 0 ) {
+                break;
+            }
+            if ( candidate.overheadPercent <= methodBudgetPercent && totalOverhead <= overheadTargetPercent ) {
+                break;
+            }
+
+            final int estimate = (int) Math.max( 1 , Math.min( Integer.MAX_VALUE , Math.round( candidate.instructions / (double) candidate.invocations ) ) );
+            if ( debug ) {
+                System.out.println("Adaptive controller: switching "+candidate.method+" to entry-only counting ("+
+                        String.format("%.2f",candidate.overheadPercent)+" % overhead, "+estimate+" instructions per invocation)");
+            }
+            candidate.method.setEntryOnly( estimate );
+            classesToRetransform.add( candidate.method.getClassName() );
+            totalOverhead -= candidate.overheadPercent - candidate.overheadWhenDemoted;
+        }
+
+        if ( ! classesToRetransform.isEmpty() ) {
+            ProfilingClassTransformer.retransformClasses( classesToRetransform );
+        }
+    }
+
+    private double overheadPercent(double probesPerSecond) {
+        return 100d * probesPerSecond * probeCostNanos / ( 1000000000d * cpuCount );
+    }
+
+    protected static final class MethodOverhead
+    {
+        public final MethodInfo method;
+        public final double overheadPercent;
+        public final double overheadWhenDemoted;
+        public final long invocations;
+        public final long instructions;
+
+        public MethodOverhead(MethodInfo method, double overheadPercent,double overheadWhenDemoted,long invocations,long instructions)
+        {
+            this.method = method;
+            this.overheadPercent = overheadPercent;
+            this.overheadWhenDemoted = overheadWhenDemoted;
+            this.invocations = invocations;
+            this.instructions = instructions;
+        }
+    }
+}
@@ -0,0 +1,86 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.asm.rewrite;
+
+import java.io.File;
+import java.lang.reflect.Method;
+
+/**
+ * Command-line application that attaches the {@link ProfilingClassTransformer} agent to a running JVM.
+ *
+ * <p>Usage: <code>java -cp controlflow.jar de.codesourcery.asm.rewrite.AgentLoader &lt;PID&gt; &lt;agent options&gt;</code></p>
+ *
+ * <p>The Attach API (<code>com.sun.tools.attach</code>) is accessed through reflection so this class compiles without
+ * <code>tools.jar</code>, on JDK 8 and earlier <code>tools.jar</code> needs to be added to the classpath though.</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ * @see ProfilingClassTransformer#agentmain(String, java.lang.instrument.Instrumentation)
+ */
+public class AgentLoader
+{
+    public static void main(String[] args) throws Exception
+    {
+        if ( args.length < 1 || args.length > 2 )
+        {
+            System.out.println("\n\nUsage: <PID> [<agent options>]\n\n"+
+                    "<PID> => process ID of the JVM to attach to\n"+
+                    "<agent options> => agent options, see "+ProfilingClassTransformer.class.getName()+"\n\n"+
+                    "Examples:\n\n"+
+                    "12345 packages=com.mycompany.Foo,com.mycompany.Bar => instrument classes\n"+
+                    "12345 action=restore => remove instrumentation from all classes\n\n");
+            return;
+        }
+        final String agentOptions = args.length > 1 ? args[1] : null;
+        attach( args[0] , agentJar() , agentOptions );
+    }
+
+    /**
+     * Attaches an agent JAR to a running JVM.
+     *
+     * @param pid ID of process to attach to
+     * @param agentJar path to agent JAR
+     * @param agentOptions agent options, may be <code>null</code>
+     * @throws Exception
+     */
+    public static void attach(String pid,File agentJar,String agentOptions) throws Exception
+    {
+        final Class<?> vmClass;
+        try {
+            vmClass = Class.forName("com.sun.tools.attach.VirtualMachine");
+        }
+        catch(ClassNotFoundException e) {
+            throw new RuntimeException("Attach API not available, make sure to run this with a JDK (and tools.jar on the classpath for JDK 8 and older)",e);
+        }
+
+        final Object vm = vmClass.getMethod("attach" , String.class ).invoke( null , pid );
+        try {
+            final Method loadAgent = vmClass.getMethod("loadAgent" , String.class , String.class );
+            loadAgent.invoke( vm , agentJar.getAbsolutePath() , agentOptions );
+        }
+        finally {
+            vmClass.getMethod("detach").invoke( vm );
+        }
+    }
+
+    private static File agentJar() throws Exception
+    {
+        final File result = new File( AgentLoader.class.getProtectionDomain().getCodeSource().getLocation().toURI() );
+        if ( ! result.isFile() ) {
+            throw new IllegalStateException("Agent needs to be run from a JAR file but was loaded from "+result.getAbsolutePath());
+        }
+        return result;
+    }
+}
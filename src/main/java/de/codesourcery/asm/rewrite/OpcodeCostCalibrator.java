@@ -0,0 +1,337 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.asm.rewrite;
+
+import java.io.File;
+
+import org.objectweb.asm.Opcodes;
+
+/**
+ * Micro-benchmark that derives an {@link OpcodeCostModel} for the current JVM and hardware.
+ *
+ * <p>Usage: <code>java -cp controlflow.jar de.codesourcery.asm.rewrite.OpcodeCostCalibrator &lt;output file&gt;</code></p>
+ *
+ * <p>Each kernel is a copy of a baseline loop with one added statement that executes opcodes from a
+ * single group (field access , array access , invocations , allocation , ...). The time a kernel takes in addition to the baseline
+ * (minus the cost of the other simple instructions the statement needs) is divided by the time the baseline takes per instruction , so
+ * costs are relative to a simple local variable / arithmetic instruction (cost 1).</p>
+ *
+ * <p>Kernels run JIT-compiled , so the results reflect steady-state costs including effects like inlining and
+ * instruction-level parallelism. They are rough estimates , calibrate on the machine you are profiling on and
+ * expect some variation between runs.</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ * @see OpcodeCostModel
+ */
+public class OpcodeCostCalibrator implements Opcodes
+{
+    private static final int ITERATIONS = 10000000;
+    private static final int RUNS = 7;
+
+    // number of instructions executed per iteration of the baseline loop:
+    // ILOAD ILOAD IF_ICMPGE LLOAD LDC LMUL ILOAD I2L LADD LSTORE IINC GOTO
+    private static final int BASELINE_INSTRUCTIONS = 12;
+
+    // fields accessed by kernels are not private to avoid synthetic accessor methods
+    protected static volatile Object sink;
+
+    protected final Object lock = new Object();
+    protected final int[] array = new int[8];
+    protected final IOperation[] operations = { new Increment() , new Decrement() , new Negate() , new Identity() };
+    protected final Object[] objects = { "a" , Integer.valueOf(1) , "b" , Long.valueOf(2) };
+    protected final RuntimeException exception = new RuntimeException("calibration");
+    protected int field;
+
+    protected interface IOperation {
+        public int apply(int value);
+    }
+
+    protected static final class Increment implements IOperation {
+        @Override
+        public int apply(int value) { return value+1; }
+    }
+
+    protected static final class Decrement implements IOperation {
+        @Override
+        public int apply(int value) { return value-1; }
+    }
+
+    protected static final class Negate implements IOperation {
+        @Override
+        public int apply(int value) { return -value; }
+    }
+
+    protected static final class Identity implements IOperation {
+        @Override
+        public int apply(int value) { return value; }
+    }
+
+    /**
+     * A group of opcodes that get assigned the same cost.
+     *
+     * @author tobias.gierke@code-sourcery.de
+     */
+    protected abstract class Kernel
+    {
+        public final String name;
+        public final int[] opcodes;
+        // number of opcodes from the group executed per iteration
+        public final int groupInstructions;
+        // number of other (simple) instructions the kernel executes per iteration in addition to the baseline
+        public final int otherInstructions;
+
+        protected Kernel(String name,int groupInstructions,int otherInstructions,int... opcodes)
+        {
+            this.name = name;
+            this.opcodes = opcodes;
+            this.groupInstructions = groupInstructions;
+            this.otherInstructions = otherInstructions;
+        }
+
+        public abstract long run(int iterations);
+    }
+
+    private final Kernel baseline = new Kernel("baseline",0,0)
+    {
+        @Override
+        public long run(int n)
+        {
+            long x = 0;
+            for ( int i = 0 ; i < n ; i++ ) {
+                x = x * 31 + i;
+            }
+            return x;
+        }
+    };
+
+    private final Kernel[] kernels =
+    {
+        // ALOAD_0 GETFIELD (outer instance) DUP GETFIELD ILOAD IADD PUTFIELD
+        new Kernel("field access",3,4,GETFIELD,PUTFIELD,GETSTATIC,PUTSTATIC)
+        {
+            @Override
+            public long run(int n)
+            {
+                long x = 0;
+                for ( int i = 0 ; i < n ; i++ ) {
+                    x = x * 31 + i;
+                    field += i;
+                }
+                return x;
+            }
+        },
+        // ALOAD ILOAD BIPUSH IAND DUP2 IALOAD ILOAD IADD IASTORE
+        new Kernel("array access",2,7,IALOAD,LALOAD,FALOAD,DALOAD,AALOAD,BALOAD,CALOAD,SALOAD,IASTORE,LASTORE,FASTORE,DASTORE,AASTORE,BASTORE,CASTORE,SASTORE,ARRAYLENGTH)
+        {
+            @Override
+            public long run(int n)
+            {
+                final int[] a = array;
+                long x = 0;
+                for ( int i = 0 ; i < n ; i++ ) {
+                    x = x * 31 + i;
+                    a[ i & 7 ] += i;
+                }
+                return x;
+            }
+        },
+        // ILOAD ILOAD IADD INVOKESTATIC ISTORE + callee ILOAD IRETURN
+        new Kernel("invocation",2,5,INVOKESTATIC,INVOKEVIRTUAL,INVOKESPECIAL,IRETURN,LRETURN,FRETURN,DRETURN,ARETURN,RETURN)
+        {
+            @Override
+            public long run(int n)
+            {
+                long x = 0;
+                int y = 0;
+                for ( int i = 0 ; i < n ; i++ ) {
+                    x = x * 31 + i;
+                    y = identity( y + i );
+                }
+                return x + y;
+            }
+        },
+        // ALOAD ILOAD ICONST_3 IAND AALOAD ILOAD INVOKEINTERFACE ISTORE + callee (~3)
+        new Kernel("interface invocation",1,10,INVOKEINTERFACE,INVOKEDYNAMIC)
+        {
+            @Override
+            public long run(int n)
+            {
+                final IOperation[] ops = operations;
+                long x = 0;
+                int y = 0;
+                for ( int i = 0 ; i < n ; i++ ) {
+                    x = x * 31 + i;
+                    y = ops[ i & 3 ].apply( y );
+                }
+                return x + y;
+            }
+        },
+        // NEW DUP INVOKESPECIAL PUTSTATIC
+        new Kernel("allocation",1,3,NEW,NEWARRAY,ANEWARRAY,MULTIANEWARRAY)
+        {
+            @Override
+            public long run(int n)
+            {
+                long x = 0;
+                for ( int i = 0 ; i < n ; i++ ) {
+                    x = x * 31 + i;
+                    sink = new Object();
+                }
+                return x;
+            }
+        },
+        // ALOAD DUP ASTORE MONITORENTER IINC ALOAD MONITOREXIT GOTO
+        new Kernel("monitor",2,6,MONITORENTER,MONITOREXIT)
+        {
+            @Override
+            public long run(int n)
+            {
+                final Object l = lock;
+                long x = 0;
+                int y = 0;
+                for ( int i = 0 ; i < n ; i++ ) {
+                    x = x * 31 + i;
+                    synchronized( l ) {
+                        y++;
+                    }
+                }
+                return x + y;
+            }
+        },
+        // ALOAD ILOAD ICONST_3 IAND AALOAD INSTANCEOF IFEQ IINC
+        new Kernel("type check",1,7,INSTANCEOF,CHECKCAST)
+        {
+            @Override
+            public long run(int n)
+            {
+                final Object[] o = objects;
+                long x = 0;
+                int y = 0;
+                for ( int i = 0 ; i < n ; i++ ) {
+                    x = x * 31 + i;
+                    if ( o[ i & 3 ] instanceof String ) {
+                        y++;
+                    }
+                }
+                return x + y;
+            }
+        },
+        // ILOAD ILOAD ILOAD ICONST_1 IOR IDIV IADD ISTORE
+        new Kernel("division",1,7,IDIV,IREM,LDIV,LREM,FDIV,FREM,DDIV,DREM)
+        {
+            @Override
+            public long run(int n)
+            {
+                long x = 0;
+                int y = 0;
+                for ( int i = 0 ; i < n ; i++ ) {
+                    x = x * 31 + i;
+                    y += i / ( y | 1 );
+                }
+                return x + y;
+            }
+        },
+        // ALOAD_0 GETFIELD (outer instance) GETFIELD ATHROW ASTORE IINC GOTO , note that the JIT may turn a 
+        // local throw/catch into a plain jump
+        new Kernel("exception",1,6,ATHROW)
+        {
+            @Override
+            public long run(int n)
+            {
+                long x = 0;
+                int y = 0;
+                for ( int i = 0 ; i < n ; i++ ) {
+                    x = x * 31 + i;
+                    try {
+                        throw exception;
+                    } catch(RuntimeException e) {
+                        y++;
+                    }
+                }
+                return x + y;
+            }
+        }
+    };
+
+    protected static int identity(int value) {
+        return value;
+    }
+
+    // returns best (lowest) time per iteration in nanoseconds
+    private static double measure(Kernel kernel,int iterations)
+    {
+        double best = Double.MAX_VALUE;
+        for ( int run = 0 ; run < RUNS ; run++ )
+        {
+            final long start = System.nanoTime();
+            sink = Long.valueOf( kernel.run( iterations ) );
+            final long elapsed = System.nanoTime() - start;
+            best = Math.min( best , elapsed / (double) iterations );
+        }
+        return best;
+    }
+
+    /**
+     * Runs all kernels and derives a cost model.
+     *
+     * @param verbose whether to print per-kernel results
+     * @return
+     */
+    public OpcodeCostModel calibrate(boolean verbose)
+    {
+        // warm-up , make sure everything is JIT-compiled
+        measure( baseline , ITERATIONS );
+        for ( Kernel k : kernels ) {
+            measure( k , ITERATIONS / 10 );
+        }
+
+        final double baselineTime = measure( baseline , ITERATIONS );
+        final double timePerInstruction = baselineTime / BASELINE_INSTRUCTIONS;
+        if ( verbose ) {
+            System.out.println( String.format("%-25s %8.3f ns/iteration , %8.3f ns/instruction" , baseline.name , baselineTime , timePerInstruction ) );
+        }
+
+        OpcodeCostModel result = OpcodeCostModel.UNIFORM;
+        for ( Kernel k : kernels )
+        {
+            final double time = measure( k , ITERATIONS );
+            final double extraInstructions = ( time - baselineTime ) / timePerInstruction - k.otherInstructions;
+            final int cost = (int) Math.max( 1 , Math.round( extraInstructions / k.groupInstructions ) );
+            if ( verbose ) {
+                System.out.println( String.format("%-25s %8.3f ns/iteration => cost %d" , k.name , time , cost ) );
+            }
+            for ( int opcode : k.opcodes ) {
+                result = result.withCost( opcode , cost );
+            }
+        }
+        return result;
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        if ( args.length != 1 )
+        {
+            System.out.println("\n\nUsage: <output file>\n\n"+
+                    "Writes a cost model for the current JVM and hardware that can be used with the 'costModel' agent option.\n\n");
+            return;
+        }
+        final OpcodeCostModel model = new OpcodeCostCalibrator().calibrate( true );
+        final File file = new File( args[0] );
+        model.store( file , "Calibrated on "+System.getProperty("java.vm.name")+" "+System.getProperty("java.version")+
+                " ("+System.getProperty("os.arch")+" , "+Runtime.getRuntime().availableProcessors()+" CPUs)" );
+        System.out.println("Cost model written to "+file.getAbsolutePath());
+    }
+}
@@ -0,0 +1,254 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.asm.rewrite;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Properties;
+
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.InsnList;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.util.Printer;
+
+import de.codesourcery.asm.controlflow.IBlock;
+
+/**
+ * Assigns a (relative) cost to each byte-code opcode.
+ *
+ * <p>The {@link ProfilingRewriter} uses the cost model to compute the weight of each basic block , so with a non-uniform
+ * cost model all instruction counts gathered by the {@link de.codesourcery.asm.profiling.StatisticsManager} are actually weighted
+ * cost units. The default model ({@link #UNIFORM}) assigns a cost of 1 to each opcode.</p>
+ *
+ * <p>Cost models are stored as properties files , keys are opcode mnemonics (as printed by <code>javap</code>, case does not matter) and
+ * values are non-negative integer costs. Opcodes without an entry get the cost specified by the key <code>default</code> (or 1 if missing):</p>
+ *
+ * <pre>
+ * default=1
+ * INVOKEINTERFACE=12
+ * NEW=20
+ * </pre>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ * @see OpcodeCostCalibrator
+ */
+public final class OpcodeCostModel
+{
+    /**
+     * Key of the cost used for opcodes without an explicit entry.
+     */
+    public static final String DEFAULT_KEY = "default";
+
+    /**
+     * Cost model that assigns a cost of 1 to each opcode.
+     */
+    public static final OpcodeCostModel UNIFORM = new OpcodeCostModel( 1 );
+
+    private final int defaultCost;
+    private final int[] costs = new int[ Printer.OPCODES.length ];
+
+    public OpcodeCostModel(int defaultCost)
+    {
+        if ( defaultCost < 0 ) {
+            throw new IllegalArgumentException("Cost must be >= 0");
+        }
+        this.defaultCost = defaultCost;
+        Arrays.fill( costs , defaultCost );
+    }
+
+    private OpcodeCostModel(int defaultCost,int[] costs)
+    {
+        this.defaultCost = defaultCost;
+        System.arraycopy( costs , 0 , this.costs , 0 , costs.length );
+    }
+
+    /**
+     * Returns a copy of this model with the cost of an opcode changed.
+     *
+     * @param opcode
+     * @param cost
+     * @return
+     */
+    public OpcodeCostModel withCost(int opcode,int cost)
+    {
+        if ( cost < 0 ) {
+            throw new IllegalArgumentException("Cost must be >= 0");
+        }
+        final OpcodeCostModel result = new OpcodeCostModel( defaultCost , costs );
+        result.costs[ opcode ] = cost;
+        return result;
+    }
+
+    /**
+     * Loads a cost model from a properties file.
+     *
+     * @param file
+     * @return
+     * @throws IOException
+     */
+    public static OpcodeCostModel load(File file) throws IOException
+    {
+        final InputStream in = new FileInputStream( file );
+        try {
+            return load( in );
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Loads a cost model in properties file format.
+     *
+     * @param in
+     * @return
+     * @throws IOException if reading failed or the input contains unknown opcodes / invalid costs
+     */
+    public static OpcodeCostModel load(InputStream in) throws IOException
+    {
+        final Properties props = new Properties();
+        props.load( in );
+
+        OpcodeCostModel result = new OpcodeCostModel( parseCost( props , DEFAULT_KEY , 1 ) );
+        for ( String key : props.stringPropertyNames() )
+        {
+            if ( key.equalsIgnoreCase( DEFAULT_KEY ) ) {
+                continue;
+            }
+            final int opcode = toOpcode( key );
+            if ( opcode < 0 ) {
+                throw new IOException("Unknown opcode '"+key+"' in cost model");
+            }
+            result = result.withCost( opcode , parseCost( props , key , 1 ) );
+        }
+        return result;
+    }
+
+    private static int parseCost(Properties props,String key,int defaultValue) throws IOException
+    {
+        final String value = props.getProperty( key );
+        if ( value == null ) {
+            return defaultValue;
+        }
+        try
+        {
+            final int result = Integer.parseInt( value.trim() );
+            if ( result < 0 ) {
+                throw new IOException("Negative cost for '"+key+"' in cost model");
+            }
+            return result;
+        }
+        catch(NumberFormatException e) {
+            throw new IOException("Invalid cost '"+value+"' for '"+key+"' in cost model");
+        }
+    }
+
+    /**
+     * Returns the opcode for a mnemonic.
+     *
+     * @param mnemonic
+     * @return opcode or -1
+     */
+    public static int toOpcode(String mnemonic)
+    {
+        for ( int i = 0 ; i < Printer.OPCODES.length ; i++ )
+        {
+            if ( Printer.OPCODES[i].equalsIgnoreCase( mnemonic.trim() ) ) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Writes this model in properties file format.
+     *
+     * @param file
+     * @param comment comment to write at the top of the file (may be <code>null</code>)
+     * @throws IOException
+     */
+    public void store(File file,String comment) throws IOException
+    {
+        final Properties props = new Properties();
+        props.setProperty( DEFAULT_KEY , Integer.toString( defaultCost ) );
+        for ( int opcode = 0 ; opcode < costs.length ; opcode++ )
+        {
+            if ( costs[opcode] != defaultCost && Printer.OPCODES[opcode].length() > 0 ) {
+                props.setProperty( Printer.OPCODES[opcode] , Integer.toString( costs[opcode] ) );
+            }
+        }
+        final OutputStream out = new FileOutputStream( file );
+        try {
+            props.store( out , comment );
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Returns the cost of an opcode.
+     *
+     * @param opcode
+     * @return
+     */
+    public int getCost(int opcode)
+    {
+        return opcode >= 0 && opcode < costs.length ? costs[opcode] : 0;
+    }
+
+    /**
+     * Returns the summed cost of all instructions in a basic block.
+     *
+     * <p>Pseudo-instructions (labels , line numbers , frames) have no cost.</p>
+     *
+     * @param block
+     * @param method
+     * @return
+     */
+    public int getBlockCost(IBlock block,MethodNode method)
+    {
+        final InsnList instructions = method.instructions;
+        int result = 0;
+        int index = 0;
+        for ( AbstractInsnNode insn = instructions.getFirst() ; insn != null ; insn = insn.getNext() , index++ )
+        {
+            if ( insn.getOpcode() >= 0 && block.containsInstructionNum( index ) ) {
+                result += getCost( insn.getOpcode() );
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns whether this model assigns a cost of 1 to all opcodes.
+     *
+     * @return
+     */
+    public boolean isUniform()
+    {
+        for ( int cost : costs )
+        {
+            if ( cost != 1 ) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
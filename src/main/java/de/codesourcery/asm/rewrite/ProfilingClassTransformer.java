@@ -18,17 +18,40 @@ package de.codesourcery.asm.rewrite;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.PrintStream;
 import java.lang.instrument.ClassFileTransformer;
 import java.lang.instrument.IllegalClassFormatException;
 import java.lang.instrument.Instrumentation;
 import java.security.ProtectionDomain;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import org.apache.commons.lang.ArrayUtils;
 import org.apache.commons.lang.StringUtils;
 import org.objectweb.asm.ClassReader;
 
+import de.codesourcery.asm.controlflow.BlockProfile;
+import de.codesourcery.asm.profiling.AllocationProfile;
+import de.codesourcery.asm.profiling.AnnotatedSourceReport;
+import de.codesourcery.asm.profiling.ExceptionProfile;
+import de.codesourcery.asm.profiling.FieldAccessProfile;
+import de.codesourcery.asm.profiling.LineProfile;
+import de.codesourcery.asm.profiling.LoopProfile;
+import de.codesourcery.asm.profiling.MethodRegistry;
+import de.codesourcery.asm.profiling.MonitorProfile;
+import de.codesourcery.asm.profiling.OpcodeHistogram;
+import de.codesourcery.asm.profiling.PathProfile;
+import de.codesourcery.asm.profiling.PerfDataFile;
+import de.codesourcery.asm.profiling.PerfDataReader;
+import de.codesourcery.asm.profiling.ReceiverTypeProfile;
+import de.codesourcery.asm.profiling.StatisticsManager;
+import de.codesourcery.asm.profiling.VirtualThreadStatistics;
 import de.codesourcery.asm.util.IClassReaderProvider;
 import de.codesourcery.asm.util.IJoinpointFilter;
 
@@ -45,6 +68,12 @@ import de.codesourcery.asm.util.IJoinpointFilter;
  * java "-javaagent:target/profilingagent.jar=packages=TestClass;debug=true" ...
  * </pre>
  * 
+ * <p>The agent may also be attached to an already running JVM (see {@link AgentLoader}), in this case
+ * already loaded classes are re-transformed immediately. Attaching the agent again with the <code>action=restore</code>
+ * option restores the original byte-code of all classes matching the <code>packages</code> option (or all
+ * instrumented classes if this option is missing). The same can be achieved programmatically using 
+ * {@link #instrument(String...)} / {@link #restore(String...)}.</p>
+ * 
  * <p>
  * The agent supports the following agent options of which only <code>packages</code> is mandatory. Multiple
  * options need to be separated by semicolons (packages=a;debug=true;...)</p>
@@ -57,6 +86,12 @@ import de.codesourcery.asm.util.IJoinpointFilter;
  *     <td>Example</td>
  *   </tr> 
  *   <tr>
+ *     <td>action</td>
+ *     <td>no</td>
+ *     <td>only used when attaching to a running JVM, either 'instrument' (default) or 'restore'</td>
+ *     <td>action=restore</td>
+ *   </tr>
+ *   <tr>
  *     <td>packages</td>
  *     <td>YES</td>
  *     <td>comma-separated list of patterns a fully-qualified classname needs to match in order to be instrumented</td>
@@ -74,6 +109,194 @@ import de.codesourcery.asm.util.IJoinpointFilter;
  *     <td>name of directory where instrumented classes should be written to</td>
  *     <td>debugDir=/tmp</td>
  *   </tr>  
+ *   <tr>
+ *     <td>enabled</td>
+ *     <td>no</td>
+ *     <td>whether probes are enabled right from the start (default: true), see {@link StatisticsManager#setEnabled(boolean)}</td>
+ *     <td>enabled=false</td>
+ *   </tr>  
+ *   <tr>
+ *     <td>switchFile</td>
+ *     <td>no</td>
+ *     <td>name of a file that is polled once a second, probes are enabled while this file exists and disabled while it doesn't</td>
+ *     <td>switchFile=/tmp/profiling.on</td>
+ *   </tr>  
+ *   <tr>
+ *     <td>adaptive</td>
+ *     <td>no</td>
+ *     <td>whether to automatically switch hot methods to cheaper (entry-only) counting to keep the overhead below <code>overheadTarget</code>, see {@link AdaptiveController}</td>
+ *     <td>adaptive=true</td>
+ *   </tr>  
+ *   <tr>
+ *     <td>overheadTarget</td>
+ *     <td>no</td>
+ *     <td>estimated overhead (in percent of the available CPU time) the adaptive controller tries to stay below (default: 5)</td>
+ *     <td>overheadTarget=2.5</td>
+ *   </tr>  
+ *   <tr>
+ *     <td>methodBudget</td>
+ *     <td>no</td>
+ *     <td>estimated overhead (in percent of the available CPU time) a single method may cause before it is switched to entry-only counting (default: 1)</td>
+ *     <td>methodBudget=0.5</td>
+ *   </tr>  
+ *   <tr>
+ *     <td>probeCost</td>
+ *     <td>no</td>
+ *     <td>estimated cost of executing a single probe in nanoseconds (default: 2)</td>
+ *     <td>probeCost=5</td>
+ *   </tr>  
+ *   <tr>
+ *     <td>minInvocations</td>
+ *     <td>no</td>
+ *     <td>number of invocations a method needs to have been measured with exact counting before it may be switched to entry-only counting (default: 1000)</td>
+ *     <td>minInvocations=10000</td>
+ *   </tr>  
+ *   <tr>
+ *     <td>adaptiveInterval</td>
+ *     <td>no</td>
+ *     <td>how often (in milliseconds) the adaptive controller checks probe rates (default: 1000)</td>
+ *     <td>adaptiveInterval=500</td>
+ *   </tr>  
+ *   <tr>
+ *     <td>sampling</td>
+ *     <td>no</td>
+ *     <td>whether to instrument methods for burst sampling instead of counting every execution, see {@link MethodRegistry.Mode#SAMPLED}</td>
+ *     <td>sampling=true</td>
+ *   </tr>  
+ *   <tr>
+ *     <td>burstLength</td>
+ *     <td>no</td>
+ *     <td>number of consecutive checks (method entries or backward jumps) that run instrumented code when sampling (default: 10)</td>
+ *     <td>burstLength=20</td>
+ *   </tr>  
+ *   <tr>
+ *     <td>sampleInterval</td>
+ *     <td>no</td>
+ *     <td>number of checks that run uninstrumented code between two bursts when sampling (default: 990)</td>
+ *     <td>sampleInterval=1980</td>
+ *   </tr>  
+ *   <tr>
+ *     <td>perfFile</td>
+ *     <td>no</td>
+ *     <td>name of a file counters get exported to (memory-mapped) , see {@link PerfDataFile} and {@link PerfDataReader}</td>
+ *     <td>perfFile=/tmp/profiling.perf</td>
+ *   </tr>  
+ *   <tr>
+ *     <td>perfThreads</td>
+ *     <td>no</td>
+ *     <td>maximum number of threads to export counters for (default: 256)</td>
+ *     <td>perfThreads=1024</td>
+ *   </tr>  
+ *   <tr>
+ *     <td>perfMethods</td>
+ *     <td>no</td>
+ *     <td>maximum number of methods to export counters for (default: 4096)</td>
+ *     <td>perfMethods=65536</td>
+ *   </tr>  
+ *   <tr>
+ *     <td>perfInterval</td>
+ *     <td>no</td>
+ *     <td>how often (in milliseconds) to export method counters (default: 100)</td>
+ *     <td>perfInterval=10</td>
+ *   </tr>  
+ *   <tr>
+ *     <td>virtualThreads</td>
+ *     <td>no</td>
+ *     <td>whether to use lightweight, striped accounting for virtual threads (default: true), see {@link VirtualThreadStatistics}</td>
+ *     <td>virtualThreads=false</td>
+ *   </tr>  
+ *   <tr>
+ *     <td>callStacks</td>
+ *     <td>no</td>
+ *     <td>track calling contexts on a per-thread shadow stack and write them in collapsed stack format (for flame graphs) 
+ *     to the given file when the JVM exits, see {@link StatisticsManager#setCallStackTracking(boolean)}. Not supported together with 'sampling'.</td>
+ *     <td>callStacks=/tmp/profile.collapsed</td>
+ *   </tr>  
+ *   <tr>
+ *     <td>costModel</td>
+ *     <td>no</td>
+ *     <td>properties file with per-opcode costs used to weight instruction counts (default: each opcode counts as 1), 
+ *     see {@link OpcodeCostModel} and {@link OpcodeCostCalibrator}</td>
+ *     <td>costModel=/tmp/opcode.costs</td>
+ *   </tr>  
+ *   <tr>
+ *     <td>opcodeHistogram</td>
+ *     <td>no</td>
+ *     <td>count executed instructions per opcode class and thread and write the histogram to the given file when the JVM exits, 
+ *     see {@link StatisticsManager#setOpcodeHistogram(boolean)} and {@link OpcodeHistogram}</td>
+ *     <td>opcodeHistogram=/tmp/opcodes.txt</td>
+ *   </tr>  
+ *   <tr>
+ *     <td>allocations</td>
+ *     <td>no</td>
+ *     <td>count allocated objects and arrays per allocation site and write a report to the given file when the JVM exits, 
+ *     see {@link StatisticsManager#setAllocationProfiling(boolean)} and {@link AllocationProfile}</td>
+ *     <td>allocations=/tmp/allocations.txt</td>
+ *   </tr>  
+ *   <tr>
+ *     <td>receiverTypes</td>
+ *     <td>no</td>
+ *     <td>record receiver classes at <code>INVOKEVIRTUAL</code>/<code>INVOKEINTERFACE</code> call sites and write a report of all polymorphic 
+ *     sites to the given file when the JVM exits, see {@link StatisticsManager#setReceiverTypeProfiling(boolean)} and {@link ReceiverTypeProfile}</td>
+ *     <td>receiverTypes=/tmp/receivers.txt</td>
+ *   </tr>  
+ *   <tr>
+ *     <td>monitors</td>
+ *     <td>no</td>
+ *     <td>time monitor acquisitions (<code>MONITORENTER</code> instructions) and count calls to synchronized methods , write a report
+ *     to the given file when the JVM exits, see {@link StatisticsManager#setMonitorProfiling(boolean)} and {@link MonitorProfile}</td>
+ *     <td>monitors=/tmp/monitors.txt</td>
+ *   </tr>  
+ *   <tr>
+ *     <td>contentionThreshold</td>
+ *     <td>no</td>
+ *     <td>minimum time (in nanoseconds) a monitor acquisition needs to take to be reported as contended (default: 1000), 
+ *     see {@link StatisticsManager#setContentionThreshold(long)}</td>
+ *     <td>contentionThreshold=5000</td>
+ *   </tr>  
+ *   <tr>
+ *     <td>fieldAccesses</td>
+ *     <td>no</td>
+ *     <td>count field reads/writes and accesses to pairs of fields within the same basic block , write a report including
+ *     field layout suggestions to the given file when the JVM exits, see {@link StatisticsManager#setFieldAccessProfiling(boolean)} 
+ *     and {@link FieldAccessProfile}</td>
+ *     <td>fieldAccesses=/tmp/fields.txt</td>
+ *   </tr>  
+ *   <tr>
+ *     <td>exceptions</td>
+ *     <td>no</td>
+ *     <td>count exceptions per <code>ATHROW</code> instruction / exception handler and exception type , write a report to the 
+ *     given file when the JVM exits, see {@link StatisticsManager#setExceptionProfiling(boolean)} and {@link ExceptionProfile}</td>
+ *     <td>exceptions=/tmp/exceptions.txt</td>
+ *   </tr>  
+ *   <tr>
+ *     <td>loops</td>
+ *     <td>no</td>
+ *     <td>record a trip count histogram for each natural loop , write a report to the given file when the JVM exits, 
+ *     see {@link StatisticsManager#setLoopProfiling(boolean)} and {@link LoopProfile}</td>
+ *     <td>loops=/tmp/loops.txt</td>
+ *   </tr>  
+ *   <tr>
+ *     <td>paths</td>
+ *     <td>no</td>
+ *     <td>count executions of acyclic paths (Ball-Larus path profiling) , write the most frequently executed paths to the given file 
+ *     when the JVM exits, see {@link StatisticsManager#setPathProfiling(boolean)} and {@link PathProfile}</td>
+ *     <td>paths=/tmp/paths.txt</td>
+ *   </tr>  
+ *   <tr>
+ *     <td>lines</td>
+ *     <td>no</td>
+ *     <td>count instructions per source line , write the counts to the given file when the JVM exits (render them with 
+ *     {@link AnnotatedSourceReport}) , see {@link StatisticsManager#setLineProfiling(boolean)} and {@link LineProfile}</td>
+ *     <td>lines=/tmp/lines.txt</td>
+ *   </tr>  
+ *   <tr>
+ *     <td>blocks</td>
+ *     <td>no</td>
+ *     <td>count block and edge executions (derived from path profiling) , write the counts to the given file when the JVM exits 
+ *     (render them with <code>ControlFlowGrapher -profile</code>) , see {@link PathProfile#getBlockProfile()} and {@link BlockProfile}</td>
+ *     <td>blocks=/tmp/blocks.txt</td>
+ *   </tr>  
  * </table>
  * </p>
  * 
@@ -85,7 +308,55 @@ public class ProfilingClassTransformer
     private static final String OPTION_DEBUG = "debug";
     private static final String OPTION_DEBUG_WRITE_CLASSFILES = "debugDir";
     private static final String OPTION_PACKAGES = "packages";
+    private static final String OPTION_ENABLED = "enabled";
+    private static final String OPTION_SWITCH_FILE = "switchFile";
+    private static final String OPTION_ACTION = "action";
+    private static final String OPTION_ADAPTIVE = "adaptive";
+    private static final String OPTION_OVERHEAD_TARGET = "overheadTarget";
+    private static final String OPTION_METHOD_BUDGET = "methodBudget";
+    private static final String OPTION_PROBE_COST = "probeCost";
+    private static final String OPTION_MIN_INVOCATIONS = "minInvocations";
+    private static final String OPTION_ADAPTIVE_INTERVAL = "adaptiveInterval";
+    private static final String OPTION_SAMPLING = "sampling";
+    private static final String OPTION_BURST_LENGTH = "burstLength";
+    private static final String OPTION_SAMPLE_INTERVAL = "sampleInterval";
+    private static final String OPTION_PERF_FILE = "perfFile";
+    private static final String OPTION_PERF_THREADS = "perfThreads";
+    private static final String OPTION_PERF_METHODS = "perfMethods";
+    private static final String OPTION_PERF_INTERVAL = "perfInterval";
+    private static final String OPTION_VIRTUAL_THREADS = "virtualThreads";
+    private static final String OPTION_CALL_STACKS = "callStacks";
+    private static final String OPTION_COST_MODEL = "costModel";
+    private static final String OPTION_OPCODE_HISTOGRAM = "opcodeHistogram";
+    private static final String OPTION_ALLOCATIONS = "allocations";
+    private static final String OPTION_RECEIVER_TYPES = "receiverTypes";
+    private static final String OPTION_MONITORS = "monitors";
+    private static final String OPTION_CONTENTION_THRESHOLD = "contentionThreshold";
+    private static final String OPTION_FIELD_ACCESSES = "fieldAccesses";
+    private static final String OPTION_EXCEPTIONS = "exceptions";
+    private static final String OPTION_LOOPS = "loops";
+    private static final String OPTION_PATHS = "paths";
+    private static final String OPTION_LINES = "lines";
+    private static final String OPTION_BLOCKS = "blocks";
+
+    private static final String ACTION_INSTRUMENT = "instrument";
+    private static final String ACTION_RESTORE = "restore";
+
+    private static final long SWITCH_FILE_POLL_INTERVAL_MILLIS = 1000;
+
+    private static final int MAX_REPORTED_PATHS = 1000;
+
+    // state shared by all invocations of premain()/agentmain() , guarded by ProfilingClassTransformer.class
+    private static Instrumentation instrumentation;
+    private static MyTransformer transformer;
+    private static final PatternFilter filter = new PatternFilter();
 
+    /**
+     * Entry point when the agent is loaded at JVM startup (<code>-javaagent:...</code>).
+     * 
+     * @param agentArgs
+     * @param inst
+     */
     public static void premain(String agentArgs, Instrumentation inst) 
     {
         // parse options
@@ -95,7 +366,49 @@ public class ProfilingClassTransformer
         {
             throw new RuntimeException("Agent "+ProfilingClassTransformer.class.getName()+" requires the 'packages=....' option");
         }
+        install( options , inst );
+    }
+
+    /**
+     * Entry point when the agent is attached to a running JVM.
+     * 
+     * <p>The agent may be attached multiple times, the first invocation installs the class transformer and
+     * all invocations (including the first one) then perform the requested <code>action</code> on the classes selected by
+     * the <code>packages</code> option.</p>
+     * 
+     * @param agentArgs
+     * @param inst
+     * @see AgentLoader
+     */
+    public static void agentmain(String agentArgs, Instrumentation inst) 
+    {
+        final Map<String, String> options = parseArgs( agentArgs);
+
+        final String action = options.containsKey( OPTION_ACTION ) ? options.get( OPTION_ACTION ) : ACTION_INSTRUMENT;
+        final String[] packages = StringUtils.isBlank( options.get(OPTION_PACKAGES ) ) ? new String[0] : options.get(OPTION_PACKAGES ).split(",");
+
+        switch( action ) 
+        {
+            case ACTION_INSTRUMENT:
+                if ( ArrayUtils.isEmpty( packages ) ) {
+                    throw new RuntimeException("Agent "+ProfilingClassTransformer.class.getName()+" requires the 'packages=....' option");
+                }
+                install( options , inst );
+                break;
+            case ACTION_RESTORE:
+                if ( ArrayUtils.isEmpty( packages ) ) {
+                    restoreAll();
+                } else {
+                    restore( packages );
+                }
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown agent action '"+action+"', valid actions are '"+ACTION_INSTRUMENT+"' and '"+ACTION_RESTORE+"'");
+        }
+    }
 
+    private static synchronized void install(Map<String,String> options,Instrumentation inst) 
+    {
         final boolean debug = options.containsKey(OPTION_DEBUG);
         
         final String[] packages = options.get(OPTION_PACKAGES ).split(",");
@@ -109,28 +422,482 @@ public class ProfilingClassTransformer
             System.out.println("ProfilingClassTransformer activated (packages: "+StringUtils.join(packages," , " )+")");
         }
 
-        final IJoinpointFilter filter = new IJoinpointFilter() {
-            
-            @Override
-            public boolean matches(String clazz, String methodName)
+        if ( options.containsKey( OPTION_ENABLED ) ) {
+            StatisticsManager.setEnabled( Boolean.parseBoolean( options.get( OPTION_ENABLED ) ) );
+        }
+
+        if ( options.containsKey( OPTION_VIRTUAL_THREADS ) ) {
+            StatisticsManager.setVirtualThreadMode( Boolean.parseBoolean( options.get( OPTION_VIRTUAL_THREADS ) ) );
+        }
+
+        if ( transformer == null ) 
+        {
+            // call stack tracking and sampling parameters are baked into instrumented code and thus need to be set before the first class gets transformed
+            if ( options.containsKey( OPTION_CALL_STACKS ) ) 
+            {
+                final File file = new File( options.get( OPTION_CALL_STACKS ) );
+                StatisticsManager.setCallStackTracking( true );
+                Runtime.getRuntime().addShutdownHook( new Thread("profiling-call-stack-writer") 
+                {
+                    @Override
+                    public void run()
+                    {
+                        try {
+                            StatisticsManager.writeCollapsedStacks( file );
+                        } 
+                        catch (IOException e) {
+                            System.err.println("Failed to write call stacks to "+file.getAbsolutePath()+" ("+e.getMessage()+")");
+                        }
+                    }
+                });
+                if ( Boolean.parseBoolean( options.get( OPTION_SAMPLING ) ) ) {
+                    System.err.println("WARNING: Sampling is not supported when tracking call stacks, ignoring option '"+OPTION_SAMPLING+"'");
+                }
+            }
+            else if ( Boolean.parseBoolean( options.get( OPTION_SAMPLING ) ) ) 
             {
-                return true;
+                StatisticsManager.setSampling( (int) getDouble( options , OPTION_BURST_LENGTH , StatisticsManager.DEFAULT_BURST_LENGTH ) ,
+                        (int) getDouble( options , OPTION_SAMPLE_INTERVAL , StatisticsManager.DEFAULT_SAMPLE_INTERVAL ) );
+                MethodRegistry.setDefaultMode( MethodRegistry.Mode.SAMPLED );
             }
-            
-            @Override
-            public boolean matches(String clazz)
+
+            if ( options.containsKey( OPTION_SWITCH_FILE ) ) {
+                new SwitchFileWatcher( new File( options.get( OPTION_SWITCH_FILE ) ) , SWITCH_FILE_POLL_INTERVAL_MILLIS , debug ).start();
+            }
+
+            if ( options.containsKey( OPTION_PERF_FILE ) ) 
             {
-                for ( String p : packages ) {
-                    if ( clazz.contains( p ) ) {
-                        return true;
+                final File file = new File( options.get( OPTION_PERF_FILE ) );
+                try {
+                    final PerfDataFile perfData = new PerfDataFile( file , (int) getDouble( options , OPTION_PERF_THREADS , 256 ) , 
+                            (int) getDouble( options , OPTION_PERF_METHODS , 4096 ) );
+                    StatisticsManager.setPerfDataFile( perfData );
+                    new PerfDataFile.Publisher( perfData , (long) getDouble( options , OPTION_PERF_INTERVAL , 100 ) ).start();
+                    if ( debug ) {
+                        System.out.println("Exporting counters to "+file.getAbsolutePath());
                     }
+                } 
+                catch (IOException e) {
+                    System.err.println("Failed to create counter file "+file.getAbsolutePath()+" ("+e.getMessage()+")");
                 }
-                return false;
             }
-        };
-        
-        final File debugOutputDir = options.containsKey( OPTION_DEBUG_WRITE_CLASSFILES ) ? new File(  options.get( OPTION_DEBUG_WRITE_CLASSFILES ) ) : null;
-        inst.addTransformer(new MyTransformer(filter,debug,debugOutputDir) , false ); // no re-transformation support
+
+            if ( Boolean.parseBoolean( options.get( OPTION_ADAPTIVE ) ) ) 
+            {
+                if ( ! inst.isRetransformClassesSupported() ) {
+                    System.err.println("WARNING: JVM does not support class re-transformation, adaptive instrumentation disabled.");
+                } 
+                else 
+                {
+                    new AdaptiveController( getDouble( options , OPTION_OVERHEAD_TARGET , 5 ),
+                            getDouble( options , OPTION_METHOD_BUDGET , 1 ),
+                            getDouble( options , OPTION_PROBE_COST , 2 ),
+                            (long) getDouble( options , OPTION_MIN_INVOCATIONS , 1000 ),
+                            (long) getDouble( options , OPTION_ADAPTIVE_INTERVAL , 1000 ),
+                            debug ).start();
+                }
+            }
+
+            if ( options.containsKey( OPTION_OPCODE_HISTOGRAM ) ) 
+            {
+                final File file = new File( options.get( OPTION_OPCODE_HISTOGRAM ) );
+                StatisticsManager.setOpcodeHistogram( true );
+                Runtime.getRuntime().addShutdownHook( new Thread("profiling-opcode-histogram-writer") 
+                {
+                    @Override
+                    public void run()
+                    {
+                        try {
+                            StatisticsManager.getOpcodeHistogram().write( file );
+                        } 
+                        catch (IOException e) {
+                            System.err.println("Failed to write opcode histogram to "+file.getAbsolutePath()+" ("+e.getMessage()+")");
+                        }
+                    }
+                });
+            }
+
+            if ( options.containsKey( OPTION_ALLOCATIONS ) ) 
+            {
+                final File file = new File( options.get( OPTION_ALLOCATIONS ) );
+                StatisticsManager.setAllocationProfiling( true );
+                Runtime.getRuntime().addShutdownHook( new Thread("profiling-allocation-writer") 
+                {
+                    @Override
+                    public void run()
+                    {
+                        try 
+                        {
+                            final PrintStream out = new PrintStream( new FileOutputStream( file ) , false , "UTF-8" );
+                            try {
+                                StatisticsManager.getAllocationProfile().print( out , Integer.MAX_VALUE );
+                            } finally {
+                                out.close();
+                            }
+                        } 
+                        catch (IOException e) {
+                            System.err.println("Failed to write allocation profile to "+file.getAbsolutePath()+" ("+e.getMessage()+")");
+                        }
+                    }
+                });
+            }
+
+            if ( options.containsKey( OPTION_RECEIVER_TYPES ) ) 
+            {
+                final File file = new File( options.get( OPTION_RECEIVER_TYPES ) );
+                StatisticsManager.setReceiverTypeProfiling( true );
+                Runtime.getRuntime().addShutdownHook( new Thread("profiling-receiver-type-writer") 
+                {
+                    @Override
+                    public void run()
+                    {
+                        try 
+                        {
+                            final PrintStream out = new PrintStream( new FileOutputStream( file ) , false , "UTF-8" );
+                            try {
+                                StatisticsManager.getReceiverTypeProfile().print( out , Integer.MAX_VALUE , 2 );
+                            } finally {
+                                out.close();
+                            }
+                        } 
+                        catch (IOException e) {
+                            System.err.println("Failed to write receiver type profile to "+file.getAbsolutePath()+" ("+e.getMessage()+")");
+                        }
+                    }
+                });
+            }
+
+            if ( options.containsKey( OPTION_MONITORS ) ) 
+            {
+                final File file = new File( options.get( OPTION_MONITORS ) );
+                StatisticsManager.setMonitorProfiling( true );
+                StatisticsManager.setContentionThreshold( (long) getDouble( options , OPTION_CONTENTION_THRESHOLD , StatisticsManager.DEFAULT_CONTENTION_THRESHOLD ) );
+                Runtime.getRuntime().addShutdownHook( new Thread("profiling-monitor-writer") 
+                {
+                    @Override
+                    public void run()
+                    {
+                        try 
+                        {
+                            final PrintStream out = new PrintStream( new FileOutputStream( file ) , false , "UTF-8" );
+                            try {
+                                StatisticsManager.getMonitorProfile().print( out , Integer.MAX_VALUE );
+                            } finally {
+                                out.close();
+                            }
+                        } 
+                        catch (IOException e) {
+                            System.err.println("Failed to write monitor profile to "+file.getAbsolutePath()+" ("+e.getMessage()+")");
+                        }
+                    }
+                });
+            }
+
+            if ( options.containsKey( OPTION_FIELD_ACCESSES ) ) 
+            {
+                final File file = new File( options.get( OPTION_FIELD_ACCESSES ) );
+                StatisticsManager.setFieldAccessProfiling( true );
+                Runtime.getRuntime().addShutdownHook( new Thread("profiling-field-access-writer") 
+                {
+                    @Override
+                    public void run()
+                    {
+                        try 
+                        {
+                            final PrintStream out = new PrintStream( new FileOutputStream( file ) , false , "UTF-8" );
+                            try {
+                                StatisticsManager.getFieldAccessProfile().print( out , 100 );
+                            } finally {
+                                out.close();
+                            }
+                        } 
+                        catch (IOException e) {
+                            System.err.println("Failed to write field access profile to "+file.getAbsolutePath()+" ("+e.getMessage()+")");
+                        }
+                    }
+                });
+            }
+
+            if ( options.containsKey( OPTION_EXCEPTIONS ) ) 
+            {
+                final File file = new File( options.get( OPTION_EXCEPTIONS ) );
+                StatisticsManager.setExceptionProfiling( true );
+                Runtime.getRuntime().addShutdownHook( new Thread("profiling-exception-writer") 
+                {
+                    @Override
+                    public void run()
+                    {
+                        try 
+                        {
+                            final PrintStream out = new PrintStream( new FileOutputStream( file ) , false , "UTF-8" );
+                            try {
+                                StatisticsManager.getExceptionProfile().print( out , Integer.MAX_VALUE );
+                            } finally {
+                                out.close();
+                            }
+                        } 
+                        catch (IOException e) {
+                            System.err.println("Failed to write exception profile to "+file.getAbsolutePath()+" ("+e.getMessage()+")");
+                        }
+                    }
+                });
+            }
+
+            if ( options.containsKey( OPTION_LOOPS ) ) 
+            {
+                final File file = new File( options.get( OPTION_LOOPS ) );
+                StatisticsManager.setLoopProfiling( true );
+                Runtime.getRuntime().addShutdownHook( new Thread("profiling-loop-writer") 
+                {
+                    @Override
+                    public void run()
+                    {
+                        try 
+                        {
+                            final PrintStream out = new PrintStream( new FileOutputStream( file ) , false , "UTF-8" );
+                            try {
+                                StatisticsManager.getLoopProfile().print( out , Integer.MAX_VALUE );
+                            } finally {
+                                out.close();
+                            }
+                        } 
+                        catch (IOException e) {
+                            System.err.println("Failed to write loop profile to "+file.getAbsolutePath()+" ("+e.getMessage()+")");
+                        }
+                    }
+                });
+            }
+
+            if ( options.containsKey( OPTION_PATHS ) ) 
+            {
+                final File file = new File( options.get( OPTION_PATHS ) );
+                StatisticsManager.setPathProfiling( true );
+                Runtime.getRuntime().addShutdownHook( new Thread("profiling-path-writer") 
+                {
+                    @Override
+                    public void run()
+                    {
+                        try 
+                        {
+                            final PrintStream out = new PrintStream( new FileOutputStream( file ) , false , "UTF-8" );
+                            try {
+                                StatisticsManager.getPathProfile().print( out , MAX_REPORTED_PATHS );
+                            } finally {
+                                out.close();
+                            }
+                        } 
+                        catch (IOException e) {
+                            System.err.println("Failed to write path profile to "+file.getAbsolutePath()+" ("+e.getMessage()+")");
+                        }
+                    }
+                });
+            }
+
+            if ( options.containsKey( OPTION_LINES ) ) 
+            {
+                final File file = new File( options.get( OPTION_LINES ) );
+                StatisticsManager.setLineProfiling( true );
+                Runtime.getRuntime().addShutdownHook( new Thread("profiling-line-writer") 
+                {
+                    @Override
+                    public void run()
+                    {
+                        try 
+                        {
+                            final PrintStream out = new PrintStream( new FileOutputStream( file ) , false , "UTF-8" );
+                            try {
+                                StatisticsManager.getLineProfile().write( out );
+                            } finally {
+                                out.close();
+                            }
+                        } 
+                        catch (IOException e) {
+                            System.err.println("Failed to write line profile to "+file.getAbsolutePath()+" ("+e.getMessage()+")");
+                        }
+                    }
+                });
+            }
+
+            if ( options.containsKey( OPTION_BLOCKS ) ) 
+            {
+                final File file = new File( options.get( OPTION_BLOCKS ) );
+                StatisticsManager.setPathProfiling( true );
+                Runtime.getRuntime().addShutdownHook( new Thread("profiling-block-writer") 
+                {
+                    @Override
+                    public void run()
+                    {
+                        try 
+                        {
+                            final PrintStream out = new PrintStream( new FileOutputStream( file ) , false , "UTF-8" );
+                            try {
+                                StatisticsManager.getPathProfile().getBlockProfile().write( out );
+                            } finally {
+                                out.close();
+                            }
+                        } 
+                        catch (IOException e) {
+                            System.err.println("Failed to write block profile to "+file.getAbsolutePath()+" ("+e.getMessage()+")");
+                        }
+                    }
+                });
+            }
+
+            OpcodeCostModel costModel = OpcodeCostModel.UNIFORM;
+            if ( options.containsKey( OPTION_COST_MODEL ) ) 
+            {
+                final File file = new File( options.get( OPTION_COST_MODEL ) );
+                try {
+                    costModel = OpcodeCostModel.load( file );
+                } 
+                catch (IOException e) {
+                    System.err.println("Failed to load cost model from "+file.getAbsolutePath()+" , counting each instruction as 1 ("+e.getMessage()+")");
+                }
+            }
+
+            final File debugOutputDir = options.containsKey( OPTION_DEBUG_WRITE_CLASSFILES ) ? new File(  options.get( OPTION_DEBUG_WRITE_CLASSFILES ) ) : null;
+            instrumentation = inst;
+            transformer = new MyTransformer(filter,debug,debugOutputDir,costModel);
+            inst.addTransformer( transformer , inst.isRetransformClassesSupported() );
+        }
+        instrument( packages );
+    }
+
+    /**
+     * Starts instrumenting all classes that match at least one of the given patterns.
+     * 
+     * <p>Classes that have already been loaded are re-transformed immediately.</p>
+     * 
+     * @param patterns patterns a fully-qualified classname needs to contain in order to be instrumented
+     * @throws IllegalStateException if the agent has not been loaded
+     */
+    public static synchronized void instrument(String... patterns) throws IllegalStateException
+    {
+        assertInstalled();
+        final List<String> added = new ArrayList<>();
+        for ( String pattern : patterns ) {
+            if ( filter.add( pattern ) ) {
+                added.add( pattern );
+            }
+        }
+        retransform( added );
+    }
+
+    /**
+     * Stops instrumenting classes that match the given patterns and 
+     * restores the original byte-code of already loaded classes.
+     * 
+     * @param patterns
+     * @throws IllegalStateException if the agent has not been loaded
+     */
+    public static synchronized void restore(String... patterns) throws IllegalStateException
+    {
+        assertInstalled();
+        final List<String> removed = new ArrayList<>();
+        for ( String pattern : patterns ) {
+            if ( filter.remove( pattern ) ) {
+                removed.add( pattern );
+            }
+        }
+        retransform( removed );
+    }
+
+    /**
+     * Stops instrumenting any classes and restores the original byte-code
+     * of all instrumented classes.
+     * 
+     * @throws IllegalStateException if the agent has not been loaded
+     */
+    public static synchronized void restoreAll() throws IllegalStateException
+    {
+        assertInstalled();
+        restore( filter.getPatterns() );
+    }
+
+    /**
+     * Re-transforms loaded classes by name.
+     * 
+     * <p>Used to apply changes to the {@link MethodRegistry.Mode instrumentation mode} of methods.</p>
+     * 
+     * @param classNames fully-qualified class names
+     * @throws IllegalStateException if the agent has not been loaded
+     */
+    public static synchronized void retransformClasses(Set<String> classNames) throws IllegalStateException
+    {
+        assertInstalled();
+        if ( classNames.isEmpty() || ! instrumentation.isRetransformClassesSupported() ) {
+            return;
+        }
+
+        for ( Class<?> clazz : instrumentation.getAllLoadedClasses() ) 
+        {
+            if ( classNames.contains( clazz.getName() ) && instrumentation.isModifiableClass( clazz ) ) 
+            {
+                try {
+                    instrumentation.retransformClasses( clazz );
+                } 
+                catch (Exception e) {
+                    System.err.println("Failed to re-transform class "+clazz.getName()+" ("+e.getMessage()+")");
+                }
+            }
+        }
+    }
+
+    private static double getDouble(Map<String,String> options,String key,double defaultValue) 
+    {
+        final String value = options.get( key );
+        if ( StringUtils.isBlank( value ) ) {
+            return defaultValue;
+        }
+        try {
+            return Double.parseDouble( value );
+        } 
+        catch(NumberFormatException e) {
+            throw new IllegalArgumentException("Agent option '"+key+"' requires a numeric value but got '"+value+"'");
+        }
+    }
+
+    private static void assertInstalled() 
+    {
+        if ( transformer == null ) {
+            throw new IllegalStateException("Agent "+ProfilingClassTransformer.class.getName()+" has not been loaded");
+        }
+    }
+
+    // re-transform all loaded classes that match any of the given patterns
+    private static void retransform(List<String> patterns) 
+    {
+        if ( patterns.isEmpty() ) {
+            return;
+        }
+
+        if ( ! instrumentation.isRetransformClassesSupported() ) 
+        {
+            System.err.println("WARNING: JVM does not support class re-transformation, changes will only apply to classes loaded from now on.");
+            return;
+        }
+
+        final List<Class<?>> classes = new ArrayList<>();
+        for ( Class<?> clazz : instrumentation.getAllLoadedClasses() ) 
+        {
+            if ( instrumentation.isModifiableClass( clazz ) && ! clazz.isArray() && ! clazz.isPrimitive() && PatternFilter.matches( clazz.getName() , patterns ) ) {
+                classes.add( clazz );
+            }
+        }
+
+        if ( transformer.debug ) {
+            System.out.println("Re-transforming "+classes.size()+" classes");
+        }
+
+        for ( Class<?> clazz : classes ) 
+        {
+            try {
+                instrumentation.retransformClasses( clazz );
+            } 
+            catch (Exception e) {
+                System.err.println("Failed to re-transform class "+clazz.getName()+" ("+e.getMessage()+")");
+            }
+        }
     }
 
     private static Map<String,String> parseArgs(String arguments) 
@@ -148,6 +915,51 @@ public class ProfilingClassTransformer
         }
         return result;
     }
+
+    /**
+     * Class filter that matches fully-qualified class names against a mutable 
+     * set of patterns.
+     * 
+     * @author tobias.gierke@code-sourcery.de
+     */
+    protected static final class PatternFilter implements IJoinpointFilter 
+    {
+        private final CopyOnWriteArrayList<String> patterns = new CopyOnWriteArrayList<>();
+
+        public boolean add(String pattern) {
+            return patterns.addIfAbsent( pattern );
+        }
+
+        public boolean remove(String pattern) {
+            return patterns.remove( pattern );
+        }
+
+        public String[] getPatterns() {
+            return patterns.toArray( new String[0] );
+        }
+
+        @Override
+        public boolean matches(String clazz, String methodName)
+        {
+            return true;
+        }
+
+        @Override
+        public boolean matches(String clazz)
+        {
+            return matches( clazz , patterns );
+        }
+
+        public static boolean matches(String clazz,List<String> patterns) 
+        {
+            for ( String p : patterns ) {
+                if ( clazz.contains( p ) ) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
     
     public static final class MyTransformer implements ClassFileTransformer 
     {
@@ -156,10 +968,14 @@ public class ProfilingClassTransformer
         private final boolean debug;
         private final File debugWriteClassfiles;
         
-        public MyTransformer(IJoinpointFilter filter,boolean debug,File debugWriteClassfiles) 
+        // names of the classes initially loaded through this transformer , by class loader (guarded by itself)
+        private final Map<ClassLoader,Set<String>> loadedClasses = new WeakHashMap<>();
+        
+        public MyTransformer(IJoinpointFilter filter,boolean debug,File debugWriteClassfiles,OpcodeCostModel costModel) 
         {
             this.filter = filter;
             this.debug = debug;
+            rewriter.setCostModel( costModel );
             if ( debug ) {
                 rewriter.setDebugMode( true );
                 rewriter.setVerboseMode( true );
@@ -170,12 +986,14 @@ public class ProfilingClassTransformer
         public byte[] transform(ClassLoader l, String name, Class<?> c,ProtectionDomain d, final byte[] b) throws IllegalClassFormatException 
         {
             final String fqName = name.replace("/",".");
-            if ( ! filter.matches( fqName ) ) {
-                return b;
+            final boolean matches = filter.matches( fqName );
+            if ( ! matches && ( c == null || ! isLoadedClass( l , name ) ) ) {
+                // note that during re-transformation, returning NULL restores the original byte-code
+                return null;
             }
             
             if ( debug ) {
-                System.out.println("Transforming class "+fqName);
+                System.out.println( ( matches ? "Transforming class " : "Restoring desynchronized class " )+fqName);
             }
             
             final IClassReaderProvider provider = new IClassReaderProvider() {
@@ -194,7 +1012,17 @@ public class ProfilingClassTransformer
             };
             
             try {
-                final byte[] result = rewriter.rewrite(provider, filter);
+                if ( ! matches ) {
+                    // the original byte-code has ACC_SYNCHRONIZED flags that re-transformation must not bring back
+                    return rewriter.desynchronize( provider , filter );
+                }
+                // re-transformation must not change method modifiers , so synchronized methods may only be rewritten
+                // if the class was initially loaded with this rewrite
+                final boolean desynchronize = StatisticsManager.isMonitorProfiling() && ( c == null || isLoadedClass( l , name ) );
+                final byte[] result = rewriter.rewrite(provider, filter, desynchronize);
+                if ( desynchronize && c == null ) {
+                    addLoadedClass( l , name );
+                }
                 if ( debugWriteClassfiles != null ) 
                 {
                     writeDebugClassfile( fqName , result );
@@ -207,6 +1035,28 @@ public class ProfilingClassTransformer
             }
         }
         
+        private boolean isLoadedClass(ClassLoader loader,String name) 
+        {
+            synchronized( loadedClasses ) 
+            {
+                final Set<String> names = loadedClasses.get( loader );
+                return names != null && names.contains( name );
+            }
+        }
+        
+        private void addLoadedClass(ClassLoader loader,String name) 
+        {
+            synchronized( loadedClasses ) 
+            {
+                Set<String> names = loadedClasses.get( loader );
+                if ( names == null ) {
+                    names = new HashSet<>();
+                    loadedClasses.put( loader , names );
+                }
+                names.add( name );
+            }
+        }
+        
         private void writeDebugClassfile(String fqName , byte[] data) 
         {
             final File outfile = new File( debugWriteClassfiles , fqName.replace(".",File.separator)+".class" );
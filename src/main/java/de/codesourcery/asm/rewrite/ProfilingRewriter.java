@@ -18,10 +18,13 @@ package de.codesourcery.asm.rewrite;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.Map;
+import java.util.Set;
 
 import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.ClassVisitor;
@@ -31,14 +34,46 @@ import org.objectweb.asm.Label;
 import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Opcodes;
 import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.AbstractInsnNode;
 import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.FieldInsnNode;
+import org.objectweb.asm.tree.InsnList;
+import org.objectweb.asm.tree.InsnNode;
+import org.objectweb.asm.tree.IntInsnNode;
+import org.objectweb.asm.tree.InvokeDynamicInsnNode;
+import org.objectweb.asm.tree.JumpInsnNode;
+import org.objectweb.asm.tree.LabelNode;
+import org.objectweb.asm.tree.LdcInsnNode;
+import org.objectweb.asm.tree.LineNumberNode;
+import org.objectweb.asm.tree.LocalVariableNode;
+import org.objectweb.asm.tree.LookupSwitchInsnNode;
+import org.objectweb.asm.tree.MethodInsnNode;
 import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.TableSwitchInsnNode;
+import org.objectweb.asm.tree.TryCatchBlockNode;
+import org.objectweb.asm.tree.VarInsnNode;
 import org.objectweb.asm.tree.analysis.AnalyzerException;
 
 import de.codesourcery.asm.controlflow.ControlFlowAnalyzer;
 import de.codesourcery.asm.controlflow.ControlFlowGraph;
+import de.codesourcery.asm.controlflow.Edge;
 import de.codesourcery.asm.controlflow.IBlock;
+import de.codesourcery.asm.controlflow.LoopAnalyzer;
+import de.codesourcery.asm.controlflow.NaturalLoop;
+import de.codesourcery.asm.controlflow.PathNumbering;
+import de.codesourcery.asm.profiling.AllocationSiteRegistry;
+import de.codesourcery.asm.profiling.CallSiteRegistry;
+import de.codesourcery.asm.profiling.ExceptionSiteRegistry;
 import de.codesourcery.asm.profiling.ExecutionStatistics;
+import de.codesourcery.asm.profiling.FieldAccessRegistry;
+import de.codesourcery.asm.profiling.LineRegistry;
+import de.codesourcery.asm.profiling.LoopRegistry;
+import de.codesourcery.asm.profiling.MethodRegistry;
+import de.codesourcery.asm.profiling.MethodRegistry.MethodInfo;
+import de.codesourcery.asm.profiling.MonitorSiteRegistry;
+import de.codesourcery.asm.profiling.OpcodeClass;
+import de.codesourcery.asm.profiling.PathRegistry;
+import de.codesourcery.asm.profiling.ProfilingSwitch;
 import de.codesourcery.asm.profiling.StatisticsManager;
 import de.codesourcery.asm.util.ASMUtil;
 import de.codesourcery.asm.util.Disassembler;
@@ -63,25 +98,66 @@ import de.codesourcery.asm.util.IJoinpointFilter;
  * <b>AFTER</b>
  * <pre>
  * public void testMethod() { 
- *   final ExecutionStatistics $stat  = StatisticsManager.getStatistics();
- *   $stat.executedInstructionCount += 1; // original method was empty and thus only contained a single RETURN instruction
- *   if ( $stat.executedInstructionCount >= 0 ) {
- *     StatisticsManager.account();
+ *   ExecutionStatistics $stat  = ProfilingSwitch.isEnabled() ? StatisticsManager.enterMethod( METHOD_ID ) : null;
+ *   if ( ProfilingSwitch.isEnabled() ) 
+ *   {
+ *     if ( $stat == null ) { // switch was off at method entry
+ *       $stat = StatisticsManager.getStatistics( METHOD_ID );
+ *     }
+ *     $stat.executedInstructionCount += 1; // original method was empty and thus only contained a single RETURN instruction
+ *     $stat.methodCounters[ METHOD_ID*3 + SLOT_PROBES ] += 1;
+ *     $stat.methodCounters[ METHOD_ID*3 + SLOT_INSTRUCTIONS ] += 1;
+ *     if ( $stat.executedInstructionCount >= 0 ) {
+ *       StatisticsManager.account();
+ *     }
  *   }
  * }
  * </pre>
  * 
+ * <p>The <code>ProfilingSwitch.isEnabled()</code> checks are actually <code>INVOKEDYNAMIC</code> instructions bound
+ * to a constant call site (see {@link ProfilingSwitch}) that the JIT folds away, so disabled probes cost (next to) nothing.
+ * Classes with a class-file version below 51 (Java 7) invoke {@link ProfilingSwitch#isEnabled()} instead.</p>
+ * 
+ * <p><code>METHOD_ID</code> is the dense ID assigned to each method by the {@link MethodRegistry}. Methods
+ * registered with {@link MethodRegistry.Mode#ENTRY_ONLY} only get a single probe at method entry that accounts an estimated 
+ * number of instructions (see {@link StatisticsManager#enterEstimatedMethod(int, int)}), methods registered with
+ * {@link MethodRegistry.Mode#SAMPLED} are rewritten by {@link SampledMethodVisitor}.</p>
+ * 
+ * <p>When monitor profiling is enabled , synchronized methods lose their <code>ACC_SYNCHRONIZED</code> flag and acquire
+ * their monitor with an explicit <code>MONITORENTER</code> instead (see {@link #desynchronize(ClassNode, MethodNode)}) so that 
+ * the acquisition can be timed. Since re-transformation must not change method modifiers , this is only done 
+ * when the caller says so (see {@link #rewrite(IClassReaderProvider, IJoinpointFilter, boolean)}) and such classes
+ * can only be restored to a desynchronized copy of their original byte-code (see {@link #desynchronize(IClassReaderProvider, IJoinpointFilter)}).
+ * Mutual exclusion is unaffected but the missing flag is visible through reflection , e.g. 
+ * <code>Modifier.isSynchronized()</code> returns <code>false</code> for these methods.</p>
+ * 
+ * <p>Note that rewriting never adds fields or methods so that classes can be re-transformed at runtime.</p>
+ * 
  * @author tobias.gierke@code-sourcery.de
  * 
  * @see ControlFlowAnalyzer
  * 
  * @see StatisticsManager
  * @see ExecutionStatistics
+ * @see ProfilingSwitch
  */
 public class ProfilingRewriter implements Opcodes
 {
+    private static final String STATISTICS_MANAGER = "de/codesourcery/asm/profiling/StatisticsManager";
+    private static final String PROFILING_SWITCH = "de/codesourcery/asm/profiling/ProfilingSwitch";
+    private static final String EXECUTION_STATISTICS = "de/codesourcery/asm/profiling/ExecutionStatistics";
+
+    private static final String EXECUTION_STATISTICS_DESC = "Lde/codesourcery/asm/profiling/ExecutionStatistics;";
+
+    // methods with more instructions are not duplicated for sampling to stay well below the 64k code size limit
+    private static final int MAX_SAMPLED_METHOD_SIZE = 5000;
+
+    private static final Handle SWITCH_BOOTSTRAP = new Handle( H_INVOKESTATIC , PROFILING_SWITCH , "bootstrap" , 
+            "(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;Ljava/lang/invoke/MethodType;)Ljava/lang/invoke/CallSite;" );
+
     private boolean debug = false;
     private boolean verbose = false;
+    private OpcodeCostModel costModel = OpcodeCostModel.UNIFORM;
 
     public ProfilingRewriter() {
     }
@@ -125,6 +201,24 @@ public class ProfilingRewriter implements Opcodes
         this.verbose = verbose;
     }
 
+    /**
+     * Sets the cost model used to weight the instructions of each basic block.
+     * 
+     * @param costModel
+     */
+    public void setCostModel(OpcodeCostModel costModel)
+    {
+        if ( costModel == null ) {
+            throw new IllegalArgumentException("costModel must not be NULL");
+        }
+        this.costModel = costModel;
+    }
+
+    public OpcodeCostModel getCostModel()
+    {
+        return costModel;
+    }
+
     private void logVerbose(String msg) {
         if ( verbose ) {
             System.out.println( msg );
@@ -151,8 +245,24 @@ public class ProfilingRewriter implements Opcodes
         return rewrite( provider , filter );
     }
     
-    @SuppressWarnings("unchecked")
     public byte[] rewrite(IClassReaderProvider provider,IJoinpointFilter filter) throws IOException, AnalyzerException 
+    {
+        return rewrite( provider , filter , true );
+    }
+
+    /**
+     * Rewrites a class.
+     * 
+     * @param provider
+     * @param filter
+     * @param desynchronize whether synchronized methods may be rewritten to acquire their monitor explicitly. Must be <code>false</code>
+     * when re-transforming a class that was loaded without this rewrite , since re-transformation must not change method modifiers.
+     * @return
+     * @throws IOException
+     * @throws AnalyzerException
+     */
+    @SuppressWarnings("unchecked")
+    public byte[] rewrite(IClassReaderProvider provider,IJoinpointFilter filter,boolean desynchronize) throws IOException, AnalyzerException 
     {
         // first pass: create control flow graphs (CFGs) for all methods and constructors
         final String classToAnalyze = provider.getClassName();
@@ -163,11 +273,18 @@ public class ProfilingRewriter implements Opcodes
 
         final ControlFlowAnalyzer analyzer = new ControlFlowAnalyzer();
 
-        final Map<String,ControlFlowGraph> graphs = new HashMap<>();
+        final Map<String,InstrumentedMethod> graphs = new HashMap<>();
+        boolean desynchronized = false;
         for ( MethodNode mn : (List<MethodNode>) cn.methods ) 
         {
             if ( filter.matches( classToAnalyze , mn.name ) ) {
                 logVerbose("Analyzing method "+mn.name);
+                int monitorEnterIndex = -1;
+                if ( desynchronize && StatisticsManager.isMonitorProfiling() && canDesynchronize( cn , mn ) ) 
+                {
+                    monitorEnterIndex = mn.instructions.indexOf( desynchronize( cn , mn ) );
+                    desynchronized = true;
+                }
                 if ( debug ) {
                 	System.out.println( Disassembler.disassemble( mn , true , true ) );
                 }
@@ -183,12 +300,17 @@ public class ProfilingRewriter implements Opcodes
                 		}
                 	}
                 }
-				graphs.put( methodNodeToKey( mn ), graph );
+                final int methodId = MethodRegistry.register( classToAnalyze , mn.name , mn.desc );
+				graphs.put( methodNodeToKey( mn ), new InstrumentedMethod( graph , MethodRegistry.getMethod( methodId ) , monitorEnterIndex ) );
             } else {
                 logVerbose("Ignoring method "+mn.name);
             }
         }
 
+        if ( StatisticsManager.isLineProfiling() && ! graphs.isEmpty() ) {
+            LineRegistry.registerSourceFile( classToAnalyze , cn.sourceFile );
+        }
+
         // second pass: rewrite methods and constructors by inserting custom code at the start of each basic block in the control flow graph
         logVerbose("Rewriting "+classToAnalyze+" ... ");
 
@@ -199,7 +321,12 @@ public class ProfilingRewriter implements Opcodes
             provider.getClassReader().accept( writer , 0 );
         } else {
             writer = new ClassWriter(ClassWriter.COMPUTE_FRAMES|ClassWriter.COMPUTE_MAXS);
-            provider.getClassReader().accept( new MyClassVisitor( writer,graphs ) , 0 );
+            if ( desynchronized ) {
+                // instruction indices of the CFGs refer to the modified methods
+                cn.accept( new MyClassVisitor( writer,graphs ) );
+            } else {
+                provider.getClassReader().accept( new MyClassVisitor( writer,graphs ) , 0 );
+            }
         }
         
         final byte[] result = writer.toByteArray();
@@ -223,6 +350,205 @@ public class ProfilingRewriter implements Opcodes
         return result;
     }
 
+    /**
+     * Rewrites a class without adding any probes , only the synchronized methods that
+     * {@link #rewrite(IClassReaderProvider, IJoinpointFilter, boolean)} would desynchronize get rewritten.
+     * 
+     * <p>Used to restore classes that were initially loaded with desynchronized methods , since re-transformation 
+     * must not change method modifiers and thus cannot bring back the <code>ACC_SYNCHRONIZED</code> flags of the original byte-code.</p>
+     * 
+     * @param provider
+     * @param filter the filter the class was initially rewritten with
+     * @return
+     * @throws IOException
+     */
+    @SuppressWarnings("unchecked")
+    public byte[] desynchronize(IClassReaderProvider provider,IJoinpointFilter filter) throws IOException 
+    {
+        final String classToAnalyze = provider.getClassName();
+        logVerbose("Desynchronizing "+classToAnalyze+" ... ");
+
+        final ClassNode cn = new ClassNode();
+        provider.getClassReader().accept( cn , 0 );
+
+        boolean desynchronized = false;
+        for ( MethodNode mn : (List<MethodNode>) cn.methods ) 
+        {
+            if ( filter.matches( classToAnalyze , mn.name ) && canDesynchronize( cn , mn ) ) {
+                desynchronize( cn , mn );
+                desynchronized = true;
+            }
+        }
+        final ClassWriter writer = new ClassWriter( desynchronized ? ClassWriter.COMPUTE_FRAMES|ClassWriter.COMPUTE_MAXS : 0 );
+        cn.accept( writer );
+        return writer.toByteArray();
+    }
+
+    private static boolean canDesynchronize(ClassNode cn,MethodNode mn) 
+    {
+        if ( ( mn.access & ACC_SYNCHRONIZED ) == 0 || ( mn.access & ( ACC_ABSTRACT | ACC_NATIVE ) ) != 0 ) {
+            return false;
+        }
+        // static methods synchronize on the class object , LDC <class> requires class-file version 49 or later
+        return ( mn.access & ACC_STATIC ) == 0 || ( cn.version & 0xffff ) >= V1_5;
+    }
+
+    /**
+     * Replaces the <code>ACC_SYNCHRONIZED</code> flag of a method with explicit monitor handling , 
+     * just like javac compiles a synchronized block spanning the whole method body:
+     * 
+     * <pre>
+     * $monitor = this; // or the class object for static methods
+     * MONITORENTER $monitor
+     * try {
+     *   // original code , with MONITOREXIT $monitor inserted before each xRETURN
+     * } catch(Throwable t) { // also protects its own MONITOREXIT
+     *   MONITOREXIT $monitor
+     *   throw t;
+     * }
+     * </pre>
+     * 
+     * <p>Just like for javac's output , the catch-all handler also covers its own <code>MONITOREXIT</code> so that
+     * an asynchronous exception thrown while releasing the monitor retries the release instead of leaving the monitor locked.</p>
+     * 
+     * @param cn
+     * @param mn
+     * @return the inserted <code>MONITORENTER</code> instruction
+     */
+    @SuppressWarnings("unchecked")
+    private static AbstractInsnNode desynchronize(ClassNode cn,MethodNode mn) 
+    {
+        final int monitorSlot = mn.maxLocals++;
+        mn.access &= ~ACC_SYNCHRONIZED;
+
+        for ( AbstractInsnNode insn = mn.instructions.getFirst() ; insn != null ; insn = insn.getNext() ) 
+        {
+            if ( insn.getOpcode() >= IRETURN && insn.getOpcode() <= RETURN ) 
+            {
+                mn.instructions.insertBefore( insn , new VarInsnNode( ALOAD , monitorSlot ) );
+                mn.instructions.insertBefore( insn , new InsnNode( MONITOREXIT ) );
+            }
+        }
+
+        final LabelNode start = new LabelNode();
+        final LabelNode handler = new LabelNode();
+
+        final InsnList prologue = new InsnList();
+        if ( ( mn.access & ACC_STATIC ) != 0 ) {
+            prologue.add( new LdcInsnNode( Type.getObjectType( cn.name ) ) );
+        } else {
+            prologue.add( new VarInsnNode( ALOAD , 0 ) );
+        }
+        prologue.add( new InsnNode( DUP ) );
+        prologue.add( new VarInsnNode( ASTORE , monitorSlot ) );
+        final AbstractInsnNode monitorEnter = new InsnNode( MONITORENTER );
+        prologue.add( monitorEnter );
+        prologue.add( start );
+        mn.instructions.insert( prologue );
+
+        final LabelNode handlerEnd = new LabelNode();
+        mn.instructions.add( handler );
+        mn.instructions.add( new VarInsnNode( ALOAD , monitorSlot ) );
+        mn.instructions.add( new InsnNode( MONITOREXIT ) );
+        mn.instructions.add( handlerEnd );
+        mn.instructions.add( new InsnNode( ATHROW ) );
+
+        // the handler directly follows the original code and thus also marks the end of the protected range , 
+        // added last so that handlers of the original code take precedence
+        final List<TryCatchBlockNode> tryCatchBlocks = mn.tryCatchBlocks;
+        tryCatchBlocks.add( new TryCatchBlockNode( start , handler , handler , null ) );
+        tryCatchBlocks.add( new TryCatchBlockNode( handler , handlerEnd , handler , null ) );
+        return monitorEnter;
+    }
+
+    /**
+     * Generates byte-code that pushes the current state of the {@link ProfilingSwitch} onto the stack.
+     * 
+     * @param mv
+     * @param useInvokeDynamic whether the class being rewritten supports <code>INVOKEDYNAMIC</code> (class-file version 51+)
+     */
+    private static void pushEnabledFlag(MethodVisitor mv,boolean useInvokeDynamic) 
+    {
+        enabledFlagInsn( useInvokeDynamic ).accept( mv );
+    }
+
+    private static AbstractInsnNode enabledFlagInsn(boolean useInvokeDynamic) 
+    {
+        if ( useInvokeDynamic ) {
+            return new InvokeDynamicInsnNode( "isEnabled" , "()Z" , SWITCH_BOOTSTRAP );
+        } 
+        return new MethodInsnNode(INVOKESTATIC, PROFILING_SWITCH , "isEnabled", "()Z");
+    }
+
+    /**
+     * Generates byte-code that pushes an integer constant onto the stack.
+     * 
+     * @param mv
+     * @param value
+     */
+    private static void pushInt(MethodVisitor mv,int value) 
+    {
+        intInsn( value ).accept( mv );
+    }
+
+    private static AbstractInsnNode intInsn(int value) 
+    {
+        if ( value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE ) {
+            return new IntInsnNode(BIPUSH , value );
+        } 
+        if ( value >= Short.MIN_VALUE && value <= Short.MAX_VALUE ) {
+            return new IntInsnNode(SIPUSH , value );
+        } 
+        return new LdcInsnNode( value );
+    }
+
+    /**
+     * Generates byte-code that adds a value to an element of the <code>long[]</code> array
+     * on top of the stack (and pops the array reference).
+     * 
+     * @param mv
+     * @param index array index
+     * @param value value to add
+     */
+    private static void addToLongArray(MethodVisitor mv,int index,long value) 
+    {
+        pushInt( mv , index );
+        mv.visitInsn( DUP2 );
+        mv.visitInsn( LALOAD );
+        if ( value == 1 ) {
+            mv.visitInsn( LCONST_1 );
+        } else {
+            mv.visitLdcInsn( value );
+        }
+        mv.visitInsn( LADD );
+        mv.visitInsn( LASTORE );
+    }
+
+    // everything the first pass found out about a method
+    protected static final class InstrumentedMethod 
+    {
+        public final ControlFlowGraph cfg;
+        public final MethodInfo info;
+        // index of the MONITORENTER that replaced ACC_SYNCHRONIZED or -1
+        public final int monitorEnterIndex;
+
+        public InstrumentedMethod(ControlFlowGraph cfg, MethodInfo info)
+        {
+            this( cfg , info , -1 );
+        }
+
+        public InstrumentedMethod(ControlFlowGraph cfg, MethodInfo info, int monitorEnterIndex)
+        {
+            this.cfg = cfg;
+            this.info = info;
+            this.monitorEnterIndex = monitorEnterIndex;
+        }
+
+        public int getId() {
+            return info.getId();
+        }
+    }
+
     private static String methodNodeToKey(MethodNode mn) {
         return methodNodeToKey( mn.name , mn.desc );
     }
@@ -233,22 +559,31 @@ public class ProfilingRewriter implements Opcodes
 
     protected final class MyClassVisitor extends ClassVisitor 
     {
-        private final Map<String,ControlFlowGraph> graphs;
+        private final Map<String,InstrumentedMethod> graphs;
+        private boolean useInvokeDynamic;
 
-        protected MyClassVisitor(ClassVisitor cv,Map<String,ControlFlowGraph> graphs)
+        protected MyClassVisitor(ClassVisitor cv,Map<String,InstrumentedMethod> graphs)
         {
             super(ASM4, cv);
             this.graphs = graphs;
         }
 
+        @Override
+        public void visit(int version, int access, String name, String signature, String superName, String[] interfaces)
+        {
+            super.visit(version, access, name, signature, superName, interfaces);
+            // INVOKEDYNAMIC requires class-file version 51 or later
+            useInvokeDynamic = ( version & 0xffff ) >= V1_7;
+        }
+
         @Override
         public MethodVisitor visitMethod(int access, String name, String desc, String signature, String[] exceptions)
         {
             final MethodVisitor result = super.visitMethod(access, name, desc, signature, exceptions);
 
-            final ControlFlowGraph cfg = graphs.get( methodNodeToKey( name , desc )  );
+            final InstrumentedMethod method = graphs.get( methodNodeToKey( name , desc )  );
 
-            if ( cfg == null ) // no CFG , write method unaltered
+            if ( method == null ) // no CFG , write method unaltered
             {
                 if ( debug ) {
                     System.out.println("DEBUG: Found no CFG for method "+methodNodeToKey( name , desc ) );
@@ -256,61 +591,434 @@ public class ProfilingRewriter implements Opcodes
                 return result;
             }
 
-            // determine number of slot where we'll store our newly introduced local variable (see below)
-            // Since we already scanned the class file while creating the CFG , we can make use of this knowledge
-            // (otherwise we would've to subclass LocalVariablesSorter)
-            final int slotNr = cfg.getMethod().maxLocals;
+            if ( StatisticsManager.isMonitorProfiling() && ( access & ACC_SYNCHRONIZED ) != 0 ) {
+                MonitorSiteRegistry.registerSynchronizedMethod( method.getId() );
+            }
+
+            if ( method.info.getMode() == MethodRegistry.Mode.ENTRY_ONLY ) 
+            {
+                if ( debug ) {
+                    System.out.println("DEBUG: *** Rewriting method "+methodNodeToKey( name , desc )+" (entry only, "+
+                            method.info.getEstimatedInstructionsPerInvocation()+" instructions per invocation) ***");
+                }
+                return new EntryOnlyVisitor( result , method , useInvokeDynamic );
+            }
+
+            if ( method.info.getMode() == MethodRegistry.Mode.SAMPLED ) 
+            {
+                if ( canSample( name , method ) ) 
+                {
+                    if ( debug ) {
+                        System.out.println("DEBUG: *** Rewriting method "+methodNodeToKey( name , desc )+" (sampled) ***");
+                    }
+                    return new SampledMethodVisitor( result , access , name , desc , signature , exceptions , method , useInvokeDynamic );
+                }
+                if ( debug ) {
+                    System.out.println("DEBUG: Method "+methodNodeToKey( name , desc )+" cannot be sampled, using full instrumentation");
+                }
+            }
 
             if ( debug ) {
-                System.out.println("DEBUG: *** Rewriting method "+methodNodeToKey( name , desc )+" with "+slotNr+" local vars ***");
+                System.out.println("DEBUG: *** Rewriting method "+methodNodeToKey( name , desc )+" with "+method.cfg.getMethod().maxLocals+" local vars ***");
             }            
+            return createFullInstrumentation( result , name , method , useInvokeDynamic , 1 , StatisticsManager.isCallStackTracking() );
+        }
 
-            /* Setup visitor stack:
-             * 
-             * 1. InstructionCountingVisitor - keeps track of the index of the current byte-code instruction within the method
-             * 2. LoadVarVisitor - introduces a new local variable at the start of each method/constructor:  ExecutionStatistics $stat = StatisticsManager#getStatistics()
-             * 3. BasicBlockVisitor - at the start of each control flow graph node , introduces byte-code that increments  $stat by the number of instructions in this block
-             *                        and invokes StatisticsManager#account() if necessary 
-             */
-            final InstructionCountingVisitor visitor1 = new InstructionCountingVisitor();
+        private boolean canSample(String name,InstrumentedMethod method) 
+        {
+            final InsnList instructions = method.cfg.getMethod().instructions;
+            if ( name.equals("<init>") || instructions.size() == 0 || instructions.size() > MAX_SAMPLED_METHOD_SIZE ) {
+                return false;
+            }
+            return ! containsSubroutines( method.cfg.getMethod() );
+        }
+    }
+
+    private static boolean containsSubroutines(MethodNode method) 
+    {
+        for ( AbstractInsnNode insn = method.instructions.getFirst() ; insn != null ; insn = insn.getNext() ) 
+        {
+            if ( insn.getOpcode() == JSR || insn.getOpcode() == RET ) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // a control flow transition between two instructions
+    private static final class Transition 
+    {
+        public static final int FALL_THROUGH = -1;
+
+        // index of the jump/switch instruction or of the instruction falling through
+        public final int index;
+        // FALL_THROUGH , 0 for the jump target / switch default or N+1 for the N-th switch label
+        public final int labelIndex;
+        // index of the target instruction
+        public final int target;
+
+        public Transition(int index, int labelIndex, int target)
+        {
+            this.index = index;
+            this.labelIndex = labelIndex;
+            this.target = target;
+        }
+    }
+
+    // code to insert on a control flow edge
+    private static final class EdgeProbe 
+    {
+        // indices of loops left by this edge
+        public final List<Integer> exitedLoops = new ArrayList<>();
+        // added to the path number , if this edge is a back-edge it gets added when reporting the completed path
+        public long pathIncrement;
+        // whether the edge is a back-edge that completes the current path and starts a new one
+        public boolean pathRestart;
+        public long pathStartValue;
+    }
+
+    // code appended to the end of a method that executes a probe and jumps to the original jump target
+    private static final class EdgeTrampoline 
+    {
+        public final Label label = new Label();
+        public final Label target;
+        public final EdgeProbe probe;
+        public final boolean statAssigned;
+
+        public EdgeTrampoline(Label target, EdgeProbe probe, boolean statAssigned)
+        {
+            this.target = target;
+            this.probe = probe;
+            this.statAssigned = statAssigned;
+        }
+    }
+
+    /**
+     * Sets up the visitor stack that adds probes at the start of each basic block.
+     * 
+     * @param target visitor that receives the instrumented method
+     * @param name method name
+     * @param method
+     * @param useInvokeDynamic
+     * @param instructionScale factor the per-thread instruction count gets incremented with (used for sampled methods)
+     * @param trackCallStack whether to push/pop the method on the thread's shadow stack (see {@link StatisticsManager#setCallStackTracking(boolean)})
+     * @return
+     */
+    private MethodVisitor createFullInstrumentation(MethodVisitor target,String name,InstrumentedMethod method,boolean useInvokeDynamic,
+            double instructionScale,boolean trackCallStack) 
+    {
+        final ControlFlowGraph cfg = method.cfg;
+
+        // determine number of slot where we'll store our newly introduced local variable (see below)
+        // Since we already scanned the class file while creating the CFG , we can make use of this knowledge
+        // (otherwise we would've to subclass LocalVariablesSorter)
+        final int slotNr = cfg.getMethod().maxLocals;
+
+        /* Setup visitor stack:
+         * 
+         * 1. InstructionCountingVisitor - keeps track of the index of the current byte-code instruction within the method
+         * 2. BasicBlockVisitor - at the start of each control flow graph node , introduces byte-code that increments  $stat by the number of instructions in this block
+         *                        and invokes StatisticsManager#account() if necessary 
+         * 3. LoadVarVisitor - introduces a new local variable at the start of each method/constructor:  ExecutionStatistics $stat = StatisticsManager#getStatistics()
+         *                     and , if call stacks are tracked , pushes/pops the method on the shadow stack
+         *                     
+         * The LoadVarVisitor needs to come last so that BasicBlockVisitor never sees the code it generates.
+         */
+        final InstructionCountingVisitor visitor1 = new InstructionCountingVisitor();
+
+        final boolean isConstructor = name.equals("<init>");
+        final LoadVarVisitor loadVarVisitor = new LoadVarVisitor( target , method.getId() , slotNr , isConstructor , useInvokeDynamic , trackCallStack );
+        final BasicBlockVisitor visitor2 = new BasicBlockVisitor( loadVarVisitor , visitor1 , method , slotNr , isConstructor , useInvokeDynamic , instructionScale );
+
+        visitor1.setDelegate( visitor2 );
+        return visitor1;
+    }
+
+    /**
+     * Rewrites a method for burst sampling (Arnold/Ryder), see {@link MethodRegistry.Mode#SAMPLED}.
+     * 
+     * <p>The method body is duplicated into a <i>checked</i> copy that carries the regular probes (see {@link BasicBlockVisitor})
+     * and an <i>unchecked</i> copy that is identical to the original code. Method entry and all backward jumps in both
+     * copies are routed through a cheap check of a per-thread countdown, only when the countdown reaches zero
+     * {@link StatisticsManager#sample(ExecutionStatistics)} gets called and execution continues in the checked copy:</p>
+     * 
+     * <pre>
+     *   ExecutionStatistics $stat = ProfilingSwitch.isEnabled() ? StatisticsManager.getStatistics( METHOD_ID ) : null;
+     *   if ( $stat != null &amp;&amp; --$stat.sampleCountdown &lt;= 0 ) {
+     *     StatisticsManager.sample( $stat );
+     *     goto checked;
+     *   }
+     *   unchecked:
+     *     ... original code , backward jumps go through the same check ...
+     *   checked:
+     *     ... instrumented code , backward jumps go through the same check ...
+     * </pre>
+     * 
+     * <p>The instrumented copy increments the per-thread instruction count by the block size multiplied with 
+     * {@link StatisticsManager#getSamplingScale()} while per-method counters receive the raw (sampled) counts.</p>
+     * 
+     * @author tobias.gierke@code-sourcery.de
+     */
+    protected final class SampledMethodVisitor extends MethodNode 
+    {
+        private final MethodVisitor target;
+        private final InstrumentedMethod method;
+        private final boolean useInvokeDynamic;
+        private final int variableSlot;
+
+        protected SampledMethodVisitor(MethodVisitor target,int access, String name, String desc, String signature, String[] exceptions,
+                InstrumentedMethod method,boolean useInvokeDynamic)
+        {
+            super(ASM4, access, name, desc, signature, exceptions);
+            this.target = target;
+            this.method = method;
+            this.useInvokeDynamic = useInvokeDynamic;
+            this.variableSlot = method.cfg.getMethod().maxLocals;
+        }
+
+        @SuppressWarnings("unchecked")
+        @Override
+        public void visitEnd()
+        {
+            // checked copy , run the original code through the regular instrumentation
+            final MethodNode checked = new MethodNode(ASM4, access, name, desc, signature, null );
+            final MethodVisitor instrumentation = createFullInstrumentation( checked , name , method , useInvokeDynamic , StatisticsManager.getSamplingScale() , false );
+            instructions.resetLabels();
+            instrumentation.visitCode();
+            for ( TryCatchBlockNode block : (List<TryCatchBlockNode>) tryCatchBlocks ) {
+                block.accept( instrumentation );
+            }
+            instructions.accept( instrumentation );
+            for ( LocalVariableNode var : (List<LocalVariableNode>) localVariables ) {
+                var.accept( instrumentation );
+            }
+            instrumentation.visitMaxs( maxStack , maxLocals );
+            instrumentation.visitEnd();
+
+            // unchecked copy , a plain clone of the original code
+            final Map<LabelNode,LabelNode> uncheckedLabels = new HashMap<>();
+            for ( AbstractInsnNode insn = instructions.getFirst() ; insn != null ; insn = insn.getNext() ) 
+            {
+                if ( insn instanceof LabelNode ) {
+                    uncheckedLabels.put( (LabelNode) insn , new LabelNode() );
+                }
+            }
+
+            final InsnList unchecked = new InsnList();
+            for ( AbstractInsnNode insn = instructions.getFirst() ; insn != null ; insn = insn.getNext() ) {
+                unchecked.add( insn.clone( uncheckedLabels ) );
+            }
+
+            final List<TryCatchBlockNode> newTryCatchBlocks = new ArrayList<>();
+            for ( TryCatchBlockNode block : (List<TryCatchBlockNode>) tryCatchBlocks ) {
+                newTryCatchBlocks.add( new TryCatchBlockNode( uncheckedLabels.get( block.start ) , uncheckedLabels.get( block.end ) , 
+                        uncheckedLabels.get( block.handler ) , block.type ) );
+            }
+            newTryCatchBlocks.addAll( checked.tryCatchBlocks );
+
+            final List<LocalVariableNode> newLocalVariables = new ArrayList<>();
+            for ( LocalVariableNode var : (List<LocalVariableNode>) localVariables ) {
+                newLocalVariables.add( new LocalVariableNode( var.name , var.desc , var.signature , uncheckedLabels.get( var.start ) , 
+                        uncheckedLabels.get( var.end ) , var.index ) );
+            }
+            newLocalVariables.addAll( checked.localVariables );
+
+            // map labels of original code between copies , replaying the original code
+            // assigned a new Label to each LabelNode whose 'info' field now points to the corresponding LabelNode in the checked copy 
+            final Map<LabelNode,LabelNode> checkedToUnchecked = new HashMap<>();
+            final Map<LabelNode,LabelNode> uncheckedToChecked = new HashMap<>();
+            for ( Map.Entry<LabelNode,LabelNode> entry : uncheckedLabels.entrySet() ) 
+            {
+                final LabelNode inChecked = (LabelNode) entry.getKey().getLabel().info;
+                checkedToUnchecked.put( inChecked , entry.getValue() );
+                uncheckedToChecked.put( entry.getValue() , inChecked );
+            }
+
+            final InsnList stubs = new InsnList();
+            redirectBackwardJumps( unchecked , uncheckedToChecked , false , stubs );
+            redirectBackwardJumps( checked.instructions , checkedToUnchecked , true , stubs );
+
+            final LabelNode uncheckedStart = new LabelNode();
+            final LabelNode checkedStart = new LabelNode();
+
+            // ExecutionStatistics $stat = ProfilingSwitch.isEnabled() ? StatisticsManager.getStatistics( METHOD_ID ) : null;
+            final InsnList code = new InsnList();
+            final LabelNode disabled = new LabelNode();
+            final LabelNode store = new LabelNode();
+            code.add( enabledFlagInsn( useInvokeDynamic ) );
+            code.add( new JumpInsnNode( IFEQ , disabled ) );
+            code.add( intInsn( method.getId() ) );
+            code.add( new MethodInsnNode( INVOKESTATIC, STATISTICS_MANAGER, "getStatistics", "(I)"+EXECUTION_STATISTICS_DESC ) );
+            code.add( new JumpInsnNode( GOTO , store ) );
+            code.add( disabled );
+            code.add( new InsnNode( ACONST_NULL ) );
+            code.add( store );
+            code.add( new VarInsnNode( ASTORE , variableSlot ) );
+            addSampleCheck( code , checkedStart , uncheckedStart );
+
+            code.add( uncheckedStart );
+            code.add( unchecked );
+            code.add( checkedStart );
+            code.add( checked.instructions );
+            code.add( stubs );
+
+            instructions = code;
+            tryCatchBlocks = newTryCatchBlocks;
+            localVariables = newLocalVariables;
+            accept( target );
+        }
+
+        // route all backward jumps of one copy through a sample check
+        private void redirectBackwardJumps(InsnList code,Map<LabelNode,LabelNode> otherCopy,boolean isChecked,InsnList stubs) 
+        {
+            final Set<LabelNode> seen = new HashSet<>();
+            for ( AbstractInsnNode insn = code.getFirst() ; insn != null ; insn = insn.getNext() ) 
+            {
+                if ( insn instanceof LabelNode ) {
+                    seen.add( (LabelNode) insn );
+                } 
+                else if ( insn instanceof JumpInsnNode ) 
+                {
+                    final JumpInsnNode jump = (JumpInsnNode) insn;
+                    // jumps introduced by the instrumentation never target labels of the original code
+                    if ( seen.contains( jump.label ) && otherCopy.containsKey( jump.label ) ) 
+                    {
+                        final LabelNode stub = new LabelNode();
+                        final LabelNode checkedTarget = isChecked ? jump.label : otherCopy.get( jump.label );
+                        final LabelNode uncheckedTarget = isChecked ? otherCopy.get( jump.label ) : jump.label;
+                        jump.label = stub;
+                        stubs.add( stub );
+                        addSampleCheck( stubs , checkedTarget , uncheckedTarget );
+                    }
+                }
+            }
+        }
+
+        /*
+         * if ( $stat == null || --$stat.sampleCountdown > 0 ) goto unchecked;
+         * StatisticsManager.sample( $stat );
+         * goto checked;
+         */
+        private void addSampleCheck(InsnList code,LabelNode checked,LabelNode unchecked) 
+        {
+            code.add( new VarInsnNode( ALOAD , variableSlot ) );
+            code.add( new JumpInsnNode( IFNULL , unchecked ) );
+            code.add( new VarInsnNode( ALOAD , variableSlot ) );
+            code.add( new InsnNode( DUP ) );
+            code.add( new FieldInsnNode( GETFIELD , EXECUTION_STATISTICS , "sampleCountdown" , "I" ) );
+            code.add( new InsnNode( ICONST_1 ) );
+            code.add( new InsnNode( ISUB ) );
+            code.add( new InsnNode( DUP_X1 ) );
+            code.add( new FieldInsnNode( PUTFIELD , EXECUTION_STATISTICS , "sampleCountdown" , "I" ) );
+            code.add( new JumpInsnNode( IFGT , unchecked ) );
+            code.add( new VarInsnNode( ALOAD , variableSlot ) );
+            code.add( new MethodInsnNode( INVOKESTATIC , STATISTICS_MANAGER , "sample" , "("+EXECUTION_STATISTICS_DESC+")V" ) );
+            code.add( new JumpInsnNode( GOTO , checked ) );
+        }
+    }
+
+    /**
+     * This visitor generates bytecode at the start of a method that counts the 
+     * invocation and only accounts an estimated number of instructions.
+     * 
+     * <p>The generated byte-code is the equivalent of calling:
+     * 
+     * <pre>
+     *   if ( ProfilingSwitch.isEnabled() ) {
+     *     StatisticsManager.enterEstimatedMethod( METHOD_ID , ESTIMATED_INSTRUCTIONS_PER_INVOCATION );
+     *   }
+     * </pre>
+     * </p>
+     * <p>Since the generated code does not touch <code>this</code>, it is also 
+     * inserted at the very start of constructors.</p>
+     * 
+     * @author tobias.gierke@code-sourcery.de
+     * @see MethodRegistry.Mode#ENTRY_ONLY
+     */
+    protected final class EntryOnlyVisitor extends DeferredMethodVisitor {
 
-            final boolean isConstructor = name.equals("<init>");
-            final LoadVarVisitor visitor2 = new  LoadVarVisitor(new BasicBlockVisitor( result , visitor1 , cfg , slotNr , isConstructor ) , slotNr , isConstructor );
+        private final InstrumentedMethod method;
+        private final boolean useInvokeDynamic;
 
-            visitor1.setDelegate( visitor2 );
-            return visitor1;
+        protected EntryOnlyVisitor(MethodVisitor mv,InstrumentedMethod method,boolean useInvokeDynamic)
+        {
+            super(mv);
+            this.method = method;
+            this.useInvokeDynamic = useInvokeDynamic;
+        }
+
+        @Override
+        public void visitCode()
+        {
+            super.visitCode();
+
+            final Label skip = new Label();
+            pushEnabledFlag( mv , useInvokeDynamic );
+            super.visitJumpInsn(IFEQ, skip);
+            pushInt( mv , method.getId() );
+            pushInt( mv , method.info.getEstimatedInstructionsPerInvocation() );
+            super.visitMethodInsn(INVOKESTATIC, STATISTICS_MANAGER, "enterEstimatedMethod", "(II)V");
+            super.visitLabel( skip );
         }
     }
 
     /**
      * This visitor generates bytecode at the start of a method that loads
-     * the results of calling {@link StatisticsManager#getStatistics()} into a local variable.
+     * the results of calling {@link StatisticsManager#enterMethod(int)} into a local variable.
      * 
      * <p>The generated byte-code is the equivalent of calling:
      * 
      * <pre>
-     *   final ExecutionStatistics $stat = StatisticsManager#getStatistics();
+     *   ExecutionStatistics $stat = ProfilingSwitch.isEnabled() ? StatisticsManager#enterMethod( METHOD_ID ) : null;
      * </pre>
      * </p>
+     * 
+     * <p>When tracking call stacks , the method is also pushed onto the thread's shadow stack and popped 
+     * again before each return and by a catch-all exception handler:</p>
+     * 
+     * <pre>
+     *   int $depth = $stat != null ? StatisticsManager.pushFrame( $stat , METHOD_ID ) : -1;
+     *   try {
+     *     ... 
+     *     if ( $depth &gt;= 0 ) StatisticsManager.popFrames( $stat , $depth );
+     *     return;
+     *   } catch(Throwable t) {
+     *     if ( $depth &gt;= 0 ) StatisticsManager.popFrames( $stat , $depth );
+     *     throw t;
+     *   }
+     * </pre>
+     * 
      * @author tobias.gierke@code-sourcery.de
      */
     protected final class LoadVarVisitor extends DeferredMethodVisitor {
 
         private boolean superConstructorInvoked = false;        
-        private boolean atFirstLabel = true;
 
         private final boolean visitingConstructor;
+        private final boolean useInvokeDynamic;
+        private final boolean trackCallStack;
+        private final int methodId;
         public final int variableSlot;
+        private final int depthSlot;
 
         // scope for our newly introduced variable , required for visitLocalVariable() call later
         private Label scopeStart;
         private Label scopeEnd;           
+        // slots may be declared more than once (variables in disjoint scopes , like the parameters of two catch blocks)
+        private boolean variableDeclared;
 
-        protected LoadVarVisitor(MethodVisitor mv,int variableSlot,boolean visitingConstructor)
+        // start of the range covered by the catch-all handler that pops the shadow stack
+        private Label handlerRangeStart;
+
+        protected LoadVarVisitor(MethodVisitor mv,int methodId,int variableSlot,boolean visitingConstructor,boolean useInvokeDynamic,boolean trackCallStack)
         {
             super(mv);
+            this.methodId = methodId;
             this.variableSlot = variableSlot;
+            this.depthSlot = variableSlot+1;
             this.visitingConstructor = visitingConstructor;
+            this.useInvokeDynamic = useInvokeDynamic;
+            this.trackCallStack = trackCallStack;
         }
 
         @Override
@@ -319,6 +1027,14 @@ public class ProfilingRewriter implements Opcodes
             super.visitCode();
             scopeStart = null;
             scopeEnd = null;            
+            handlerRangeStart = null;
+
+            // if visiting a regular method, we'll insert our code right at the start (and NOT after the
+            // first label since that one might be a jump target)
+            // constructors get special treatment in visitMethodInsn()
+            if ( ! visitingConstructor ) {
+                insertCode();
+            }
         }        
 
         @Override
@@ -337,26 +1053,88 @@ public class ProfilingRewriter implements Opcodes
             }           
             scopeStart = new Label();
             super.visitLabel( scopeStart );
-            super.visitMethodInsn(INVOKESTATIC, "de/codesourcery/asm/profiling/StatisticsManager", "getStatistics", "()Lde/codesourcery/asm/profiling/ExecutionStatistics;");
+
+            final Label disabled = new Label();
+            final Label store = new Label();
+
+            pushEnabledFlag( mv , useInvokeDynamic );
+            super.visitJumpInsn(IFEQ, disabled);
+            pushInt( mv , methodId );
+            super.visitMethodInsn(INVOKESTATIC, STATISTICS_MANAGER, "enterMethod", "(I)Lde/codesourcery/asm/profiling/ExecutionStatistics;");
+            if ( trackCallStack ) 
+            {
+                super.visitInsn(DUP);
+                super.visitVarInsn(ASTORE, variableSlot);
+                pushInt( mv , methodId );
+                super.visitMethodInsn(INVOKESTATIC, STATISTICS_MANAGER, "pushFrame", "("+EXECUTION_STATISTICS_DESC+"I)I");
+                super.visitVarInsn(ISTORE, depthSlot);
+                super.visitJumpInsn(GOTO, store);
+                super.visitLabel(disabled);
+                super.visitInsn(ACONST_NULL);
+                super.visitVarInsn(ASTORE, variableSlot);
+                super.visitInsn(ICONST_M1);
+                super.visitVarInsn(ISTORE, depthSlot);
+                super.visitLabel(store);
+
+                handlerRangeStart = new Label();
+                super.visitLabel(handlerRangeStart);
+                return;
+            }
+            super.visitJumpInsn(GOTO, store);
+            super.visitLabel(disabled);
+            super.visitInsn(ACONST_NULL);
+            super.visitLabel(store);
             super.visitVarInsn(ASTORE, variableSlot);                 
         }
 
+        // if ( $depth >= 0 ) StatisticsManager.popFrames( $stat , $depth ); 
+        private void insertPopFrames() 
+        {
+            final Label skip = new Label();
+            super.visitVarInsn(ILOAD, depthSlot);
+            super.visitJumpInsn(IFLT, skip);
+            super.visitVarInsn(ALOAD, variableSlot);
+            super.visitVarInsn(ILOAD, depthSlot);
+            super.visitMethodInsn(INVOKESTATIC, STATISTICS_MANAGER, "popFrames", "("+EXECUTION_STATISTICS_DESC+"I)V");
+            super.visitLabel(skip);
+        }
+
         @Override
-        public void visitLabel(Label label)
+        public void visitInsn(int opcode)
         {
-            if ( scopeStart == null ) {
-                scopeStart = label;
+            if ( handlerRangeStart != null && opcode >= IRETURN && opcode <= RETURN ) {
+                insertPopFrames();
             }
-            scopeEnd = label;
+            super.visitInsn(opcode);
+        }
 
-            super.visitLabel(label);
+        @Override
+        public void visitMaxs(int maxStack, int maxLocals)
+        {
+            if ( handlerRangeStart != null ) 
+            {
+                // catch-all handler that pops the shadow stack and re-throws , since it gets added last it 
+                // comes after all handlers of the original code in the exception table
+                final Label handlerRangeEnd = new Label();
+                final Label handler = new Label();
+                super.visitLabel(handlerRangeEnd);
+                super.visitLabel(handler);
+                insertPopFrames();
+                super.visitInsn(ATHROW);
+                super.visitTryCatchBlock(handlerRangeStart, handlerRangeEnd, handler, null);
+            }
+            super.visitMaxs(maxStack, maxLocals);
+        }
 
-            // if visiting a regular method, we'll insert our code right after the first label
-            // constructors get special treatment in visitMethodInsn()
-            if ( ! visitingConstructor && atFirstLabel ) {
-                atFirstLabel = false;
-                insertCode();
+        @Override
+        public void visitLabel(Label label)
+        {
+            if ( scopeStart == null ) {
+                scopeStart = label;
             }
+            scopeEnd = label;
+
+            super.visitLabel(label);
         }
 
         @Override
@@ -364,14 +1142,14 @@ public class ProfilingRewriter implements Opcodes
         {
             super.visitLocalVariable(name, desc, signature, start, end, index);
 
-            if ( index == variableSlot-1 ) 
+            if ( index == variableSlot-1 && ! variableDeclared ) 
             {
                 if ( debug ) {
                     System.out.println("DEBUG: >>>>>>>>>>>>>>>>>>> Declaring local variable at slot #"+variableSlot);
                 }                 
                 // signature may be NULL if variable does not use generics
-                String descriptor = Type.getDescriptor( ExecutionStatistics.class );
-                super.visitLocalVariable("$stat", desc, descriptor , scopeStart, scopeEnd , variableSlot); 
+                super.visitLocalVariable("$stat", EXECUTION_STATISTICS_DESC, null , scopeStart, scopeEnd , variableSlot); 
+                variableDeclared = true;
             }
         }        
     }
@@ -381,20 +1159,490 @@ public class ProfilingRewriter implements Opcodes
     protected final class BasicBlockVisitor extends DeferredMethodVisitor 
     {
         private final boolean visitingConstructor;
+        private final boolean useInvokeDynamic;
         private final ControlFlowGraph cfg;
+        private final int methodId;
+        // index of the MONITORENTER that replaced ACC_SYNCHRONIZED or -1
+        private final int monitorEnterIndex;
         private final InstructionCountingVisitor counter;
         private final int variableSlot;
+        private final double instructionScale;
+        private final boolean opcodeHistogram;
+        private final boolean allocationProfiling;
+        private final boolean receiverTypeProfiling;
+        private final boolean monitorProfiling;
+        private final boolean fieldAccessProfiling;
+        private final boolean lineProfiling;
+        private final boolean exceptionProfiling;
+
+        // catch types by index of the first instruction of each exception handler
+        private final Map<Integer,String> handlerEntries = new HashMap<>();
+
+        // loop profiling , see findLoops()
+        private int[] loopIds = new int[0];
+        private int[] loopSlots = new int[0];
+        private final Map<Integer,List<Integer>> loopHeaders = new HashMap<>();
+        private final Map<Integer,List<Integer>> loopExitsBefore = new HashMap<>();
+
+        // path profiling , see findPaths()
+        private int pathSlot = -1;
+        private int pathCounterOffset;
+        private String pathHook;
+        private long pathStartValue;
+        private final Map<Integer,Long> pathEnds = new HashMap<>();
+        private final Map<Integer,Long> pathStarts = new HashMap<>();
+
+        // code to insert on control flow edges , by instruction index and label index (jumps/switches)
+        private final Map<Integer,EdgeProbe> fallThroughProbes = new HashMap<>();
+        private final Map<Integer,Map<Integer,EdgeProbe>> jumpProbes = new HashMap<>();
+        private final List<EdgeTrampoline> trampolines = new ArrayList<>();
+        private EdgeProbe pendingProbe;
+
+        // first local variable slot available for temporary values
+        private final int tempSlot;
 
         private boolean superConstructorCallSeen = false;
 
         protected BasicBlockVisitor(MethodVisitor mv,InstructionCountingVisitor instructionCounter,
-                ControlFlowGraph cfg,int variableSlot,boolean visitingConstructor)
+                InstrumentedMethod method,int variableSlot,boolean visitingConstructor,boolean useInvokeDynamic,double instructionScale)
         {
             super(mv);
             this.counter = instructionCounter;
-            this.cfg = cfg;
+            this.cfg = method.cfg;
+            this.methodId = method.getId();
+            this.monitorEnterIndex = method.monitorEnterIndex;
             this.variableSlot = variableSlot;
             this.visitingConstructor = visitingConstructor;
+            this.useInvokeDynamic = useInvokeDynamic;
+            this.instructionScale = instructionScale;
+            this.opcodeHistogram = StatisticsManager.isOpcodeHistogram();
+            this.allocationProfiling = StatisticsManager.isAllocationProfiling();
+            this.receiverTypeProfiling = StatisticsManager.isReceiverTypeProfiling();
+            this.monitorProfiling = StatisticsManager.isMonitorProfiling();
+            this.fieldAccessProfiling = StatisticsManager.isFieldAccessProfiling();
+            this.lineProfiling = StatisticsManager.isLineProfiling();
+            this.exceptionProfiling = StatisticsManager.isExceptionProfiling();
+            if ( exceptionProfiling ) {
+                findHandlerEntries();
+            }
+            // the checked copy of sampled methods may be entered and left in the middle of a loop
+            if ( StatisticsManager.isLoopProfiling() && instructionScale == 1 && ! containsSubroutines( cfg.getMethod() ) ) {
+                findLoops();
+            }
+            if ( StatisticsManager.isPathProfiling() && instructionScale == 1 && ! containsSubroutines( cfg.getMethod() ) ) {
+                findPaths();
+            }
+            this.tempSlot = variableSlot + 2 + loopSlots.length + ( pathSlot != -1 ? 1 : 0 );
+        }
+
+        /*
+         * Finds all natural loops and determines where loop headers are and where loops are left:
+         * 
+         * - at method entry , a local variable $loop_N = 0 is introduced for each loop
+         * - before the header's first instruction , $loop_N is incremented
+         * - when the loop is left , StatisticsManager.loopExited( $stat , LOOP_ID , $loop_N ) is invoked and $loop_N is reset to 0
+         * 
+         * Loops are left through jumps/switches to blocks outside the loop (these get routed through trampolines at the end of the method),
+         * by falling through to a block outside the loop , by returning from the method or by throwing an exception. Exception
+         * handlers outside the loop report and reset the loop as well (the call is ignored if $loop_N is 0).
+         */
+        private void findLoops() 
+        {
+            final MethodNode method = cfg.getMethod();
+            final LoopAnalyzer analyzer = new LoopAnalyzer( cfg );
+            final List<NaturalLoop> loops = new ArrayList<>();
+            for ( NaturalLoop loop : analyzer.getLoops() ) 
+            {
+                if ( loop.getHeaderInstructionNum( method ) != -1 ) {
+                    loops.add( loop );
+                }
+            }
+            if ( loops.isEmpty() ) {
+                return;
+            }
+
+            loopIds = new int[ loops.size() ];
+            loopSlots = new int[ loops.size() ];
+            for ( int i = 0 ; i < loops.size() ; i++ ) 
+            {
+                final NaturalLoop loop = loops.get( i );
+                final int header = loop.getHeaderInstructionNum( method );
+                loopIds[i] = LoopRegistry.register( methodId , header , lineNumberAt( header ) , loop.getDepth() );
+                loopSlots[i] = variableSlot + 2 + i;
+                getList( loopHeaders , header ).add( i );
+
+                // exception handlers outside the loop
+                for ( IBlock block : loop.getBlocks() ) 
+                {
+                    for ( Edge e : block.getEdges() ) 
+                    {
+                        if ( e.src == block && e.hasType( Edge.EdgeType.CAUGHT_EXCEPTION ) && ! loop.contains( e.dst ) && ! e.dst.getInstructionNums().isEmpty() ) 
+                        {
+                            final List<Integer> list = getList( loopExitsBefore , firstByteCodeInstruction( e.dst.getFirstInstructionNum() ) );
+                            if ( ! list.contains( i ) ) {
+                                list.add( i );
+                            }
+                        }
+                    }
+                }
+            }
+
+            final Map<Integer,IBlock> blocks = getBlocksByInstruction();
+            final InsnList instructions = method.instructions;
+            for ( int index = 0 ; index < instructions.size() ; index++ ) 
+            {
+                final int opcode = instructions.get( index ).getOpcode();
+                if ( ( opcode >= IRETURN && opcode <= RETURN ) || opcode == ATHROW ) 
+                {
+                    for ( int i = 0 ; i < loops.size() ; i++ ) 
+                    {
+                        if ( loops.get( i ).contains( blocks.get( index ) ) ) {
+                            getList( loopExitsBefore , index ).add( i );
+                        }
+                    }
+                }
+            }
+            for ( Transition transition : getTransitions() ) 
+            {
+                if ( instructions.get( transition.index ).getOpcode() < 0 ) {
+                    continue;
+                }
+                final IBlock source = blocks.get( transition.index );
+                final IBlock target = blocks.get( firstByteCodeInstruction( transition.target ) );
+                for ( int i = 0 ; i < loops.size() ; i++ ) 
+                {
+                    if ( loops.get( i ).contains( source ) && ! loops.get( i ).contains( target ) ) {
+                        getProbe( transition ).exitedLoops.add( i );
+                    }
+                }
+            }
+        }
+
+        /*
+         * Numbers all acyclic paths through the method (see PathNumbering) and determines the code to insert:
+         * 
+         * - at method entry , a local variable $path is initialized with the increment of the ENTRY -> first block edge
+         * - on each edge with a non-zero increment , the increment gets added to $path
+         * - on back-edges , StatisticsManager.pathCompleted( $stat , COUNTER_OFFSET , $path + END_INCREMENT ) is invoked and
+         *   $path is set to the start increment of the loop header
+         * - before returning or throwing an exception , StatisticsManager.pathCompleted( $stat , COUNTER_OFFSET , $path + EXIT_INCREMENT ) is invoked
+         * - at the first instruction of each exception handler , $path is set to the start increment of the handler
+         * 
+         * Edges with increments are instrumented just like loop exits (trampolines for jumps , inline code for fall-through).
+         */
+        private void findPaths() 
+        {
+            final PathNumbering numbering = new PathNumbering( cfg );
+            if ( ! numbering.isSupported() || numbering.getPathCount() > Integer.MAX_VALUE ) 
+            {
+                if ( debug ) {
+                    System.out.println("DEBUG: Not profiling paths of "+cfg.getMethod().name+cfg.getMethod().desc+" ("+
+                            ( numbering.isSupported() ? numbering.getPathCount()+" paths" : numbering.getUnsupportedReason() )+")");
+                }
+                return;
+            }
+            
+            final MethodNode method = cfg.getMethod();
+            final Map<Integer,IBlock> blocks = getBlocksByInstruction();
+            final Map<Integer,Long> ends = new HashMap<>();
+            final Map<Integer,Long> starts = new HashMap<>();
+            final Map<Transition,Long> increments = new HashMap<>();
+            final Map<Transition,Long> restarts = new HashMap<>();
+            try 
+            {
+                for ( int index = 0 ; index < method.instructions.size() ; index++ ) 
+                {
+                    final int opcode = method.instructions.get( index ).getOpcode();
+                    if ( ( opcode >= IRETURN && opcode <= RETURN ) || opcode == ATHROW ) {
+                        ends.put( index , numbering.getIncrement( blocks.get( index ) , cfg.getEnd() ) );
+                    }
+                }
+                for ( IBlock handler : numbering.getHandlers() ) {
+                    starts.put( numbering.getFirstByteCodeInstructionNum( handler ) , numbering.getStartIncrement( handler ) );
+                }
+                for ( Transition transition : getTransitions() ) 
+                {
+                    final IBlock source = blocks.get( transition.index );
+                    final IBlock target = blocks.get( transition.target );
+                    if ( source == target && transition.target > transition.index ) {
+                        continue;
+                    }
+                    if ( numbering.isBackEdge( source , target ) ) {
+                        increments.put( transition , numbering.getEndIncrement( source ) );
+                        restarts.put( transition , numbering.getStartIncrement( target ) );
+                    } 
+                    else if ( numbering.getIncrement( source , target ) != 0 ) {
+                        increments.put( transition , numbering.getIncrement( source , target ) );
+                    }
+                }
+            } 
+            catch(IllegalArgumentException e) 
+            {
+                // control flow that does not match the graph (for example unreachable code)
+                if ( debug ) {
+                    System.out.println("DEBUG: Not profiling paths of "+method.name+method.desc+" ("+e.getMessage()+")");
+                }
+                return;
+            }
+
+            final PathRegistry.PathMethod pathMethod = PathRegistry.register( methodId , numbering );
+            pathCounterOffset = pathMethod.getCounterOffset();
+            pathHook = pathMethod.isHashed() ? "hashedPathCompleted" : "pathCompleted";
+            pathSlot = variableSlot + 2 + loopSlots.length;
+            pathStartValue = numbering.getIncrement( cfg.getStart() , cfg.getStart().getRegularSuccessor() );
+            pathEnds.putAll( ends );
+            pathStarts.putAll( starts );
+            for ( Map.Entry<Transition,Long> entry : increments.entrySet() ) 
+            {
+                final EdgeProbe probe = getProbe( entry.getKey() );
+                probe.pathIncrement = entry.getValue();
+                if ( restarts.containsKey( entry.getKey() ) ) {
+                    probe.pathRestart = true;
+                    probe.pathStartValue = restarts.get( entry.getKey() );
+                }
+            }
+        }
+
+        private Map<Integer,IBlock> getBlocksByInstruction() 
+        {
+            final Map<Integer,IBlock> result = new HashMap<>();
+            for ( IBlock block : cfg.getAllNodes() ) 
+            {
+                for ( Integer index : block.getInstructionNums() ) {
+                    result.put( index , block );
+                }
+            }
+            return result;
+        }
+
+        // returns all jumps , switch cases and fall-through transitions between instructions
+        private List<Transition> getTransitions() 
+        {
+            final List<Transition> result = new ArrayList<>();
+            final InsnList instructions = cfg.getMethod().instructions;
+            for ( int index = 0 ; index < instructions.size() ; index++ ) 
+            {
+                final AbstractInsnNode insn = instructions.get( index );
+                final int opcode = insn.getOpcode();
+                if ( insn instanceof JumpInsnNode ) {
+                    result.add( new Transition( index , 0 , instructions.indexOf( ((JumpInsnNode) insn).label ) ) );
+                } 
+                else if ( insn instanceof TableSwitchInsnNode ) 
+                {
+                    final TableSwitchInsnNode tableSwitch = (TableSwitchInsnNode) insn;
+                    result.add( new Transition( index , 0 , instructions.indexOf( tableSwitch.dflt ) ) );
+                    for ( int i = 0 ; i < tableSwitch.labels.size() ; i++ ) {
+                        result.add( new Transition( index , i+1 , instructions.indexOf( (LabelNode) tableSwitch.labels.get( i ) ) ) );
+                    }
+                } 
+                else if ( insn instanceof LookupSwitchInsnNode ) 
+                {
+                    final LookupSwitchInsnNode lookupSwitch = (LookupSwitchInsnNode) insn;
+                    result.add( new Transition( index , 0 , instructions.indexOf( lookupSwitch.dflt ) ) );
+                    for ( int i = 0 ; i < lookupSwitch.labels.size() ; i++ ) {
+                        result.add( new Transition( index , i+1 , instructions.indexOf( (LabelNode) lookupSwitch.labels.get( i ) ) ) );
+                    }
+                }
+                final boolean unconditional = opcode == GOTO || opcode == ATHROW || ( opcode >= IRETURN && opcode <= RETURN ) || 
+                        insn instanceof TableSwitchInsnNode || insn instanceof LookupSwitchInsnNode;
+                if ( ! unconditional && index + 1 < instructions.size() ) {
+                    result.add( new Transition( index , Transition.FALL_THROUGH , index + 1 ) );
+                }
+            }
+            return result;
+        }
+
+        private EdgeProbe getProbe(Transition transition) 
+        {
+            if ( transition.labelIndex == Transition.FALL_THROUGH ) 
+            {
+                EdgeProbe result = fallThroughProbes.get( transition.index );
+                if ( result == null ) {
+                    result = new EdgeProbe();
+                    fallThroughProbes.put( transition.index , result );
+                }
+                return result;
+            }
+            Map<Integer,EdgeProbe> map = jumpProbes.get( transition.index );
+            if ( map == null ) {
+                map = new HashMap<>();
+                jumpProbes.put( transition.index , map );
+            }
+            EdgeProbe result = map.get( transition.labelIndex );
+            if ( result == null ) {
+                result = new EdgeProbe();
+                map.put( transition.labelIndex , result );
+            }
+            return result;
+        }
+
+        private int firstByteCodeInstruction(int start) 
+        {
+            final InsnList instructions = cfg.getMethod().instructions;
+            for ( int index = start ; index < instructions.size() ; index++ ) 
+            {
+                if ( instructions.get( index ).getOpcode() >= 0 ) {
+                    return index;
+                }
+            }
+            return -1;
+        }
+
+        private List<Integer> getList(Map<Integer,List<Integer>> map,int key) 
+        {
+            List<Integer> result = map.get( key );
+            if ( result == null ) {
+                result = new ArrayList<>();
+                map.put( key , result );
+            }
+            return result;
+        }
+
+        /*
+         * For each loop: 
+         * 
+         * if ( ProfilingSwitch.isEnabled() ) {
+         *   StatisticsManager.loopExited( $stat , LOOP_ID , $loop_N );
+         * }
+         * $loop_N = 0;
+         */
+        private void insertLoopExit(List<Integer> loops,boolean statAssigned) 
+        {
+            for ( int loop : loops ) 
+            {
+                if ( statAssigned ) 
+                {
+                    final Label skip = new Label();
+                    pushEnabledFlag( mv , useInvokeDynamic );
+                    super.visitJumpInsn(IFEQ, skip);
+                    super.visitVarInsn(ALOAD, variableSlot);
+                    pushInt( mv , loopIds[ loop ] );
+                    super.visitVarInsn(ILOAD, loopSlots[ loop ]);
+                    super.visitMethodInsn(INVOKESTATIC, STATISTICS_MANAGER, "loopExited", "("+EXECUTION_STATISTICS_DESC+"II)V");
+                    super.visitLabel( skip );
+                }
+                super.visitInsn(ICONST_0);
+                super.visitVarInsn(ISTORE, loopSlots[ loop ]);
+            }
+        }
+
+        /*
+         * if ( ProfilingSwitch.isEnabled() ) {
+         *   StatisticsManager.pathCompleted( $stat , COUNTER_OFFSET , $path + increment );
+         * }
+         */
+        private void insertPathCompleted(long increment,boolean statAssigned) 
+        {
+            if ( ! statAssigned ) {
+                return;
+            }
+            final Label skip = new Label();
+            pushEnabledFlag( mv , useInvokeDynamic );
+            super.visitJumpInsn(IFEQ, skip);
+            super.visitVarInsn(ALOAD, variableSlot);
+            pushInt( mv , pathCounterOffset );
+            super.visitVarInsn(ILOAD, pathSlot);
+            if ( increment != 0 ) {
+                pushInt( mv , (int) increment );
+                super.visitInsn(IADD);
+            }
+            super.visitMethodInsn(INVOKESTATIC, STATISTICS_MANAGER, pathHook , "("+EXECUTION_STATISTICS_DESC+"II)V");
+            super.visitLabel( skip );
+        }
+
+        // path numbers never exceed Integer.MAX_VALUE , so (possibly negative) intermediate values may safely wrap around
+        private void insertPathIncrement(long increment) 
+        {
+            final int value = (int) increment;
+            if ( value >= Short.MIN_VALUE && value <= Short.MAX_VALUE ) {
+                super.visitIincInsn( pathSlot , value );
+            } else {
+                super.visitVarInsn(ILOAD, pathSlot);
+                pushInt( mv , value );
+                super.visitInsn(IADD);
+                super.visitVarInsn(ISTORE, pathSlot);
+            }
+        }
+
+        private void insertProbe(EdgeProbe probe,boolean statAssigned) 
+        {
+            insertLoopExit( probe.exitedLoops , statAssigned );
+            if ( probe.pathRestart ) {
+                insertPathCompleted( probe.pathIncrement , statAssigned );
+                pushInt( mv , (int) probe.pathStartValue );
+                super.visitVarInsn(ISTORE, pathSlot);
+            } 
+            else if ( probe.pathIncrement != 0 ) {
+                insertPathIncrement( probe.pathIncrement );
+            }
+        }
+
+        // returns the label a jump/switch should use , routing edges with probes through a trampoline
+        private Label probedJumpTarget(int labelIndex,Label target) 
+        {
+            final Map<Integer,EdgeProbe> probes = jumpProbes.get( currentInstructionNum() );
+            if ( probes == null || ! probes.containsKey( labelIndex ) ) {
+                return target;
+            }
+            final EdgeTrampoline trampoline = new EdgeTrampoline( target , probes.get( labelIndex ) , isStatAssigned() );
+            trampolines.add( trampoline );
+            return trampoline.label;
+        }
+
+        @Override
+        public void visitCode()
+        {
+            super.visitCode();
+            for ( int slot : loopSlots ) 
+            {
+                super.visitInsn(ICONST_0);
+                super.visitVarInsn(ISTORE, slot);
+            }
+            if ( pathSlot != -1 ) {
+                pushInt( mv , (int) pathStartValue );
+                super.visitVarInsn(ISTORE, pathSlot);
+            }
+        }
+
+        @Override
+        public void visitMaxs(int maxStack, int maxLocals)
+        {
+            if ( pendingProbe != null ) {
+                insertProbe( pendingProbe , isStatAssigned() );
+                pendingProbe = null;
+            }
+            for ( EdgeTrampoline trampoline : trampolines ) 
+            {
+                super.visitLabel( trampoline.label );
+                insertProbe( trampoline.probe , trampoline.statAssigned );
+                super.visitJumpInsn(GOTO, trampoline.target);
+            }
+            trampolines.clear();
+            super.visitMaxs(maxStack, maxLocals);
+        }
+
+        @SuppressWarnings("unchecked")
+        private void findHandlerEntries() 
+        {
+            final MethodNode method = cfg.getMethod();
+            for ( TryCatchBlockNode tcb : (List<TryCatchBlockNode>) method.tryCatchBlocks ) 
+            {
+                AbstractInsnNode first = tcb.handler;
+                while ( first != null && first.getOpcode() < 0 ) {
+                    first = first.getNext();
+                }
+                if ( first == null ) {
+                    continue;
+                }
+                final int index = method.instructions.indexOf( first );
+                final String type = tcb.type != null ? tcb.type : ExceptionSiteRegistry.ANY;
+                final String existing = handlerEntries.get( index );
+                if ( existing == null ) {
+                    handlerEntries.put( index , type );
+                } else if ( ! ( "|"+existing+"|" ).contains( "|"+type+"|" ) ) {
+                    handlerEntries.put( index , existing+"|"+type ); // multi-catch
+                }
+            }
         }
 
         protected int currentInstructionNum() {
@@ -404,6 +1652,34 @@ public class ProfilingRewriter implements Opcodes
         private void maybeInsertCode() 
         {
             final int insnNum = currentInstructionNum();
+
+            if ( pendingProbe != null ) {
+                insertProbe( pendingProbe , isStatAssigned() );
+                pendingProbe = null;
+            }
+            if ( loopExitsBefore.containsKey( insnNum ) ) {
+                insertLoopExit( loopExitsBefore.get( insnNum ) , isStatAssigned() );
+            }
+            if ( pathEnds.containsKey( insnNum ) ) {
+                insertPathCompleted( pathEnds.get( insnNum ) , isStatAssigned() );
+            }
+            if ( pathStarts.containsKey( insnNum ) ) {
+                pushInt( mv , pathStarts.get( insnNum ).intValue() );
+                super.visitVarInsn(ISTORE, pathSlot);
+            }
+            if ( loopHeaders.containsKey( insnNum ) ) 
+            {
+                for ( int loop : loopHeaders.get( insnNum ) ) {
+                    super.visitIincInsn( loopSlots[ loop ] , 1 );
+                }
+            }
+            // emitted right after the current instruction (before the next label or instruction)
+            pendingProbe = fallThroughProbes.get( insnNum );
+
+            if ( exceptionProfiling && isStatAssigned() && handlerEntries.containsKey( insnNum ) ) {
+                insertExceptionCount( "caught" , ExceptionSiteRegistry.registerHandler( methodId , insnNum , currentLineNumber() , 
+                        handlerEntries.get( insnNum ) , instructionScale != 1 ) );
+            }
             final IBlock block = cfg.getBlockForInstruction( insnNum );
 
             if ( block == null ) {
@@ -447,22 +1723,42 @@ public class ProfilingRewriter implements Opcodes
          * 
          * <pre>
          *   // hint: the $stat variable has already been declared at the start of the method
-         *   $stat.executedInstructionCount += &lt;Number of instructions in upcoming block&gt;;
-         *   if ( $stat.executedInstructionCount >= 0 ) {
-         *       StatisticsManager.account();
-         *   }         
+         *   if ( ProfilingSwitch.isEnabled() ) 
+         *   {
+         *     if ( $stat == null ) {
+         *       $stat = StatisticsManager.getStatistics( METHOD_ID );
+         *     }
+         *     $stat.executedInstructionCount += &lt;Cost of instructions in upcoming block&gt;;
+         *     $stat.methodCounters[ METHOD_ID*3 + SLOT_PROBES ] += 1;
+         *     $stat.methodCounters[ METHOD_ID*3 + SLOT_INSTRUCTIONS ] += &lt;Cost of instructions in upcoming block&gt;;
+         *     $stat.opcodeHistogram[ OpcodeClass.XXX ] += &lt;Number of instructions of this class in upcoming block&gt;; // if enabled , once per class
+         *     if ( $stat.executedInstructionCount >= 0 ) {
+         *         StatisticsManager.account();
+         *     }         
+         *   }
          * </pre>
          * 
          * </p>
+         * <p>The cost of a block is the number of instructions it contains unless a non-uniform {@link OpcodeCostModel} is used.</p>
+         * 
          * @param block block that will begin on the next instruction
          */
         private void insertCode(IBlock block) 
         {
-        	// note: local variable @ #variableSlot is already initialized with reference to the
-        	// current thread's ExecutionStatistics instance here
+            final Label rest = new Label(); // label used to jump to the actual start of the current control block
 
-            //            mv.visitMethodInsn(INVOKESTATIC, "de/codesourcery/asm/profiling/StatisticsManager", "getStatistics", "()Lde/codesourcery/asm/profiling/ExecutionStatistics;");
-            //            mv.visitVarInsn(ASTORE, variableSlot);              
+            // skip everything if profiling is switched off
+            pushEnabledFlag( mv , useInvokeDynamic );
+            super.visitJumpInsn(IFEQ, rest);
+
+        	// local variable @ #variableSlot is NULL if profiling was switched off when the method was entered
+            final Label loaded = new Label();
+            super.visitVarInsn(ALOAD, variableSlot);
+            super.visitJumpInsn(IFNONNULL, loaded);
+            pushInt( mv , methodId );
+            super.visitMethodInsn(INVOKESTATIC, STATISTICS_MANAGER, "getStatistics", "(I)Lde/codesourcery/asm/profiling/ExecutionStatistics;");
+            super.visitVarInsn(ASTORE, variableSlot);              
+            super.visitLabel(loaded);
 
             // push reference to ExecutionStatistics on stack & duplicate it   
             super.visitVarInsn(ALOAD, variableSlot);
@@ -474,17 +1770,11 @@ public class ProfilingRewriter implements Opcodes
              * ExecutionStatistics 
              */
             // fetch the current value of ExecutionStatistics#executedInstructionCount and put it on the stack
-            super.visitFieldInsn(GETFIELD, "de/codesourcery/asm/profiling/ExecutionStatistics", "executedInstructionCount", "I");
-
-            // push the number of instructions in this block onto the stack
-            final int insCount = block.getByteCodeInstructionCount(cfg.getMethod() );
-            if ( insCount <= Byte.MAX_VALUE ) {
-            	super.visitIntInsn(BIPUSH , insCount );
-            } else if ( insCount <= Short.MAX_VALUE ) {
-            	super.visitIntInsn(SIPUSH , insCount );
-            } else {
-            	super.visitLdcInsn( insCount );
-            }
+            super.visitFieldInsn(GETFIELD, EXECUTION_STATISTICS, "executedInstructionCount", "I");
+
+            // push the (weighted) number of instructions in this block onto the stack (scaled if this is the checked copy of a sampled method)
+            final int insCount = costModel.getBlockCost( block , cfg.getMethod() );
+            pushInt( mv , (int) Math.round( insCount * instructionScale ) );
 
             /* Stack is now:
              * 
@@ -503,10 +1793,32 @@ public class ProfilingRewriter implements Opcodes
              */              
 
             // update ExecutionStatistics#executedInstructionCount (pops value off the stack)
-            super.visitFieldInsn(PUTFIELD, "de/codesourcery/asm/profiling/ExecutionStatistics", "executedInstructionCount", "I");
+            super.visitFieldInsn(PUTFIELD, EXECUTION_STATISTICS, "executedInstructionCount", "I");
+
+            // *** stack is now empty again ***
+
+            // update per-method counters
+            final int counterBase = methodId * ExecutionStatistics.METHOD_COUNTER_SLOTS;
+            super.visitVarInsn(ALOAD, variableSlot);
+            super.visitFieldInsn(GETFIELD, EXECUTION_STATISTICS, "methodCounters", "[J");
+            super.visitInsn(DUP);
+            addToLongArray( mv , counterBase + ExecutionStatistics.SLOT_PROBES , 1 );
+            addToLongArray( mv , counterBase + ExecutionStatistics.SLOT_INSTRUCTIONS , insCount );
 
             // *** stack is now empty again ***
 
+            if ( opcodeHistogram ) {
+                insertHistogramUpdate( block );
+            }
+
+            if ( fieldAccessProfiling ) {
+                insertFieldAccessCount( block );
+            }
+
+            if ( lineProfiling ) {
+                insertLineCount( block );
+            }
+
             // put ExecutionStatistics reference on stack 
             super.visitVarInsn(ALOAD, variableSlot);
 
@@ -516,31 +1828,336 @@ public class ProfilingRewriter implements Opcodes
              */
 
             // read updated ExecutionStatistics#executedInstructionCount and put it on the stack
-            super.visitFieldInsn(GETFIELD, "de/codesourcery/asm/profiling/ExecutionStatistics", "executedInstructionCount", "I");
+            super.visitFieldInsn(GETFIELD, EXECUTION_STATISTICS, "executedInstructionCount", "I");
 
             /* Stack is now:
              * 
              * ExecutionStatistics#executedInstructionCount 
              */
 
-            final Label rest = new Label(); // label used to jump to the actual start of the current control block
-            
             // conditional branch , do NOT invoke StatisticsManager#account() if value on stack is less than zero ( < 0 )
             super.visitJumpInsn(IFLT, rest);
 
             // *** stack is now empty again ***
 
             // invoke StatisticsManager#account()
-            super.visitMethodInsn(INVOKESTATIC, "de/codesourcery/asm/profiling/StatisticsManager", "account", "()V");
+            super.visitMethodInsn(INVOKESTATIC, STATISTICS_MANAGER, "account", "()V");
 
             // assign location to label
             super.visitLabel(rest);
         }
 
+        // adds the per-class instruction counts of a block to ExecutionStatistics#opcodeHistogram
+        private void insertHistogramUpdate(IBlock block) 
+        {
+            final long[] counts = new long[ OpcodeClass.count() ];
+            int index = 0;
+            for ( AbstractInsnNode insn = cfg.getMethod().instructions.getFirst() ; insn != null ; insn = insn.getNext() , index++ )
+            {
+                if ( insn.getOpcode() >= 0 && block.containsInstructionNum( index ) ) {
+                    counts[ OpcodeClass.classify( insn.getOpcode() ).ordinal() ]++;
+                }
+            }
+
+            final List<Integer> classes = new ArrayList<>();
+            for ( int i = 0 ; i < counts.length ; i++ ) 
+            {
+                if ( counts[i] != 0 ) {
+                    classes.add( i );
+                }
+            }
+            if ( classes.isEmpty() ) {
+                return;
+            }
+
+            super.visitVarInsn(ALOAD, variableSlot);
+            super.visitFieldInsn(GETFIELD, EXECUTION_STATISTICS, "opcodeHistogram", "[J");
+            for ( int i = 0 ; i < classes.size() ; i++ ) 
+            {
+                if ( i < classes.size() - 1 ) {
+                    super.visitInsn(DUP);
+                }
+                final int clazz = classes.get( i );
+                addToLongArray( mv , clazz , Math.round( counts[ clazz ] * instructionScale ) );
+            }
+        }
+
+        /*
+         * Registers the fields accessed by a block and counts the block's execution:
+         * 
+         * StatisticsManager.fieldsAccessed( $stat , BLOCK_ID );
+         */
+        private void insertFieldAccessCount(IBlock block) 
+        {
+            final List<Integer> fieldIds = new ArrayList<>();
+            final List<int[]> counts = new ArrayList<>(); // [ reads , writes ] , indexed like fieldIds
+            int index = 0;
+            for ( AbstractInsnNode insn = cfg.getMethod().instructions.getFirst() ; insn != null ; insn = insn.getNext() , index++ )
+            {
+                if ( insn instanceof FieldInsnNode && block.containsInstructionNum( index ) ) 
+                {
+                    final FieldInsnNode field = (FieldInsnNode) insn;
+                    final boolean isStatic = field.getOpcode() == GETSTATIC || field.getOpcode() == PUTSTATIC;
+                    final int fieldId = FieldAccessRegistry.registerField( field.owner , field.name , field.desc , isStatic );
+                    int pos = fieldIds.indexOf( fieldId );
+                    if ( pos == -1 ) {
+                        pos = fieldIds.size();
+                        fieldIds.add( fieldId );
+                        counts.add( new int[2] );
+                    }
+                    counts.get( pos )[ field.getOpcode() == GETFIELD || field.getOpcode() == GETSTATIC ? 0 : 1 ]++;
+                }
+            }
+            if ( fieldIds.isEmpty() ) {
+                return;
+            }
+
+            final int[] ids = new int[ fieldIds.size() ];
+            final int[] reads = new int[ ids.length ];
+            final int[] writes = new int[ ids.length ];
+            for ( int i = 0 ; i < ids.length ; i++ ) {
+                ids[i] = fieldIds.get( i );
+                reads[i] = counts.get( i )[0];
+                writes[i] = counts.get( i )[1];
+            }
+            final int blockId = FieldAccessRegistry.registerBlock( methodId , block.getFirstByteCodeInstructionNum( cfg.getMethod() ) , 
+                    ids , reads , writes , instructionScale != 1 );
+
+            super.visitVarInsn(ALOAD, variableSlot);
+            pushInt( mv , blockId );
+            super.visitMethodInsn(INVOKESTATIC, STATISTICS_MANAGER, "fieldsAccessed", "("+EXECUTION_STATISTICS_DESC+"I)V");
+        }
+
+        /*
+         * Registers the per-line costs of a block and counts the block's execution:
+         * 
+         * StatisticsManager.linesExecuted( $stat , BLOCK_ID );
+         */
+        private void insertLineCount(IBlock block) 
+        {
+            final List<Integer> lines = new ArrayList<>();
+            final List<Integer> costs = new ArrayList<>(); // indexed like lines
+            int index = 0;
+            for ( AbstractInsnNode insn = cfg.getMethod().instructions.getFirst() ; insn != null ; insn = insn.getNext() , index++ )
+            {
+                if ( insn.getOpcode() < 0 || ! block.containsInstructionNum( index ) ) {
+                    continue;
+                }
+                final int line = lineNumberAt( index );
+                if ( line < 0 ) {
+                    continue;
+                }
+                final int pos = lines.indexOf( line );
+                if ( pos == -1 ) {
+                    lines.add( line );
+                    costs.add( costModel.getCost( insn.getOpcode() ) );
+                } else {
+                    costs.set( pos , costs.get( pos ) + costModel.getCost( insn.getOpcode() ) );
+                }
+            }
+            if ( lines.isEmpty() ) {
+                return;
+            }
+
+            final int[] lineNumbers = new int[ lines.size() ];
+            final int[] lineCosts = new int[ lineNumbers.length ];
+            for ( int i = 0 ; i < lineNumbers.length ; i++ ) {
+                lineNumbers[i] = lines.get( i );
+                lineCosts[i] = costs.get( i );
+            }
+            final int blockId = LineRegistry.registerBlock( methodId , block.getFirstByteCodeInstructionNum( cfg.getMethod() ) , 
+                    lineNumbers , lineCosts , instructionScale != 1 );
+
+            super.visitVarInsn(ALOAD, variableSlot);
+            pushInt( mv , blockId );
+            super.visitMethodInsn(INVOKESTATIC, STATISTICS_MANAGER, "linesExecuted", "("+EXECUTION_STATISTICS_DESC+"I)V");
+        }
+
+        // $stat is not assigned before the super constructor call
+        private boolean isStatAssigned() {
+            return ! visitingConstructor || superConstructorCallSeen;
+        }
+
+        private boolean countAllocations() {
+            return allocationProfiling && isStatAssigned();
+        }
+
+        // returns the source line of the current instruction or -1
+        private int currentLineNumber() {
+            return lineNumberAt( currentInstructionNum() );
+        }
+
+        // returns the source line of an instruction or -1
+        private int lineNumberAt(int index) 
+        {
+            for ( AbstractInsnNode insn = cfg.getMethod().instructions.get( index ) ; insn != null ; insn = insn.getPrevious() ) 
+            {
+                if ( insn instanceof LineNumberNode ) {
+                    return ((LineNumberNode) insn).line;
+                }
+            }
+            return -1;
+        }
+
+        /*
+         * Registers the allocation site at the current instruction and returns its counter offset.
+         */
+        private int registerAllocationSite(int opcode,String type) 
+        {
+            return AllocationSiteRegistry.register( methodId , currentInstructionNum() , currentLineNumber() , opcode , type , 
+                    instructionScale != 1 ).getCounterOffset();
+        }
+
+        /*
+         * Inserted before INVOKEVIRTUAL / INVOKEINTERFACE , arguments are moved to temporary 
+         * local variables (starting after $stat and $depth) to get at the receiver:
+         * 
+         * if ( ProfilingSwitch.isEnabled() ) {
+         *   $argN = ...; ... $arg1 = ...;
+         *   StatisticsManager.receiver( receiver , $stat , SITE_ID );
+         *   // push $arg1 ... $argN 
+         * }
+         */
+        private void insertReceiverProfile(int opcode, String owner, String name, String desc) 
+        {
+            final int siteId = CallSiteRegistry.register( methodId , currentInstructionNum() , currentLineNumber() , opcode , owner , name , desc , 
+                    instructionScale != 1 );
+
+            final Type[] args = Type.getArgumentTypes( desc );
+            final int[] slots = new int[ args.length ];
+            int nextSlot = tempSlot;
+            for ( int i = 0 ; i < args.length ; i++ ) {
+                slots[i] = nextSlot;
+                nextSlot += args[i].getSize();
+            }
+
+            final Label skip = new Label();
+            pushEnabledFlag( mv , useInvokeDynamic );
+            super.visitJumpInsn(IFEQ, skip);
+            for ( int i = args.length - 1 ; i >= 0 ; i-- ) {
+                super.visitVarInsn( args[i].getOpcode( ISTORE ) , slots[i] );
+            }
+            super.visitInsn(DUP);
+            super.visitVarInsn(ALOAD, variableSlot);
+            pushInt( mv , siteId );
+            super.visitMethodInsn(INVOKESTATIC, STATISTICS_MANAGER, "receiver", "(Ljava/lang/Object;"+EXECUTION_STATISTICS_DESC+"I)V");
+            for ( int i = 0 ; i < args.length ; i++ ) {
+                super.visitVarInsn( args[i].getOpcode( ILOAD ) , slots[i] );
+            }
+            super.visitLabel( skip );
+        }
+
+        /*
+         * Inserted before NEW:
+         * 
+         * if ( ProfilingSwitch.isEnabled() ) {
+         *   StatisticsManager.allocated( $stat , COUNTER_OFFSET );
+         * }
+         */
+        private void insertAllocationCount(String type) 
+        {
+            final Label skip = new Label();
+            pushEnabledFlag( mv , useInvokeDynamic );
+            super.visitJumpInsn(IFEQ, skip);
+            super.visitVarInsn(ALOAD, variableSlot);
+            pushInt( mv , registerAllocationSite( NEW , type ) );
+            super.visitMethodInsn(INVOKESTATIC, STATISTICS_MANAGER, "allocated", "("+EXECUTION_STATISTICS_DESC+"I)V");
+            super.visitLabel( skip );
+        }
+
+        /*
+         * Inserted after array allocations (array reference is on top of the stack):
+         * 
+         * if ( ProfilingSwitch.isEnabled() ) {
+         *   StatisticsManager.arrayAllocated( array.length , $stat , COUNTER_OFFSET );
+         * }
+         */
+        private void insertArrayAllocationCount(int counterOffset) 
+        {
+            final Label skip = new Label();
+            pushEnabledFlag( mv , useInvokeDynamic );
+            super.visitJumpInsn(IFEQ, skip);
+            super.visitInsn(DUP);
+            super.visitInsn(ARRAYLENGTH);
+            super.visitVarInsn(ALOAD, variableSlot);
+            pushInt( mv , counterOffset );
+            super.visitMethodInsn(INVOKESTATIC, STATISTICS_MANAGER, "arrayAllocated", "(I"+EXECUTION_STATISTICS_DESC+"I)V");
+            super.visitLabel( skip );
+        }
+
+        /*
+         * Replaces MONITORENTER (monitor object is on top of the stack):
+         * 
+         * $start = ProfilingSwitch.isEnabled() ? System.nanoTime() : StatisticsManager.NO_TIMESTAMP;
+         * MONITORENTER
+         * if ( ProfilingSwitch.isEnabled() ) {
+         *   StatisticsManager.monitorAcquired( $stat , $start , SITE_ID );
+         * }
+         */
+        private void insertTimedMonitorEnter() 
+        {
+            final int siteId;
+            if ( currentInstructionNum() == monitorEnterIndex ) {
+                siteId = MonitorSiteRegistry.registerTimedSynchronizedMethod( methodId , instructionScale != 1 );
+            } else {
+                siteId = MonitorSiteRegistry.register( methodId , currentInstructionNum() , currentLineNumber() , instructionScale != 1 );
+            }
+            final int startSlot = tempSlot;
+
+            final Label noTimestamp = new Label();
+            final Label timestampDone = new Label();
+            pushEnabledFlag( mv , useInvokeDynamic );
+            super.visitJumpInsn(IFEQ, noTimestamp);
+            super.visitMethodInsn(INVOKESTATIC, "java/lang/System", "nanoTime", "()J");
+            super.visitJumpInsn(GOTO, timestampDone);
+            super.visitLabel( noTimestamp );
+            super.visitLdcInsn( Long.valueOf( StatisticsManager.NO_TIMESTAMP ) );
+            super.visitLabel( timestampDone );
+            super.visitVarInsn(LSTORE, startSlot);
+
+            super.visitInsn(MONITORENTER);
+
+            final Label skip = new Label();
+            pushEnabledFlag( mv , useInvokeDynamic );
+            super.visitJumpInsn(IFEQ, skip);
+            super.visitVarInsn(ALOAD, variableSlot);
+            super.visitVarInsn(LLOAD, startSlot);
+            pushInt( mv , siteId );
+            super.visitMethodInsn(INVOKESTATIC, STATISTICS_MANAGER, "monitorAcquired", "("+EXECUTION_STATISTICS_DESC+"JI)V");
+            super.visitLabel( skip );
+        }
+
+        /*
+         * Inserted at the start of exception handlers and before ATHROW (exception is on top of the stack):
+         * 
+         * if ( ProfilingSwitch.isEnabled() ) {
+         *   StatisticsManager.caught( exception , $stat , SITE_ID ); // or thrown()
+         * }
+         */
+        private void insertExceptionCount(String method,int siteId) 
+        {
+            final Label skip = new Label();
+            pushEnabledFlag( mv , useInvokeDynamic );
+            super.visitJumpInsn(IFEQ, skip);
+            super.visitInsn(DUP);
+            super.visitVarInsn(ALOAD, variableSlot);
+            pushInt( mv , siteId );
+            super.visitMethodInsn(INVOKESTATIC, STATISTICS_MANAGER, method, "(Ljava/lang/Object;"+EXECUTION_STATISTICS_DESC+"I)V");
+            super.visitLabel( skip );
+        }
+
         @Override
         public void visitInsn(int opcode)
         {
             maybeInsertCode();
+            if ( exceptionProfiling && opcode == ATHROW && isStatAssigned() ) {
+                insertExceptionCount( "thrown" , ExceptionSiteRegistry.registerThrow( methodId , currentInstructionNum() , currentLineNumber() , 
+                        instructionScale != 1 ) );
+            }
+            if ( monitorProfiling && opcode == MONITORENTER && isStatAssigned() ) {
+                insertTimedMonitorEnter();
+                return;
+            }
             super.visitInsn(opcode);
         }
 
@@ -548,6 +2165,13 @@ public class ProfilingRewriter implements Opcodes
         public void visitIntInsn(int opcode, int operand)
         {
             maybeInsertCode();
+            if ( countAllocations() && opcode == NEWARRAY ) 
+            {
+                final int offset = registerAllocationSite( opcode , "["+primitiveArrayType( operand ) );
+                super.visitIntInsn(opcode, operand);
+                insertArrayAllocationCount( offset );
+                return;
+            }
             super.visitIntInsn(opcode, operand);
         }
 
@@ -562,6 +2186,16 @@ public class ProfilingRewriter implements Opcodes
         public void visitTypeInsn(int opcode, String type)
         {
             maybeInsertCode();
+            if ( countAllocations() && opcode == NEW ) {
+                insertAllocationCount( type );
+            } 
+            else if ( countAllocations() && opcode == ANEWARRAY ) 
+            {
+                final int offset = registerAllocationSite( opcode , type );
+                super.visitTypeInsn(opcode, type);
+                insertArrayAllocationCount( offset );
+                return;
+            }
             super.visitTypeInsn(opcode, type);
         }
 
@@ -576,6 +2210,9 @@ public class ProfilingRewriter implements Opcodes
         public void visitMethodInsn(int opcode, String owner, String name, String desc)
         {
             maybeInsertCode();
+            if ( receiverTypeProfiling && isStatAssigned() && ( opcode == INVOKEVIRTUAL || opcode == INVOKEINTERFACE ) ) {
+                insertReceiverProfile( opcode , owner , name , desc );
+            }
             super.visitMethodInsn(opcode, owner, name, desc);
         }
 
@@ -590,7 +2227,7 @@ public class ProfilingRewriter implements Opcodes
         public void visitJumpInsn(int opcode, Label label)
         {
             maybeInsertCode();
-            super.visitJumpInsn(opcode, label);
+            super.visitJumpInsn(opcode, probedJumpTarget( 0 , label ) );
         }
 
         @Override
@@ -618,24 +2255,58 @@ public class ProfilingRewriter implements Opcodes
         public void visitTableSwitchInsn(int min, int max, Label dflt, Label... labels)
         {
             maybeInsertCode();
-            super.visitTableSwitchInsn(min, max, dflt, labels);
+            super.visitTableSwitchInsn(min, max, probedJumpTarget( 0 , dflt ) , probedJumpTargets( labels ) );
         }
 
         @Override
         public void visitLookupSwitchInsn(Label dflt, int[] keys, Label[] labels)
         {
             maybeInsertCode();
-            super.visitLookupSwitchInsn(dflt, keys, labels);
+            super.visitLookupSwitchInsn(probedJumpTarget( 0 , dflt ) , keys , probedJumpTargets( labels ) );
+        }
+
+        private Label[] probedJumpTargets(Label[] labels) 
+        {
+            final Label[] result = new Label[ labels.length ];
+            for ( int i = 0 ; i < labels.length ; i++ ) {
+                result[i] = probedJumpTarget( i+1 , labels[i] );
+            }
+            return result;
         }
 
         @Override
         public void visitMultiANewArrayInsn(String desc, int dims)
         {
             maybeInsertCode();
+            if ( countAllocations() ) 
+            {
+                final int offset = registerAllocationSite( MULTIANEWARRAY , desc );
+                super.visitMultiANewArrayInsn(desc, dims);
+                insertArrayAllocationCount( offset );
+                return;
+            }
             super.visitMultiANewArrayInsn(desc, dims);
         }       
     }
 
+    // returns the descriptor of the element type of a NEWARRAY instruction
+    private static String primitiveArrayType(int operand) 
+    {
+        switch( operand ) 
+        {
+            case T_BOOLEAN: return "Z";
+            case T_CHAR:    return "C";
+            case T_FLOAT:   return "F";
+            case T_DOUBLE:  return "D";
+            case T_BYTE:    return "B";
+            case T_SHORT:   return "S";
+            case T_INT:     return "I";
+            case T_LONG:    return "J";
+            default:
+                throw new IllegalArgumentException("Invalid NEWARRAY operand: "+operand);
+        }
+    }
+
     // subclass that exposes the protected "mv" field of MethodVisitor so
     // we can set the delegate after object construction
     protected class DeferredMethodVisitor extends MethodVisitor {
@@ -0,0 +1,75 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.asm.rewrite;
+
+import java.io.File;
+
+import de.codesourcery.asm.profiling.StatisticsManager;
+
+/**
+ * Daemon thread that enables profiling while a given file exists and disables it
+ * while it doesn't.
+ *
+ * <p>Used by the {@link ProfilingClassTransformer} to support toggling instrumentation
+ * from the outside (<code>touch /tmp/profile.on</code> / <code>rm /tmp/profile.on</code>).</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ * @see StatisticsManager#setEnabled(boolean)
+ */
+public final class SwitchFileWatcher extends Thread
+{
+    private final File file;
+    private final long pollIntervalMillis;
+    private final boolean debug;
+
+    public SwitchFileWatcher(File file,long pollIntervalMillis,boolean debug)
+    {
+        super("profiling-switch-watcher");
+        if ( file == null ) {
+            throw new IllegalArgumentException("file must not be NULL.");
+        }
+        if ( pollIntervalMillis <= 0 ) {
+            throw new IllegalArgumentException("poll interval must be > 0");
+        }
+        this.file = file;
+        this.pollIntervalMillis = pollIntervalMillis;
+        this.debug = debug;
+        setDaemon( true );
+    }
+
+    @Override
+    public void run()
+    {
+        while ( ! isInterrupted() )
+        {
+            final boolean enabled = file.exists();
+            if ( enabled != StatisticsManager.isEnabled() )
+            {
+                if ( debug ) {
+                    System.out.println("Profiling "+( enabled ? "enabled" : "disabled" )+" by switch file "+file.getAbsolutePath() );
+                }
+                StatisticsManager.setEnabled( enabled );
+            }
+
+            try {
+                Thread.sleep( pollIntervalMillis );
+            }
+            catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+}
@@ -138,7 +138,7 @@ public class Disassembler
                 LdcInsnNode tmp5 = (LdcInsnNode) node;
                 Class<?> clazz = tmp5.cst.getClass();
                 if ( clazz == String.class ) {
-                    mnemonic += " \""+ tmp5.cst+"\"";
+                    mnemonic += " \""+ escape( (String) tmp5.cst )+"\"";
                 } else if ( clazz == org.objectweb.asm.Type.class ) {
                     org.objectweb.asm.Type type = (org.objectweb.asm.Type) tmp5.cst;
                     mnemonic += " (a "+type.getClassName()+")";
@@ -174,4 +174,68 @@ public class Disassembler
         return mnemonic;
     }    
 
+    /**
+     * Escapes a string like a Java string literal (backslashes , double quotes and control characters), 
+     * so that disassembled string constants always fit on a single line.
+     * 
+     * @param s
+     * @return
+     */
+    public static String escape(String s) 
+    {
+        return escape( s , true );
+    }
+
+    /**
+     * Escapes only the control characters of a string , like a Java string literal.
+     * 
+     * @param s
+     * @return
+     * @see #escape(String)
+     */
+    public static String escapeControlCharacters(String s) 
+    {
+        return escape( s , false );
+    }
+
+    private static String escape(String s,boolean escapeQuotes) 
+    {
+        final StringBuilder result = new StringBuilder( s.length() );
+        for ( int i = 0 ; i < s.length() ; i++ ) 
+        {
+            final char c = s.charAt( i );
+            switch( c ) 
+            {
+                case '\\':
+                case '"':
+                    if ( escapeQuotes ) {
+                        result.append( '\\' );
+                    }
+                    result.append( c );
+                    break;
+                case '\b':
+                    result.append( "\\b" );
+                    break;
+                case '\t':
+                    result.append( "\\t" );
+                    break;
+                case '\n':
+                    result.append( "\\n" );
+                    break;
+                case '\f':
+                    result.append( "\\f" );
+                    break;
+                case '\r':
+                    result.append( "\\r" );
+                    break;
+                default:
+                    if ( Character.isISOControl( c ) ) {
+                        result.append( String.format( "\\u%04x" , (int) c ) );
+                    } else {
+                        result.append( c );
+                    }
+            }
+        }
+        return result.toString();
+    }
 }
@@ -0,0 +1,234 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.asm.controlflow;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.InsnNode;
+import org.objectweb.asm.tree.MethodNode;
+
+public class CFGCacheTest
+{
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    // methods below are analyzed by the tests
+
+    protected static int loop(int n)
+    {
+        int result = 0;
+        for ( int i = 0 ; i < n ; i++ ) {
+            result += i;
+        }
+        return result;
+    }
+
+    protected static int branch(int n)
+    {
+        return n < 0 ? -n : n;
+    }
+
+    private static MethodNode getMethod(ClassNode cn,String name)
+    {
+        for ( Object mn : cn.methods ) 
+        {
+            if ( ((MethodNode) mn).name.equals( name ) ) {
+                return (MethodNode) mn;
+            }
+        }
+        throw new IllegalArgumentException("No method "+name);
+    }
+
+    /**
+     * Adds a NOP in front of the method's first real instruction , this changes the code but not the control flow.
+     */
+    private static void modify(MethodNode method)
+    {
+        for ( AbstractInsnNode insn = method.instructions.getFirst() ; insn != null ; insn = insn.getNext() ) 
+        {
+            if ( insn.getOpcode() != -1 ) 
+            {
+                method.instructions.insertBefore( insn , new InsnNode( Opcodes.NOP ) );
+                return;
+            }
+        }
+    }
+
+    @Test
+    public void testHitsAndMisses() throws Exception
+    {
+        final ClassNode cn = CFGFileTest.load( CFGCacheTest.class );
+        final File file = new File( folder.getRoot() , "test.cache" );
+
+        CFGCache cache = new CFGCache( file );
+        try 
+        {
+            assertFalse( cache.isCached( getMethod( cn , "loop" ) ) );
+            cache.getGraph( cn.name , getMethod( cn , "loop" ) , new ControlFlowAnalyzer() );
+            assertEquals( 0 , cache.getHits() );
+            assertEquals( 1 , cache.getMisses() );
+            assertTrue( cache.isCached( getMethod( cn , "loop" ) ) );
+        } 
+        finally {
+            cache.close();
+        }
+        assertTrue( file.isFile() );
+
+        // unchanged method , graph is re-created from the cache file
+        cache = new CFGCache( file );
+        try 
+        {
+            final MethodNode method = getMethod( cn , "loop" );
+            final ControlFlowGraph graph = cache.getGraph( cn.name , method , new ControlFlowAnalyzer() );
+            assertEquals( 1 , cache.getHits() );
+            assertEquals( 0 , cache.getMisses() );
+            assertEquals( CFGFileTest.describe( new ControlFlowAnalyzer().analyze( cn.name , method ) ) , CFGFileTest.describe( graph ) );
+        } 
+        finally {
+            cache.close();
+        }
+
+        // changed method , must be analyzed again
+        final ClassNode changed = CFGFileTest.load( CFGCacheTest.class );
+        final MethodNode method = getMethod( changed , "loop" );
+        final String oldKey = CFGCache.getKey( method );
+        modify( method );
+        assertNotEquals( oldKey , CFGCache.getKey( method ) );
+
+        cache = new CFGCache( file );
+        try 
+        {
+            assertFalse( cache.isCached( method ) );
+            final ControlFlowGraph graph = cache.getGraph( changed.name , method , new ControlFlowAnalyzer() );
+            assertEquals( 0 , cache.getHits() );
+            assertEquals( 1 , cache.getMisses() );
+            assertEquals( CFGFileTest.describe( new ControlFlowAnalyzer().analyze( changed.name , method ) ) , CFGFileTest.describe( graph ) );
+        } 
+        finally {
+            cache.close();
+        }
+
+        // the old version was not looked up by the previous run and thus got dropped
+        cache = new CFGCache( file );
+        try 
+        {
+            cache.getGraph( cn.name , getMethod( cn , "loop" ) , new ControlFlowAnalyzer() );
+            cache.getGraph( changed.name , method , new ControlFlowAnalyzer() );
+            assertEquals( 1 , cache.getHits() );
+            assertEquals( 1 , cache.getMisses() );
+        } 
+        finally {
+            cache.close();
+        }
+    }
+
+    @Test
+    public void testStaleGraphsAreDropped() throws Exception
+    {
+        final ClassNode cn = CFGFileTest.load( CFGCacheTest.class );
+        final File file = new File( folder.getRoot() , "test.cache" );
+
+        CFGCache cache = new CFGCache( file );
+        try 
+        {
+            cache.getGraph( cn.name , getMethod( cn , "loop" ) , new ControlFlowAnalyzer() );
+            cache.getGraph( cn.name , getMethod( cn , "branch" ) , new ControlFlowAnalyzer() );
+        } 
+        finally {
+            cache.close();
+        }
+
+        // only 'loop' is looked up , nothing gets added but the file still needs to be rewritten
+        final long length = file.length();
+        cache = new CFGCache( file );
+        try 
+        {
+            cache.getGraph( cn.name , getMethod( cn , "loop" ) , new ControlFlowAnalyzer() );
+            assertEquals( 1 , cache.getHits() );
+            assertEquals( 0 , cache.getMisses() );
+        } 
+        finally {
+            cache.close();
+        }
+        assertTrue( file.length() < length );
+
+        cache = new CFGCache( file );
+        try 
+        {
+            assertTrue( cache.isCached( getMethod( cn , "loop" ) ) );
+            assertFalse( cache.isCached( getMethod( cn , "branch" ) ) );
+        } 
+        finally {
+            cache.close();
+        }
+    }
+
+    @Test
+    public void testRendered() throws Exception
+    {
+        final ClassNode cn = CFGFileTest.load( CFGCacheTest.class );
+        final File file = new File( folder.getRoot() , "test.cache" );
+        final File output = folder.newFile( "loop.dot" );
+        final MethodNode method = getMethod( cn , "loop" );
+
+        CFGCache cache = new CFGCache( file );
+        try 
+        {
+            assertFalse( cache.isRendered( output , method , "-dot" ) );
+            cache.rendered( output , method , "-dot" );
+            assertTrue( cache.isRendered( output , method , "-dot" ) );
+            assertFalse( cache.isRendered( output , method , "-dot -debug" ) );
+        } 
+        finally {
+            cache.close();
+        }
+
+        cache = new CFGCache( file );
+        try 
+        {
+            assertTrue( cache.isRendered( output , method , "-dot" ) );
+
+            final MethodNode changed = getMethod( CFGFileTest.load( CFGCacheTest.class ) , "loop" );
+            modify( changed );
+            assertFalse( cache.isRendered( output , changed , "-dot" ) );
+
+            // file modified by someone else
+            final OutputStream out = new FileOutputStream( output , true );
+            try {
+                out.write( "// edited".getBytes( "UTF-8" ) );
+            } finally {
+                out.close();
+            }
+            assertFalse( cache.isRendered( output , method , "-dot" ) );
+        } 
+        finally {
+            cache.close();
+        }
+    }
+}
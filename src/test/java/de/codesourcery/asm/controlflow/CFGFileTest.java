@@ -0,0 +1,205 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.asm.controlflow;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.MethodNode;
+
+public class CFGFileTest
+{
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    // methods below are analyzed by the tests
+
+    protected static int loop(int n)
+    {
+        int result = 0;
+        for ( int i = 0 ; i < n ; i++ ) {
+            result += i;
+        }
+        return result;
+    }
+
+    protected static String tableSwitch(int x)
+    {
+        switch( x ) 
+        {
+            case 0: return "zero";
+            case 1: return "one";
+            case 2: return "two";
+            default: 
+                return "many";
+        }
+    }
+
+    protected static int lookupSwitch(int x)
+    {
+        switch( x ) 
+        {
+            case -100: return 1;
+            case 7: return 2;
+            case 1000: return 3;
+            default:
+                return 0;
+        }
+    }
+
+    protected static int tryCatch(String s)
+    {
+        try {
+            return Integer.parseInt( s );
+        } 
+        catch(NumberFormatException e) {
+            return -1;
+        } 
+        finally {
+            System.out.flush();
+        }
+    }
+
+    static ClassNode load(Class<?> clazz) throws Exception
+    {
+        final InputStream in = clazz.getResourceAsStream( clazz.getSimpleName()+".class" );
+        final ClassNode cn = new ClassNode();
+        try {
+            new ClassReader( in ).accept( cn , 0 );
+        } finally {
+            in.close();
+        }
+        return cn;
+    }
+
+    /**
+     * Returns a description of a graph's blocks and edges that does not depend on iteration order.
+     */
+    static List<String> describe(ControlFlowGraph graph)
+    {
+        final List<String> result = new ArrayList<>();
+        for ( IBlock block : graph.getAllNodes() ) 
+        {
+            final String name = describe( graph , block );
+            result.add( name );
+            for ( Edge edge : block.getEdges() ) 
+            {
+                if ( edge.src == block ) {
+                    result.add( name+" -> "+describe( graph , edge.dst )+" "+edge.type+" "+edge.metaData );
+                }
+            }
+        }
+        Collections.sort( result );
+        return result;
+    }
+
+    private static String describe(ControlFlowGraph graph,IBlock block) 
+    {
+        if ( block.isVirtual( graph.getMethod() ) ) {
+            return block.getClass().getSimpleName();
+        }
+        final List<Integer> nums = new ArrayList<>( block.getInstructionNums() );
+        Collections.sort( nums );
+        return nums.toString();
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception
+    {
+        final ClassNode cn = load( CFGFileTest.class );
+        final File file = folder.newFile( "test.cfg" );
+
+        final CFGFileWriter writer = new CFGFileWriter( file );
+        try 
+        {
+            for ( Object mn : cn.methods ) 
+            {
+                final MethodNode method = (MethodNode) mn;
+                writer.write( cn.name , new ControlFlowAnalyzer().analyze( cn.name , method ) , CFGCache.getKey( method ) );
+            }
+        } 
+        finally {
+            writer.close();
+        }
+
+        final CFGFile cfgFile = CFGFile.open( file );
+        try 
+        {
+            assertEquals( cn.methods.size() , cfgFile.getMethodCount() );
+            for ( Object mn : cn.methods ) 
+            {
+                final MethodNode method = (MethodNode) mn;
+                final CFGFile.MethodGraph graph = cfgFile.getMethod( cn.name , method.name , method.desc );
+                assertNotNull( method.name , graph );
+                assertEquals( method.name , CFGCache.getKey( method ) , graph.getKey() );
+
+                final ControlFlowGraph expected = new ControlFlowAnalyzer().analyze( cn.name , method );
+                final ControlFlowGraph actual = graph.toControlFlowGraph( method );
+                assertEquals( method.name , expected.getAllNodes().size() , graph.getBlockCount() );
+                assertEquals( method.name , describe( expected ) , describe( actual ) );
+            }
+            assertNull( cfgFile.getMethod( cn.name , "noSuchMethod" , "()V" ) );
+        } 
+        finally {
+            cfgFile.close();
+        }
+    }
+
+    @Test
+    public void testWithoutKey() throws Exception
+    {
+        final ClassNode cn = load( CFGFileTest.class );
+        final File file = folder.newFile( "nokey.cfg" );
+        MethodNode method = null;
+        for ( Object mn : cn.methods ) 
+        {
+            if ( ((MethodNode) mn).name.equals( "tableSwitch" ) ) {
+                method = (MethodNode) mn;
+            }
+        }
+
+        final CFGFileWriter writer = new CFGFileWriter( file );
+        try {
+            writer.write( cn.name , new ControlFlowAnalyzer().analyze( cn.name , method ) );
+        } finally {
+            writer.close();
+        }
+
+        final CFGFile cfgFile = CFGFile.open( file );
+        try 
+        {
+            assertEquals( 1 , cfgFile.getMethodCount() );
+            final CFGFile.MethodGraph graph = cfgFile.getMethod( 0 );
+            assertNull( graph.getKey() );
+            assertEquals( describe( new ControlFlowAnalyzer().analyze( cn.name , method ) ) , describe( graph.toControlFlowGraph( method ) ) );
+        } 
+        finally {
+            cfgFile.close();
+        }
+    }
+}
@@ -0,0 +1,122 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.asm.controlflow;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+
+import org.junit.Test;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.MethodNode;
+
+public class ControlFlowAnalyzerTest
+{
+    // methods below are analyzed by the tests
+
+    protected static int intReturn(int x)
+    {
+        if ( x > 0 ) {
+            return 1;
+        }
+        return 2;
+    }
+
+    protected static String objectReturnInTry(String s)
+    {
+        try {
+            return s.trim();
+        } 
+        catch(RuntimeException e) {
+            return null;
+        }
+    }
+
+    protected static long longReturnInTry(String s)
+    {
+        try {
+            return Long.parseLong( s );
+        } 
+        catch(NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    protected static double doubleReturn(double x)
+    {
+        if ( x < 0 ) {
+            return -x;
+        }
+        return x;
+    }
+
+    private static ControlFlowGraph analyze(String methodName) throws Exception
+    {
+        final ClassNode cn = CFGFileTest.load( ControlFlowAnalyzerTest.class );
+        for ( Object mn : cn.methods ) 
+        {
+            if ( ((MethodNode) mn).name.equals( methodName ) ) {
+                return new ControlFlowAnalyzer().analyze( cn.name , (MethodNode) mn );
+            }
+        }
+        throw new IllegalArgumentException("No method "+methodName);
+    }
+
+    /**
+     * Asserts that every block ending with a return instruction has the method exit as its only regular successor.
+     */
+    private static void assertReturnsExit(String methodName,int expectedReturns) throws Exception
+    {
+        final ControlFlowGraph graph = analyze( methodName );
+        final MethodNode method = graph.getMethod();
+        int returns = 0;
+        for ( int i = 0 ; i < method.instructions.size() ; i++ ) 
+        {
+            final AbstractInsnNode insn = method.instructions.get( i );
+            if ( insn.getOpcode() >= Opcodes.IRETURN && insn.getOpcode() <= Opcodes.RETURN ) 
+            {
+                returns++;
+                final IBlock block = graph.getBlockForInstruction( i );
+                assertEquals( methodName+" , instruction "+i , Collections.<IBlock>singleton( graph.getEnd() ) , block.getRegularSuccessors() );
+            }
+        }
+        assertEquals( methodName , expectedReturns , returns );
+        assertTrue( methodName , graph.getEnd().getRegularPredecessorCount() >= expectedReturns );
+    }
+
+    @Test
+    public void testIntReturn() throws Exception {
+        assertReturnsExit( "intReturn" , 2 );
+    }
+
+    @Test
+    public void testObjectReturnInTry() throws Exception {
+        assertReturnsExit( "objectReturnInTry" , 2 );
+    }
+
+    @Test
+    public void testLongReturnInTry() throws Exception {
+        assertReturnsExit( "longReturnInTry" , 2 );
+    }
+
+    @Test
+    public void testDoubleReturn() throws Exception {
+        assertReturnsExit( "doubleReturn" , 2 );
+    }
+}
@@ -0,0 +1,137 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.asm.controlflow;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Test;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.MethodNode;
+
+import de.codesourcery.asm.profiling.StatisticsManager;
+import de.codesourcery.asm.rewrite.InstrumentingClassLoader;
+
+public class DOTRendererTest
+{
+    public static class Fixture 
+    {
+        public static int sign(int value) 
+        {
+            if ( value < 0 ) {
+                return -1;
+            }
+            return 1;
+        }
+    }
+
+    @After
+    public void tearDown() {
+        StatisticsManager.setPathProfiling( false );
+    }
+
+    @Test
+    public void testHeatMapOverlay() throws Exception 
+    {
+        StatisticsManager.setPathProfiling( true );
+        final Class<?> clazz = new InstrumentingClassLoader().instrument( Fixture.class );
+
+        assertEquals( -1 , InstrumentingClassLoader.invoke( clazz , "sign" , -5 ) );
+        for ( int i = 0 ; i < 9 ; i++ ) {
+            assertEquals( 1 , InstrumentingClassLoader.invoke( clazz , "sign" , i ) );
+        }
+
+        // counts are matched against a graph built from the original byte-code
+        final MethodNode method = getMethod( Fixture.class , "sign" );
+        final ControlFlowGraph graph = new ControlFlowAnalyzer().analyze( Type.getInternalName( Fixture.class ) , method );
+        final BlockProfile.MethodCounts counts = StatisticsManager.getPathProfile().getBlockProfile().getMethod( Fixture.class.getName() , "sign" , method.desc );
+        assertEquals( 10 , counts.getBlockCount( graph.getStart() ) );
+        assertEquals( 10 , counts.getBlockCount( graph.getEnd() ) );
+        assertEquals( 10 , counts.getMaxBlockCount() );
+
+        final DOTRenderer renderer = new DOTRenderer();
+        renderer.setProfile( counts );
+        final List<String> lines = getLines( renderer.render( graph ) );
+
+        final String hottest = "fillcolor=\""+DOTRenderer.heatColor( 10 , 10 )+"\"";
+        final String cold = "fillcolor=\""+DOTRenderer.heatColor( 1 , 10 )+"\"";
+        assertEquals( "#ffffff" , DOTRenderer.heatColor( 0 , 10 ) );
+        assertEquals( 1 , count( lines , "executions: 1\\l" , cold ) );
+        assertEquals( 1 , count( lines , "executions: 9\\l" , "fillcolor=\""+DOTRenderer.heatColor( 9 , 10 )+"\"" ) );
+        assertEquals( 2 , count( lines , "executions: 10\\n" , hottest ) ); // method entry and exit
+        assertEquals( 1 , count( lines , "executions: 10\\l" , hottest ) );
+        // the edge into the method is the most frequently taken one
+        assertEquals( 1 , count( lines , "START -> " , "penwidth=8.0" ) );
+
+        // blocks below the threshold are hidden along with their edges
+        renderer.setHideThreshold( 0.5 );
+        final List<String> hidden = getLines( renderer.render( graph ) );
+        assertEquals( 0 , count( hidden , "executions: 1\\l" ) );
+        assertEquals( 1 , count( hidden , "executions: 9\\l" ) );
+        assertEquals( count( lines , " -> " ) - 2 , count( hidden , " -> " ) );
+
+        // no overlay without a profile
+        renderer.setProfile( null );
+        assertFalse( renderer.render( graph ).contains( "executions:" ) );
+    }
+
+    private static int count(List<String> lines,String... substrings) 
+    {
+        int result = 0;
+outer:
+        for ( String line : lines ) 
+        {
+            for ( String s : substrings ) 
+            {
+                if ( ! line.contains( s ) ) {
+                    continue outer;
+                }
+            }
+            result++;
+        }
+        return result;
+    }
+
+    private static List<String> getLines(String dot) 
+    {
+        assertTrue( dot , dot.startsWith( "digraph" ) );
+        final List<String> result = new ArrayList<>();
+        for ( String line : dot.split("\n") ) {
+            result.add( line );
+        }
+        return result;
+    }
+
+    private static MethodNode getMethod(Class<?> clazz,String name) throws Exception 
+    {
+        final ClassNode cn = new ClassNode();
+        new ClassReader( clazz.getName() ).accept( cn , 0 );
+        for ( Object mn : cn.methods ) 
+        {
+            if ( ((MethodNode) mn).name.equals( name ) ) {
+                return (MethodNode) mn;
+            }
+        }
+        throw new IllegalArgumentException("No method "+name+" in "+clazz);
+    }
+}
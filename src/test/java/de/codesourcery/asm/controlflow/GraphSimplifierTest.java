@@ -0,0 +1,210 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.asm.controlflow;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Test;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.InsnNode;
+import org.objectweb.asm.tree.JumpInsnNode;
+import org.objectweb.asm.tree.LabelNode;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.MethodNode;
+
+import de.codesourcery.asm.profiling.StatisticsManager;
+import de.codesourcery.asm.rewrite.InstrumentingClassLoader;
+
+public class GraphSimplifierTest
+{
+    public static class Fixture 
+    {
+        public static int sum(int n) 
+        {
+            int sum = 0;
+            for ( int i = 0 ; i < n ; i++ ) {
+                sum += i;
+            }
+            return sum;
+        }
+
+        public static int parse(String value,boolean twice) 
+        {
+            try 
+            {
+                int result = Integer.parseInt( value );
+                if ( twice ) {
+                    result += Integer.parseInt( value );
+                }
+                return result;
+            } 
+            catch(NumberFormatException e) {
+                return -1;
+            }
+        }
+    }
+
+    @After
+    public void tearDown() {
+        StatisticsManager.setPathProfiling( false );
+    }
+
+    @Test
+    public void testChainsAreCollapsed() throws Exception 
+    {
+        // javac emits maximal basic blocks , so the chain has to be built by hand
+        final MethodNode method = new MethodNode( Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC , "chain" , "()I" , null , null );
+        final LabelNode exit = new LabelNode();
+        final LabelNode detour = new LabelNode();
+        method.instructions.add( new InsnNode( Opcodes.ICONST_1 ) );
+        method.instructions.add( new JumpInsnNode( Opcodes.GOTO , detour ) );
+        method.instructions.add( exit );
+        method.instructions.add( new InsnNode( Opcodes.IRETURN ) );
+        method.instructions.add( detour );
+        method.instructions.add( new JumpInsnNode( Opcodes.GOTO , exit ) );
+        // unreachable , the last instruction of a method always gets an edge to the method exit
+        method.instructions.add( new InsnNode( Opcodes.ICONST_0 ) );
+        method.instructions.add( new InsnNode( Opcodes.IRETURN ) );
+        method.maxStack = 1;
+        final ControlFlowGraph graph = new ControlFlowAnalyzer().analyze( "test/Test" , method );
+
+        final GraphSimplifier simplifier = new GraphSimplifier();
+        simplifier.setCollapseChains( false );
+        final int uncollapsed = simplifier.simplify( graph ).getNodes().size();
+
+        simplifier.setCollapseChains( true );
+        final SimplifiedGraph simplified = simplifier.simplify( graph );
+        // method entry , chain , unreachable block , method exit
+        assertEquals( uncollapsed - 2 , simplified.getNodes().size() );
+        final SimplifiedGraph.Node chain = simplified.getNodes().get(1);
+        assertEquals( 3 , chain.getBlocks().size() );
+        assertSame( graph.getBlockForInstruction( 0 ) , chain.getFirstBlock() );
+        assertSame( graph.getBlockForInstruction( 3 ) , chain.getLastBlock() );
+        assertEquals( 3 , simplified.getEdges().size() );
+    }
+
+    @Test
+    public void testLoopsAreClusteredAndProfiled() throws Exception 
+    {
+        StatisticsManager.setPathProfiling( true );
+        final Class<?> clazz = new InstrumentingClassLoader().instrument( Fixture.class );
+        for ( int i = 0 ; i < 4 ; i++ ) {
+            assertEquals( 10 , InstrumentingClassLoader.invoke( clazz , "sum" , 5 ) );
+        }
+
+        final MethodNode method = getMethod( "sum" );
+        final ControlFlowGraph graph = analyze( method );
+        final SimplifiedGraph simplified = new GraphSimplifier().simplify( graph );
+
+        final List<NaturalLoop> loops = simplified.getChildLoops( null );
+        assertEquals( 1 , loops.size() );
+        final NaturalLoop loop = loops.get(0);
+        assertTrue( simplified.getChildLoops( loop ).isEmpty() );
+        final List<SimplifiedGraph.Node> loopNodes = simplified.getNodes( loop );
+        assertEquals( 2 , loopNodes.size() );
+        for ( SimplifiedGraph.Node node : loopNodes ) {
+            assertSame( loop , node.getLoop() );
+        }
+        assertEquals( simplified.getNodes().size() - 2 , simplified.getNodes( null ).size() );
+
+        final DOTRenderer renderer = new DOTRenderer();
+        renderer.setProfile( StatisticsManager.getPathProfile().getBlockProfile().getMethod( Fixture.class.getName() , "sum" , method.desc ) );
+        final String dot = renderer.render( simplified );
+        assertTrue( dot , dot.contains( "subgraph cluster_" ) );
+        assertTrue( dot , dot.contains( "(depth 1)" ) );
+        // the loop body runs 5 times per invocation
+        assertTrue( dot , dot.contains( "executions: 20\\l" ) );
+        assertTrue( dot , dot.contains( "executions: 4\\n" ) );
+    }
+
+    @Test
+    public void testExceptionEdgesAreMerged() throws Exception 
+    {
+        final ControlFlowGraph graph = analyze( getMethod( "parse" ) );
+
+        final GraphSimplifier simplifier = new GraphSimplifier();
+        simplifier.setMergeExceptionEdges( false );
+        final List<SimplifiedGraph.Edge> unmerged = getExceptionEdges( simplifier.simplify( graph ) );
+        assertTrue( unmerged.toString() , unmerged.size() > 1 );
+
+        simplifier.setMergeExceptionEdges( true );
+        final List<SimplifiedGraph.Edge> merged = getExceptionEdges( simplifier.simplify( graph ) );
+        assertEquals( 1 , merged.size() );
+        assertTrue( merged.get(0).isExceptionSummary() );
+        assertEquals( unmerged.size() , merged.get(0).getEdges().size() );
+        assertSame( unmerged.get(0).getDestination().getFirstBlock() , merged.get(0).getDestination().getFirstBlock() );
+    }
+
+    @Test
+    public void testFocus() throws Exception 
+    {
+        final ControlFlowGraph graph = analyze( getMethod( "parse" ) );
+        final GraphSimplifier simplifier = new GraphSimplifier();
+        simplifier.setFocus( 0 , 0 );
+        final SimplifiedGraph simplified = simplifier.simplify( graph );
+        assertEquals( 1 , simplified.getNodes().size() );
+        assertNull( simplified.getNodes().get(0).getLoop() );
+        assertEquals( graph.getAllNodes().size() - 1 , simplified.getHiddenBlockCount() );
+        assertTrue( new DOTRenderer().render( simplified ).contains( "label=\""+simplified.getHiddenBlockCount()+" blocks not shown\"" ) );
+
+        simplifier.setFocus( 10000 , 1 );
+        try {
+            simplifier.simplify( graph );
+            fail("Should've failed");
+        } catch(IllegalArgumentException e) {
+            // ok
+        }
+    }
+
+    private static List<SimplifiedGraph.Edge> getExceptionEdges(SimplifiedGraph graph) 
+    {
+        final List<SimplifiedGraph.Edge> result = new ArrayList<>();
+        for ( SimplifiedGraph.Edge edge : graph.getEdges() ) 
+        {
+            if ( edge.getEdges().get(0).hasType( Edge.EdgeType.CAUGHT_EXCEPTION ) ) {
+                result.add( edge );
+            }
+        }
+        return result;
+    }
+
+    private static ControlFlowGraph analyze(MethodNode method) throws Exception {
+        return new ControlFlowAnalyzer().analyze( Type.getInternalName( Fixture.class ) , method );
+    }
+
+    private static MethodNode getMethod(String name) throws Exception 
+    {
+        final ClassNode cn = new ClassNode();
+        new ClassReader( Fixture.class.getName() ).accept( cn , 0 );
+        for ( Object mn : cn.methods ) 
+        {
+            if ( ((MethodNode) mn).name.equals( name ) ) {
+                return (MethodNode) mn;
+            }
+        }
+        throw new IllegalArgumentException("No method "+name+" in "+Fixture.class);
+    }
+}
@@ -0,0 +1,166 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.asm.controlflow;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.InputStream;
+import java.util.List;
+
+import org.junit.Test;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.MethodNode;
+
+public class LoopAnalyzerTest
+{
+    // methods below are analyzed by the tests
+
+    protected static int noLoop(int x) 
+    {
+        if ( x > 0 ) {
+            return x;
+        }
+        return -x;
+    }
+
+    protected static int nestedLoops(int n)
+    {
+        int result = 0;
+        for ( int i = 0 ; i < n ; i++ ) 
+        {
+            for ( int j = 0 ; j < i ; j++ ) {
+                result += j;
+            }
+        }
+        return result;
+    }
+
+    protected static int multipleBackEdges(int n)
+    {
+        int i = 0;
+        int result = 0;
+        while ( i < n ) 
+        {
+            i++;
+            if ( ( i & 1 ) == 0 ) 
+            {
+                result += i;
+                continue;
+            }
+            result -= i;
+        }
+        return result;
+    }
+
+    protected static int sequentialLoops(int n)
+    {
+        int result = 0;
+        for ( int i = 0 ; i < n ; i++ ) {
+            result += i;
+        }
+        for ( int i = 0 ; i < n ; i++ ) {
+            result -= i;
+        }
+        return result;
+    }
+
+    private static ControlFlowGraph analyze(String methodName) throws Exception
+    {
+        final InputStream in = LoopAnalyzerTest.class.getResourceAsStream( "LoopAnalyzerTest.class" );
+        final ClassNode cn = new ClassNode();
+        try {
+            new ClassReader( in ).accept( cn , 0 );
+        } finally {
+            in.close();
+        }
+        for ( Object mn : cn.methods ) 
+        {
+            if ( ((MethodNode) mn).name.equals( methodName ) ) {
+                return new ControlFlowAnalyzer().analyze( cn.name , (MethodNode) mn );
+            }
+        }
+        throw new IllegalArgumentException("No method "+methodName);
+    }
+
+    @Test
+    public void testNoLoop() throws Exception {
+        assertTrue( new LoopAnalyzer( analyze( "noLoop" ) ).getLoops().isEmpty() );
+    }
+
+    @Test
+    public void testNestedLoops() throws Exception
+    {
+        final LoopAnalyzer analyzer = new LoopAnalyzer( analyze( "nestedLoops" ) );
+        final List<NaturalLoop> loops = analyzer.getLoops();
+        assertEquals( loops.toString() , 2 , loops.size() );
+
+        final NaturalLoop outer = loops.get(0);
+        final NaturalLoop inner = loops.get(1);
+        assertEquals( 1 , outer.getDepth() );
+        assertEquals( 2 , inner.getDepth() );
+        assertNotSame( outer.getHeader() , inner.getHeader() );
+
+        assertTrue( outer.getBlocks().containsAll( inner.getBlocks() ) );
+        assertTrue( outer.getBlocks().size() > inner.getBlocks().size() );
+        assertFalse( inner.contains( outer.getHeader() ) );
+        assertTrue( analyzer.dominates( outer.getHeader() , inner.getHeader() ) );
+
+        for ( NaturalLoop loop : loops ) 
+        {
+            assertEquals( 1 , loop.getBackEdgeSources().size() );
+            for ( IBlock source : loop.getBackEdgeSources() ) {
+                assertTrue( analyzer.dominates( loop.getHeader() , source ) );
+            }
+        }
+
+        final List<NaturalLoop> containing = analyzer.getLoopsContaining( inner.getHeader() );
+        assertEquals( 2 , containing.size() );
+        assertSame( outer , containing.get(0) );
+        assertSame( inner , containing.get(1) );
+    }
+
+    @Test
+    public void testLoopWithMultipleBackEdges() throws Exception
+    {
+        final LoopAnalyzer analyzer = new LoopAnalyzer( analyze( "multipleBackEdges" ) );
+        final List<NaturalLoop> loops = analyzer.getLoops();
+        assertEquals( loops.toString() , 1 , loops.size() );
+
+        final NaturalLoop loop = loops.get(0);
+        assertEquals( 1 , loop.getDepth() );
+        // 'continue' and the end of the loop body both jump back to the header
+        assertEquals( 2 , loop.getBackEdgeSources().size() );
+        assertTrue( loop.getBlocks().containsAll( loop.getBackEdgeSources() ) );
+    }
+
+    @Test
+    public void testSequentialLoops() throws Exception
+    {
+        final List<NaturalLoop> loops = new LoopAnalyzer( analyze( "sequentialLoops" ) ).getLoops();
+        assertEquals( loops.toString() , 2 , loops.size() );
+        for ( NaturalLoop loop : loops ) {
+            assertEquals( 1 , loop.getDepth() );
+        }
+        for ( IBlock block : loops.get(0).getBlocks() ) {
+            assertFalse( loops.get(1).contains( block ) );
+        }
+    }
+}
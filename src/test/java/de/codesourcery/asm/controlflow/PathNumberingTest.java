@@ -0,0 +1,272 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.asm.controlflow;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Test;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.MethodNode;
+
+import de.codesourcery.asm.controlflow.Edge.EdgeType;
+
+public class PathNumberingTest
+{
+    // methods below are analyzed by the tests
+
+    protected static int straight(int x) {
+        return x + 1;
+    }
+
+    protected static int diamond(int x)
+    {
+        if ( x > 0 ) {
+            x++;
+        } else {
+            x--;
+        }
+        return x;
+    }
+
+    protected static int twoDiamonds(int x,int y)
+    {
+        if ( x > 0 ) {
+            x++;
+        } else {
+            x--;
+        }
+        if ( y > 0 ) {
+            y++;
+        } else {
+            y--;
+        }
+        return x + y;
+    }
+
+    protected static int earlyReturns(int x)
+    {
+        if ( x == 0 ) {
+            return 1;
+        }
+        if ( x == 1 ) {
+            throw new IllegalArgumentException();
+        }
+        return x * 2;
+    }
+
+    protected static int loopWithBranch(int n)
+    {
+        int result = 0;
+        for ( int i = 0 ; i < n ; i++ ) 
+        {
+            if ( ( i & 1 ) == 0 ) {
+                result += i;
+            } else {
+                result -= i;
+            }
+        }
+        return result;
+    }
+
+    protected static int nestedLoops(int n)
+    {
+        int result = 0;
+        for ( int i = 0 ; i < n ; i++ ) 
+        {
+            for ( int j = 0 ; j < i ; j++ ) {
+                result += j;
+            }
+        }
+        return result;
+    }
+
+    protected static int handler(String s)
+    {
+        try {
+            return Integer.parseInt( s );
+        } 
+        catch(NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static ControlFlowGraph analyze(String methodName) throws Exception
+    {
+        final InputStream in = PathNumberingTest.class.getResourceAsStream( "PathNumberingTest.class" );
+        final ClassNode cn = new ClassNode();
+        try {
+            new ClassReader( in ).accept( cn , 0 );
+        } finally {
+            in.close();
+        }
+        for ( Object mn : cn.methods ) 
+        {
+            if ( ((MethodNode) mn).name.equals( methodName ) ) {
+                return new ControlFlowAnalyzer().analyze( cn.name , (MethodNode) mn );
+            }
+        }
+        throw new IllegalArgumentException("No method "+methodName);
+    }
+
+    /*
+     * Enumerates all paths by walking the graph (independent of the edge values used by PathNumbering) and
+     * sums up the increments the instrumentation would add along each path. Returns path numbers by path.
+     */
+    private static Map<String,Long> enumeratePaths(PathNumbering numbering)
+    {
+        final ControlFlowGraph graph = numbering.getGraph();
+        final Map<IBlock,Set<IBlock>> successors = new HashMap<>();
+        for ( IBlock block : graph.getAllNodes() ) 
+        {
+            final Set<IBlock> succs = new LinkedHashSet<>();
+            for ( Edge e : block.getEdges() ) 
+            {
+                if ( e.src == block && ! e.hasType( EdgeType.CAUGHT_EXCEPTION ) ) {
+                    succs.add( e.dst );
+                }
+            }
+            if ( succs.isEmpty() && block != graph.getEnd() ) {
+                succs.add( graph.getEnd() ); // ATHROW
+            }
+            successors.put( block , succs );
+        }
+
+        final Map<String,Long> result = new HashMap<>();
+        walk( numbering , successors , graph.getStart() , "entry" , 0 , result );
+        final Set<IBlock> loopHeaders = new HashSet<>();
+        for ( IBlock block : graph.getAllNodes() ) 
+        {
+            for ( IBlock succ : successors.get( block ) ) 
+            {
+                if ( numbering.isBackEdge( block , succ ) ) {
+                    loopHeaders.add( succ );
+                }
+            }
+        }
+        for ( IBlock header : loopHeaders ) {
+            walk( numbering , successors , header , "loop "+header , numbering.getStartIncrement( header ) , result );
+        }
+        for ( IBlock handler : numbering.getHandlers() ) {
+            walk( numbering , successors , handler , "handler "+handler , numbering.getStartIncrement( handler ) , result );
+        }
+        return result;
+    }
+
+    private static void walk(PathNumbering numbering,Map<IBlock,Set<IBlock>> successors,IBlock current,String path,long sum,Map<String,Long> result)
+    {
+        final IBlock exit = numbering.getGraph().getEnd();
+        boolean backEdgeTaken = false;
+        for ( IBlock succ : successors.get( current ) ) 
+        {
+            if ( numbering.isBackEdge( current , succ ) ) 
+            {
+                // all back-edges of a block end the same path
+                if ( ! backEdgeTaken ) {
+                    record( path+" -> back-edge" , sum + numbering.getEndIncrement( current ) , result );
+                }
+                backEdgeTaken = true;
+            } 
+            else if ( succ == exit ) {
+                record( path+" -> exit" , sum + numbering.getIncrement( current , succ ) , result );
+            } else {
+                walk( numbering , successors , succ , path+" -> "+succ , sum + numbering.getIncrement( current , succ ) , result );
+            }
+        }
+    }
+
+    private static void record(String path,long number,Map<String,Long> result) 
+    {
+        assertNull( "Path enumerated twice: "+path , result.put( path , number ) );
+    }
+
+    private static PathNumbering assertNumbersUnique(String methodName) throws Exception
+    {
+        final PathNumbering numbering = new PathNumbering( analyze( methodName ) );
+        assertTrue( numbering.getUnsupportedReason() , numbering.isSupported() );
+
+        final Map<String,Long> paths = enumeratePaths( numbering );
+        assertEquals( paths.toString() , numbering.getPathCount() , paths.size() );
+
+        final Set<Long> expected = new HashSet<>();
+        for ( long i = 0 ; i < numbering.getPathCount() ; i++ ) {
+            expected.add( i );
+        }
+        assertEquals( paths.toString() , expected , new HashSet<>( paths.values() ) );
+        return numbering;
+    }
+
+    @Test
+    public void testStraightLine() throws Exception {
+        assertEquals( 1 , assertNumbersUnique( "straight" ).getPathCount() );
+    }
+
+    @Test
+    public void testDiamond() throws Exception {
+        assertEquals( 2 , assertNumbersUnique( "diamond" ).getPathCount() );
+    }
+
+    @Test
+    public void testSequenceOfDiamonds() throws Exception {
+        assertEquals( 4 , assertNumbersUnique( "twoDiamonds" ).getPathCount() );
+    }
+
+    @Test
+    public void testEarlyReturnsAndThrow() throws Exception {
+        assertEquals( 3 , assertNumbersUnique( "earlyReturns" ).getPathCount() );
+    }
+
+    @Test
+    public void testLoops() throws Exception 
+    {
+        assertNumbersUnique( "loopWithBranch" );
+        assertNumbersUnique( "nestedLoops" );
+    }
+
+    @Test
+    public void testExceptionHandler() throws Exception 
+    {
+        final PathNumbering numbering = assertNumbersUnique( "handler" );
+        assertEquals( 1 , numbering.getHandlers().size() );
+    }
+
+    @Test
+    public void testDecodeYieldsDistinctPaths() throws Exception
+    {
+        final PathNumbering numbering = assertNumbersUnique( "loopWithBranch" );
+        final Set<List<IBlock>> seen = new HashSet<>();
+        for ( long i = 0 ; i < numbering.getPathCount() ; i++ ) 
+        {
+            final PathNumbering.Path path = numbering.decode( i );
+            assertEquals( i , path.getNumber() );
+            final List<IBlock> key = new ArrayList<>( path.getBlocks() );
+            key.add( path.startsAtLoopHeader() ? numbering.getGraph().getStart() : null );
+            key.add( path.endsWithBackEdge() ? numbering.getGraph().getEnd() : null );
+            assertTrue( "Duplicate path "+key , seen.add( key ) );
+        }
+    }
+}
@@ -0,0 +1,82 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.asm.controlflow;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.junit.Test;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.InsnNode;
+import org.objectweb.asm.tree.LdcInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.w3c.dom.Document;
+import org.w3c.dom.NodeList;
+import org.xml.sax.InputSource;
+
+public class SVGRendererTest
+{
+    private static Document renderAndParse(MethodNode method) throws Exception
+    {
+        final ControlFlowGraph graph = new ControlFlowAnalyzer().analyze( "test/Test" , method );
+        final StringWriter out = new StringWriter();
+        new SVGRenderer().render( graph , out );
+        return DocumentBuilderFactory.newInstance().newDocumentBuilder().parse( new InputSource( new StringReader( out.toString() ) ) );
+    }
+
+    private static List<String> getTexts(Document document)
+    {
+        final List<String> result = new ArrayList<>();
+        final NodeList texts = document.getElementsByTagName( "text" );
+        for ( int i = 0 ; i < texts.getLength() ; i++ ) {
+            result.add( texts.item( i ).getTextContent() );
+        }
+        return result;
+    }
+
+    @Test
+    public void testControlCharactersInStringConstants() throws Exception
+    {
+        final MethodNode method = new MethodNode( Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC , "deleteSpaces" , "()Ljava/lang/String;" , null , null );
+        method.instructions.add( new LdcInsnNode( " \t\r\n\b\u0000\"\\" ) );
+        method.instructions.add( new InsnNode( Opcodes.ARETURN ) );
+
+        // fails with a SAXParseException if the document is not well-formed
+        final List<String> texts = getTexts( renderAndParse( method ) );
+
+        int ldcLines = 0;
+        for ( String text : texts ) 
+        {
+            assertTrue( "Control character in "+text , ! text.matches( "(?s).*\\p{Cntrl}.*" ) );
+            if ( text.contains( "LDC" ) ) 
+            {
+                ldcLines++;
+                assertTrue( text , text.endsWith( "\" \\t\\r\\n\\b\\u0000\\\"\\\\\"" ) );
+            }
+        }
+        // the constant's line break must not split the instruction across two lines
+        assertEquals( 1 , ldcLines );
+        assertTrue( texts.contains( "method_entry" ) );
+        assertTrue( texts.contains( "method_exit" ) );
+    }
+}
@@ -0,0 +1,80 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.asm.profiling;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class AccountingScopeTest
+{
+    @After
+    public void tearDown() {
+        AccountingScope.resetTypeStatistics();
+    }
+
+    private static AccountingScope.TypeStatistics getTypeStatistics(String type)
+    {
+        for ( AccountingScope.TypeStatistics stats : AccountingScope.getTypeStatistics() ) 
+        {
+            if ( stats.getType().equals( type ) ) {
+                return stats;
+            }
+        }
+        throw new AssertionError("No statistics for type "+type);
+    }
+
+    @Test
+    public void testAverageIgnoresOpenScopes()
+    {
+        final AccountingScope first = StatisticsManager.openScope( "request" , "1" );
+        first.charge( 100 );
+        first.close();
+
+        final AccountingScope second = StatisticsManager.openScope( "request" , "2" );
+        second.charge( 1000 );
+
+        final AccountingScope.TypeStatistics stats = getTypeStatistics( "request" );
+        assertEquals( 1 , stats.getClosedScopes() );
+        assertEquals( 1100 , stats.getInstructions() );
+        assertEquals( 100 , stats.getClosedInstructions() );
+        assertEquals( 100.0 , stats.getAverageInstructions() , 0.0 );
+
+        second.close();
+        assertEquals( 2 , stats.getClosedScopes() );
+        assertEquals( 550.0 , stats.getAverageInstructions() , 0.0 );
+        assertEquals( 1000 , stats.getMaxInstructions() );
+    }
+
+    @Test
+    public void testLateChargesCountTowardsClosedTotals()
+    {
+        final AccountingScope scope = StatisticsManager.openScope( "task" , "1" );
+        scope.charge( 100 );
+        scope.close();
+
+        // work handed off to another thread completes after the scope was closed
+        scope.charge( 50 );
+
+        final AccountingScope.TypeStatistics stats = getTypeStatistics( "task" );
+        assertEquals( 1 , stats.getClosedScopes() );
+        assertEquals( 150 , stats.getInstructions() );
+        assertEquals( 150 , stats.getClosedInstructions() );
+        assertEquals( 150 , stats.getMaxInstructions() );
+        assertEquals( 150.0 , stats.getAverageInstructions() , 0.0 );
+    }
+}
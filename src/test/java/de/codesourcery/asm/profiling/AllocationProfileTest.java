@@ -0,0 +1,117 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.asm.profiling;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Test;
+import org.objectweb.asm.Opcodes;
+
+import de.codesourcery.asm.rewrite.InstrumentingClassLoader;
+
+public class AllocationProfileTest
+{
+    public static class Fixture 
+    {
+        public static Object allocate(int length) 
+        {
+            final Object[] result = new Object[3];
+            result[0] = new Object();
+            result[1] = new int[ length ];
+            result[2] = new String[ length ][ 2 ];
+            return result;
+        }
+    }
+
+    @After
+    public void tearDown() {
+        StatisticsManager.setAllocationProfiling( false );
+    }
+
+    @Test
+    public void testAllocationsAreCountedPerSite() throws Exception 
+    {
+        StatisticsManager.setAllocationProfiling( true );
+        final Class<?> clazz = new InstrumentingClassLoader().instrument( Fixture.class );
+
+        for ( int i = 0 ; i < 5 ; i++ ) {
+            InstrumentingClassLoader.invoke( clazz , "allocate" , 0 );
+        }
+        for ( int i = 0 ; i < 3 ; i++ ) {
+            InstrumentingClassLoader.invoke( clazz , "allocate" , 6 );
+        }
+
+        final int methodId = InstrumentingClassLoader.getMethod( clazz , "allocate" ).getId();
+        final List<AllocationProfile.Entry> entries = new ArrayList<>();
+        for ( AllocationProfile.Entry entry : StatisticsManager.getAllocationProfile().getEntries() ) 
+        {
+            if ( entry.getSite().getMethodId() == methodId ) {
+                entries.add( entry );
+            }
+        }
+        assertEquals( 4 , entries.size() );
+
+        final AllocationProfile.Entry objectArray = find( entries , Opcodes.ANEWARRAY );
+        assertEquals( "java/lang/Object" , objectArray.getSite().getType() );
+        assertEquals( 8 , objectArray.getCount() );
+        assertEquals( 8 , objectArray.getLengthHistogram()[ AllocationSiteRegistry.getLengthBucket( 3 ) ] );
+
+        final AllocationProfile.Entry object = find( entries , Opcodes.NEW );
+        assertEquals( "java/lang/Object" , object.getSite().getType() );
+        assertFalse( object.getSite().isArray() );
+        assertEquals( 8 , object.getCount() );
+        assertNull( object.getLengthHistogram() );
+        assertFalse( object.isEstimated() );
+
+        final AllocationProfile.Entry intArray = find( entries , Opcodes.NEWARRAY );
+        assertEquals( "[I" , intArray.getSite().getType() );
+        assertTrue( intArray.getSite().isArray() );
+        assertEquals( 8 , intArray.getCount() );
+        assertLengths( intArray.getLengthHistogram() );
+
+        // only the outermost dimension is counted
+        final AllocationProfile.Entry multiArray = find( entries , Opcodes.MULTIANEWARRAY );
+        assertEquals( "[[Ljava/lang/String;" , multiArray.getSite().getType() );
+        assertEquals( 8 , multiArray.getCount() );
+        assertLengths( multiArray.getLengthHistogram() );
+    }
+
+    private static void assertLengths(long[] histogram) 
+    {
+        assertEquals( AllocationSiteRegistry.LENGTH_BUCKETS , histogram.length );
+        assertEquals( 5 , histogram[ AllocationSiteRegistry.getLengthBucket( 0 ) ] );
+        assertEquals( 3 , histogram[ AllocationSiteRegistry.getLengthBucket( 6 ) ] );
+        assertEquals( 4 , AllocationSiteRegistry.getMinLength( AllocationSiteRegistry.getLengthBucket( 6 ) ) );
+    }
+
+    private static AllocationProfile.Entry find(List<AllocationProfile.Entry> entries,int opcode) 
+    {
+        for ( AllocationProfile.Entry entry : entries ) 
+        {
+            if ( entry.getSite().getOpcode() == opcode ) {
+                return entry;
+            }
+        }
+        throw new AssertionError("No allocation site with opcode "+opcode);
+    }
+}
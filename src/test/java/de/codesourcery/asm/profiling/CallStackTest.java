@@ -0,0 +1,124 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.asm.profiling;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import de.codesourcery.asm.rewrite.InstrumentingClassLoader;
+
+public class CallStackTest
+{
+    private static final int INVOCATIONS = 10;
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    public static class Fixture 
+    {
+        public static int outer(int n) 
+        {
+            int result = inner( n );
+            try {
+                thrower();
+            } catch(IllegalStateException e) {
+                result += inner( n );
+            }
+            return result;
+        }
+
+        public static void thrower() {
+            throw new IllegalStateException();
+        }
+
+        public static int inner(int n) 
+        {
+            int result = 0;
+            for ( int i = 0 ; i < n ; i++ ) {
+                result += i;
+            }
+            return result;
+        }
+    }
+
+    @Before
+    public void setUp() {
+        StatisticsManager.setCallStackTracking( true );
+    }
+
+    @After
+    public void tearDown() {
+        StatisticsManager.setCallStackTracking( false );
+    }
+
+    private static CallingContext getChild(CallingContext parent,MethodRegistry.MethodInfo method) 
+    {
+        for ( CallingContext child : parent.getChildren() ) 
+        {
+            if ( child.getMethodId() == method.getId() ) {
+                return child;
+            }
+        }
+        return null;
+    }
+
+    @Test
+    public void testCallTree() throws Exception 
+    {
+        final Class<?> clazz = new InstrumentingClassLoader().instrument( Fixture.class );
+        final MethodRegistry.MethodInfo outer = InstrumentingClassLoader.getMethod( clazz , "outer" );
+        final MethodRegistry.MethodInfo inner = InstrumentingClassLoader.getMethod( clazz , "inner" );
+        final MethodRegistry.MethodInfo thrower = InstrumentingClassLoader.getMethod( clazz , "thrower" );
+
+        InstrumentingClassLoader.invokeInNewThread( clazz , "outer" , INVOCATIONS , 10 );
+
+        final CallingContext outerContext = getChild( StatisticsManager.getCallTree() , outer );
+        assertNotNull( outerContext );
+        assertEquals( INVOCATIONS , outerContext.getInvocations() );
+
+        // the frame of the method that threw got popped when the exception was caught
+        final CallingContext innerContext = getChild( outerContext , inner );
+        final CallingContext throwerContext = getChild( outerContext , thrower );
+        assertEquals( 2 * INVOCATIONS , innerContext.getInvocations() );
+        assertEquals( INVOCATIONS , throwerContext.getInvocations() );
+        assertNull( getChild( throwerContext , inner ) );
+
+        final long innerInstructions = StatisticsManager.getMethodCounters()[ inner.getId() * ExecutionStatistics.METHOD_COUNTER_SLOTS + ExecutionStatistics.SLOT_INSTRUCTIONS ];
+        assertEquals( innerInstructions , innerContext.getSelfInstructions() );
+        assertEquals( outerContext.getSelfInstructions() + innerContext.getTotalInstructions() + throwerContext.getTotalInstructions() , 
+                outerContext.getTotalInstructions() );
+
+        final File file = folder.newFile( "stacks.collapsed" );
+        StatisticsManager.writeCollapsedStacks( file );
+        final List<String> lines = Files.readAllLines( file.toPath() , Charset.forName( "UTF-8" ) );
+        final String prefix = Fixture.class.getName()+".";
+        assertTrue( lines.contains( prefix+"outer;"+prefix+"inner "+innerInstructions ) );
+        assertTrue( lines.contains( prefix+"outer;"+prefix+"thrower "+throwerContext.getSelfInstructions() ) );
+    }
+}
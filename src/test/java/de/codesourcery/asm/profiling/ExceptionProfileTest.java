@@ -0,0 +1,114 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.asm.profiling;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Test;
+
+import de.codesourcery.asm.rewrite.InstrumentingClassLoader;
+
+public class ExceptionProfileTest
+{
+    public static class Fixture 
+    {
+        public static int parse(String value) 
+        {
+            try 
+            {
+                if ( value == null ) {
+                    throw new IllegalStateException("No value");
+                }
+                return Integer.parseInt( value );
+            } 
+            catch(NumberFormatException e) {
+                return -1;
+            }
+            catch(RuntimeException e) {
+                return -2;
+            }
+        }
+    }
+
+    @After
+    public void tearDown() {
+        StatisticsManager.setExceptionProfiling( false );
+    }
+
+    @Test
+    public void testThrownAndCaughtExceptionsAreCountedPerType() throws Exception 
+    {
+        StatisticsManager.setExceptionProfiling( true );
+        final Class<?> clazz = new InstrumentingClassLoader().instrument( Fixture.class );
+
+        for ( int i = 0 ; i < 4 ; i++ ) {
+            assertEquals( 1 , InstrumentingClassLoader.invoke( clazz , "parse" , "1" ) );
+        }
+        for ( int i = 0 ; i < 3 ; i++ ) {
+            assertEquals( -1 , InstrumentingClassLoader.invoke( clazz , "parse" , "x" ) );
+        }
+        for ( int i = 0 ; i < 2 ; i++ ) {
+            assertEquals( -2 , InstrumentingClassLoader.invoke( clazz , "parse" , (Object) null ) );
+        }
+
+        final int methodId = InstrumentingClassLoader.getMethod( clazz , "parse" ).getId();
+        final List<ExceptionProfile.Entry> entries = new ArrayList<>();
+        for ( ExceptionProfile.Entry entry : StatisticsManager.getExceptionProfile().getEntries() ) 
+        {
+            if ( entry.getSite().getMethodId() == methodId ) {
+                entries.add( entry );
+            }
+        }
+        assertEquals( entries.toString() , 3 , entries.size() );
+
+        final ExceptionProfile.Entry thrown = find( entries , null );
+        assertFalse( thrown.getSite().isHandler() );
+        assertNull( thrown.getSite().getCatchTypes() );
+        assertEquals( IllegalStateException.class.getName() , thrown.getExceptionType() );
+        assertEquals( 2 , thrown.getCount() );
+        assertFalse( thrown.isEstimated() );
+
+        // raised by uninstrumented code , only counted where it is caught
+        final ExceptionProfile.Entry numberFormat = find( entries , "java/lang/NumberFormatException" );
+        assertTrue( numberFormat.getSite().isHandler() );
+        assertEquals( NumberFormatException.class.getName() , numberFormat.getExceptionType() );
+        assertEquals( 3 , numberFormat.getCount() );
+
+        // handlers report the actual exception class , not the caught type
+        final ExceptionProfile.Entry runtime = find( entries , "java/lang/RuntimeException" );
+        assertEquals( IllegalStateException.class.getName() , runtime.getExceptionType() );
+        assertEquals( 2 , runtime.getCount() );
+    }
+
+    private static ExceptionProfile.Entry find(List<ExceptionProfile.Entry> entries,String catchTypes) 
+    {
+        for ( ExceptionProfile.Entry entry : entries ) 
+        {
+            final String types = entry.getSite().getCatchTypes();
+            if ( catchTypes == null ? types == null : catchTypes.equals( types ) ) {
+                return entry;
+            }
+        }
+        throw new AssertionError("No exception site catching "+catchTypes);
+    }
+}
@@ -0,0 +1,114 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.asm.profiling;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Test;
+
+import de.codesourcery.asm.rewrite.InstrumentingClassLoader;
+
+public class FieldAccessProfileTest
+{
+    public static class Fixture 
+    {
+        public int x;
+        public int y;
+        public int rarely;
+
+        public static void move(Fixture point) 
+        {
+            point.x++;
+            point.y++;
+        }
+
+        public static void reset(Fixture point) {
+            point.rarely = 0;
+        }
+    }
+
+    @After
+    public void tearDown() {
+        StatisticsManager.setFieldAccessProfiling( false );
+    }
+
+    @Test
+    public void testFieldAccessesAndLayoutSuggestions() throws Exception 
+    {
+        StatisticsManager.setFieldAccessProfiling( true );
+        final Class<?> clazz = new InstrumentingClassLoader().instrument( Fixture.class );
+
+        final Object point = clazz.newInstance();
+        for ( int i = 0 ; i < 200 ; i++ ) {
+            InstrumentingClassLoader.invoke( clazz , "move" , point );
+        }
+        InstrumentingClassLoader.invoke( clazz , "reset" , point );
+
+        final String owner = Fixture.class.getName().replace('.','/');
+        final FieldAccessProfile profile = StatisticsManager.getFieldAccessProfile();
+        final Map<String,FieldAccessProfile.FieldEntry> fields = new HashMap<>();
+        for ( FieldAccessProfile.FieldEntry entry : profile.getFields() ) 
+        {
+            if ( entry.getField().getOwner().equals( owner ) ) {
+                fields.put( entry.getField().getName() , entry );
+            }
+        }
+        assertEquals( 3 , fields.size() );
+
+        final FieldAccessProfile.FieldEntry x = fields.get( "x" );
+        assertEquals( 200 , x.getReads() );
+        assertEquals( 200 , x.getWrites() );
+        assertEquals( 200 , x.getBlockExecutions() );
+        assertFalse( x.getField().isStatic() );
+        assertFalse( x.isEstimated() );
+
+        final FieldAccessProfile.FieldEntry rarely = fields.get( "rarely" );
+        assertEquals( 0 , rarely.getReads() );
+        assertEquals( 1 , rarely.getWrites() );
+
+        FieldAccessProfile.Pair pair = null;
+        for ( FieldAccessProfile.Pair p : profile.getPairs() ) 
+        {
+            if ( p.getFirst() == x || p.getSecond() == x ) 
+            {
+                assertTrue( "x is only accessed together with y" , p.getFirst() == fields.get( "y" ) || p.getSecond() == fields.get( "y" ) );
+                pair = p;
+            }
+        }
+        assertEquals( 200 , pair.getCoAccesses() );
+        assertEquals( 1.0 , pair.getCoAccessRatio() , 0 );
+        assertTrue( pair.isSameLayout() );
+
+        final String clazzName = Fixture.class.getName();
+        final List<String> suggestions = new ArrayList<>();
+        for ( String suggestion : profile.getSuggestions() ) 
+        {
+            if ( suggestion.startsWith( clazzName+":" ) ) {
+                suggestions.add( suggestion );
+            }
+        }
+        assertTrue( suggestions.toString() , suggestions.get(0).startsWith( clazzName+": split cold fields [rarely] from hot fields" ) );
+        assertTrue( suggestions.toString() , suggestions.get(1).contains( "together (accessed together in 100" ) );
+    }
+}
@@ -0,0 +1,148 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.asm.profiling;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Test;
+
+import de.codesourcery.asm.rewrite.InstrumentingClassLoader;
+
+public class FlatProfileTest
+{
+    private static final int INVOCATIONS = 10000;
+
+    public static class Full 
+    {
+        public static int work(int x) {
+            return x * 3 + 1;
+        }
+    }
+
+    public static class Sampled 
+    {
+        public static int work(int x) {
+            return x * 3 + 1;
+        }
+    }
+
+    public static class Nested 
+    {
+        public static int outer(int x) {
+            return inner( x ) + inner( x + 1 );
+        }
+
+        public static int inner(int x) {
+            return x * 3 + 1;
+        }
+    }
+
+    @After
+    public void tearDown() 
+    {
+        StatisticsManager.setCallStackTracking( false );
+        MethodRegistry.setDefaultMode( MethodRegistry.Mode.FULL );
+        StatisticsManager.setSampling( StatisticsManager.DEFAULT_BURST_LENGTH , StatisticsManager.DEFAULT_SAMPLE_INTERVAL );
+    }
+
+    @Test
+    public void testSampledMethodIsScaled() throws Exception 
+    {
+        final InstrumentingClassLoader loader = new InstrumentingClassLoader();
+        final Class<?> full = loader.instrument( Full.class );
+
+        // every 10th method entry runs the instrumented copy
+        MethodRegistry.setDefaultMode( MethodRegistry.Mode.SAMPLED );
+        StatisticsManager.setSampling( 1 , 9 );
+        final Class<?> sampled = loader.instrument( Sampled.class );
+        assertEquals( MethodRegistry.Mode.SAMPLED , InstrumentingClassLoader.getMethod( sampled , "work" ).getMode() );
+
+        StatisticsManager.snapshotAndResetFlatProfile();
+        runInNewThread( full , sampled );
+        final FlatProfile profile = StatisticsManager.getFlatProfile();
+
+        final FlatProfile.Entry fullEntry = getEntry( profile , InstrumentingClassLoader.getMethod( full , "work" ) );
+        final FlatProfile.Entry sampledEntry = getEntry( profile , InstrumentingClassLoader.getMethod( sampled , "work" ) );
+
+        assertFalse( fullEntry.isEstimated() );
+        assertEquals( INVOCATIONS , fullEntry.getInvocations() );
+
+        assertTrue( sampledEntry.isEstimated() );
+        assertEquals( INVOCATIONS , sampledEntry.getInvocations() );
+        assertEquals( fullEntry.getSelfInstructions() , sampledEntry.getSelfInstructions() );
+    }
+
+    @Test
+    public void testSelfAndInclusiveInstructions() throws Exception 
+    {
+        StatisticsManager.setCallStackTracking( true );
+        final Class<?> clazz = new InstrumentingClassLoader().instrument( Nested.class );
+
+        StatisticsManager.snapshotAndResetFlatProfile();
+        InstrumentingClassLoader.invokeInNewThread( clazz , "outer" , INVOCATIONS , 1 );
+        final FlatProfile profile = StatisticsManager.snapshotAndResetFlatProfile();
+
+        final FlatProfile.Entry outer = getEntry( profile , InstrumentingClassLoader.getMethod( clazz , "outer" ) );
+        final FlatProfile.Entry inner = getEntry( profile , InstrumentingClassLoader.getMethod( clazz , "inner" ) );
+        assertEquals( INVOCATIONS , outer.getInvocations() );
+        assertEquals( 2 * INVOCATIONS , inner.getInvocations() );
+        assertEquals( inner.getSelfInstructions() , inner.getInclusiveInstructions() );
+        assertEquals( outer.getSelfInstructions() + inner.getSelfInstructions() , outer.getInclusiveInstructions() );
+
+        // the next interval starts from scratch
+        assertTrue( StatisticsManager.getFlatProfile().getEntries().isEmpty() );
+    }
+
+    // a new thread starts with a fresh sample countdown
+    private static void runInNewThread(final Class<?> full,final Class<?> sampled) throws Exception 
+    {
+        final Exception[] error = { null };
+        final Thread thread = new Thread() {
+
+            @Override
+            public void run() 
+            {
+                try {
+                    for ( int i = 0 ; i < INVOCATIONS ; i++ ) {
+                        InstrumentingClassLoader.invoke( full , "work" , i );
+                        InstrumentingClassLoader.invoke( sampled , "work" , i );
+                    }
+                } catch(Exception e) {
+                    error[0] = e;
+                }
+            }
+        };
+        thread.start();
+        thread.join();
+        if ( error[0] != null ) {
+            throw error[0];
+        }
+    }
+
+    private static FlatProfile.Entry getEntry(FlatProfile profile,MethodRegistry.MethodInfo method) 
+    {
+        for ( FlatProfile.Entry entry : profile.getEntries() ) 
+        {
+            if ( entry.getMethod() == method ) {
+                return entry;
+            }
+        }
+        throw new AssertionError("No entry for "+method);
+    }
+}
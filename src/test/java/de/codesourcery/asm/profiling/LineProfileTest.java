@@ -0,0 +1,126 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.asm.profiling;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import de.codesourcery.asm.rewrite.InstrumentingClassLoader;
+
+public class LineProfileTest
+{
+    private static final File SOURCE_ROOT = new File("src/test/java");
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    public static class Fixture 
+    {
+        public static int sum(int n) 
+        {
+            int sum = 0;
+            for ( int i = 0 ; i < n ; i++ ) {
+                sum += i; // ILOAD , ILOAD , IADD , ISTORE
+            }
+            return sum;
+        }
+    }
+
+    @After
+    public void tearDown() {
+        StatisticsManager.setLineProfiling( false );
+    }
+
+    @Test
+    public void testInstructionsAreCountedPerLine() throws Exception 
+    {
+        StatisticsManager.setLineProfiling( true );
+        final Class<?> clazz = new InstrumentingClassLoader().instrument( Fixture.class );
+
+        for ( int i = 0 ; i < 3 ; i++ ) {
+            assertEquals( 45 , InstrumentingClassLoader.invoke( clazz , "sum" , 10 ) );
+        }
+
+        final String sourcePath = LineRegistry.getSourcePath( Fixture.class.getName() );
+        assertEquals( LineProfileTest.class.getName().replace('.','/')+".java" , sourcePath );
+        final int line = findLine( sourcePath , "sum += i;" );
+
+        final LineProfile profile = StatisticsManager.getLineProfile();
+        final LineProfile.ClassLines lines = profile.getClassLines( Fixture.class.getName() );
+        assertEquals( sourcePath , lines.getSourcePath() );
+        assertEquals( 3 * 10 * 4 , lines.getInstructions( line ) );
+        assertEquals( 3 * 10 * 4 , profile.getInstructions( sourcePath , line ) );
+        assertFalse( lines.isEstimated() );
+        assertTrue( lines.getTotalInstructions() > lines.getInstructions( line ) );
+
+        final File file = folder.newFile( "lines.txt" );
+        final PrintStream out = new PrintStream( new FileOutputStream( file ) );
+        try {
+            profile.write( out );
+        } finally {
+            out.close();
+        }
+        final LineProfile read = LineProfile.read( file );
+        assertEquals( profile.getTotalInstructions() , read.getTotalInstructions() );
+        assertEquals( lines.getTotalInstructions() , read.getClassLines( Fixture.class.getName() ).getTotalInstructions() );
+        assertEquals( 3 * 10 * 4 , read.getInstructions( sourcePath , line ) );
+
+        // the loop header and body are the hottest lines of the fixture , both are marked in the annotated source
+        final LineProfile fixtureOnly = new LineProfile();
+        for ( int i = 0 ; i <= lines.getMaxLine() ; i++ ) 
+        {
+            if ( lines.getInstructions( i ) != 0 ) {
+                fixtureOnly.add( Fixture.class.getName() , sourcePath , i , lines.getInstructions( i ) , false );
+            }
+        }
+        final ByteArrayOutputStream text = new ByteArrayOutputStream();
+        new AnnotatedSourceReport( fixtureOnly , new File[] { SOURCE_ROOT } ).printText( new PrintStream( text ) , 2 );
+        final String report = new String( text.toByteArray() , StandardCharsets.UTF_8 );
+        assertTrue( report , report.contains( "==== "+sourcePath+" ====" ) );
+        assertTrue( report , report.contains( String.format( ">%6d: " , line )+readLines( sourcePath ).get( line - 1 ) ) );
+    }
+
+    private static int findLine(String sourcePath,String text) throws IOException 
+    {
+        final List<String> lines = readLines( sourcePath );
+        for ( int i = 0 ; i < lines.size() ; i++ ) 
+        {
+            if ( lines.get( i ).trim().startsWith( text ) ) {
+                return i + 1;
+            }
+        }
+        throw new AssertionError("Line '"+text+"' not found in "+sourcePath);
+    }
+
+    private static List<String> readLines(String sourcePath) throws IOException {
+        return Files.readAllLines( new File( SOURCE_ROOT , sourcePath ).toPath() , StandardCharsets.UTF_8 );
+    }
+}
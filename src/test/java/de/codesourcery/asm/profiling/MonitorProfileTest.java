@@ -0,0 +1,110 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.asm.profiling;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+import de.codesourcery.asm.rewrite.InstrumentingClassLoader;
+
+public class MonitorProfileTest
+{
+    private static final long HOLD_MILLIS = 100;
+
+    public static class Fixture 
+    {
+        public static int value;
+
+        public static int increment(Object lock) 
+        {
+            synchronized( lock ) {
+                return ++value;
+            }
+        }
+    }
+
+    @After
+    public void tearDown() 
+    {
+        StatisticsManager.setMonitorProfiling( false );
+        StatisticsManager.setContentionThreshold( StatisticsManager.DEFAULT_CONTENTION_THRESHOLD );
+    }
+
+    @Test
+    public void testContendedAcquisitionIsTimed() throws Exception 
+    {
+        StatisticsManager.setMonitorProfiling( true );
+        // way above anything an uncontended acquisition takes , even in interpreted code
+        StatisticsManager.setContentionThreshold( TimeUnit.MILLISECONDS.toNanos( HOLD_MILLIS / 2 ) );
+        final Class<?> clazz = new InstrumentingClassLoader().instrument( Fixture.class );
+
+        final Object lock = new Object();
+        InstrumentingClassLoader.invoke( clazz , "increment" , lock );
+
+        final Exception[] error = { null };
+        final Thread thread = new Thread() {
+
+            @Override
+            public void run() 
+            {
+                try {
+                    InstrumentingClassLoader.invoke( clazz , "increment" , lock );
+                } 
+                catch(Exception e) {
+                    error[0] = e;
+                }
+            }
+        };
+        synchronized( lock ) 
+        {
+            thread.start();
+            while ( thread.getState() != Thread.State.BLOCKED ) {
+                Thread.sleep( 1 );
+            }
+            Thread.sleep( HOLD_MILLIS );
+        }
+        thread.join();
+        if ( error[0] != null ) {
+            throw error[0];
+        }
+
+        final MonitorProfile.Entry entry = getEntry( clazz );
+        assertFalse( entry.getSite().isSynchronizedMethod() );
+        assertTrue( entry.getSite().isTimed() );
+        assertEquals( 2 , entry.getAcquisitions() );
+        assertEquals( 1 , entry.getContendedAcquisitions() );
+        assertTrue( "Wait time too short: "+entry.getWaitNanos() , entry.getWaitNanos() >= TimeUnit.MILLISECONDS.toNanos( HOLD_MILLIS ) );
+        assertFalse( entry.isEstimated() );
+    }
+
+    private static MonitorProfile.Entry getEntry(Class<?> clazz) 
+    {
+        final int methodId = InstrumentingClassLoader.getMethod( clazz , "increment" ).getId();
+        for ( MonitorProfile.Entry entry : StatisticsManager.getMonitorProfile().getEntries() ) 
+        {
+            if ( entry.getSite().getMethodId() == methodId ) {
+                return entry;
+            }
+        }
+        throw new AssertionError("No monitor site recorded for "+clazz.getName()+"#increment()");
+    }
+}
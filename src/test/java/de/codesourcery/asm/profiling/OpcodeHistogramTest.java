@@ -0,0 +1,93 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.asm.profiling;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import de.codesourcery.asm.rewrite.InstrumentingClassLoader;
+
+public class OpcodeHistogramTest
+{
+    private static final String THREAD_NAME = "opcode-histogram-test";
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    public static class Fixture 
+    {
+        // ILOAD , ILOAD , IMUL , IRETURN
+        public static int multiply(int a,int b) {
+            return a * b;
+        }
+    }
+
+    @After
+    public void tearDown() {
+        StatisticsManager.setOpcodeHistogram( false );
+    }
+
+    @Test
+    public void testInstructionsAreCountedPerClass() throws Exception 
+    {
+        StatisticsManager.setOpcodeHistogram( true );
+        final Class<?> clazz = new InstrumentingClassLoader().instrument( Fixture.class );
+
+        final Exception[] error = { null };
+        final Thread thread = new Thread( THREAD_NAME ) {
+
+            @Override
+            public void run() 
+            {
+                try {
+                    for ( int i = 0 ; i < 10 ; i++ ) {
+                        InstrumentingClassLoader.invoke( clazz , "multiply" , i , 3 );
+                    }
+                } 
+                catch(Exception e) {
+                    error[0] = e;
+                }
+            }
+        };
+        thread.start();
+        thread.join();
+        if ( error[0] != null ) {
+            throw error[0];
+        }
+
+        // the row is named after the thread , no matter whether the thread has been retired already
+        final OpcodeHistogram histogram = StatisticsManager.getOpcodeHistogram();
+        final long[] expected = new long[ OpcodeClass.count() ];
+        expected[ OpcodeClass.LOCAL.ordinal() ] = 20;
+        expected[ OpcodeClass.ARITHMETIC.ordinal() ] = 10;
+        expected[ OpcodeClass.RETURN.ordinal() ] = 10;
+        assertArrayEquals( expected , histogram.getCounts( THREAD_NAME ) );
+
+        final File file = folder.newFile( "histogram.txt" );
+        histogram.write( file );
+        final OpcodeHistogram read = OpcodeHistogram.read( file );
+        assertEquals( histogram.getThreadNames().size() , read.getThreadNames().size() );
+        assertArrayEquals( expected , read.getCounts( THREAD_NAME ) );
+        assertArrayEquals( histogram.getTotals() , read.getTotals() );
+    }
+}
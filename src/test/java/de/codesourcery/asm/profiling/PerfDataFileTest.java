@@ -0,0 +1,137 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.asm.profiling;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import de.codesourcery.asm.rewrite.InstrumentingClassLoader;
+
+public class PerfDataFileTest
+{
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    public static class Fixture 
+    {
+        public static int sum(int n) 
+        {
+            int result = 0;
+            for ( int i = 0 ; i < n ; i++ ) {
+                result += i;
+            }
+            return result;
+        }
+    }
+
+    @After
+    public void tearDown() {
+        StatisticsManager.setPerfDataFile( null );
+    }
+
+    private static long getCounter(MethodRegistry.MethodInfo method,int slot) {
+        return StatisticsManager.getMethodCounters()[ method.getId() * ExecutionStatistics.METHOD_COUNTER_SLOTS + slot ];
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception 
+    {
+        final Class<?> clazz = new InstrumentingClassLoader().instrument( Fixture.class );
+        final MethodRegistry.MethodInfo sum = InstrumentingClassLoader.getMethod( clazz , "sum" );
+        final long instructionsBefore = getCounter( sum , ExecutionStatistics.SLOT_INSTRUCTIONS );
+
+        final File file = folder.newFile( "test.perf" );
+        final PerfDataFile perfData = new PerfDataFile( file , 8 , MethodRegistry.getMethodCount() );
+        StatisticsManager.setPerfDataFile( perfData );
+
+        // thread slots get allocated and written by the instrumented code itself
+        final Exception[] error = { null };
+        final Thread thread = new Thread( "perf-round-trip" ) {
+
+            @Override
+            public void run() 
+            {
+                try {
+                    for ( int i = 0 ; i < 10 ; i++ ) {
+                        InstrumentingClassLoader.invoke( clazz , "sum" , 10 );
+                    }
+                } 
+                catch(Exception e) {
+                    error[0] = e;
+                }
+            }
+        };
+        thread.start();
+        thread.join();
+        if ( error[0] != null ) {
+            throw error[0];
+        }
+        perfData.publishMethods();
+
+        final PerfDataReader reader = new PerfDataReader( file );
+        assertTrue( reader.getCreationTime() > 0 );
+
+        PerfDataReader.ThreadCounters threadCounters = null;
+        for ( PerfDataReader.ThreadCounters candidate : reader.readThreads() ) 
+        {
+            if ( candidate.threadId == thread.getId() ) {
+                threadCounters = candidate;
+            }
+        }
+        assertNotNull( threadCounters );
+        assertEquals( "perf-round-trip" , threadCounters.name );
+        // the thread only executed instrumented code of this method
+        assertEquals( getCounter( sum , ExecutionStatistics.SLOT_INSTRUCTIONS ) - instructionsBefore , threadCounters.instructions );
+
+        final PerfDataReader.MethodCounters methodCounters = reader.readMethods().get( sum.getId() );
+        assertEquals( sum.getId() , methodCounters.id );
+        assertEquals( sum.toString() , methodCounters.name );
+        assertEquals( MethodRegistry.Mode.FULL , methodCounters.mode );
+        assertEquals( getCounter( sum , ExecutionStatistics.SLOT_INVOCATIONS ) , methodCounters.invocations );
+        assertEquals( getCounter( sum , ExecutionStatistics.SLOT_PROBES ) , methodCounters.probes );
+        assertEquals( getCounter( sum , ExecutionStatistics.SLOT_INSTRUCTIONS ) , methodCounters.instructions );
+    }
+
+    @Test
+    public void testReleasedThreadSlotsAreReused() throws Exception 
+    {
+        final File file = folder.newFile( "test.perf" );
+        final PerfDataFile perfData = new PerfDataFile( file , 1 , 1 );
+        final PerfDataReader reader = new PerfDataReader( file );
+
+        final int slot = perfData.allocateThreadSlot( new Thread( "first" ) );
+        perfData.updateThread( slot , 42 );
+        assertEquals( -1 , perfData.allocateThreadSlot( new Thread( "exhausted" ) ) );
+
+        perfData.releaseThreadSlot( slot );
+        assertEquals( PerfDataFile.STATE_TERMINATED , reader.readThreads().get( 0 ).state );
+        assertEquals( 42 , reader.readThreads().get( 0 ).instructions );
+
+        assertEquals( slot , perfData.allocateThreadSlot( new Thread( "second" ) ) );
+        final PerfDataReader.ThreadCounters counters = reader.readThreads().get( 0 );
+        assertEquals( "second" , counters.name );
+        assertEquals( PerfDataFile.STATE_LIVE , counters.state );
+        assertEquals( 0 , counters.instructions );
+    }
+}
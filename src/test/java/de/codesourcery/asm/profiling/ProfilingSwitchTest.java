@@ -0,0 +1,107 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.asm.profiling;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Test;
+
+import de.codesourcery.asm.rewrite.InstrumentingClassLoader;
+
+public class ProfilingSwitchTest
+{
+    public static class Fixture 
+    {
+        public static int sum(int n) 
+        {
+            int result = 0;
+            for ( int i = 0 ; i < n ; i++ ) {
+                result += i;
+            }
+            return result;
+        }
+
+        public static int runThenSum(Runnable task,int n) 
+        {
+            task.run();
+            int result = 0;
+            for ( int i = 0 ; i < n ; i++ ) {
+                result += i;
+            }
+            return result;
+        }
+    }
+
+    @After
+    public void tearDown() {
+        StatisticsManager.setEnabled( true );
+    }
+
+    private static long getCounter(MethodRegistry.MethodInfo method,int slot) {
+        return StatisticsManager.getMethodCounters()[ method.getId() * ExecutionStatistics.METHOD_COUNTER_SLOTS + slot ];
+    }
+
+    @Test
+    public void testDisabledProbesDoNotCount() throws Exception 
+    {
+        final Class<?> clazz = new InstrumentingClassLoader().instrument( Fixture.class );
+        final MethodRegistry.MethodInfo sum = InstrumentingClassLoader.getMethod( clazz , "sum" );
+
+        assertEquals( 45 , InstrumentingClassLoader.invoke( clazz , "sum" , 10 ) );
+        final long invocations = getCounter( sum , ExecutionStatistics.SLOT_INVOCATIONS );
+        final long instructions = getCounter( sum , ExecutionStatistics.SLOT_INSTRUCTIONS );
+        assertEquals( 1 , invocations );
+        assertTrue( instructions > 0 );
+
+        StatisticsManager.setEnabled( false );
+        for ( int i = 0 ; i < 100 ; i++ ) {
+            assertEquals( 45 , InstrumentingClassLoader.invoke( clazz , "sum" , 10 ) );
+        }
+        assertEquals( invocations , getCounter( sum , ExecutionStatistics.SLOT_INVOCATIONS ) );
+        assertEquals( instructions , getCounter( sum , ExecutionStatistics.SLOT_INSTRUCTIONS ) );
+
+        StatisticsManager.setEnabled( true );
+        assertEquals( 45 , InstrumentingClassLoader.invoke( clazz , "sum" , 10 ) );
+        assertEquals( 2 * invocations , getCounter( sum , ExecutionStatistics.SLOT_INVOCATIONS ) );
+        assertEquals( 2 * instructions , getCounter( sum , ExecutionStatistics.SLOT_INSTRUCTIONS ) );
+    }
+
+    @Test
+    public void testSwitchingOnWithinMethod() throws Exception 
+    {
+        final Class<?> clazz = new InstrumentingClassLoader().instrument( Fixture.class );
+        final MethodRegistry.MethodInfo method = InstrumentingClassLoader.getMethod( clazz , "runThenSum" );
+
+        final Runnable enable = new Runnable() {
+
+            @Override
+            public void run() {
+                StatisticsManager.setEnabled( true );
+            }
+        };
+
+        StatisticsManager.setEnabled( false );
+        final long invocations = getCounter( method , ExecutionStatistics.SLOT_INVOCATIONS );
+        final long instructions = getCounter( method , ExecutionStatistics.SLOT_INSTRUCTIONS );
+        assertEquals( 45 , InstrumentingClassLoader.invoke( clazz , "runThenSum" , enable , 10 ) );
+
+        // the method was entered while disabled , blocks executed after switching on look up the statistics lazily
+        assertEquals( invocations , getCounter( method , ExecutionStatistics.SLOT_INVOCATIONS ) );
+        assertTrue( getCounter( method , ExecutionStatistics.SLOT_INSTRUCTIONS ) > instructions );
+    }
+}
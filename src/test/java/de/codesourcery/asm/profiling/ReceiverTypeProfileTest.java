@@ -0,0 +1,93 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.asm.profiling;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Test;
+import org.objectweb.asm.Opcodes;
+
+import de.codesourcery.asm.rewrite.InstrumentingClassLoader;
+
+public class ReceiverTypeProfileTest
+{
+    public static class Fixture 
+    {
+        public static int hash(Object value) {
+            return value.hashCode();
+        }
+    }
+
+    @After
+    public void tearDown() {
+        StatisticsManager.setReceiverTypeProfiling( false );
+    }
+
+    @Test
+    public void testReceiversAreCountedPerCallSite() throws Exception 
+    {
+        StatisticsManager.setReceiverTypeProfiling( true );
+        final Class<?> clazz = new InstrumentingClassLoader().instrument( Fixture.class );
+
+        for ( int i = 0 ; i < 3 ; i++ ) {
+            InstrumentingClassLoader.invoke( clazz , "hash" , Integer.valueOf( i ) );
+        }
+        InstrumentingClassLoader.invoke( clazz , "hash" , "a" );
+        InstrumentingClassLoader.invoke( clazz , "hash" , "b" );
+
+        ReceiverTypeProfile.Entry entry = getEntry( clazz );
+        assertEquals( Opcodes.INVOKEVIRTUAL , entry.getSite().getOpcode() );
+        assertEquals( "hashCode" , entry.getSite().getName() );
+        assertEquals( 5 , entry.getCalls() );
+        assertEquals( 2 , entry.getPolymorphismDegree() );
+        assertFalse( entry.isMegamorphic() );
+
+        final Map<String,Long> receivers = entry.getReceivers();
+        assertEquals( Arrays.asList( Integer.class.getName() , String.class.getName() ) , Arrays.asList( receivers.keySet().toArray() ) );
+        assertEquals( Long.valueOf( 3 ) , receivers.get( Integer.class.getName() ) );
+        assertEquals( Long.valueOf( 2 ) , receivers.get( String.class.getName() ) );
+
+        // two more classes fill the per-thread cache , any further class is only counted as megamorphic
+        InstrumentingClassLoader.invoke( clazz , "hash" , Long.valueOf( 1 ) );
+        InstrumentingClassLoader.invoke( clazz , "hash" , Double.valueOf( 1 ) );
+        InstrumentingClassLoader.invoke( clazz , "hash" , Boolean.TRUE );
+        InstrumentingClassLoader.invoke( clazz , "hash" , Character.valueOf( 'x' ) );
+
+        entry = getEntry( clazz );
+        assertEquals( 9 , entry.getCalls() );
+        assertEquals( ExecutionStatistics.RECEIVER_SLOTS , entry.getPolymorphismDegree() );
+        assertTrue( entry.isMegamorphic() );
+        assertEquals( 2 , entry.getMegamorphicCalls() );
+    }
+
+    private static ReceiverTypeProfile.Entry getEntry(Class<?> clazz) 
+    {
+        final int methodId = InstrumentingClassLoader.getMethod( clazz , "hash" ).getId();
+        for ( ReceiverTypeProfile.Entry entry : StatisticsManager.getReceiverTypeProfile().getEntries() ) 
+        {
+            if ( entry.getSite().getMethodId() == methodId ) {
+                return entry;
+            }
+        }
+        throw new AssertionError("No receiver types recorded for "+clazz.getName()+"#hash()");
+    }
+}
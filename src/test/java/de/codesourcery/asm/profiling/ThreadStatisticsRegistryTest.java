@@ -0,0 +1,144 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.asm.profiling;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ThreadStatisticsRegistryTest
+{
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testDigitsAreReplaced()
+    {
+        assertEquals( "pool-#-thread-#" , ThreadStatisticsRegistry.toNamePattern( "pool-3-thread-17" ) );
+        assertEquals( "worker-#" , ThreadStatisticsRegistry.toNamePattern( "worker-1" ) );
+        assertEquals( "Thread#" , ThreadStatisticsRegistry.toNamePattern( "Thread12" ) );
+    }
+
+    @Test
+    public void testHexStringsAndUUIDsAreReplaced()
+    {
+        assertEquals( "request-#" , ThreadStatisticsRegistry.toNamePattern( "request-123e4567-e89b-12d3-a456-426614174000" ) );
+        assertEquals( "task-#" , ThreadStatisticsRegistry.toNamePattern( "task-7f3a9c" ) );
+        assertEquals( "task-#" , ThreadStatisticsRegistry.toNamePattern( "task-0xcafe" ) );
+        assertEquals( "session #" , ThreadStatisticsRegistry.toNamePattern( "session deadbeefcafe" ) );
+    }
+
+    @Test
+    public void testWordsAreKept()
+    {
+        assertEquals( "main" , ThreadStatisticsRegistry.toNamePattern( "main" ) );
+        assertEquals( "task-abc" , ThreadStatisticsRegistry.toNamePattern( "task-abc" ) );
+        assertEquals( "Reference Handler" , ThreadStatisticsRegistry.toNamePattern( "Reference Handler" ) );
+    }
+
+    @Test
+    public void testBucketCountIsCapped() throws InterruptedException
+    {
+        // retire threads left over by other tests first
+        ThreadStatisticsRegistry.retireTerminatedThreads();
+        final long retiredBefore = getRetiredThreadCount();
+
+        final int threads = ThreadStatisticsRegistry.MAX_BUCKETS + 50;
+        for ( int i = 0 ; i < threads ; i++ )
+        {
+            final Thread thread = new Thread( "capped-"+toLetters( i ) );
+            thread.start();
+            thread.join();
+            ThreadStatisticsRegistry.register( thread , new ExecutionStatistics() );
+        }
+        ThreadStatisticsRegistry.retireTerminatedThreads();
+
+        final List<ThreadStatisticsRegistry.Bucket> buckets = ThreadStatisticsRegistry.getRetiredThreads();
+        assertTrue( buckets.size() <= ThreadStatisticsRegistry.MAX_BUCKETS );
+        ThreadStatisticsRegistry.Bucket other = null;
+        for ( ThreadStatisticsRegistry.Bucket bucket : buckets ) 
+        {
+            if ( bucket.getNamePattern().equals( ThreadStatisticsRegistry.OTHER_BUCKET ) ) {
+                other = bucket;
+            }
+        }
+        assertEquals( threads , getRetiredThreadCount() - retiredBefore );
+        assertTrue( other != null && other.getThreadCount() >= 50 );
+    }
+
+    private static long getRetiredThreadCount() 
+    {
+        long result = 0;
+        for ( ThreadStatisticsRegistry.Bucket bucket : ThreadStatisticsRegistry.getRetiredThreads() ) {
+            result += bucket.getThreadCount();
+        }
+        return result;
+    }
+
+    @Test
+    public void testPerfSlotGetsFinalCountWhenRetired() throws Exception
+    {
+        final File file = folder.newFile( "test.perf" );
+        final PerfDataFile perfData = new PerfDataFile( file , 4 , 1 );
+        StatisticsManager.setPerfDataFile( perfData );
+        try 
+        {
+            final Thread thread = new Thread( "perf-slot-test" );
+            final ExecutionStatistics stat = new ExecutionStatistics();
+            stat.perfSlot = perfData.allocateThreadSlot( thread );
+            perfData.updateThread( stat.perfSlot , 10 );
+            // instructions executed after the last StatisticsManager#account()
+            stat.executedInstructions = 25;
+
+            thread.start();
+            thread.join();
+            ThreadStatisticsRegistry.register( thread , stat );
+            ThreadStatisticsRegistry.retireTerminatedThreads();
+
+            PerfDataReader.ThreadCounters counters = null;
+            for ( PerfDataReader.ThreadCounters candidate : new PerfDataReader( file ).readThreads() ) 
+            {
+                if ( candidate.threadId == thread.getId() ) {
+                    counters = candidate;
+                }
+            }
+            assertNotNull( counters );
+            assertEquals( PerfDataFile.STATE_TERMINATED , counters.state );
+            assertEquals( 25 , counters.instructions );
+        } 
+        finally {
+            StatisticsManager.setPerfDataFile( null );
+        }
+    }
+
+    // letters outside of the hex range , so every thread gets its own name pattern
+    private static String toLetters(int value)
+    {
+        final StringBuilder result = new StringBuilder();
+        do {
+            result.append( (char) ( 'g' + value % 20 ) );
+            value /= 20;
+        } while ( value > 0 );
+        return result.toString();
+    }
+}
@@ -0,0 +1,115 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.asm.profiling;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Runs lots of short-lived tasks on virtual threads (or a cached thread pool if the JVM does not support
+ * virtual threads) and reports throughput and memory usage.
+ *
+ * <p>Usage: <code>java "-javaagent:target/controlflow.jar=packages=VirtualThreadBenchmark" -cp target/controlflow.jar:target/test-classes de.codesourcery.asm.profiling.VirtualThreadBenchmark [&lt;number of tasks&gt;] [&lt;work per task&gt;]</code></p>
+ *
+ * <p>Compare the results with the agent option 'virtualThreads=false' to see the cost of per-thread accounting.</p>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ * @see VirtualThreadStatistics
+ */
+public class VirtualThreadBenchmark
+{
+    protected static final class Task implements Runnable
+    {
+        private final int work;
+        public volatile long result;
+
+        public Task(int work) {
+            this.work = work;
+        }
+
+        @Override
+        public void run()
+        {
+            long value = 0;
+            for ( int i = 0 ; i < work ; i++ ) {
+                value = value * 31 + i;
+            }
+            result = value;
+        }
+    }
+
+    private static ExecutorService createExecutor()
+    {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke( null );
+        }
+        catch (Exception e) {
+            System.out.println("Virtual threads are not supported by this JVM, using a cached thread pool instead");
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    private static long runTasks(int count,int work) throws Exception
+    {
+        final ExecutorService executor = createExecutor();
+        final long start = System.nanoTime();
+        try
+        {
+            final List<Future<?>> futures = new ArrayList<>( count );
+            for ( int i = 0 ; i < count ; i++ ) {
+                futures.add( executor.submit( new Task( work ) ) );
+            }
+            for ( Future<?> f : futures ) {
+                f.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static long usedHeap()
+    {
+        final Runtime runtime = Runtime.getRuntime();
+        for ( int i = 0 ; i < 3 ; i++ ) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        final int tasks = args.length > 0 ? Integer.parseInt( args[0] ) : 100000;
+        final int work = args.length > 1 ? Integer.parseInt( args[1] ) : 100;
+
+        runTasks( Math.min( tasks , 10000 ) , work ); // warm-up
+
+        final long heapBefore = usedHeap();
+        final long elapsed = runTasks( tasks , work );
+        final long heapAfter = usedHeap();
+
+        System.out.println("Tasks                  : "+tasks+" (work: "+work+")");
+        System.out.println("Time per task          : "+( elapsed / tasks )+" ns");
+        System.out.println("Heap growth            : "+( ( heapAfter - heapBefore ) / 1024 )+" KB");
+        System.out.println("Virtual threads        : "+( VirtualThreadStatistics.isSupported() ? VirtualThreadStatistics.getThreadCount() : "not supported" ) );
+        System.out.println("Statistics instances   : "+VirtualThreadStatistics.getStatisticsCount()+" held for virtual threads");
+        System.out.println("Registered threads     : "+ThreadStatisticsRegistry.getLiveThreadCount()+" live , "+ThreadStatisticsRegistry.getRetiredThreads().size()+" buckets");
+        System.out.println("Instructions executed  : "+StatisticsManager.getTotalExecutedInstructionsCount());
+    }
+}
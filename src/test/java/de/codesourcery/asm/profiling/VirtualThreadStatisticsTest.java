@@ -0,0 +1,150 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.asm.profiling;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+
+public class VirtualThreadStatisticsTest
+{
+    private static final int METHOD_ID = 3;
+
+    private static final int INDEX = METHOD_ID * ExecutionStatistics.METHOD_COUNTER_SLOTS + ExecutionStatistics.SLOT_INVOCATIONS;
+
+    // sums the instruction and invocation counts of all entries and the bucket
+    private static long[] getTotals(VirtualThreadStatistics.Stripe stripe)
+    {
+        final long[] result = new long[2];
+        stripe.visit( new ThreadStatisticsRegistry.IVisitor() {
+
+            @Override
+            public void visitLiveThread(long threadId, String threadName, ExecutionStatistics stat)
+            {
+                add( stat.executedInstructions , stat.methodCounters );
+            }
+
+            @Override
+            public void visitRetiredThreads(ThreadStatisticsRegistry.Bucket bucket)
+            {
+                add( bucket.getExecutedInstructions() , bucket.getCounters( CounterKind.METHODS ) );
+            }
+
+            private void add(long instructions,long[] counters) 
+            {
+                result[0] += instructions;
+                if ( counters.length > INDEX ) {
+                    result[1] += counters[ INDEX ];
+                }
+            }
+        });
+        return result;
+    }
+
+    // does what generated byte-code does at method entry and for each basic block
+    private static void invoke(ExecutionStatistics stat)
+    {
+        CounterKind.METHODS.ensureCapacity( stat , ( METHOD_ID + 1 ) * ExecutionStatistics.METHOD_COUNTER_SLOTS );
+        stat.methodCounters[ INDEX ]++;
+        stat.executedInstructions += 10;
+    }
+
+    @Test
+    public void testThreadGetsSameStatistics()
+    {
+        final VirtualThreadStatistics.Stripe stripe = new VirtualThreadStatistics.Stripe();
+        final ExecutionStatistics stat = stripe.lookup( Thread.currentThread() );
+        assertSame( stat , stripe.lookup( Thread.currentThread() ) );
+        assertEquals( 1 , stripe.getStatisticsCount() );
+    }
+
+    @Test
+    public void testStatisticsOfTerminatedThreadsAreReused() throws InterruptedException
+    {
+        final VirtualThreadStatistics.Stripe stripe = new VirtualThreadStatistics.Stripe();
+        final int threads = 1000;
+        for ( int i = 0 ; i < threads ; i++ )
+        {
+            final Thread thread = new Thread() 
+            {
+                @Override
+                public void run()
+                {
+                    final ExecutionStatistics stat = stripe.lookup( this );
+                    assertEquals( 0 , stat.executedInstructions );
+                    invoke( stat );
+                }
+            };
+            thread.start();
+            thread.join();
+        }
+        assertTrue( stripe.getStatisticsCount() < 16 );
+        final long[] totals = getTotals( stripe );
+        assertEquals( threads * 10 , totals[0] );
+        assertEquals( threads , totals[1] );
+    }
+
+    @Test
+    public void testExactTotalsUnderConcurrentLoad() throws InterruptedException
+    {
+        // all threads share a single stripe , as many as possible run at the same time
+        final VirtualThreadStatistics.Stripe stripe = new VirtualThreadStatistics.Stripe();
+        final int rounds = 20;
+        final int threadsPerRound = 2 * Runtime.getRuntime().availableProcessors() + 2;
+        final int invocations = 100000;
+        for ( int round = 0 ; round < rounds ; round++ ) 
+        {
+            final CountDownLatch start = new CountDownLatch( 1 );
+            final List<Thread> threads = new ArrayList<>();
+            for ( int i = 0 ; i < threadsPerRound ; i++ ) 
+            {
+                threads.add( new Thread() 
+                {
+                    @Override
+                    public void run()
+                    {
+                        try {
+                            start.await();
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                        final ExecutionStatistics stat = stripe.lookup( this );
+                        for ( int j = 0 ; j < invocations ; j++ ) {
+                            invoke( stat );
+                        }
+                    }
+                });
+            }
+            for ( Thread t : threads ) {
+                t.start();
+            }
+            start.countDown();
+            for ( Thread t : threads ) {
+                t.join();
+            }
+        }
+        final long[] totals = getTotals( stripe );
+        assertEquals( (long) rounds * threadsPerRound * invocations * 10 , totals[0] );
+        assertEquals( (long) rounds * threadsPerRound * invocations , totals[1] );
+        assertTrue( stripe.getStatisticsCount() <= 2 * threadsPerRound + 16 );
+    }
+}
@@ -0,0 +1,228 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.asm.rewrite;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.Modifier;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.MethodInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.TryCatchBlockNode;
+
+import de.codesourcery.asm.profiling.MonitorProfile;
+import de.codesourcery.asm.profiling.StatisticsManager;
+
+public class DesynchronizeTest
+{
+    private static final int THREADS = 4;
+    private static final int INCREMENTS = 100000;
+
+    public static class Counter 
+    {
+        public static long count;
+
+        public static synchronized void increment() {
+            count++;
+        }
+
+        public static void run(int increments) 
+        {
+            for ( int i = 0 ; i < increments ; i++ ) {
+                increment();
+            }
+        }
+    }
+
+    public static class RestoredCounter 
+    {
+        public static long count;
+
+        public static synchronized void increment() {
+            count++;
+        }
+
+        public static void run(int increments) 
+        {
+            for ( int i = 0 ; i < increments ; i++ ) {
+                increment();
+            }
+        }
+    }
+
+    @Before
+    public void setUp() {
+        StatisticsManager.setMonitorProfiling( true );
+    }
+
+    @After
+    public void tearDown() {
+        StatisticsManager.setMonitorProfiling( false );
+    }
+
+    @Test
+    public void testDesynchronizedMethodIsMutuallyExclusive() throws Exception 
+    {
+        final Class<?> clazz = new InstrumentingClassLoader().instrument( Counter.class );
+
+        // the flag is gone but the monitor is still acquired
+        assertFalse( Modifier.isSynchronized( clazz.getMethod( "increment" ).getModifiers() ) );
+        runConcurrently( clazz );
+
+        assertEquals( THREADS * INCREMENTS , clazz.getField( "count" ).getLong( null ) );
+        assertEquals( THREADS * INCREMENTS , getAcquisitions( InstrumentingClassLoader.getMethod( clazz , "increment" ).getId() ) );
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testHandlerCoversItsOwnMonitorExit() throws Exception 
+    {
+        final MethodNode method = getMethod( new InstrumentingClassLoader().rewrite( Counter.class ) , "increment" );
+        boolean found = false;
+        for ( TryCatchBlockNode block : (List<TryCatchBlockNode>) method.tryCatchBlocks ) 
+        {
+            if ( block.type == null && block.start == block.handler ) 
+            {
+                assertEquals( Opcodes.MONITOREXIT , previousOpcode( block.end ) );
+                found = true;
+            }
+        }
+        assertTrue( "No catch-all handler protecting itself" , found );
+    }
+
+    @Test
+    public void testRestoredClassStaysDesynchronized() throws Exception 
+    {
+        final String internalName = RestoredCounter.class.getName().replace('.' , '/' );
+        final byte[] original = load( RestoredCounter.class );
+
+        final ProfilingClassTransformer.PatternFilter filter = new ProfilingClassTransformer.PatternFilter();
+        filter.add( RestoredCounter.class.getName() );
+        final ProfilingClassTransformer.MyTransformer transformer = new ProfilingClassTransformer.MyTransformer( filter , false , null , OpcodeCostModel.UNIFORM );
+
+        final ClassLoader loader = getClass().getClassLoader();
+        final byte[] loaded = transformer.transform( loader , internalName , null , null , original );
+        assertFalse( isSynchronized( getMethod( loaded , "increment" ) ) );
+
+        // restore , re-transformation must not bring back ACC_SYNCHRONIZED
+        filter.remove( RestoredCounter.class.getName() );
+        final byte[] restored = transformer.transform( loader , internalName , RestoredCounter.class , null , original );
+        assertNotNull( restored );
+
+        final MethodNode increment = getMethod( restored , "increment" );
+        assertFalse( isSynchronized( increment ) );
+        assertEquals( getMethod( loaded , "increment" ).access , increment.access );
+        for ( AbstractInsnNode insn = increment.instructions.getFirst() ; insn != null ; insn = insn.getNext() ) 
+        {
+            if ( insn instanceof MethodInsnNode ) {
+                assertFalse( "Restored class still has probes" , ((MethodInsnNode) insn).owner.startsWith( "de/codesourcery/asm/profiling/" ) );
+            }
+        }
+
+        final Class<?> clazz = new InstrumentingClassLoader().define( RestoredCounter.class.getName() , restored );
+        runConcurrently( clazz );
+        assertEquals( THREADS * INCREMENTS , clazz.getField( "count" ).getLong( null ) );
+    }
+
+    private static void runConcurrently(final Class<?> clazz) throws Exception 
+    {
+        final Exception[] error = { null };
+        final Thread[] threads = new Thread[ THREADS ];
+        for ( int i = 0 ; i < threads.length ; i++ ) 
+        {
+            threads[i] = new Thread() {
+
+                @Override
+                public void run() 
+                {
+                    try {
+                        InstrumentingClassLoader.invoke( clazz , "run" , INCREMENTS );
+                    } 
+                    catch(Exception e) 
+                    {
+                        synchronized( error ) {
+                            error[0] = e;
+                        }
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for ( Thread thread : threads ) {
+            thread.join();
+        }
+        synchronized( error ) 
+        {
+            if ( error[0] != null ) {
+                throw error[0];
+            }
+        }
+    }
+
+    private static long getAcquisitions(int methodId) 
+    {
+        long result = 0;
+        for ( MonitorProfile.Entry entry : StatisticsManager.getMonitorProfile().getEntries() ) 
+        {
+            if ( entry.getSite().getMethodId() == methodId ) {
+                result += entry.getAcquisitions();
+            }
+        }
+        return result;
+    }
+
+    private static byte[] load(Class<?> clazz) throws Exception {
+        return new ClassReader( clazz.getName() ).b;
+    }
+
+    private static boolean isSynchronized(MethodNode method) {
+        return ( method.access & Opcodes.ACC_SYNCHRONIZED ) != 0;
+    }
+
+    private static int previousOpcode(AbstractInsnNode node) 
+    {
+        AbstractInsnNode previous = node.getPrevious();
+        while ( previous.getOpcode() == -1 ) {
+            previous = previous.getPrevious();
+        }
+        return previous.getOpcode();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static MethodNode getMethod(byte[] classFile,String name) 
+    {
+        final ClassNode cn = new ClassNode();
+        new ClassReader( classFile ).accept( cn , 0 );
+        for ( MethodNode mn : (List<MethodNode>) cn.methods ) 
+        {
+            if ( mn.name.equals( name ) ) {
+                return mn;
+            }
+        }
+        throw new AssertionError("No method "+name);
+    }
+}
@@ -0,0 +1,118 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.asm.rewrite;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.junit.Test;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.MethodInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+
+import de.codesourcery.asm.profiling.ExecutionStatistics;
+import de.codesourcery.asm.profiling.MethodRegistry;
+import de.codesourcery.asm.profiling.StatisticsManager;
+
+public class EntryOnlyTest
+{
+    private static final int INVOCATIONS = 100;
+
+    public static class Fixture 
+    {
+        public static int sum() 
+        {
+            int result = 0;
+            for ( int i = 0 ; i < 10 ; i++ ) {
+                result += i;
+            }
+            return result;
+        }
+    }
+
+    private static long[] getCounters(MethodRegistry.MethodInfo method) 
+    {
+        final long[] counters = StatisticsManager.getMethodCounters();
+        final int base = method.getId() * ExecutionStatistics.METHOD_COUNTER_SLOTS;
+        return new long[] { counters[ base + ExecutionStatistics.SLOT_INVOCATIONS ] , 
+                counters[ base + ExecutionStatistics.SLOT_PROBES ] , 
+                counters[ base + ExecutionStatistics.SLOT_INSTRUCTIONS ] };
+    }
+
+    private static long[] run(Class<?> clazz,MethodRegistry.MethodInfo method) throws Exception 
+    {
+        final long[] before = getCounters( method );
+        for ( int i = 0 ; i < INVOCATIONS ; i++ ) {
+            assertEquals( 45 , InstrumentingClassLoader.invoke( clazz , "sum" ) );
+        }
+        final long[] after = getCounters( method );
+        for ( int i = 0 ; i < after.length ; i++ ) {
+            after[i] -= before[i];
+        }
+        return after;
+    }
+
+    @Test
+    public void testDemotedMethodCountsAtEntryOnly() throws Exception 
+    {
+        final Class<?> full = new InstrumentingClassLoader().instrument( Fixture.class );
+        final MethodRegistry.MethodInfo method = InstrumentingClassLoader.getMethod( full , "sum" );
+        assertEquals( MethodRegistry.Mode.FULL , method.getMode() );
+
+        final long[] measured = run( full , method );
+        assertEquals( INVOCATIONS , measured[0] );
+        final long instructionsPerInvocation = measured[2] / INVOCATIONS;
+        assertEquals( 0 , measured[2] % INVOCATIONS );
+
+        // demote , this is what the adaptive controller does before re-transforming the class
+        method.setEntryOnly( (int) instructionsPerInvocation );
+        final InstrumentingClassLoader loader = new InstrumentingClassLoader();
+        assertEquals( 1 , countProbes( loader.rewrite( Fixture.class ) ) );
+
+        final long[] estimated = run( loader.define( Fixture.class.getName() , loader.rewrite( Fixture.class ) ) , method );
+        assertEquals( INVOCATIONS , estimated[0] );
+        // a single probe per invocation instead of one per basic block
+        assertEquals( INVOCATIONS , estimated[1] );
+        assertEquals( measured[2] , estimated[2] );
+        assertTrue( method.isEstimated() );
+    }
+
+    // number of calls into the StatisticsManager in method 'sum'
+    @SuppressWarnings("unchecked")
+    private static int countProbes(byte[] classFile) 
+    {
+        final ClassNode cn = new ClassNode();
+        new ClassReader( classFile ).accept( cn , 0 );
+        int result = 0;
+        for ( MethodNode mn : (List<MethodNode>) cn.methods ) 
+        {
+            if ( ! mn.name.equals( "sum" ) ) {
+                continue;
+            }
+            for ( AbstractInsnNode insn = mn.instructions.getFirst() ; insn != null ; insn = insn.getNext() ) 
+            {
+                if ( insn instanceof MethodInsnNode && ((MethodInsnNode) insn).owner.equals( "de/codesourcery/asm/profiling/StatisticsManager" ) ) {
+                    result++;
+                }
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,194 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.asm.rewrite;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.tree.analysis.AnalyzerException;
+
+import de.codesourcery.asm.profiling.MethodRegistry;
+import de.codesourcery.asm.profiling.MethodRegistry.MethodInfo;
+import de.codesourcery.asm.util.IClassReaderProvider;
+import de.codesourcery.asm.util.IJoinpointFilter;
+
+/**
+ * Test helper that defines classes rewritten by a {@link ProfilingRewriter}.
+ * 
+ * <p>Classes are read from the test class path and defined under their original name , so test fixtures 
+ * can be nested classes of the test itself. All other classes (including other fixtures) get loaded 
+ * by the parent class loader and thus remain uninstrumented.</p>
+ * 
+ * <p>Note that the {@link MethodRegistry} is global , instrumenting a fixture again yields the same method IDs (and
+ * thus the same counters) , so tests need to compare counts before and after running the fixture.</p>
+ * 
+ * @author tobias.gierke@code-sourcery.de
+ */
+public class InstrumentingClassLoader extends ClassLoader
+{
+    private final ProfilingRewriter rewriter;
+
+    public InstrumentingClassLoader() {
+        this( new ProfilingRewriter() );
+    }
+
+    public InstrumentingClassLoader(ProfilingRewriter rewriter) 
+    {
+        super( InstrumentingClassLoader.class.getClassLoader() );
+        this.rewriter = rewriter;
+    }
+
+    /**
+     * Rewrites a class the same way the agent does when the class gets loaded.
+     * 
+     * @param clazz
+     * @return the rewritten class file
+     * @throws IOException
+     * @throws AnalyzerException
+     */
+    public byte[] rewrite(final Class<?> clazz) throws IOException, AnalyzerException 
+    {
+        final IClassReaderProvider provider = new IClassReaderProvider() {
+
+            @Override
+            public ClassReader getClassReader() throws IOException
+            {
+                return new ClassReader( clazz.getName() );
+            }
+
+            @Override
+            public String getClassName()
+            {
+                return clazz.getName();
+            }
+        };
+        return rewriter.rewrite( provider , IJoinpointFilter.ALL , true );
+    }
+
+    /**
+     * Rewrites a class and defines it in this class loader.
+     * 
+     * @param clazz
+     * @return the instrumented class
+     * @throws IOException
+     * @throws AnalyzerException
+     */
+    public Class<?> instrument(Class<?> clazz) throws IOException, AnalyzerException 
+    {
+        return define( clazz.getName() , rewrite( clazz ) );
+    }
+
+    /**
+     * Defines a class from a class file , e.g. one produced by a {@link ProfilingClassTransformer}.
+     * 
+     * @param name fully-qualified class name
+     * @param data
+     * @return
+     */
+    public Class<?> define(String name,byte[] data) {
+        return defineClass( name , data , 0 , data.length );
+    }
+
+    /**
+     * Invokes a static method of a class.
+     * 
+     * @param clazz
+     * @param methodName name of a method that is not overloaded
+     * @param args
+     * @return
+     * @throws Exception whatever the method threw
+     */
+    public static Object invoke(Class<?> clazz,String methodName,Object... args) throws Exception 
+    {
+        try {
+            return findMethod( clazz , methodName ).invoke( null , args );
+        } 
+        catch(InvocationTargetException e) 
+        {
+            if ( e.getCause() instanceof Exception ) {
+                throw (Exception) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Invokes a static method repeatedly on a new thread , which starts out with 
+     * fresh statistics (and thus e.g. a fresh sample countdown).
+     * 
+     * @param clazz
+     * @param methodName name of a method that is not overloaded
+     * @param times
+     * @param args
+     * @throws Exception whatever the method threw
+     */
+    public static void invokeInNewThread(final Class<?> clazz,final String methodName,final int times,final Object... args) throws Exception 
+    {
+        final Exception[] error = { null };
+        final Thread thread = new Thread() {
+
+            @Override
+            public void run() 
+            {
+                try {
+                    for ( int i = 0 ; i < times ; i++ ) {
+                        invoke( clazz , methodName , args );
+                    }
+                } catch(Exception e) {
+                    error[0] = e;
+                }
+            }
+        };
+        thread.start();
+        thread.join();
+        if ( error[0] != null ) {
+            throw error[0];
+        }
+    }
+
+    private static Method findMethod(Class<?> clazz,String methodName) 
+    {
+        for ( Method m : clazz.getDeclaredMethods() ) 
+        {
+            if ( m.getName().equals( methodName ) ) {
+                m.setAccessible( true );
+                return m;
+            }
+        }
+        throw new IllegalArgumentException("No method "+methodName+" in "+clazz);
+    }
+
+    /**
+     * Looks up the registered method with a given name.
+     * 
+     * @param clazz
+     * @param methodName name of a method that is not overloaded
+     * @return
+     */
+    public static MethodInfo getMethod(Class<?> clazz,String methodName) 
+    {
+        for ( int id = 0 ; id < MethodRegistry.getMethodCount() ; id++ ) 
+        {
+            final MethodInfo method = MethodRegistry.getMethod( id );
+            if ( method.getClassName().equals( clazz.getName() ) && method.getMethodName().equals( methodName ) ) {
+                return method;
+            }
+        }
+        throw new IllegalArgumentException("Method "+methodName+" of "+clazz+" has not been registered");
+    }
+}
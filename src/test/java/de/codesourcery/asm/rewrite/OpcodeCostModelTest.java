@@ -0,0 +1,105 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.asm.rewrite;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.objectweb.asm.Opcodes;
+
+import de.codesourcery.asm.profiling.ExecutionStatistics;
+import de.codesourcery.asm.profiling.MethodRegistry;
+import de.codesourcery.asm.profiling.StatisticsManager;
+
+public class OpcodeCostModelTest
+{
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    public static class Fixture 
+    {
+        // ILOAD , ILOAD , IMUL , IRETURN
+        public static int multiply(int a,int b) {
+            return a * b;
+        }
+    }
+
+    private static OpcodeCostModel load(String properties) throws IOException {
+        return OpcodeCostModel.load( new ByteArrayInputStream( properties.getBytes( "UTF-8" ) ) );
+    }
+
+    @Test
+    public void testLoadAndStore() throws Exception 
+    {
+        final OpcodeCostModel model = load( "default=2\nimul=10\nINVOKEINTERFACE=0\n" );
+        assertEquals( 2 , model.getCost( Opcodes.ILOAD ) );
+        assertEquals( 10 , model.getCost( Opcodes.IMUL ) );
+        assertEquals( 0 , model.getCost( Opcodes.INVOKEINTERFACE ) );
+
+        final File file = folder.newFile( "costs.properties" );
+        model.store( file , "test" );
+        final OpcodeCostModel loaded = OpcodeCostModel.load( file );
+        for ( int opcode : new int[] { Opcodes.ILOAD , Opcodes.IMUL , Opcodes.INVOKEINTERFACE , Opcodes.NEW } ) {
+            assertEquals( model.getCost( opcode ) , loaded.getCost( opcode ) );
+        }
+    }
+
+    @Test
+    public void testInvalidEntriesAreRejected() throws Exception 
+    {
+        for ( String properties : new String[] { "NOSUCHOPCODE=1" , "IMUL=-1" , "IMUL=abc" } ) 
+        {
+            try {
+                load( properties );
+                fail( "Accepted "+properties );
+            } catch(IOException e) {
+                // ok
+            }
+        }
+    }
+
+    @Test
+    public void testBlockCostsAreWeighted() throws Exception 
+    {
+        assertEquals( 4 , getInstructionsPerInvocation( OpcodeCostModel.UNIFORM ) );
+        assertEquals( 13 , getInstructionsPerInvocation( OpcodeCostModel.UNIFORM.withCost( Opcodes.IMUL , 10 ) ) );
+        assertEquals( 6 , getInstructionsPerInvocation( load( "default=2\nIRETURN=0\n" ) ) );
+    }
+
+    private static long getInstructionsPerInvocation(OpcodeCostModel model) throws Exception 
+    {
+        final ProfilingRewriter rewriter = new ProfilingRewriter();
+        rewriter.setCostModel( model );
+        final Class<?> clazz = new InstrumentingClassLoader( rewriter ).instrument( Fixture.class );
+        final MethodRegistry.MethodInfo method = InstrumentingClassLoader.getMethod( clazz , "multiply" );
+        final int index = method.getId() * ExecutionStatistics.METHOD_COUNTER_SLOTS + ExecutionStatistics.SLOT_INSTRUCTIONS;
+
+        final long before = StatisticsManager.getMethodCounters()[ index ];
+        for ( int i = 0 ; i < 10 ; i++ ) {
+            assertEquals( i * 7 , InstrumentingClassLoader.invoke( clazz , "multiply" , i , 7 ) );
+        }
+        final long instructions = StatisticsManager.getMethodCounters()[ index ] - before;
+        assertEquals( 0 , instructions % 10 );
+        return instructions / 10;
+    }
+}
@@ -0,0 +1,119 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.asm.rewrite;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.FieldNode;
+import org.objectweb.asm.tree.MethodInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+
+import de.codesourcery.asm.profiling.ExecutionStatistics;
+import de.codesourcery.asm.profiling.MethodRegistry;
+import de.codesourcery.asm.profiling.StatisticsManager;
+
+public class ProfilingClassTransformerTest
+{
+    public static class Fixture 
+    {
+        public static int counter;
+
+        public static int square(int x) {
+            counter++;
+            return x * x;
+        }
+    }
+
+    @Test
+    public void testRetransformAndRestore() throws Exception 
+    {
+        final String internalName = Fixture.class.getName().replace('.' , '/' );
+        final byte[] original = new ClassReader( Fixture.class.getName() ).b;
+        final ClassLoader loader = getClass().getClassLoader();
+
+        // class gets loaded while not being instrumented
+        final ProfilingClassTransformer.PatternFilter filter = new ProfilingClassTransformer.PatternFilter();
+        final ProfilingClassTransformer.MyTransformer transformer = new ProfilingClassTransformer.MyTransformer( filter , false , null , OpcodeCostModel.UNIFORM );
+        assertNull( transformer.transform( loader , internalName , null , null , original ) );
+
+        // instrument , the class gets re-transformed
+        filter.add( Fixture.class.getSimpleName() );
+        final byte[] instrumented = transformer.transform( loader , internalName , Fixture.class , null , original );
+        assertNotNull( instrumented );
+        assertTrue( hasProbes( instrumented ) );
+
+        // re-transformation must not change the class schema
+        assertEquals( getSchema( original ) , getSchema( instrumented ) );
+
+        final Class<?> clazz = new InstrumentingClassLoader().define( Fixture.class.getName() , instrumented );
+        final MethodRegistry.MethodInfo square = InstrumentingClassLoader.getMethod( clazz , "square" );
+        final long invocations = getInvocations( square );
+        assertEquals( 49 , InstrumentingClassLoader.invoke( clazz , "square" , 7 ) );
+        assertEquals( invocations + 1 , getInvocations( square ) );
+
+        // restore , returning NULL brings back the original byte-code
+        filter.remove( Fixture.class.getSimpleName() );
+        assertNull( transformer.transform( loader , internalName , Fixture.class , null , original ) );
+    }
+
+    private static long getInvocations(MethodRegistry.MethodInfo method) {
+        return StatisticsManager.getMethodCounters()[ method.getId() * ExecutionStatistics.METHOD_COUNTER_SLOTS + ExecutionStatistics.SLOT_INVOCATIONS ];
+    }
+
+    @SuppressWarnings("unchecked")
+    private static boolean hasProbes(byte[] classFile) 
+    {
+        final ClassNode cn = new ClassNode();
+        new ClassReader( classFile ).accept( cn , 0 );
+        for ( MethodNode mn : (List<MethodNode>) cn.methods ) 
+        {
+            for ( AbstractInsnNode insn = mn.instructions.getFirst() ; insn != null ; insn = insn.getNext() ) 
+            {
+                if ( insn instanceof MethodInsnNode && ((MethodInsnNode) insn).owner.equals( "de/codesourcery/asm/profiling/StatisticsManager" ) ) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    // everything re-transformation must not change: super class , interfaces , fields , methods and their modifiers
+    @SuppressWarnings("unchecked")
+    private static List<String> getSchema(byte[] classFile) 
+    {
+        final ClassNode cn = new ClassNode();
+        new ClassReader( classFile ).accept( cn , 0 );
+        final List<String> result = new ArrayList<>();
+        result.add( cn.access+" "+cn.superName+" "+cn.interfaces );
+        for ( FieldNode field : (List<FieldNode>) cn.fields ) {
+            result.add( field.access+" "+field.name+" "+field.desc );
+        }
+        for ( MethodNode method : (List<MethodNode>) cn.methods ) {
+            result.add( method.access+" "+method.name+method.desc );
+        }
+        return result;
+    }
+}
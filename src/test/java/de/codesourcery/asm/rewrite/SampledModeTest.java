@@ -0,0 +1,115 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.asm.rewrite;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.After;
+import org.junit.Test;
+
+import de.codesourcery.asm.profiling.ExecutionStatistics;
+import de.codesourcery.asm.profiling.MethodRegistry;
+import de.codesourcery.asm.profiling.StatisticsManager;
+
+public class SampledModeTest
+{
+    public static class Full 
+    {
+        public static int sum(int n) 
+        {
+            int result = 0;
+            for ( int i = 0 ; i < n ; i++ ) {
+                result += i;
+            }
+            return result;
+        }
+    }
+
+    public static class Sampled 
+    {
+        public static int sum(int n) 
+        {
+            int result = 0;
+            for ( int i = 0 ; i < n ; i++ ) {
+                result += i;
+            }
+            return result;
+        }
+    }
+
+    public static class Bursts 
+    {
+        public static int square(int x) {
+            return x * x;
+        }
+    }
+
+    @After
+    public void tearDown() 
+    {
+        MethodRegistry.setDefaultMode( MethodRegistry.Mode.FULL );
+        StatisticsManager.setSampling( StatisticsManager.DEFAULT_BURST_LENGTH , StatisticsManager.DEFAULT_SAMPLE_INTERVAL );
+    }
+
+    private static long getCounter(MethodRegistry.MethodInfo method,int slot) {
+        return StatisticsManager.getMethodCounters()[ method.getId() * ExecutionStatistics.METHOD_COUNTER_SLOTS + slot ];
+    }
+
+    @Test
+    public void testCheckedCopyCountsLikeFullInstrumentation() throws Exception 
+    {
+        final InstrumentingClassLoader loader = new InstrumentingClassLoader();
+        final Class<?> full = loader.instrument( Full.class );
+
+        // no gaps between bursts , every method entry and backward jump continues in the checked copy
+        MethodRegistry.setDefaultMode( MethodRegistry.Mode.SAMPLED );
+        StatisticsManager.setSampling( 1 , 0 );
+        final Class<?> sampled = loader.instrument( Sampled.class );
+
+        assertEquals( 45 , InstrumentingClassLoader.invoke( sampled , "sum" , 10 ) );
+        final MethodRegistry.MethodInfo fullSum = InstrumentingClassLoader.getMethod( full , "sum" );
+        final MethodRegistry.MethodInfo sampledSum = InstrumentingClassLoader.getMethod( sampled , "sum" );
+        final long invocations = getCounter( sampledSum , ExecutionStatistics.SLOT_INVOCATIONS );
+        final long instructions = getCounter( sampledSum , ExecutionStatistics.SLOT_INSTRUCTIONS );
+
+        InstrumentingClassLoader.invokeInNewThread( full , "sum" , 100 , 10 );
+        InstrumentingClassLoader.invokeInNewThread( sampled , "sum" , 100 , 10 );
+
+        assertEquals( MethodRegistry.Mode.SAMPLED , sampledSum.getMode() );
+        assertEquals( 100 , getCounter( fullSum , ExecutionStatistics.SLOT_INVOCATIONS ) );
+        assertEquals( 100 , getCounter( sampledSum , ExecutionStatistics.SLOT_INVOCATIONS ) - invocations );
+        assertEquals( getCounter( fullSum , ExecutionStatistics.SLOT_INSTRUCTIONS ) , 
+                getCounter( sampledSum , ExecutionStatistics.SLOT_INSTRUCTIONS ) - instructions );
+    }
+
+    @Test
+    public void testBurstsAlternateWithUncheckedCode() throws Exception 
+    {
+        // bursts of 2 checks followed by 3 checks in the unchecked copy
+        MethodRegistry.setDefaultMode( MethodRegistry.Mode.SAMPLED );
+        StatisticsManager.setSampling( 2 , 3 );
+        final Class<?> clazz = new InstrumentingClassLoader().instrument( Bursts.class );
+        final MethodRegistry.MethodInfo square = InstrumentingClassLoader.getMethod( clazz , "square" );
+
+        assertEquals( 9 , InstrumentingClassLoader.invoke( clazz , "square" , 3 ) );
+        final long invocations = getCounter( square , ExecutionStatistics.SLOT_INVOCATIONS );
+        InstrumentingClassLoader.invokeInNewThread( clazz , "square" , 100 , 3 );
+        InstrumentingClassLoader.invokeInNewThread( clazz , "square" , 100 , 3 );
+
+        // each thread starts with a fresh countdown
+        assertEquals( 80 , getCounter( square , ExecutionStatistics.SLOT_INVOCATIONS ) - invocations );
+    }
+}